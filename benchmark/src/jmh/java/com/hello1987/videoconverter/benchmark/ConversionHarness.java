@@ -0,0 +1,430 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.hello1987.videoconverter.ConversionProfile;
+import com.hello1987.videoconverter.ConversionTask;
+import com.hello1987.videoconverter.VideoObject;
+import com.hello1987.videoconverter.codec.fake.FakeCodecFactory;
+import com.hello1987.videoconverter.metrics.ConversionMetrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs complete conversions, probe, pipeline, mux and finish, over a fixed
+ * corpus of {@link CorpusGenerator} files on a JVM: the files are demuxed by
+ * {@link IsoMediaSource} and transcoded by the fake codecs, so what is
+ * measured is the converter's own work. Per corpus entry the median of the
+ * measured runs is reported:
+ * <ul>
+ * <li>frames_per_second and bytes_per_second, encoded frames and input
+ * bytes over the wall time from probe to finished file</li>
+ * <li>peak_heap_bytes, the highest heap use during a run</li>
+ * <li>allocation_bytes_per_second, allocated by all threads of the run</li>
+ * <li>time_to_first_byte_ms, until the first chunk of samples is in the
+ * output</li>
+ * </ul>
+ * Results are written as JSON, one entry per line. Passing an earlier
+ * result file as baseline compares the runs with it and exits with 1 if a
+ * metric got worse by more than the threshold.
+ * <pre>
+ *     java -cp benchmark-jmh.jar com.hello1987.videoconverter.benchmark.ConversionHarness \
+ *             [--corpus dir] [--iterations 5] [--warmup 2] [--profile default] \
+ *             [--frame-latency-us 0] [--out results.json] \
+ *             [--baseline baseline.json] [--threshold 0.1]
+ * </pre>
+ */
+public class ConversionHarness {
+
+    private static final String FRAMES_PER_SECOND = "frames_per_second";
+    private static final String BYTES_PER_SECOND = "bytes_per_second";
+    private static final String PEAK_HEAP = "peak_heap_bytes";
+    private static final String ALLOCATION_RATE = "allocation_bytes_per_second";
+    private static final String TIME_TO_FIRST_BYTE = "time_to_first_byte_ms";
+    private static final String PROBE = "probe_ms";
+    private static final String WALL = "wall_ms";
+    private static final String[] METRICS = {FRAMES_PER_SECOND,
+            BYTES_PER_SECOND, PEAK_HEAP, ALLOCATION_RATE, TIME_TO_FIRST_BYTE,
+            PROBE, WALL};
+    /**
+     * Metrics where more is better; for the others less is.
+     */
+    private static final List<String> HIGHER_IS_BETTER = Arrays.asList(
+            FRAMES_PER_SECOND, BYTES_PER_SECOND);
+    /**
+     * Metrics compared with a baseline; probe and wall time follow from
+     * the others.
+     */
+    private static final List<String> COMPARED = Arrays.asList(
+            FRAMES_PER_SECOND, BYTES_PER_SECOND, PEAK_HEAP, ALLOCATION_RATE,
+            TIME_TO_FIRST_BYTE);
+
+    private static final long SAMPLE_INTERVAL_MS = 5;
+
+    private final File corpusDir;
+    private final ConversionProfile profile;
+    private final FakeCodecFactory codecFactory;
+    private final int warmup;
+    private final int iterations;
+
+    ConversionHarness(File corpusDir, ConversionProfile profile,
+                      FakeCodecFactory codecFactory, int warmup, int iterations) {
+        this.corpusDir = corpusDir;
+        this.profile = profile;
+        this.codecFactory = codecFactory;
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    /**
+     * The fixed corpus. Seeds, sizes and layouts must not change, or
+     * results stop being comparable with earlier baselines.
+     */
+    static Map<String, CorpusGenerator> createCorpus() {
+        Map<String, CorpusGenerator> corpus =
+                new LinkedHashMap<String, CorpusGenerator>();
+        corpus.put("720p-interleaved", new CorpusGenerator()
+                .setVideo(1280, 720, 30, 30, 4000000)
+                .setDurationUs(20000000)
+                .setLayout(false, 500000)
+                .setSeed(1));
+        corpus.put("1080p-faststart", new CorpusGenerator()
+                .setVideo(1920, 1080, 30, 60, 8000000)
+                .setDurationUs(20000000)
+                .setLayout(true, 1000000)
+                .setSeed(2));
+        corpus.put("480p-tracks-apart", new CorpusGenerator()
+                .setVideo(854, 480, 25, 250, 1500000)
+                .setSampleSizes(CorpusGenerator.SIZES_UNIFORM, 10)
+                .setDurationUs(20000000)
+                .setAudioFirst(true)
+                .setLayout(false, 0)
+                .setSeed(3));
+        corpus.put("1080p-long-sparse", new CorpusGenerator()
+                .setVideo(1920, 1080, 30, 60, 10000000)
+                .setDurationUs(120000000)
+                .setLayout(true, 1000000)
+                .setSparse(true)
+                .setSeed(4));
+        return corpus;
+    }
+
+    Map<String, Map<String, Double>> run() throws Exception {
+        Map<String, Map<String, Double>> results =
+                new LinkedHashMap<String, Map<String, Double>>();
+        for (Map.Entry<String, CorpusGenerator> entry : createCorpus()
+                .entrySet()) {
+            File input = new File(corpusDir, entry.getKey() + ".mp4");
+            entry.getValue().generate(input);
+            for (int i = 0; i < warmup; i++) {
+                convert(input);
+            }
+            List<Map<String, Double>> runs = new ArrayList<Map<String, Double>>();
+            for (int i = 0; i < iterations; i++) {
+                runs.add(convert(input));
+            }
+            Map<String, Double> median = median(runs);
+            results.put(entry.getKey(), median);
+            System.out.println(entry.getKey() + " " + format(median));
+            input.delete();
+        }
+        return results;
+    }
+
+    private Map<String, Double> convert(File input) throws Exception {
+        File output = new File(corpusDir, "output.mp4");
+        final long[] firstChunkNanos = {0};
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        AllocationSampler sampler = new AllocationSampler();
+        sampler.start();
+
+        final long start = System.nanoTime();
+        VideoObject videoObject = new VideoObject();
+        videoObject.setVideoPath(input.getAbsolutePath(), profile);
+        long probeNanos = System.nanoTime() - start;
+        videoObject.setOutPath(output.getAbsolutePath());
+        ConversionTask task = new ConversionTask(videoObject, input, output,
+                new IsoMediaSource.Factory(), codecFactory,
+                new ConversionTask.Host() {
+                    @Override
+                    public void checkCanceled() {
+                    }
+
+                    @Override
+                    public void checkPreempted() {
+                    }
+
+                    @Override
+                    public void onChunkWritten(boolean first) {
+                        if (firstChunkNanos[0] == 0) {
+                            firstChunkNanos[0] = System.nanoTime() - start;
+                        }
+                    }
+                });
+        ConversionMetrics metrics = new ConversionMetrics();
+        task.setMetrics(metrics);
+        int result = task.run();
+        long wallNanos = System.nanoTime() - start;
+        long allocated = sampler.finish();
+        output.delete();
+        if (result != ConversionTask.RESULT_COMPLETED) {
+            throw new RuntimeException("conversion of " + input + " failed");
+        }
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        double seconds = wallNanos / 1e9;
+        Map<String, Double> run = new HashMap<String, Double>();
+        run.put(FRAMES_PER_SECOND, metrics.snapshot().getCounter(
+                "frames_encoded") / seconds);
+        run.put(BYTES_PER_SECOND, input.length() / seconds);
+        run.put(PEAK_HEAP, (double) peakHeap);
+        run.put(ALLOCATION_RATE, allocated / seconds);
+        run.put(TIME_TO_FIRST_BYTE, (firstChunkNanos[0] != 0
+                ? firstChunkNanos[0] : wallNanos) / 1e6);
+        run.put(PROBE, probeNanos / 1e6);
+        run.put(WALL, wallNanos / 1e6);
+        return run;
+    }
+
+    private static Map<String, Double> median(List<Map<String, Double>> runs) {
+        Map<String, Double> median = new LinkedHashMap<String, Double>();
+        for (String metric : METRICS) {
+            double[] values = new double[runs.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = runs.get(i).get(metric);
+            }
+            Arrays.sort(values);
+            median.put(metric, values[values.length / 2]);
+        }
+        return median;
+    }
+
+    /**
+     * Compares results with baseline and returns a line per metric that got
+     * worse by more than threshold.
+     */
+    static List<String> findRegressions(Map<String, Map<String, Double>> results,
+                                        Map<String, Map<String, Double>> baseline,
+                                        double threshold) {
+        List<String> regressions = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, Double>> entry : results.entrySet()) {
+            Map<String, Double> before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            for (String metric : COMPARED) {
+                Double was = before.get(metric);
+                Double now = entry.getValue().get(metric);
+                if (was == null || now == null || was == 0) {
+                    continue;
+                }
+                double change = (now - was) / was;
+                boolean worse = HIGHER_IS_BETTER.contains(metric)
+                        ? change < -threshold : change > threshold;
+                if (worse) {
+                    regressions.add(String.format(Locale.US,
+                            "%s %s: %.1f -> %.1f (%+.1f%%)", entry.getKey(),
+                            metric, was, now, change * 100));
+                }
+            }
+        }
+        return regressions;
+    }
+
+    static void writeResults(Writer writer, String profile, int iterations,
+                             Map<String, Map<String, Double>> results)
+            throws IOException {
+        writer.write("{\"profile\": \"" + profile + "\", \"iterations\": "
+                + iterations + ", \"results\": [\n");
+        int i = 0;
+        for (Map.Entry<String, Map<String, Double>> entry : results.entrySet()) {
+            writer.write("  {\"entry\": \"" + entry.getKey() + "\"");
+            for (Map.Entry<String, Double> metric : entry.getValue().entrySet()) {
+                writer.write(String.format(Locale.US, ", \"%s\": %.3f",
+                        metric.getKey(), metric.getValue()));
+            }
+            writer.write(++i < results.size() ? "},\n" : "}\n");
+        }
+        writer.write("]}\n");
+    }
+
+    /**
+     * Reads a file written by {@link #writeResults}.
+     */
+    static Map<String, Map<String, Double>> readResults(File file)
+            throws IOException {
+        Pattern entryPattern = Pattern.compile("\"entry\": \"([^\"]+)\"");
+        Pattern metricPattern = Pattern.compile(
+                "\"([a-z_]+)\": (-?[0-9.]+(?:[eE][-+]?[0-9]+)?)");
+        Map<String, Map<String, Double>> results =
+                new LinkedHashMap<String, Map<String, Double>>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher entry = entryPattern.matcher(line);
+                if (!entry.find()) {
+                    continue;
+                }
+                Map<String, Double> metrics = new HashMap<String, Double>();
+                Matcher metric = metricPattern.matcher(line);
+                while (metric.find()) {
+                    metrics.put(metric.group(1),
+                            Double.parseDouble(metric.group(2)));
+                }
+                results.put(entry.group(1), metrics);
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static String format(Map<String, Double> metrics) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+            builder.append(String.format(Locale.US, " %s=%.1f",
+                    metric.getKey(), metric.getValue()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Adds up the bytes allocated by all threads while it runs. Threads are
+     * polled every few milliseconds, so what a short lived thread allocates
+     * after the last poll before it ends is missed.
+     */
+    private static final class AllocationSampler extends Thread {
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory
+                        .getThreadMXBean();
+        private final Map<Long, Long> last = new HashMap<Long, Long>();
+        private volatile boolean running = true;
+        private long allocated;
+
+        AllocationSampler() {
+            super("allocation-sampler");
+            setDaemon(true);
+            poll();
+            // only count from now on
+            allocated = 0;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                poll();
+            }
+        }
+
+        private synchronized void poll() {
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == getId() || bytes[i] < 0) {
+                    continue;
+                }
+                Long previous = last.put(ids[i], bytes[i]);
+                allocated += bytes[i] - (previous != null ? previous : 0);
+            }
+        }
+
+        long finish() throws InterruptedException {
+            running = false;
+            interrupt();
+            join();
+            poll();
+            synchronized (this) {
+                return allocated;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("unexpected argument " + args[i]);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        File corpusDir = new File(option(options, "corpus",
+                System.getProperty("java.io.tmpdir") + "/videoconverter-corpus"));
+        corpusDir.mkdirs();
+        String profileName = option(options, "profile",
+                ConversionProfile.DEFAULT);
+        ConversionProfile profile = ConversionProfile.forName(profileName);
+        if (profile == null) {
+            System.err.println("unknown profile " + profileName);
+            System.exit(2);
+        }
+        int iterations = Integer.parseInt(option(options, "iterations", "5"));
+        FakeCodecFactory codecFactory = new FakeCodecFactory()
+                .setPipelineDepth(2)
+                .setFrameLatencyNanos(Long.parseLong(option(options,
+                        "frame-latency-us", "0")) * 1000);
+
+        Map<String, Map<String, Double>> results = new ConversionHarness(
+                corpusDir, profile, codecFactory,
+                Integer.parseInt(option(options, "warmup", "2")), iterations)
+                .run();
+
+        File out = new File(option(options, "out", "conversion-results.json"));
+        Writer writer = new FileWriter(out);
+        try {
+            writeResults(writer, profileName, iterations, results);
+        } finally {
+            writer.close();
+        }
+        System.out.println("results written to " + out);
+
+        String baseline = options.get("baseline");
+        if (baseline != null) {
+            List<String> regressions = findRegressions(results,
+                    readResults(new File(baseline)), Double.parseDouble(
+                            option(options, "threshold", "0.1")));
+            for (String regression : regressions) {
+                System.out.println("REGRESSION " + regression);
+            }
+            if (!regressions.isEmpty()) {
+                System.exit(1);
+            }
+            System.out.println("no regressions against " + baseline);
+        }
+    }
+
+    private static String option(Map<String, String> options, String name,
+                                 String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
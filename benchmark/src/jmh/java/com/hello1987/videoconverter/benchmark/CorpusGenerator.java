@@ -0,0 +1,460 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.FileTypeBox;
+import com.coremedia.iso.boxes.MediaHeaderBox;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.MovieHeaderBox;
+import com.coremedia.iso.boxes.TrackHeaderBox;
+import com.hello1987.videoconverter.mp4.MP4Builder;
+import com.hello1987.videoconverter.mp4.Mp4Movie;
+import com.hello1987.videoconverter.mp4.Track;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Writes synthetic MP4 files to benchmark the muxer, the probe and the
+ * remux paths with. The sample tables go through {@link Mp4Movie} and the
+ * boxes are the ones {@link MP4Builder} writes, but the samples are laid out
+ * directly, so the moov box can come before or after the mdat and the
+ * tracks can be interleaved in runs of any length or written one after the
+ * other. Sample sizes and the file are a function of the settings and the
+ * seed only, down to the box timestamps, so two runs get the same bytes.
+ * <p>
+ * Sparse files leave the sample data as a hole, which is enough for
+ * anything that does not decode, and lets files of tens of GB be made in
+ * seconds on file systems that support holes. Otherwise the samples are
+ * filled with pseudo-random bytes behind a valid NAL length prefix.
+ * <p>
+ * Run standalone with
+ * <pre>
+ *     java -cp benchmark-jmh.jar com.hello1987.videoconverter.benchmark.CorpusGenerator \
+ *             out.mp4 [durationSeconds] [seed] [moovFirst] [sparse]
+ * </pre>
+ */
+public class CorpusGenerator {
+
+    public static final int SIZES_CONSTANT = 0;
+    public static final int SIZES_UNIFORM = 1;
+    public static final int SIZES_LOG_NORMAL = 2;
+
+    private static final int FLAG_SYNC_FRAME = 1;
+    private static final int MDAT_HEADER_SIZE = 16;
+    private static final int MIN_SAMPLE_SIZE = 16;
+    private static final int MAX_SAMPLE_SIZE = 8 * 1024 * 1024;
+    private static final int FILL_SIZE = 1024 * 1024;
+    private static final double LOG_NORMAL_SIGMA = 0.5;
+    private static final Date TIMESTAMP = new Date(1262304000000L);
+
+    private int width = 1280;
+    private int height = 720;
+    private int frameRate = 30;
+    private int gopFrames = 30;
+    private int videoBitrate = 4000000;
+    private int sizeDistribution = SIZES_LOG_NORMAL;
+    private float keyFrameRatio = 6;
+    private int sampleRate = 44100;
+    private int channelCount = 2;
+    private int audioBitrate = 128000;
+    private long durationUs = 10000000;
+    private long seed = 1;
+    private boolean audioFirst;
+    private boolean moovFirst;
+    private long interleaveUs = 500000;
+    private boolean sparse;
+
+    public CorpusGenerator setVideo(int width, int height, int frameRate,
+                                    int gopFrames, int bitrate) {
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.gopFrames = gopFrames;
+        this.videoBitrate = bitrate;
+        return this;
+    }
+
+    /**
+     * How frame sizes vary around the mean the bitrate gives, one of the
+     * SIZES_ constants, and how much larger key frames are than the others.
+     */
+    public CorpusGenerator setSampleSizes(int distribution,
+                                          float keyFrameRatio) {
+        this.sizeDistribution = distribution;
+        this.keyFrameRatio = keyFrameRatio;
+        return this;
+    }
+
+    /**
+     * sampleRate 0 leaves out the audio track.
+     */
+    public CorpusGenerator setAudio(int sampleRate, int channelCount,
+                                    int bitrate) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.audioBitrate = bitrate;
+        return this;
+    }
+
+    public CorpusGenerator setDurationUs(long durationUs) {
+        this.durationUs = durationUs;
+        return this;
+    }
+
+    public CorpusGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Makes the audio track the first one in the moov box.
+     */
+    public CorpusGenerator setAudioFirst(boolean audioFirst) {
+        this.audioFirst = audioFirst;
+        return this;
+    }
+
+    /**
+     * Puts the moov box in front of the samples, as for progressive
+     * download, or behind them, as the muxer does. interleaveUs is the
+     * length of the runs the tracks alternate in; 0 writes the tracks one
+     * after the other.
+     */
+    public CorpusGenerator setLayout(boolean moovFirst, long interleaveUs) {
+        this.moovFirst = moovFirst;
+        this.interleaveUs = interleaveUs;
+        return this;
+    }
+
+    public CorpusGenerator setSparse(boolean sparse) {
+        this.sparse = sparse;
+        return this;
+    }
+
+    /**
+     * Writes the file and returns its length.
+     */
+    public long generate(File file) throws Exception {
+        MovieWriter writer = new MovieWriter();
+        long headerSize = writer.createFileTypeBox().getSize();
+        // chunk offsets depend on the size of a leading moov box, which
+        // itself grows should they need co64, so lay out until it settles
+        long moovSize = 0;
+        Mp4Movie movie;
+        Box moov;
+        while (true) {
+            long dataOffset = headerSize + moovSize + MDAT_HEADER_SIZE;
+            movie = createMovie(file);
+            long dataSize = layOut(movie, dataOffset, null);
+            moov = writer.createMovieBox(movie);
+            if (!moovFirst || moov.getSize() == moovSize) {
+                return write(file, writer, movie, moov, dataSize);
+            }
+            moovSize = moov.getSize();
+            release(movie);
+        }
+    }
+
+    private long write(File file, MovieWriter writer, Mp4Movie movie, Box moov,
+                       long dataSize) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel fc = raf.getChannel();
+            writer.createFileTypeBox().getBox(fc);
+            if (moovFirst) {
+                moov.getBox(fc);
+            }
+            writeMdatHeader(fc, dataSize);
+            long dataOffset = fc.position();
+            if (sparse) {
+                raf.setLength(dataOffset + dataSize);
+                fc.position(dataOffset + dataSize);
+            } else {
+                // sizes come out the same as in the movie, the data follows
+                layOut(null, dataOffset, fc);
+            }
+            if (!moovFirst) {
+                moov.getBox(fc);
+            }
+            return fc.position();
+        } finally {
+            release(movie);
+            raf.close();
+        }
+    }
+
+    private Mp4Movie createMovie(File file) {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(file);
+        movie.setSize(width, height);
+        movie.setAudioBitrate(audioBitrate);
+        boolean hasAudio = sampleRate > 0;
+        if (hasAudio && audioFirst) {
+            movie.addAudioTrack(sampleRate, channelCount);
+        }
+        movie.addVideoTrack("video/avc", width, height, MuxerState.SPS,
+                MuxerState.PPS);
+        if (hasAudio && !audioFirst) {
+            movie.addAudioTrack(sampleRate, channelCount);
+        }
+        return movie;
+    }
+
+    /**
+     * Goes through the samples in file order, adding them to movie if it
+     * is not null and writing their data to channel if that is not null.
+     * Returns the size of the data.
+     */
+    private long layOut(Mp4Movie movie, long dataOffset, FileChannel channel)
+            throws IOException {
+        SampleSource video = new VideoSource();
+        SampleSource audio = sampleRate > 0 ? new AudioSource() : null;
+        int videoIndex = audio != null && audioFirst ? 1 : 0;
+        int audioIndex = 1 - videoIndex;
+        ByteBuffer fill = channel != null ? createFill() : null;
+
+        long offset = dataOffset;
+        SampleSource run = null;
+        long runEndUs = 0;
+        while (!video.isDone() || (audio != null && !audio.isDone())) {
+            if (run == null || run.isDone()
+                    || (interleaveUs > 0 && run.timeUs >= runEndUs)) {
+                run = pickRun(video, audio);
+                runEndUs = run.timeUs + interleaveUs;
+            }
+            int size = run.size;
+            boolean isAudio = run == audio;
+            if (movie != null) {
+                movie.addSample(isAudio ? audioIndex : videoIndex, offset,
+                        size, run.timeUs, run.flags);
+            }
+            if (channel != null) {
+                writeSample(channel, fill, size, isAudio,
+                        (run.flags & FLAG_SYNC_FRAME) != 0);
+            }
+            offset += size;
+            run.next();
+        }
+        return offset - dataOffset;
+    }
+
+    private SampleSource pickRun(SampleSource video, SampleSource audio) {
+        if (audio == null || audio.isDone()) {
+            return video;
+        }
+        if (video.isDone()) {
+            return audio;
+        }
+        if (interleaveUs <= 0) {
+            return audioFirst ? audio : video;
+        }
+        // the track that is behind
+        if (audio.timeUs != video.timeUs) {
+            return audio.timeUs < video.timeUs ? audio : video;
+        }
+        return audioFirst ? audio : video;
+    }
+
+    private ByteBuffer createFill() {
+        ByteBuffer fill = ByteBuffer.allocateDirect(FILL_SIZE);
+        Random random = new Random(seed);
+        byte[] bytes = new byte[FILL_SIZE];
+        random.nextBytes(bytes);
+        for (int i = 0; i < bytes.length; i++) {
+            // no emulated start codes
+            if (bytes[i] == 0) {
+                bytes[i] = 1;
+            }
+        }
+        fill.put(bytes);
+        return fill;
+    }
+
+    private static void writeSample(FileChannel channel, ByteBuffer fill,
+                                    int size, boolean isAudio, boolean sync)
+            throws IOException {
+        int remaining = size;
+        fill.clear();
+        if (!isAudio) {
+            // one NAL unit of the whole sample, an IDR or a non-IDR slice
+            fill.putInt(0, size - 4);
+            fill.put(4, (byte) (sync ? 0x65 : 0x41));
+        }
+        while (remaining > 0) {
+            fill.limit(Math.min(remaining, FILL_SIZE));
+            fill.position(0);
+            remaining -= channel.write(fill);
+        }
+    }
+
+    private static void writeMdatHeader(FileChannel channel, long dataSize)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+        long size = dataSize + MDAT_HEADER_SIZE;
+        if (size < 0x100000000L) {
+            // like the muxer: the spare 8 bytes are part of the payload
+            header.putInt((int) size);
+            header.put(new byte[]{'m', 'd', 'a', 't'});
+            header.putLong(0);
+        } else {
+            header.putInt(1);
+            header.put(new byte[]{'m', 'd', 'a', 't'});
+            header.putLong(size);
+        }
+        header.flip();
+        channel.write(header);
+    }
+
+    private static void release(Mp4Movie movie) {
+        for (Track track : movie.getTracks()) {
+            track.getSampleTable().release();
+        }
+    }
+
+    private int drawSize(Random random, double mean) {
+        double size;
+        switch (sizeDistribution) {
+            case SIZES_UNIFORM:
+                size = mean * (0.5 + random.nextDouble());
+                break;
+            case SIZES_LOG_NORMAL:
+                size = mean * Math.exp(LOG_NORMAL_SIGMA * random.nextGaussian()
+                        - LOG_NORMAL_SIGMA * LOG_NORMAL_SIGMA / 2);
+                break;
+            default:
+                size = mean;
+                break;
+        }
+        return (int) Math.max(MIN_SAMPLE_SIZE, Math.min(MAX_SAMPLE_SIZE, size));
+    }
+
+    private abstract class SampleSource {
+        // each track draws from its own sequence, so the layout does not
+        // change the sizes
+        final Random random;
+        long index;
+        long timeUs;
+        int size;
+        int flags;
+
+        SampleSource(long trackSeed) {
+            random = new Random(seed * 31 + trackSeed);
+        }
+
+        boolean isDone() {
+            return timeUs >= durationUs;
+        }
+
+        void next() {
+            index++;
+            update();
+        }
+
+        abstract void update();
+    }
+
+    private class VideoSource extends SampleSource {
+        private final double interFrameSize;
+
+        VideoSource() {
+            super(1);
+            // key frames keyFrameRatio times the others, averaging out at
+            // the bitrate
+            double meanSize = videoBitrate / 8.0 / frameRate;
+            interFrameSize = meanSize * gopFrames
+                    / (keyFrameRatio + gopFrames - 1);
+            update();
+        }
+
+        @Override
+        void update() {
+            timeUs = index * 1000000 / frameRate;
+            boolean sync = index % gopFrames == 0;
+            flags = sync ? FLAG_SYNC_FRAME : 0;
+            size = drawSize(random, sync ? interFrameSize * keyFrameRatio
+                    : interFrameSize);
+        }
+    }
+
+    private class AudioSource extends SampleSource {
+        private final double frameSize;
+
+        AudioSource() {
+            super(2);
+            // one AAC frame of 1024 samples
+            frameSize = audioBitrate / 8.0 * 1024 / sampleRate;
+            update();
+        }
+
+        @Override
+        void update() {
+            timeUs = index * 1024 * 1000000 / sampleRate;
+            flags = 0;
+            // AAC frames vary little
+            size = (int) Math.max(MIN_SAMPLE_SIZE,
+                    frameSize * (0.9 + 0.2 * random.nextDouble()));
+        }
+    }
+
+    /**
+     * Gives access to the boxes of the muxer, with fixed timestamps.
+     */
+    private static class MovieWriter extends MP4Builder {
+
+        @Override
+        protected MovieBox createMovieBox(Mp4Movie movie) throws IOException {
+            MovieBox moov = super.createMovieBox(movie);
+            MovieHeaderBox mvhd = moov.getMovieHeaderBox();
+            mvhd.setCreationTime(TIMESTAMP);
+            mvhd.setModificationTime(TIMESTAMP);
+            for (TrackHeaderBox tkhd : moov.getBoxes(TrackHeaderBox.class,
+                    true)) {
+                tkhd.setCreationTime(TIMESTAMP);
+                tkhd.setModificationTime(TIMESTAMP);
+            }
+            for (MediaHeaderBox mdhd : moov.getBoxes(MediaHeaderBox.class,
+                    true)) {
+                mdhd.setCreationTime(TIMESTAMP);
+                mdhd.setModificationTime(TIMESTAMP);
+            }
+            return moov;
+        }
+
+        @Override
+        protected FileTypeBox createFileTypeBox() {
+            return super.createFileTypeBox();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: CorpusGenerator out.mp4"
+                    + " [durationSeconds] [seed] [moovFirst] [sparse]");
+            System.exit(1);
+        }
+        CorpusGenerator generator = new CorpusGenerator();
+        if (args.length > 1) {
+            generator.setDurationUs((long) (Double.parseDouble(args[1])
+                    * 1000000));
+        }
+        if (args.length > 2) {
+            generator.setSeed(Long.parseLong(args[2]));
+        }
+        if (args.length > 3) {
+            generator.setLayout(Boolean.parseBoolean(args[3]), 500000);
+        }
+        if (args.length > 4) {
+            generator.setSparse(Boolean.parseBoolean(args[4]));
+        }
+        long start = System.nanoTime();
+        long length = generator.generate(new File(args[0]));
+        System.out.println(args[0] + ": " + length + " bytes in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
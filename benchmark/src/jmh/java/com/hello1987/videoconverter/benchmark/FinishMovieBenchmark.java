@@ -0,0 +1,41 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.hello1987.videoconverter.mp4.MP4Builder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of finishMovie, which builds the sample tables and writes the
+ * moov box, for a movie whose samples were written outside the measurement.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FinishMovieBenchmark extends MuxerState {
+
+    private MP4Builder builder;
+
+    @Setup(Level.Invocation)
+    public void writeMovie() throws Exception {
+        builder = startMovie();
+        writeSamples(builder);
+    }
+
+    @Benchmark
+    public long finish() throws Exception {
+        builder.finishMovie(false);
+        return file.length();
+    }
+}
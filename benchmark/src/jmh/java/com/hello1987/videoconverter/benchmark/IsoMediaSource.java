@@ -0,0 +1,252 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.coremedia.iso.boxes.sampleentry.SampleEntry;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+import com.hello1987.videoconverter.codec.MediaSource;
+import com.hello1987.videoconverter.codec.MediaSourceFactory;
+import com.hello1987.videoconverter.codec.TrackFormat;
+import com.mp4parser.iso14496.part15.AvcConfigurationBox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the samples of an MP4 file with isoparser, so conversions over the
+ * fake codecs can demux real files on a JVM. Like MediaExtractor it returns
+ * H.264 samples in Annex B form and the samples of the selected tracks in
+ * presentation order. Composition offsets are ignored, which is fine for
+ * files without B-frames such as those of {@link CorpusGenerator}.
+ */
+final class IsoMediaSource implements MediaSource {
+
+    private final TrackState[] tracks;
+
+    IsoMediaSource(File file) throws IOException {
+        List<Track> movieTracks = MovieCreator.build(file.getPath())
+                .getTracks();
+        tracks = new TrackState[movieTracks.size()];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = new TrackState(movieTracks.get(i));
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    @Override
+    public TrackFormat getTrackFormat(int index) {
+        return tracks[index].createFormat();
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        tracks[index].selected = true;
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        tracks[index].selected = false;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        for (TrackState track : tracks) {
+            track.seekTo(Math.max(0, timeUs));
+        }
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        int index = -1;
+        long time = Long.MAX_VALUE;
+        for (int i = 0; i < tracks.length; i++) {
+            TrackState track = tracks[i];
+            if (track.selected && track.cursor < track.times.length
+                    && track.times[track.cursor] < time) {
+                index = i;
+                time = track.times[track.cursor];
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        int index = getSampleTrackIndex();
+        if (index == -1) {
+            return -1;
+        }
+        TrackState track = tracks[index];
+        ByteBuffer data = track.samples.get(track.cursor).asByteBuffer();
+        int size = data.remaining();
+        buffer.clear();
+        buffer.position(offset);
+        buffer.put(data);
+        if (track.isVideo) {
+            toAnnexB(buffer, offset, size);
+        }
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        int index = getSampleTrackIndex();
+        return index == -1 ? -1 : tracks[index].times[tracks[index].cursor];
+    }
+
+    @Override
+    public int getSampleFlags() {
+        int index = getSampleTrackIndex();
+        if (index == -1) {
+            return 0;
+        }
+        return tracks[index].isSync(tracks[index].cursor) ? SAMPLE_FLAG_SYNC
+                : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        int index = getSampleTrackIndex();
+        if (index == -1) {
+            return false;
+        }
+        tracks[index].cursor++;
+        return getSampleTrackIndex() != -1;
+    }
+
+    @Override
+    public void release() {
+        for (TrackState track : tracks) {
+            try {
+                track.track.close();
+            } catch (IOException e) {
+                // nothing was written
+            }
+        }
+    }
+
+    /**
+     * Replaces the 4 byte NAL unit lengths of an MP4 sample with start
+     * codes.
+     */
+    private static void toAnnexB(ByteBuffer buffer, int offset, int size) {
+        int position = offset;
+        int end = offset + size;
+        while (position + 4 <= end) {
+            int length = buffer.getInt(position);
+            buffer.putInt(position, 1);
+            if (length <= 0) {
+                // sparse input has no NAL units
+                break;
+            }
+            position += 4 + length;
+        }
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(nal.length + 4);
+        buffer.putInt(1);
+        buffer.put(nal);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static final class TrackState {
+        final Track track;
+        final List<Sample> samples;
+        final long[] times;
+        final long[] syncSamples;
+        final boolean isVideo;
+        final int maxSampleSize;
+        boolean selected;
+        int cursor;
+
+        TrackState(Track track) {
+            this.track = track;
+            samples = track.getSamples();
+            long[] durations = track.getSampleDurations();
+            long timescale = track.getTrackMetaData().getTimescale();
+            times = new long[durations.length];
+            long ticks = 0;
+            for (int i = 0; i < durations.length; i++) {
+                times[i] = ticks * 1000000 / timescale;
+                ticks += durations[i];
+            }
+            syncSamples = track.getSyncSamples();
+            isVideo = "vide".equals(track.getHandler());
+            long maxSize = 0;
+            for (Sample sample : samples) {
+                maxSize = Math.max(maxSize, sample.getSize());
+            }
+            maxSampleSize = (int) maxSize;
+        }
+
+        boolean isSync(int index) {
+            if (syncSamples == null || syncSamples.length == 0) {
+                return true;
+            }
+            // stss is sorted and 1-based
+            return Arrays.binarySearch(syncSamples, index + 1L) >= 0;
+        }
+
+        void seekTo(long timeUs) {
+            int index = Arrays.binarySearch(times, timeUs);
+            if (index < 0) {
+                index = Math.max(0, -index - 2);
+            }
+            while (index > 0 && !isSync(index)) {
+                index--;
+            }
+            cursor = Math.min(index, times.length);
+        }
+
+        TrackFormat createFormat() {
+            SampleEntry entry = (SampleEntry) track.getSampleDescriptionBox()
+                    .getBoxes().get(0);
+            TrackFormat format;
+            if (isVideo) {
+                format = TrackFormat.createVideoFormat("video/avc",
+                        (int) track.getTrackMetaData().getWidth(),
+                        (int) track.getTrackMetaData().getHeight());
+                double seconds = (double) track.getDuration()
+                        / track.getTrackMetaData().getTimescale();
+                format.setInteger(TrackFormat.KEY_FRAME_RATE,
+                        (int) Math.round(times.length / Math.max(seconds, 1e-3)));
+                List<AvcConfigurationBox> avcC = entry.getBoxes(
+                        AvcConfigurationBox.class);
+                if (!avcC.isEmpty()) {
+                    format.setByteBuffer(TrackFormat.KEY_CSD_0, withStartCode(
+                            avcC.get(0).getSequenceParameterSets().get(0)));
+                    format.setByteBuffer(TrackFormat.KEY_CSD_1, withStartCode(
+                            avcC.get(0).getPictureParameterSets().get(0)));
+                }
+            } else {
+                AudioSampleEntry audio = (AudioSampleEntry) entry;
+                format = TrackFormat.createAudioFormat("audio/mp4a-latm",
+                        (int) audio.getSampleRate(), audio.getChannelCount());
+            }
+            format.setLong(TrackFormat.KEY_DURATION,
+                    track.getDuration() * 1000000
+                            / track.getTrackMetaData().getTimescale());
+            format.setInteger(TrackFormat.KEY_MAX_INPUT_SIZE, maxSampleSize);
+            return format;
+        }
+    }
+
+    static class Factory implements MediaSourceFactory {
+        @Override
+        public MediaSource open(File file) throws IOException {
+            return new IsoMediaSource(file);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.hello1987.videoconverter.mp4.MP4Builder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Muxes complete movies: createMovie, addTrack, sampleCount times
+ * writeSampleData and finishMovie. The samples and bytes counters are
+ * reported as rates next to the movies per second; run with -prof gc for
+ * the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class MuxerBenchmark extends MuxerState {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long samples;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            samples = 0;
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public long mux(Counters counters) throws Exception {
+        MP4Builder builder = startMovie();
+        long bytes = writeSamples(builder);
+        builder.finishMovie(false);
+        counters.samples += sampleCount;
+        counters.bytes += bytes;
+        return file.length();
+    }
+}
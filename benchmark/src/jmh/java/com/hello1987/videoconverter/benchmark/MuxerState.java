@@ -0,0 +1,86 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.hello1987.videoconverter.mp4.MP4Builder;
+import com.hello1987.videoconverter.mp4.Mp4Movie;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Parameters and helpers shared by the muxer benchmarks. Each trial writes
+ * to its own temporary file.
+ */
+@State(Scope.Thread)
+public abstract class MuxerState {
+
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda,
+            0x01, 0x40, 0x16, (byte) 0xe8};
+    static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    @Param({"10000", "100000", "1000000"})
+    public int sampleCount;
+
+    @Param({"256", "4096"})
+    public int videoSampleSize;
+
+    @Param({SampleStream.MIX_AV, SampleStream.MIX_VIDEO, SampleStream.MIX_AUDIO})
+    public String mix;
+
+    @Param({"30", "250"})
+    public int keyFrameInterval;
+
+    File file;
+    SampleStream stream;
+    ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws Exception {
+        file = File.createTempFile("muxer", ".mp4");
+        stream = new SampleStream(mix, videoSampleSize, keyFrameInterval);
+        buffer = ByteBuffer.allocateDirect(stream.getMaxSampleSize());
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) buffer.position());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        file.delete();
+    }
+
+    MP4Builder startMovie() throws Exception {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(file);
+        movie.setSize(1280, 720);
+        MP4Builder builder = new MP4Builder().createMovie(movie);
+        if (stream.hasVideo()) {
+            builder.addVideoTrack("video/avc", 1280, 720, SPS, PPS);
+        }
+        if (stream.hasAudio()) {
+            builder.addAudioTrack(44100, 2);
+        }
+        stream.reset();
+        return builder;
+    }
+
+    /**
+     * Writes sampleCount samples and returns the number of payload bytes.
+     */
+    long writeSamples(MP4Builder builder) throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            stream.next();
+            builder.writeSampleData(stream.trackIndex, buffer, 0, stream.size,
+                    stream.presentationTimeUs, stream.flags, stream.isAudio);
+            bytes += stream.size;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,92 @@
+package com.hello1987.videoconverter.benchmark;
+
+/**
+ * Deterministic interleaved sample stream in presentation order. Video
+ * frames come at 30 fps with a sync frame every keyFrameInterval frames and
+ * sync frames four times the size of the others; audio frames are sized like
+ * 128 kbps AAC at 44.1 kHz.
+ */
+final class SampleStream {
+
+    static final String MIX_VIDEO = "video";
+    static final String MIX_AUDIO = "audio";
+    static final String MIX_AV = "av";
+
+    static final int FLAG_SYNC_FRAME = 1;
+
+    private static final long VIDEO_FRAME_US = 1000000 / 30;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / 44100;
+    private static final int AUDIO_SAMPLE_SIZE = 371;
+
+    private final boolean hasVideo;
+    private final boolean hasAudio;
+    private final int videoSampleSize;
+    private final int keyFrameInterval;
+
+    private long videoFrames;
+    private long audioFrames;
+
+    int trackIndex;
+    int size;
+    long presentationTimeUs;
+    int flags;
+    boolean isAudio;
+
+    SampleStream(String mix, int videoSampleSize, int keyFrameInterval) {
+        hasVideo = !MIX_AUDIO.equals(mix);
+        hasAudio = !MIX_VIDEO.equals(mix);
+        this.videoSampleSize = Math.max(8, videoSampleSize);
+        this.keyFrameInterval = keyFrameInterval;
+    }
+
+    boolean hasVideo() {
+        return hasVideo;
+    }
+
+    boolean hasAudio() {
+        return hasAudio;
+    }
+
+    int getAudioTrackIndex() {
+        return hasVideo ? 1 : 0;
+    }
+
+    int getMaxSampleSize() {
+        return Math.max(videoSampleSize * 4, AUDIO_SAMPLE_SIZE + 16);
+    }
+
+    void reset() {
+        videoFrames = 0;
+        audioFrames = 0;
+    }
+
+    /**
+     * Advances to the next sample and describes it in the fields.
+     */
+    void next() {
+        long videoTime = videoFrames * VIDEO_FRAME_US;
+        long audioTime = audioFrames * AUDIO_FRAME_US;
+        if (hasVideo && (!hasAudio || videoTime <= audioTime)) {
+            boolean sync = videoFrames % keyFrameInterval == 0;
+            trackIndex = 0;
+            size = sync ? videoSampleSize * 4 : videoSampleSize / 2
+                    + (int) (mix(videoFrames) % videoSampleSize);
+            presentationTimeUs = videoTime;
+            flags = sync ? FLAG_SYNC_FRAME : 0;
+            isAudio = false;
+            videoFrames++;
+        } else {
+            trackIndex = getAudioTrackIndex();
+            size = AUDIO_SAMPLE_SIZE - 8 + (int) (mix(audioFrames) % 16);
+            presentationTimeUs = audioTime;
+            flags = 0;
+            isAudio = true;
+            audioFrames++;
+        }
+    }
+
+    private static long mix(long seed) {
+        seed = (seed ^ (seed >>> 33)) * 0xff51afd7ed558ccdL;
+        return (seed ^ (seed >>> 33)) & Long.MAX_VALUE;
+    }
+}
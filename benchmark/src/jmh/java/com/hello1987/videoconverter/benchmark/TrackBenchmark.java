@@ -0,0 +1,80 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.hello1987.videoconverter.mp4.Track;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per sample cost of Track.addSample. The track is replaced after
+ * sampleCount samples, so the cost includes spilling its sample table to
+ * the scratch file up to that size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TrackBenchmark {
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int sampleCount;
+
+    @Param({"30", "250"})
+    public int keyFrameInterval;
+
+    private SampleStream stream;
+    private Track track;
+    private int samples;
+    private long offset;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        stream = new SampleStream(SampleStream.MIX_VIDEO, 4096,
+                keyFrameInterval);
+        newTrack();
+    }
+
+    @Benchmark
+    public Track addSample() throws Exception {
+        if (samples == sampleCount) {
+            newTrack();
+        }
+        stream.next();
+        track.addSample(offset, stream.size, stream.presentationTimeUs,
+                stream.flags);
+        offset += stream.size;
+        samples++;
+        return track;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        track.getSampleTable().release();
+    }
+
+    private void newTrack() {
+        if (track != null) {
+            track.getSampleTable().release();
+        }
+        track = Track.createVideoTrack(0, "video/avc", 1280, 720,
+                MuxerState.SPS, MuxerState.PPS);
+        stream.reset();
+        samples = 0;
+        offset = 0;
+    }
+}
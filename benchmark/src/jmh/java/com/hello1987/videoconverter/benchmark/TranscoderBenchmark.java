@@ -0,0 +1,113 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.hello1987.videoconverter.VideoTrackTranscoder;
+import com.hello1987.videoconverter.codec.SampleInfo;
+import com.hello1987.videoconverter.codec.TrackFormat;
+import com.hello1987.videoconverter.codec.fake.FakeCodecFactory;
+import com.hello1987.videoconverter.codec.fake.FakeMediaSource;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end time of one video track transcode over the fake codecs, with
+ * the codecs driven by callbacks or by polling. The cpuUsPerFrame counter
+ * is the process CPU time, codec threads included, per encoded frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TranscoderBenchmark {
+
+    @Param({"callback", "polling"})
+    public String mode;
+
+    @Param({"500", "5000"})
+    public int frameLatencyUs;
+
+    @Param({"2"})
+    public int pipelineDepth;
+
+    private FakeMediaSource.Factory sourceFactory;
+    private FakeCodecFactory codecFactory;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public double cpuUsPerFrame;
+        private long cpuNanos;
+        private long frames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuUsPerFrame = 0;
+            cpuNanos = 0;
+            frames = 0;
+        }
+
+        void add(long cpuNanos, long frames) {
+            this.cpuNanos += cpuNanos;
+            this.frames += frames;
+            cpuUsPerFrame = this.cpuNanos / 1000.0 / Math.max(1, this.frames);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sourceFactory = new FakeMediaSource.Factory()
+                .setVideo(1280, 720, 30, 30, 4000000)
+                .setAudio(0, 0, 0)
+                .setDurationUs(5000000);
+        codecFactory = new FakeCodecFactory()
+                .setCallbackSupported("callback".equals(mode))
+                .setFrameLatencyNanos(frameLatencyUs * 1000L)
+                .setPipelineDepth(pipelineDepth);
+    }
+
+    @Benchmark
+    public long transcode(Counters counters) throws Exception {
+        final long[] frames = new long[1];
+        long cpuStart = processCpuTime();
+        VideoTrackTranscoder transcoder = new VideoTrackTranscoder(
+                sourceFactory.open(null), 0, codecFactory, 640, 360, 0, 0);
+        transcoder.transcode(new VideoTrackTranscoder.Callback() {
+            @Override
+            public void checkCanceled() {
+            }
+
+            @Override
+            public void onOutputFormatAvailable(TrackFormat format) {
+            }
+
+            @Override
+            public void onSampleEncoded(ByteBuffer encodedData, SampleInfo info) {
+                frames[0]++;
+            }
+        });
+        counters.add(processCpuTime() - cpuStart, frames[0]);
+        return frames[0];
+    }
+
+    private static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory
+                .getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
@@ -0,0 +1,80 @@
+package com.hello1987.videoconverter.benchmark;
+
+import com.hello1987.videoconverter.codec.BufferInputLayout;
+import com.hello1987.videoconverter.codec.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to convert one read back RGBA frame into the encoder's YUV layout on
+ * the buffer input path. Run with -prof gc to check that converting
+ * allocates nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class YuvConverterBenchmark {
+
+    @Param({"640x360", "1280x720"})
+    public String size;
+
+    @Param({"19", "21"})
+    public int colorFormat;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private YuvConverter converter;
+    private ByteBuffer rgba;
+    private ByteBuffer yuv;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int width = Integer.parseInt(size.substring(0, size.indexOf('x')));
+        int height = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+        BufferInputLayout layout = new BufferInputLayout(colorFormat,
+                BufferInputLayout.PROCESSOR_TYPE_OTHER, 0, width, height, 0,
+                width * height * 3 / 2);
+        converter = new YuvConverter(width, height, layout, threads);
+        // read back frames are little endian
+        rgba = ByteBuffer.allocateDirect(width * height * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(1);
+        while (rgba.hasRemaining()) {
+            rgba.put((byte) random.nextInt());
+        }
+        rgba.flip();
+        yuv = ByteBuffer.allocateDirect(layout.getBufferSize());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        converter.release();
+    }
+
+    @Benchmark
+    public ByteBuffer convert() {
+        converter.convert(rgba, yuv);
+        return yuv;
+    }
+}
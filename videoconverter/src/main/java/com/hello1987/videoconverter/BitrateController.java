@@ -0,0 +1,134 @@
+package com.hello1987.videoconverter;
+
+/**
+ * Steers the encoder bitrate so that the video track ends up at a given
+ * size. Once per second of media the bytes written so far are compared with
+ * the time covered: the next bitrate is what is left of the budget spread
+ * over the time that is left, corrected by how far the encoder missed the
+ * bitrate it was last asked for. Should the budget run out before the end of
+ * the range anyway, the encode is ended early, so the file stays below the
+ * limit.
+ */
+final class BitrateController {
+
+    static final int MIN_BITRATE = 64000;
+
+    private static final long UPDATE_INTERVAL_US = 1000000;
+    /**
+     * Largest change per update; encoders answer big jumps with a burst of
+     * bad frames.
+     */
+    private static final double MAX_STEP = 1.5;
+    /**
+     * Smaller changes are not worth a codec parameter update.
+     */
+    private static final double MIN_CHANGE = 0.05;
+    /**
+     * Media the encoder may still hold when the budget is found exhausted.
+     */
+    private static final long GUARD_US = 500000;
+
+    private final long budgetBytes;
+    private final long endUs;
+    private final int maxBitrate;
+
+    private int bitrate;
+    // written / requested bitrate, smoothed
+    private double encoderRatio = 1;
+    // what the encoder may still hold, at the bitrate last written
+    private double guardBytes;
+    private long bytesWritten;
+    private long latestUs;
+    private long lastUpdateUs;
+    private long lastUpdateBytes;
+    private boolean exhausted;
+
+    /**
+     * @param budgetBytes bytes the video samples may take
+     * @param startUs     start of the converted range
+     * @param endUs       end of the converted range
+     * @param maxBitrate  highest bitrate to ask for
+     */
+    BitrateController(long budgetBytes, long startUs, long endUs,
+                      int maxBitrate) {
+        this.budgetBytes = budgetBytes;
+        this.endUs = endUs;
+        this.maxBitrate = maxBitrate;
+        latestUs = startUs;
+        lastUpdateUs = startUs;
+        bitrate = clamp(budgetBytes * 8 * 1000000.0
+                / Math.max(1, endUs - startUs));
+        guardBytes = bitrate / 8.0 * GUARD_US / 1000000;
+    }
+
+    /**
+     * The bitrate to configure the encoder with.
+     */
+    int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Counts a sample the muxer writes. Returns the bitrate to switch the
+     * encoder to, or 0 to keep the current one.
+     */
+    int onSampleWritten(long presentationTimeUs, int size) {
+        bytesWritten += size;
+        // reordered frames go back in time
+        latestUs = Math.max(latestUs, presentationTimeUs);
+        if (!exhausted && latestUs + GUARD_US < endUs
+                && bytesWritten + guardBytes >= budgetBytes) {
+            exhausted = true;
+        }
+        long intervalUs = latestUs - lastUpdateUs;
+        if (intervalUs < UPDATE_INTERVAL_US) {
+            return 0;
+        }
+        double written = (bytesWritten - lastUpdateBytes) * 8 * 1000000.0
+                / intervalUs;
+        encoderRatio = (encoderRatio + Math.max(0.25,
+                Math.min(4, written / bitrate))) / 2;
+        guardBytes = written / 8 * GUARD_US / 1000000;
+        lastUpdateUs = latestUs;
+        lastUpdateBytes = bytesWritten;
+
+        long remainingUs = endUs - latestUs;
+        if (remainingUs <= 0 || exhausted) {
+            return 0;
+        }
+        double wanted = (budgetBytes - bytesWritten) * 8 * 1000000.0
+                / remainingUs / encoderRatio;
+        int next = clamp(Math.max(bitrate / MAX_STEP,
+                Math.min(bitrate * MAX_STEP, wanted)));
+        if (Math.abs(next - bitrate) < bitrate * MIN_CHANGE) {
+            return 0;
+        }
+        bitrate = next;
+        return next;
+    }
+
+    /**
+     * True once the samples written and those the encoder still holds use
+     * up the budget before the end of the range; no further frames should
+     * be encoded.
+     */
+    boolean isBudgetExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Latest presentation time written, where the other tracks should end
+     * if the budget was exhausted.
+     */
+    long getLatestTimeUs() {
+        return latestUs;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private int clamp(double bitrate) {
+        return (int) Math.max(MIN_BITRATE, Math.min(maxBitrate, bitrate));
+    }
+}
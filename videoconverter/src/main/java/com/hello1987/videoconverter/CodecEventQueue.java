@@ -0,0 +1,100 @@
+package com.hello1987.videoconverter;
+
+import com.hello1987.videoconverter.codec.Codec;
+import com.hello1987.videoconverter.codec.SampleInfo;
+import com.hello1987.videoconverter.codec.TrackFormat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the callbacks of the codecs of one transcoder so that a single
+ * thread can handle them one at a time, in arrival order. Codec threads
+ * only enqueue; every codec and surface call stays on the thread that takes
+ * the events. Events are recycled, so a steady stream of buffers allocates
+ * nothing.
+ */
+final class CodecEventQueue implements Codec.Callback {
+
+    static final int INPUT_AVAILABLE = 0;
+    static final int OUTPUT_AVAILABLE = 1;
+    static final int FORMAT_CHANGED = 2;
+    static final int ERROR = 3;
+
+    private final ArrayDeque<Event> events = new ArrayDeque<Event>();
+    private final ArrayDeque<Event> freeEvents = new ArrayDeque<Event>();
+
+    @Override
+    public void onInputBufferAvailable(Codec codec, int index) {
+        add(INPUT_AVAILABLE, codec, index, null, null, null);
+    }
+
+    @Override
+    public void onOutputBufferAvailable(Codec codec, int index, SampleInfo info) {
+        // the codec reuses info after we return
+        add(OUTPUT_AVAILABLE, codec, index, info, null, null);
+    }
+
+    @Override
+    public void onOutputFormatChanged(Codec codec, TrackFormat format) {
+        add(FORMAT_CHANGED, codec, -1, null, format, null);
+    }
+
+    @Override
+    public void onError(Codec codec, Exception e) {
+        add(ERROR, codec, -1, null, null, e);
+    }
+
+    private synchronized void add(int type, Codec codec, int index,
+                                  SampleInfo info, TrackFormat format,
+                                  Exception error) {
+        Event event = freeEvents.poll();
+        if (event == null) {
+            event = new Event();
+        }
+        event.type = type;
+        event.codec = codec;
+        event.index = index;
+        if (info != null) {
+            event.info.set(info.offset, info.size, info.presentationTimeUs,
+                    info.flags);
+        }
+        event.format = format;
+        event.error = error;
+        events.add(event);
+        notifyAll();
+    }
+
+    /**
+     * Returns the next event, or null if none arrived within timeoutMs.
+     * Hand the event back through {@link #recycle} once it is handled.
+     */
+    synchronized Event poll(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (events.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return events.poll();
+    }
+
+    synchronized void recycle(Event event) {
+        event.codec = null;
+        event.format = null;
+        event.error = null;
+        freeEvents.add(event);
+    }
+
+    static final class Event {
+        int type;
+        Codec codec;
+        int index;
+        final SampleInfo info = new SampleInfo();
+        TrackFormat format;
+        Exception error;
+    }
+}
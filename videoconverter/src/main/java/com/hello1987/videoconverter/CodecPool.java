@@ -0,0 +1,216 @@
+package com.hello1987.videoconverter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps codecs that finished a job so the next compatible job can reuse
+ * them instead of allocating a new codec component. Codecs are matched by
+ * {@link Key}, reset through the {@link Adapter} when they are returned and
+ * released once they have been idle for longer than the idle timeout.
+ */
+public class CodecPool<T> {
+
+    private final Adapter<T> adapter;
+    private final int maxIdlePerKey;
+    private final long idleTimeoutMs;
+    private final Map<Key, List<IdleCodec<T>>> idle = new HashMap<Key, List<IdleCodec<T>>>();
+
+    public CodecPool(Adapter<T> adapter, int maxIdlePerKey, long idleTimeoutMs) {
+        this.adapter = adapter;
+        this.maxIdlePerKey = maxIdlePerKey;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Returns an idle codec for key, or a new one if there is none. The
+     * caller configures it and hands it back with {@link #recycle} or
+     * {@link #discard}.
+     */
+    public T acquire(Key key) throws Exception {
+        synchronized (this) {
+            List<IdleCodec<T>> codecs = idle.get(key);
+            if (codecs != null && !codecs.isEmpty()) {
+                return codecs.remove(codecs.size() - 1).codec;
+            }
+        }
+        return adapter.create(key);
+    }
+
+    /**
+     * Returns a codec that completed its job. It is reset and kept for the
+     * next acquire of the same key; codecs that fail to reset and codecs
+     * beyond the per key limit are released.
+     */
+    public void recycle(Key key, T codec) {
+        try {
+            adapter.reset(codec);
+        } catch (Exception e) {
+            adapter.release(codec);
+            return;
+        }
+        T evicted = null;
+        synchronized (this) {
+            List<IdleCodec<T>> codecs = idle.get(key);
+            if (codecs == null) {
+                codecs = new ArrayList<IdleCodec<T>>();
+                idle.put(key, codecs);
+            }
+            codecs.add(new IdleCodec<T>(codec, currentTimeMillis()));
+            if (codecs.size() > maxIdlePerKey) {
+                evicted = codecs.remove(0).codec;
+            }
+        }
+        if (evicted != null) {
+            adapter.release(evicted);
+        }
+    }
+
+    /**
+     * Releases a codec that may be in an undefined state, e.g. after its job
+     * failed.
+     */
+    public void discard(T codec) {
+        adapter.release(codec);
+    }
+
+    /**
+     * Releases every codec that has been idle for longer than the idle
+     * timeout.
+     */
+    public void evictIdle() {
+        long now = currentTimeMillis();
+        List<T> evicted = new ArrayList<T>();
+        synchronized (this) {
+            Iterator<List<IdleCodec<T>>> lists = idle.values().iterator();
+            while (lists.hasNext()) {
+                List<IdleCodec<T>> codecs = lists.next();
+                Iterator<IdleCodec<T>> iterator = codecs.iterator();
+                while (iterator.hasNext()) {
+                    IdleCodec<T> idleCodec = iterator.next();
+                    if (now - idleCodec.idleSinceMs >= idleTimeoutMs) {
+                        evicted.add(idleCodec.codec);
+                        iterator.remove();
+                    }
+                }
+                if (codecs.isEmpty()) {
+                    lists.remove();
+                }
+            }
+        }
+        for (T codec : evicted) {
+            adapter.release(codec);
+        }
+    }
+
+    public void clear() {
+        List<T> evicted = new ArrayList<T>();
+        synchronized (this) {
+            for (List<IdleCodec<T>> codecs : idle.values()) {
+                for (IdleCodec<T> idleCodec : codecs) {
+                    evicted.add(idleCodec.codec);
+                }
+            }
+            idle.clear();
+        }
+        for (T codec : evicted) {
+            adapter.release(codec);
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (List<IdleCodec<T>> codecs : idle.values()) {
+            count += codecs.size();
+        }
+        return count;
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    protected long currentTimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public interface Adapter<T> {
+        T create(Key key) throws Exception;
+
+        /**
+         * Brings a codec back to a state in which it can be configured again.
+         */
+        void reset(T codec) throws Exception;
+
+        void release(T codec);
+    }
+
+    /**
+     * Codecs are only shared between jobs with the same direction, mime type
+     * and resolution.
+     */
+    public static final class Key {
+        private final boolean encoder;
+        private final String mime;
+        private final int width;
+        private final int height;
+
+        public Key(boolean encoder, String mime, int width, int height) {
+            this.encoder = encoder;
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+        }
+
+        public boolean isEncoder() {
+            return encoder;
+        }
+
+        public String getMime() {
+            return mime;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return encoder == key.encoder && width == key.width
+                    && height == key.height && mime.equals(key.mime);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = encoder ? 1 : 0;
+            result = 31 * result + mime.hashCode();
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+    }
+
+    private static class IdleCodec<T> {
+        private final T codec;
+        private final long idleSinceMs;
+
+        private IdleCodec(T codec, long idleSinceMs) {
+            this.codec = codec;
+            this.idleSinceMs = idleSinceMs;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.hello1987.videoconverter;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how hard a video track is to encode from its sample table
+ * alone, without decoding anything. Each GOP, a sync sample and the samples
+ * up to the next one, is reduced to the ratio of its average inter frame
+ * size to its key frame size: close to zero when little changes between
+ * frames, as in screen recordings, and towards one when every frame is new,
+ * as in sports clips. The median over the GOPs keeps a few scene cuts from
+ * deciding for the whole track.
+ */
+public class ComplexityAnalyzer {
+
+    private final int frameCount;
+    private final float frameRate;
+    private final float keyFrameSize;
+    private final float interFrameSize;
+    private final float interFrameSize90;
+    private final float keyFrameSpacing;
+    private final float motion;
+
+    /**
+     * @param sampleSizes     sizes of all samples, as in stsz
+     * @param syncSamples     1-based numbers of the sync samples, as in stss,
+     *                        or null if every sample is one
+     * @param durationSeconds duration of the track
+     */
+    public ComplexityAnalyzer(long[] sampleSizes, long[] syncSamples,
+                              double durationSeconds) {
+        frameCount = sampleSizes.length;
+        frameRate = durationSeconds > 0
+                ? (float) (frameCount / durationSeconds) : 0;
+        if (syncSamples == null || syncSamples.length == 0
+                || frameCount == 0) {
+            // intra only, or nothing to go by
+            keyFrameSize = frameCount > 0 ? mean(sampleSizes, 0, frameCount) : 0;
+            interFrameSize = keyFrameSize;
+            interFrameSize90 = keyFrameSize;
+            keyFrameSpacing = 1;
+            motion = 1;
+            return;
+        }
+
+        long[] interSizes = new long[frameCount];
+        int interCount = 0;
+        float[] gopMotion = new float[syncSamples.length];
+        int gopCount = 0;
+        double keySum = 0;
+        for (int i = 0; i < syncSamples.length; i++) {
+            int key = (int) syncSamples[i] - 1;
+            int next = i + 1 < syncSamples.length
+                    ? (int) syncSamples[i + 1] - 1 : frameCount;
+            if (key < 0 || key >= frameCount || next <= key) {
+                continue;
+            }
+            keySum += sampleSizes[key];
+            if (next - key > 1) {
+                float inter = mean(sampleSizes, key + 1, next);
+                gopMotion[gopCount++] = inter / Math.max(1, sampleSizes[key]);
+                for (int j = key + 1; j < next; j++) {
+                    interSizes[interCount++] = sampleSizes[j];
+                }
+            }
+        }
+        keyFrameSize = (float) (keySum / syncSamples.length);
+        keyFrameSpacing = (float) frameCount / syncSamples.length;
+        if (interCount == 0) {
+            interFrameSize = keyFrameSize;
+            interFrameSize90 = keyFrameSize;
+            motion = 1;
+            return;
+        }
+        Arrays.sort(interSizes, 0, interCount);
+        interFrameSize = interSizes[interCount / 2];
+        interFrameSize90 = interSizes[(int) (interCount * 0.9f)];
+        Arrays.sort(gopMotion, 0, gopCount);
+        motion = Math.min(1, gopMotion[gopCount / 2]);
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Average frames per second, 0 if the duration is unknown.
+     */
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Average size of a key frame in bytes.
+     */
+    public float getKeyFrameSize() {
+        return keyFrameSize;
+    }
+
+    /**
+     * Median size of the frames between key frames in bytes.
+     */
+    public float getInterFrameSize() {
+        return interFrameSize;
+    }
+
+    /**
+     * 90th percentile of the frame sizes between key frames.
+     */
+    public float getInterFrameSize90() {
+        return interFrameSize90;
+    }
+
+    /**
+     * Average number of frames from one key frame to the next.
+     */
+    public float getKeyFrameSpacing() {
+        return keyFrameSpacing;
+    }
+
+    /**
+     * Median over the GOPs of inter frame size relative to key frame size,
+     * between 0 for a still picture and 1 for frames that share nothing.
+     */
+    public float getMotion() {
+        return motion;
+    }
+
+    private static float mean(long[] values, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += values[i];
+        }
+        return (float) (sum / (to - from));
+    }
+}
@@ -0,0 +1,375 @@
+package com.hello1987.videoconverter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The settings a conversion runs with, from the size and bitrate picked for
+ * a source through the encoder configuration to how the output file is
+ * chunked and how far the pipeline reads ahead. Profiles are immutable and
+ * checked when built; registered ones are looked up by name, so a job only
+ * names the trade-off between speed, size and quality it wants.
+ * <p>
+ * The presets: {@link #DEFAULT} keeps the converter's long-standing values,
+ * {@link #MESSAGING} is for clips sent right after recording, {@link
+ * #ARCHIVAL} keeps quality at the cost of size and {@link #PREVIEW} makes
+ * small, cheap drafts.
+ */
+public final class ConversionProfile {
+
+    public static final String DEFAULT = "default";
+    public static final String MESSAGING = "messaging";
+    public static final String ARCHIVAL = "archival";
+    public static final String PREVIEW = "preview";
+
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int MIN_SIDE = 16;
+
+    private static final Map<String, ConversionProfile> profiles =
+            new HashMap<String, ConversionProfile>();
+
+    static {
+        register(new Builder(DEFAULT).build());
+        // short GOPs start playing at once, small chunks and queues get
+        // the first bytes out early
+        register(new Builder(MESSAGING)
+                .setIFrameInterval(2)
+                .setAudioBitrate(64000)
+                .setChunkSize(16 * 1024)
+                .setQueueSizes(4, 8)
+                .build());
+        // big chunks mean fewer mdat headers and flushes
+        register(new Builder(ARCHIVAL)
+                .setMaxSide(1920)
+                .setMaxBitrate(8000000)
+                .setDefaultBitrate(4000000)
+                .setFrameRate(30)
+                .setIFrameInterval(5)
+                .setEncoderProfile(VideoTrackTranscoder.PROFILE_HIGH)
+                .setAudioBitrate(128000)
+                .setChunkSize(256 * 1024)
+                .setQueueSizes(16, 32)
+                .setEncodingRules(new EncodingRules()
+                        .addRule(0.12f, 1920, 0.08f)
+                        .addRule(1, 1920, 0.12f))
+                .build());
+        register(new Builder(PREVIEW)
+                .setMaxSide(320)
+                .setMaxBitrate(300000)
+                .setDefaultBitrate(300000)
+                .setFrameRate(15)
+                .setMaxFrameRate(15)
+                .setAudioBitrate(48000)
+                .setChunkSize(64 * 1024)
+                .setEncodingRules(new EncodingRules()
+                        .setMinBitrate(64000)
+                        .addRule(1, 320, 0.1f))
+                .build());
+    }
+
+    private final String name;
+    private final EncodingRules encodingRules;
+    private final int maxSide;
+    private final int maxBitrate;
+    private final int defaultBitrate;
+    private final int frameRate;
+    private final int maxFrameRate;
+    private final int iFrameInterval;
+    private final int encoderProfile;
+    private final int level;
+    private final int audioBitrate;
+    private final int chunkSize;
+    private final int demuxQueueSize;
+    private final int muxQueueSize;
+
+    private ConversionProfile(Builder builder) {
+        name = builder.name;
+        encodingRules = builder.encodingRules;
+        maxSide = builder.maxSide;
+        maxBitrate = builder.maxBitrate;
+        defaultBitrate = builder.defaultBitrate;
+        frameRate = builder.frameRate;
+        maxFrameRate = builder.maxFrameRate;
+        iFrameInterval = builder.iFrameInterval;
+        encoderProfile = builder.encoderProfile;
+        level = builder.level;
+        audioBitrate = builder.audioBitrate;
+        chunkSize = builder.chunkSize;
+        demuxQueueSize = builder.demuxQueueSize;
+        muxQueueSize = builder.muxQueueSize;
+    }
+
+    /**
+     * Makes profile available under its name, replacing a profile
+     * registered before under the same name.
+     */
+    public static void register(ConversionProfile profile) {
+        synchronized (profiles) {
+            profiles.put(profile.name, profile);
+        }
+    }
+
+    /**
+     * The profile registered under name, or null.
+     */
+    public static ConversionProfile forName(String name) {
+        synchronized (profiles) {
+            return profiles.get(name);
+        }
+    }
+
+    public static ConversionProfile getDefault() {
+        return forName(DEFAULT);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Picks output size and bitrate from the complexity of the source.
+     */
+    public EncodingRules getEncodingRules() {
+        return encodingRules;
+    }
+
+    /**
+     * Longest side of the output when the source cannot be analyzed.
+     */
+    public int getMaxSide() {
+        return maxSide;
+    }
+
+    /**
+     * Highest bitrate taken over from the source when it cannot be
+     * analyzed.
+     */
+    public int getMaxBitrate() {
+        return maxBitrate;
+    }
+
+    /**
+     * Encoder bitrate of outputs that do not ask for one.
+     */
+    public int getDefaultBitrate() {
+        return defaultBitrate;
+    }
+
+    /**
+     * Frame rate the encoder is configured with when frames are not
+     * dropped.
+     */
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Highest frame rate of the output, 0 keeps the frame rate of the
+     * source.
+     */
+    public int getMaxFrameRate() {
+        return maxFrameRate;
+    }
+
+    /**
+     * Seconds between key frames.
+     */
+    public int getIFrameInterval() {
+        return iFrameInterval;
+    }
+
+    /**
+     * One of the VideoTrackTranscoder.PROFILE_ constants.
+     */
+    public int getEncoderProfile() {
+        return encoderProfile;
+    }
+
+    /**
+     * H.264 level as in MediaCodecInfo.CodecProfileLevel, 0 to pick one
+     * from the encoder profile.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Audio bitrate declared in the output. The audio track is copied, so
+     * this does not change its size.
+     */
+    public int getAudioBitrate() {
+        return audioBitrate;
+    }
+
+    /**
+     * Bytes written between two mdat flushes and journal checkpoints.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Samples the demux thread reads ahead.
+     */
+    public int getDemuxQueueSize() {
+        return demuxQueueSize;
+    }
+
+    /**
+     * Encoded samples waiting for the mux thread.
+     */
+    public int getMuxQueueSize() {
+        return muxQueueSize;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Builds a profile. The values start out as those of the converter
+     * before profiles existed; {@link #build()} rejects settings an encoder
+     * or the muxer cannot work with.
+     */
+    public static class Builder {
+        private final String name;
+        private EncodingRules encodingRules;
+        private int maxSide = 640;
+        private int maxBitrate = 900000;
+        private int defaultBitrate = 921600;
+        private int frameRate = 25;
+        private int maxFrameRate = 0;
+        private int iFrameInterval = 10;
+        private int encoderProfile = VideoTrackTranscoder.PROFILE_BASELINE;
+        private int level = 0;
+        private int audioBitrate = 96000;
+        private int chunkSize = 32 * 1024;
+        private int demuxQueueSize = 8;
+        private int muxQueueSize = 16;
+
+        public Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Starts from the settings of profile under a new name.
+         */
+        public Builder(String name, ConversionProfile profile) {
+            this.name = name;
+            encodingRules = profile.encodingRules;
+            maxSide = profile.maxSide;
+            maxBitrate = profile.maxBitrate;
+            defaultBitrate = profile.defaultBitrate;
+            frameRate = profile.frameRate;
+            maxFrameRate = profile.maxFrameRate;
+            iFrameInterval = profile.iFrameInterval;
+            encoderProfile = profile.encoderProfile;
+            level = profile.level;
+            audioBitrate = profile.audioBitrate;
+            chunkSize = profile.chunkSize;
+            demuxQueueSize = profile.demuxQueueSize;
+            muxQueueSize = profile.muxQueueSize;
+        }
+
+        /**
+         * Rule table for the output size and bitrate, {@link
+         * EncodingRules#createDefault()} if not set. The table must not be
+         * changed once the profile is built.
+         */
+        public Builder setEncodingRules(EncodingRules encodingRules) {
+            this.encodingRules = encodingRules;
+            return this;
+        }
+
+        public Builder setMaxSide(int maxSide) {
+            this.maxSide = maxSide;
+            return this;
+        }
+
+        public Builder setMaxBitrate(int maxBitrate) {
+            this.maxBitrate = maxBitrate;
+            return this;
+        }
+
+        public Builder setDefaultBitrate(int defaultBitrate) {
+            this.defaultBitrate = defaultBitrate;
+            return this;
+        }
+
+        public Builder setFrameRate(int frameRate) {
+            this.frameRate = frameRate;
+            return this;
+        }
+
+        public Builder setMaxFrameRate(int maxFrameRate) {
+            this.maxFrameRate = maxFrameRate;
+            return this;
+        }
+
+        public Builder setIFrameInterval(int iFrameInterval) {
+            this.iFrameInterval = iFrameInterval;
+            return this;
+        }
+
+        public Builder setEncoderProfile(int encoderProfile) {
+            this.encoderProfile = encoderProfile;
+            return this;
+        }
+
+        public Builder setLevel(int level) {
+            this.level = level;
+            return this;
+        }
+
+        public Builder setAudioBitrate(int audioBitrate) {
+            this.audioBitrate = audioBitrate;
+            return this;
+        }
+
+        public Builder setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        public Builder setQueueSizes(int demuxQueueSize, int muxQueueSize) {
+            this.demuxQueueSize = demuxQueueSize;
+            this.muxQueueSize = muxQueueSize;
+            return this;
+        }
+
+        public ConversionProfile build() {
+            if (name == null || name.length() == 0) {
+                throw new IllegalArgumentException("profile without a name");
+            }
+            if (encodingRules == null) {
+                encodingRules = EncodingRules.createDefault();
+            }
+            check(maxSide >= MIN_SIDE && maxSide % 2 == 0, "max side", maxSide);
+            check(maxBitrate >= BitrateController.MIN_BITRATE, "max bitrate",
+                    maxBitrate);
+            check(defaultBitrate >= BitrateController.MIN_BITRATE,
+                    "default bitrate", defaultBitrate);
+            check(frameRate > 0, "frame rate", frameRate);
+            check(maxFrameRate >= 0, "max frame rate", maxFrameRate);
+            check(iFrameInterval >= 0, "i-frame interval", iFrameInterval);
+            check(encoderProfile == VideoTrackTranscoder.PROFILE_BASELINE
+                    || encoderProfile == VideoTrackTranscoder.PROFILE_MAIN
+                    || encoderProfile == VideoTrackTranscoder.PROFILE_HIGH,
+                    "encoder profile", encoderProfile);
+            check(level >= 0, "level", level);
+            check(audioBitrate > 0, "audio bitrate", audioBitrate);
+            check(chunkSize >= MIN_CHUNK_SIZE, "chunk size", chunkSize);
+            check(demuxQueueSize > 0, "demux queue size", demuxQueueSize);
+            check(muxQueueSize > 0, "mux queue size", muxQueueSize);
+            return new ConversionProfile(this);
+        }
+
+        private void check(boolean valid, String setting, int value) {
+            if (!valid) {
+                throw new IllegalArgumentException("profile " + name
+                        + ": invalid " + setting + " " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,810 @@
+package com.hello1987.videoconverter;
+
+import com.hello1987.videoconverter.codec.Codec;
+import com.hello1987.videoconverter.codec.CodecFactory;
+import com.hello1987.videoconverter.codec.MediaSource;
+import com.hello1987.videoconverter.codec.MediaSourceFactory;
+import com.hello1987.videoconverter.codec.SampleInfo;
+import com.hello1987.videoconverter.codec.TrackFormat;
+import com.hello1987.videoconverter.metrics.ConversionMetrics;
+import com.hello1987.videoconverter.mp4.ConversionJournal;
+import com.hello1987.videoconverter.mp4.MP4Builder;
+import com.hello1987.videoconverter.mp4.Mp4Movie;
+import com.hello1987.videoconverter.mp4.Preallocator;
+import com.hello1987.videoconverter.pipeline.BufferPool;
+import com.hello1987.videoconverter.pipeline.MuxerStage;
+import com.hello1987.videoconverter.pipeline.PipelineStats;
+import com.hello1987.videoconverter.pipeline.PrefetchingMediaSource;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Converts one {@link VideoObject} into its output file: the video track is
+ * transcoded (serially or in parallel segments), the audio track is copied,
+ * and progress is journaled so the job can be resumed. The serial video
+ * path runs as a pipeline: samples are read ahead on a demux thread, decoded,
+ * rendered and encoded on the calling thread, which owns the EGL context,
+ * and written on a mux thread. Renditions of the video object are encoded
+ * from the same decoded frames and written by mux threads of their own; the
+ * audio samples are read once and copied into every output. Everything
+ * platform specific comes in through a {@link MediaSourceFactory} and a
+ * {@link CodecFactory}, so the task runs the same on a device and, with the
+ * fakes, on a plain JVM.
+ */
+public class ConversionTask {
+
+    private static final String TAG = "ConversionTask";
+
+    public static final int RESULT_COMPLETED = 0;
+    public static final int RESULT_FAILED = 1;
+    public static final int RESULT_SUSPENDED = 2;
+
+    /**
+     * Share of a target size, 1 / n, left for headers and the moov box.
+     */
+    private static final int CONTAINER_SHARE = 100;
+    private static final int MAX_TARGET_BITRATE = 8000000;
+
+    private final VideoObject videoObject;
+    private final File inputFile;
+    private final File cacheFile;
+    private final MediaSourceFactory sourceFactory;
+    private final CodecFactory codecFactory;
+    private final Host host;
+    private final ConversionProfile profile;
+
+    private int resultWidth;
+    private int resultHeight;
+    private int rotationValue;
+    private int rotateRender;
+    private CodecPool<Codec> codecPool;
+    private ProgressTracker progress;
+    private PipelineStats pipelineStats;
+    private ConversionMetrics metrics;
+    private Preallocator preallocator;
+
+    public ConversionTask(VideoObject videoObject, File inputFile,
+                          File cacheFile, MediaSourceFactory sourceFactory,
+                          CodecFactory codecFactory, Host host) {
+        this.videoObject = videoObject;
+        this.inputFile = inputFile;
+        this.cacheFile = cacheFile;
+        this.sourceFactory = sourceFactory;
+        this.codecFactory = codecFactory;
+        this.host = host;
+        profile = videoObject.getProfile();
+        resultWidth = videoObject.getResultWidth();
+        resultHeight = videoObject.getResultHeight();
+        rotationValue = videoObject.getRotationValue();
+        rotateRender = videoObject.getRotateRender();
+    }
+
+    /**
+     * Overrides the output size and orientation taken from the video
+     * object, e.g. after adjusting them to how the platform's decoders
+     * handle rotation.
+     */
+    public void setOutputGeometry(int resultWidth, int resultHeight,
+                                  int rotationValue, int rotateRender) {
+        this.resultWidth = resultWidth;
+        this.resultHeight = resultHeight;
+        this.rotationValue = rotationValue;
+        this.rotateRender = rotateRender;
+    }
+
+    public void setCodecPool(CodecPool<Codec> codecPool) {
+        this.codecPool = codecPool;
+    }
+
+    public void setProgressTracker(ProgressTracker progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Collects hot path timings and counters of the run into metrics.
+     */
+    public void setMetrics(ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reserves the estimated size of the output up front with preallocator.
+     */
+    public void setPreallocator(Preallocator preallocator) {
+        this.preallocator = preallocator;
+    }
+
+    /**
+     * Queues and fill time of the serial video pipeline of the last run, or
+     * null if it did not run. Safe to poll while the task runs.
+     */
+    public PipelineStats getPipelineStats() {
+        return pipelineStats;
+    }
+
+    /**
+     * Returns {@link #RESULT_COMPLETED}, {@link #RESULT_FAILED} or
+     * {@link #RESULT_SUSPENDED} if the host preempted the task.
+     */
+    public int run() {
+        long runStart = System.nanoTime();
+        long startTime = videoObject.getStartTime();
+        long endTime = videoObject.getEndTime();
+        int bitrate = videoObject.getBitrate();
+        long targetSize = videoObject.getTargetSize();
+        BitrateController bitrateController = null;
+        boolean error = false;
+        boolean suspended = false;
+        long videoStartTime = startTime;
+
+        List<VideoObject.Rendition> renditions = videoObject.getRenditions();
+        MP4Builder[] renditionMuxers = new MP4Builder[renditions.size()];
+        MP4Builder mediaMuxer = null;
+        MediaSource extractor = null;
+        PrefetchingMediaSource source = null;
+        ConversionJournal journal = null;
+
+        try {
+            SampleInfo info = new SampleInfo();
+            Mp4Movie movie = new Mp4Movie();
+            movie.setCacheFile(cacheFile);
+            movie.setRotation(rotationValue);
+            movie.setSize(resultWidth, resultHeight);
+            movie.setAudioBitrate(profile.getAudioBitrate());
+            journal = ConversionJournal.open(getJournalFile(cacheFile),
+                    getJournalKey(videoObject, inputFile));
+            if (journal.getAttempts() > ConversionJournal.MAX_RESUME_ATTEMPTS) {
+                throw new RuntimeException(
+                        "previous conversions crashed, giving up");
+            }
+            // renditions are not journaled, so their jobs start over, and
+            // neither are the bytes a size budget was spent on
+            boolean resume = journal.canResume() && renditions.isEmpty()
+                    && targetSize <= 0;
+            mediaMuxer = new MP4Builder();
+            mediaMuxer.setMetrics(metrics);
+            mediaMuxer.setChunkSize(profile.getChunkSize());
+            mediaMuxer.setPreallocation(preallocator, targetSize > 0
+                    ? targetSize : estimateOutputSize(startTime, endTime));
+            if (resume) {
+                VideoLog.i(TAG, "resume conversion, attempt "
+                        + journal.getAttempts());
+                mediaMuxer.resumeMovie(movie, journal);
+            } else {
+                mediaMuxer.createMovie(movie, journal);
+            }
+            for (int i = 0; i < renditionMuxers.length; i++) {
+                renditionMuxers[i] = createRenditionMuxer(renditions.get(i));
+            }
+            extractor = sourceFactory.open(inputFile);
+            source = new PrefetchingMediaSource(extractor,
+                    profile.getDemuxQueueSize());
+
+            float videoShare = selectTrack(extractor, true) >= 0 ? 90 : 100;
+            if (progress != null) {
+                progress.startPhase(0, videoShare);
+            }
+
+            host.checkCanceled();
+
+            if (targetSize > 0) {
+                bitrateController = createBitrateController(startTime,
+                        endTime);
+                bitrate = bitrateController.getBitrate();
+            }
+            if (journal.isVideoComplete()) {
+                videoStartTime = journal.getVideoStartTimeUs();
+            } else {
+                int videoIndex;
+                videoIndex = selectTrack(extractor, false);
+                List<SegmentPlanner.Segment> segments = null;
+                if (videoIndex >= 0 && !resume && renditions.isEmpty()
+                        && targetSize <= 0
+                        && videoObject.getSegmentCount() > 1
+                        && codecFactory.isSurfaceInputSupported()) {
+                    segments = planSegments(extractor, videoIndex, startTime,
+                            endTime);
+                }
+                if (segments != null && segments.size() > 1) {
+                    SegmentStitcher stitcher = new SegmentStitcher(mediaMuxer);
+                    stitcher.setListener(new SegmentStitcher.Listener() {
+                        @Override
+                        public void onSampleWritten(long presentationTimeUs,
+                                                    int size) {
+                            if (progress != null) {
+                                progress.onSampleWritten(presentationTimeUs,
+                                        size, false);
+                            }
+                        }
+
+                        @Override
+                        public void onChunkWritten() {
+                            chunkWritten();
+                        }
+                    });
+                    long videoTime;
+                    try {
+                        videoTime = new ParallelVideoTranscoder(
+                                segments.size()).transcode(segments,
+                                new SegmentWorker(bitrate,
+                                        cacheFile.getParentFile()), stitcher);
+                    } finally {
+                        stitcher.release();
+                    }
+                    if (videoTime != -1) {
+                        videoStartTime = videoTime;
+                    }
+                    mediaMuxer.checkpoint();
+                    journal.markVideoComplete(videoStartTime);
+
+                    host.checkCanceled();
+                } else if (videoIndex >= 0) {
+                    PipelineStats stats = new PipelineStats();
+                    stats.addQueue(source.getQueue());
+                    stats.addQueue(source.getFreeQueue());
+                    MuxerStage muxerStage = createMuxerStage(mediaMuxer);
+                    muxerStage.setStats(stats);
+                    stats.addQueue(muxerStage.getQueue());
+                    stats.addQueue(muxerStage.getFreeQueue());
+                    pipelineStats = stats;
+                    MuxerStage[] renditionStages = new MuxerStage[renditions.size()];
+                    for (int i = 0; i < renditionStages.length; i++) {
+                        renditionStages[i] = new MuxerStage(renditionMuxers[i],
+                                profile.getMuxQueueSize(), null);
+                    }
+                    boolean muxerStopped = false;
+                    try {
+                        VideoTrackTranscoder transcoder = new VideoTrackTranscoder(
+                                source, videoIndex, codecFactory,
+                                resultWidth, resultHeight, rotateRender, bitrate);
+                        transcoder.setRange(startTime, endTime);
+                        transcoder.setConversionProfile(profile);
+                        transcoder.setFrameRate(videoObject.getTargetFrameRate());
+                        transcoder.setProfile(videoObject.getEncoderProfile());
+                        transcoder.setCodecPool(codecPool);
+                        transcoder.setMetrics(metrics);
+                        transcoder.setBitrateController(bitrateController);
+                        for (int i = 0; i < renditionStages.length; i++) {
+                            VideoObject.Rendition rendition = renditions.get(i);
+                            transcoder.addRendition(getRenditionWidth(rendition),
+                                    getRenditionHeight(rendition),
+                                    rendition.getBitrate(), new MuxerCallback(
+                                            renditionMuxers[i], renditionStages[i], -5));
+                        }
+                        int videoTrackIndex = -5;
+                        if (resume) {
+                            videoTrackIndex = journal.getTrackIndex(false);
+                            transcoder.setResumePoint(journal
+                                    .getLastPresentationTimeUs(videoTrackIndex),
+                                    journal.getFirstPresentationTimeUs(videoTrackIndex));
+                        }
+                        stats.markStarted();
+                        muxerStage.start();
+                        for (MuxerStage stage : renditionStages) {
+                            stage.start();
+                        }
+                        long videoTime;
+                        try {
+                            videoTime = transcoder.transcode(new MuxerCallback(
+                                    mediaMuxer, muxerStage, videoTrackIndex));
+                        } catch (SuspendedException e) {
+                            // keep what was encoded so far, the journal
+                            // resumes after it
+                            muxerStopped = true;
+                            muxerStage.finish();
+                            throw e;
+                        }
+                        muxerStopped = true;
+                        muxerStage.finish();
+                        for (MuxerStage stage : renditionStages) {
+                            stage.finish();
+                        }
+                        VideoLog.i(TAG, "video pipeline " + stats);
+                        if (videoTime != -1) {
+                            videoStartTime = videoTime;
+                        }
+                        mediaMuxer.checkpoint();
+                        journal.markVideoComplete(videoStartTime);
+                    } catch (SuspendedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        VideoLog.e(TAG, e.getMessage());
+                        error = true;
+                    } finally {
+                        if (!muxerStopped) {
+                            muxerStage.abort();
+                            for (MuxerStage stage : renditionStages) {
+                                stage.abort();
+                            }
+                        }
+                    }
+
+                    host.checkCanceled();
+                }
+            }
+            if (!error) {
+                if (progress != null) {
+                    progress.startPhase(videoShare, 100);
+                }
+                int audioTrackIndex = -5;
+                long audioResumeAfterUs = -1;
+                if (resume) {
+                    audioTrackIndex = journal.getTrackIndex(true);
+                    audioResumeAfterUs = journal
+                            .getLastPresentationTimeUs(audioTrackIndex);
+                }
+                long audioEndTime = endTime;
+                if (bitrateController != null
+                        && bitrateController.isBudgetExhausted()) {
+                    // the video was cut short to stay within the size
+                    audioEndTime = bitrateController.getLatestTimeUs();
+                }
+                readAndWriteTrack(source, mediaMuxer, renditionMuxers, info,
+                        videoStartTime, audioEndTime, true, audioTrackIndex,
+                        audioResumeAfterUs);
+            }
+        } catch (SuspendedException e) {
+            suspended = true;
+        } catch (Exception e) {
+            error = true;
+            VideoLog.e(TAG, e.getMessage());
+        } finally {
+            if (source != null) {
+                source.release();
+            } else if (extractor != null) {
+                extractor.release();
+            }
+            if (suspended) {
+                try {
+                    mediaMuxer.suspend();
+                    journal.markSuspended();
+                } catch (Exception e) {
+                    VideoLog.e(TAG, e.getMessage());
+                }
+                journal.close();
+            } else {
+                if (mediaMuxer != null) {
+                    try {
+                        mediaMuxer.finishMovie(false);
+                    } catch (Exception e) {
+                        VideoLog.e(TAG, e.getMessage());
+                    }
+                }
+                if (journal != null) {
+                    journal.delete();
+                }
+            }
+            for (MP4Builder renditionMuxer : renditionMuxers) {
+                if (renditionMuxer != null) {
+                    try {
+                        renditionMuxer.finishMovie(false);
+                    } catch (Exception e) {
+                        VideoLog.e(TAG, e.getMessage());
+                    }
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.recordSince(ConversionMetrics.TIMER_CONVERSION, runStart);
+        }
+        if (suspended) {
+            return RESULT_SUSPENDED;
+        }
+        if (error) {
+            return RESULT_FAILED;
+        }
+        if (progress != null) {
+            progress.finish();
+        }
+        return RESULT_COMPLETED;
+    }
+
+    static int selectTrack(MediaSource extractor, boolean audio) {
+        int numTracks = extractor.getTrackCount();
+        for (int i = 0; i < numTracks; i++) {
+            TrackFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(TrackFormat.KEY_MIME);
+            if (audio) {
+                if (mime.startsWith("audio/")) {
+                    return i;
+                }
+            } else {
+                if (mime.startsWith("video/")) {
+                    return i;
+                }
+            }
+        }
+        return -5;
+    }
+
+    private long readAndWriteTrack(MediaSource extractor, MP4Builder mediaMuxer,
+                                   MP4Builder[] renditionMuxers,
+                                   SampleInfo info, long start, long end, boolean isAudio,
+                                   int muxerTrackIndex, long resumeAfterUs) throws Exception {
+        int trackIndex = selectTrack(extractor, isAudio);
+        if (trackIndex >= 0) {
+            extractor.selectTrack(trackIndex);
+            TrackFormat trackFormat = extractor.getTrackFormat(trackIndex);
+            if (muxerTrackIndex == -5) {
+                muxerTrackIndex = addTrack(mediaMuxer, trackFormat, isAudio);
+            }
+            int[] renditionTrackIndexes = new int[renditionMuxers.length];
+            for (int i = 0; i < renditionMuxers.length; i++) {
+                renditionTrackIndexes[i] = addTrack(renditionMuxers[i],
+                        trackFormat, isAudio);
+            }
+            int maxBufferSize = trackFormat
+                    .getInteger(TrackFormat.KEY_MAX_INPUT_SIZE);
+            boolean inputDone = false;
+            if (resumeAfterUs >= 0) {
+                extractor.seekTo(resumeAfterUs,
+                        MediaSource.SEEK_TO_PREVIOUS_SYNC);
+            } else if (start > 0) {
+                extractor.seekTo(start, MediaSource.SEEK_TO_PREVIOUS_SYNC);
+            } else {
+                extractor.seekTo(0, MediaSource.SEEK_TO_PREVIOUS_SYNC);
+            }
+            ByteBuffer buffer = BufferPool.getDefault().acquire(maxBufferSize);
+            long startTime = -1;
+            try {
+                host.checkCanceled();
+
+                while (!inputDone) {
+                    host.checkCanceled();
+
+                    boolean eof = false;
+                    int index = extractor.getSampleTrackIndex();
+                    if (index == trackIndex) {
+                        info.size = extractor.readSampleData(buffer, 0);
+
+                        if (info.size < 0) {
+                            info.size = 0;
+                            eof = true;
+                        } else {
+                            info.presentationTimeUs = extractor.getSampleTime();
+                            if (start > 0 && startTime == -1) {
+                                startTime = info.presentationTimeUs;
+                            }
+                            if (resumeAfterUs >= 0
+                                    && info.presentationTimeUs <= resumeAfterUs) {
+                                extractor.advance();
+                            } else if (end < 0 || info.presentationTimeUs < end) {
+                                info.offset = 0;
+                                info.flags = extractor.getSampleFlags();
+                                if (isAudio || (info.flags
+                                        & MediaSource.SAMPLE_FLAG_SYNC) != 0) {
+                                    checkPreempted();
+                                }
+                                if (mediaMuxer.writeSampleData(muxerTrackIndex,
+                                        buffer, info.offset, info.size,
+                                        info.presentationTimeUs, info.flags, isAudio)) {
+                                    chunkWritten();
+                                }
+                                for (int i = 0; i < renditionMuxers.length; i++) {
+                                    renditionMuxers[i].writeSampleData(
+                                            renditionTrackIndexes[i], buffer,
+                                            info.offset, info.size,
+                                            info.presentationTimeUs, info.flags,
+                                            isAudio);
+                                }
+                                if (progress != null) {
+                                    progress.onSampleWritten(info.presentationTimeUs,
+                                            info.size, isAudio);
+                                }
+                                extractor.advance();
+                            } else {
+                                eof = true;
+                            }
+                        }
+                    } else if (index == -1) {
+                        eof = true;
+                    }
+                    if (eof) {
+                        inputDone = true;
+                    }
+                }
+            } finally {
+                BufferPool.getDefault().release(buffer);
+            }
+
+            extractor.unselectTrack(trackIndex);
+            return startTime;
+        }
+        return -1;
+    }
+
+    /**
+     * Lets the host suspend the task, unless it writes renditions or spends
+     * a size budget; neither is journaled, so the job would start over.
+     */
+    private void checkPreempted() {
+        if (videoObject.getRenditions().isEmpty()
+                && videoObject.getTargetSize() <= 0) {
+            host.checkPreempted();
+        }
+    }
+
+    /**
+     * The result size the video object estimated, for the part of the
+     * source that is converted.
+     */
+    private long estimateOutputSize(long startTime, long endTime) {
+        return scaleToRange(videoObject.getVideoFramesSize()
+                + videoObject.getAudioFramesSize(), startTime, endTime);
+    }
+
+    private long scaleToRange(long size, long startTime, long endTime) {
+        long durationUs = (long) (videoObject.getVideoDuration() * 1000);
+        if (durationUs > 0) {
+            long rangeUs = (endTime > 0 ? Math.min(endTime, durationUs)
+                    : durationUs) - Math.max(startTime, 0);
+            size = (long) ((double) size * Math.max(rangeUs, 0) / durationUs);
+        }
+        return size;
+    }
+
+    /**
+     * Spends the target size on the video track, less the audio the video
+     * object estimated and the room the container takes.
+     */
+    private BitrateController createBitrateController(long startTime,
+                                                      long endTime) {
+        long targetSize = videoObject.getTargetSize();
+        long endUs = endTime > 0 ? endTime
+                : (long) (videoObject.getVideoDuration() * 1000);
+        long budget = targetSize - targetSize / CONTAINER_SHARE
+                - scaleToRange(videoObject.getAudioFramesSize(), startTime,
+                endTime);
+        return new BitrateController(Math.max(budget, 0),
+                Math.max(startTime, 0), endUs, MAX_TARGET_BITRATE);
+    }
+
+    private MP4Builder createRenditionMuxer(VideoObject.Rendition rendition)
+            throws Exception {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(new File(rendition.getOutPath()));
+        movie.setRotation(rotationValue);
+        movie.setSize(getRenditionWidth(rendition),
+                getRenditionHeight(rendition));
+        movie.setAudioBitrate(profile.getAudioBitrate());
+        MP4Builder muxer = new MP4Builder();
+        muxer.setChunkSize(profile.getChunkSize());
+        return muxer.createMovie(movie);
+    }
+
+    /**
+     * Renditions are rotated like the main output, whose sides were swapped
+     * if the frames are rendered rotated by 90 or 270 degrees.
+     */
+    private int getRenditionWidth(VideoObject.Rendition rendition) {
+        return rotateRender % 180 != 0 ? rendition.getResultHeight()
+                : rendition.getResultWidth();
+    }
+
+    private int getRenditionHeight(VideoObject.Rendition rendition) {
+        return rotateRender % 180 != 0 ? rendition.getResultWidth()
+                : rendition.getResultHeight();
+    }
+
+    private static int addTrack(MP4Builder mediaMuxer, TrackFormat format,
+                                boolean isAudio) throws Exception {
+        if (isAudio) {
+            return mediaMuxer.addAudioTrack(
+                    format.getInteger(TrackFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(TrackFormat.KEY_CHANNEL_COUNT));
+        }
+        return mediaMuxer.addVideoTrack(format.getString(TrackFormat.KEY_MIME),
+                format.getInteger(TrackFormat.KEY_WIDTH),
+                format.getInteger(TrackFormat.KEY_HEIGHT),
+                format.getParameterSet(TrackFormat.KEY_CSD_0),
+                format.getParameterSet(TrackFormat.KEY_CSD_1));
+    }
+
+    private List<SegmentPlanner.Segment> planSegments(
+            final MediaSource extractor, int videoIndex, long startTime,
+            long endTime) throws Exception {
+        long endUs = endTime > 0 ? endTime
+                : (long) (videoObject.getVideoDuration() * 1000);
+        if (endUs <= 0) {
+            return null;
+        }
+        extractor.selectTrack(videoIndex);
+        try {
+            return SegmentPlanner.plan(new SegmentPlanner.SyncLocator() {
+                @Override
+                public long findSyncSampleTime(long timeUs) {
+                    extractor.seekTo(timeUs, MediaSource.SEEK_TO_PREVIOUS_SYNC);
+                    return extractor.getSampleTime();
+                }
+            }, startTime, endUs, endTime, videoObject.getSegmentCount());
+        } finally {
+            extractor.unselectTrack(videoIndex);
+        }
+    }
+
+    static File getJournalFile(File cacheFile) {
+        return new File(cacheFile.getPath() + ".journal");
+    }
+
+    private static String getJournalKey(VideoObject videoObject, File inputFile) {
+        return inputFile.getAbsolutePath() + "|" + inputFile.length() + "|"
+                + inputFile.lastModified() + "|" + videoObject.getStartTime()
+                + "|" + videoObject.getEndTime() + "|"
+                + videoObject.getResultWidth() + "x"
+                + videoObject.getResultHeight() + "|"
+                + videoObject.getBitrate() + "|"
+                + videoObject.getRotationValue() + "|"
+                + videoObject.getTargetFrameRate() + "|"
+                + videoObject.getProfile().getName();
+    }
+
+    /**
+     * Tells the host about a chunk of output; the first of the job starts
+     * it, just once even if the job is suspended and resumed.
+     */
+    private synchronized void chunkWritten() {
+        boolean first = !videoObject.isConversionStarted();
+        videoObject.setConversionStarted(true);
+        host.onChunkWritten(first);
+    }
+
+    private MuxerStage createMuxerStage(MP4Builder mediaMuxer) {
+        return new MuxerStage(mediaMuxer, profile.getMuxQueueSize(),
+                new MuxerStage.Listener() {
+                    @Override
+                    public void onSampleWritten(long presentationTimeUs,
+                                                int size, boolean chunkWritten) {
+                        if (chunkWritten) {
+                            chunkWritten();
+                        }
+                        if (progress != null) {
+                            progress.onSampleWritten(presentationTimeUs, size,
+                                    false);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Passes the output of a {@link VideoTrackTranscoder} to the mux stage.
+     * The track is added directly, before its first sample is queued.
+     */
+    private class MuxerCallback implements VideoTrackTranscoder.Callback {
+        private final MP4Builder mediaMuxer;
+        private final MuxerStage muxerStage;
+        private int videoTrackIndex;
+
+        private MuxerCallback(MP4Builder mediaMuxer, MuxerStage muxerStage,
+                              int videoTrackIndex) {
+            this.mediaMuxer = mediaMuxer;
+            this.muxerStage = muxerStage;
+            this.videoTrackIndex = videoTrackIndex;
+        }
+
+        @Override
+        public void checkCanceled() throws Exception {
+            host.checkCanceled();
+        }
+
+        @Override
+        public void onOutputFormatAvailable(TrackFormat format)
+                throws Exception {
+            videoTrackIndex = addTrack(mediaMuxer, format, false);
+        }
+
+        @Override
+        public void onSampleEncoded(ByteBuffer encodedData, SampleInfo info)
+                throws Exception {
+            if ((info.flags & Codec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                checkPreempted();
+            }
+            muxerStage.write(videoTrackIndex, encodedData, info.offset,
+                    info.size, info.presentationTimeUs, info.flags, false);
+        }
+    }
+
+    /**
+     * Transcodes one segment with its own source and codec pair into a
+     * scratch file.
+     */
+    private class SegmentWorker implements
+            ParallelVideoTranscoder.SegmentTranscoder {
+        private final int bitrate;
+        private final File tempDir;
+
+        private SegmentWorker(int bitrate, File tempDir) {
+            this.bitrate = bitrate;
+            this.tempDir = tempDir;
+        }
+
+        @Override
+        public EncodedSegment transcode(SegmentPlanner.Segment segment)
+                throws Exception {
+            final EncodedSegment encoded = new EncodedSegment(File.createTempFile(
+                    "segment" + segment.getIndex(), ".h264", tempDir));
+            MediaSource extractor = null;
+            try {
+                extractor = sourceFactory.open(inputFile);
+                VideoTrackTranscoder transcoder = new VideoTrackTranscoder(
+                        extractor, selectTrack(extractor, false), codecFactory,
+                        resultWidth, resultHeight, rotateRender, bitrate);
+                transcoder.setRange(segment.getStartUs(), segment.getEndUs());
+                transcoder.setConversionProfile(profile);
+                transcoder.setFrameRate(videoObject.getTargetFrameRate());
+                transcoder.setProfile(videoObject.getEncoderProfile());
+                transcoder.setCodecPool(codecPool);
+                transcoder.transcode(new VideoTrackTranscoder.Callback() {
+                    @Override
+                    public void checkCanceled() throws Exception {
+                        host.checkCanceled();
+                    }
+
+                    @Override
+                    public void onOutputFormatAvailable(TrackFormat format) {
+                        encoded.setFormat(format.getString(TrackFormat.KEY_MIME),
+                                format.getInteger(TrackFormat.KEY_WIDTH),
+                                format.getInteger(TrackFormat.KEY_HEIGHT),
+                                format.getParameterSet(TrackFormat.KEY_CSD_0),
+                                format.getParameterSet(TrackFormat.KEY_CSD_1));
+                    }
+
+                    @Override
+                    public void onSampleEncoded(ByteBuffer encodedData,
+                                                SampleInfo info) throws Exception {
+                        // the segments stitched so far are kept and the
+                        // job resumes after them
+                        if ((info.flags & Codec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                            checkPreempted();
+                        }
+                        encoded.addSample(encodedData, info.offset, info.size,
+                                info.presentationTimeUs, info.flags);
+                    }
+                });
+            } catch (Exception e) {
+                encoded.delete();
+                throw e;
+            } finally {
+                if (extractor != null) {
+                    extractor.release();
+                }
+            }
+            return encoded;
+        }
+    }
+
+    /**
+     * Connects the task to whoever runs it.
+     */
+    public interface Host {
+        /**
+         * Throws if the conversion was canceled.
+         */
+        void checkCanceled() throws Exception;
+
+        /**
+         * Called right before a sync sample is written, from the segment
+         * threads too if the track is transcoded in parallel; throws a
+         * {@link SuspendedException} if the task should yield.
+         */
+        void checkPreempted();
+
+        /**
+         * Called for every chunk of output written; first is set for the
+         * first chunk of the job, not of the run.
+         */
+        void onChunkWritten(boolean first);
+    }
+
+    /**
+     * Thrown at a sync sample when a higher priority job is waiting.
+     */
+    public static class SuspendedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public SuspendedException() {
+            super("conversion suspended");
+        }
+    }
+}
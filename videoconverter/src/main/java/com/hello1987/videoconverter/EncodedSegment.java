@@ -0,0 +1,140 @@
+package com.hello1987.videoconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Encoded output of one segment. Sample data is spilled to a scratch file
+ * while the segment is being encoded and read back in order when it is
+ * stitched into the final movie.
+ */
+public class EncodedSegment {
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long readPosition = 0;
+
+    private String mime;
+    private int width;
+    private int height;
+    private byte[] sps;
+    private byte[] pps;
+
+    private int sampleCount = 0;
+    private int[] sizes = new int[256];
+    private long[] presentationTimes = new long[256];
+    private int[] flags = new int[256];
+
+    public EncodedSegment(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+    }
+
+    /**
+     * sps and pps are the parameter set NAL units without start code.
+     */
+    public void setFormat(String mime, int width, int height, byte[] sps,
+                          byte[] pps) {
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    public void addSample(ByteBuffer data, int offset, int size,
+                          long presentationTimeUs, int sampleFlags) throws IOException {
+        if (sampleCount == sizes.length) {
+            int[] newSizes = new int[sampleCount * 2];
+            long[] newTimes = new long[sampleCount * 2];
+            int[] newFlags = new int[sampleCount * 2];
+            System.arraycopy(sizes, 0, newSizes, 0, sampleCount);
+            System.arraycopy(presentationTimes, 0, newTimes, 0, sampleCount);
+            System.arraycopy(flags, 0, newFlags, 0, sampleCount);
+            sizes = newSizes;
+            presentationTimes = newTimes;
+            flags = newFlags;
+        }
+        data.limit(offset + size);
+        data.position(offset);
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        sizes[sampleCount] = size;
+        presentationTimes[sampleCount] = presentationTimeUs;
+        flags[sampleCount] = sampleFlags;
+        sampleCount++;
+    }
+
+    public String getMime() {
+        return mime;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte[] getSequenceParameterSet() {
+        return sps;
+    }
+
+    public byte[] getPictureParameterSet() {
+        return pps;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getSampleSize(int index) {
+        return sizes[index];
+    }
+
+    public long getPresentationTimeUs(int index) {
+        return presentationTimes[index];
+    }
+
+    public int getSampleFlags(int index) {
+        return flags[index];
+    }
+
+    /**
+     * Reads the next sample into target, from position 0 up to its size.
+     * Samples must be read in order.
+     */
+    public void readNextSample(int index, ByteBuffer target) throws IOException {
+        target.clear();
+        target.limit(sizes[index]);
+        while (target.hasRemaining()) {
+            int read = channel.read(target, readPosition);
+            if (read < 0) {
+                throw new IOException("segment file truncated");
+            }
+            readPosition += read;
+        }
+        target.flip();
+    }
+
+    public void delete() {
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        raf = null;
+        channel = null;
+        file.delete();
+    }
+}
@@ -0,0 +1,124 @@
+package com.hello1987.videoconverter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rule table that maps the complexity of a source to the size and bitrate
+ * of its output. Rules are looked at in the order of their motion limit;
+ * the first one the source's {@link ComplexityAnalyzer#getMotion()} stays
+ * within decides the longest side of the output and the bits spent per
+ * pixel and frame. Sources are never scaled up, and the bitrate never goes
+ * above the one of the source.
+ */
+public class EncodingRules {
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private int minBitrate = 100000;
+
+    /**
+     * The table the converter uses unless told otherwise: static content
+     * keeps more pixels for legible text but needs few bits, high motion
+     * gets more bits at the usual size.
+     */
+    public static EncodingRules createDefault() {
+        return new EncodingRules()
+                .addRule(0.04f, 960, 0.03f)
+                .addRule(0.12f, 640, 0.07f)
+                .addRule(0.3f, 640, 0.1f)
+                .addRule(1, 640, 0.14f);
+    }
+
+    /**
+     * Adds a rule for sources with a motion of at most maxMotion: the
+     * longest side is scaled to at most maxSide pixels and bitsPerPixel bits
+     * are spent per output pixel and frame.
+     */
+    public EncodingRules addRule(float maxMotion, int maxSide,
+                                 float bitsPerPixel) {
+        int index = 0;
+        while (index < rules.size() && rules.get(index).maxMotion <= maxMotion) {
+            index++;
+        }
+        rules.add(index, new Rule(maxMotion, maxSide, bitsPerPixel));
+        return this;
+    }
+
+    public EncodingRules setMinBitrate(int minBitrate) {
+        this.minBitrate = minBitrate;
+        return this;
+    }
+
+    /**
+     * Picks output size and bitrate for a source of width x height pixels
+     * and sourceBitrate bits per second, 0 if unknown. Returns null if the
+     * table is empty.
+     */
+    public Selection select(ComplexityAnalyzer complexity, int width,
+                            int height, int sourceBitrate) {
+        if (rules.isEmpty()) {
+            return null;
+        }
+        Rule rule = rules.get(rules.size() - 1);
+        for (Rule candidate : rules) {
+            if (complexity.getMotion() <= candidate.maxMotion) {
+                rule = candidate;
+                break;
+            }
+        }
+
+        int resultWidth = width;
+        int resultHeight = height;
+        int longSide = Math.max(width, height);
+        if (longSide > rule.maxSide) {
+            float scale = (float) rule.maxSide / longSide;
+            // encoders want even sizes
+            resultWidth = (int) (width * scale) & ~1;
+            resultHeight = (int) (height * scale) & ~1;
+        }
+        float frameRate = complexity.getFrameRate() > 0
+                ? complexity.getFrameRate() : 30;
+        long bitrate = Math.max(minBitrate, (long) (rule.bitsPerPixel
+                * resultWidth * resultHeight * frameRate));
+        if (sourceBitrate > 0) {
+            bitrate = Math.min(bitrate, sourceBitrate);
+        }
+        return new Selection(resultWidth, resultHeight, (int) bitrate);
+    }
+
+    private static class Rule {
+        private final float maxMotion;
+        private final int maxSide;
+        private final float bitsPerPixel;
+
+        private Rule(float maxMotion, int maxSide, float bitsPerPixel) {
+            this.maxMotion = maxMotion;
+            this.maxSide = maxSide;
+            this.bitsPerPixel = bitsPerPixel;
+        }
+    }
+
+    public static class Selection {
+        private final int width;
+        private final int height;
+        private final int bitrate;
+
+        public Selection(int width, int height, int bitrate) {
+            this.width = width;
+            this.height = height;
+            this.bitrate = bitrate;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getBitrate() {
+            return bitrate;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.hello1987.videoconverter;
+
+/**
+ * Picks the decoded frames to keep for a lower output frame rate. The time
+ * line is cut into slots of 1/frameRate seconds starting at zero and the
+ * first frame of every slot is kept, so the cadence does not drift with the
+ * source timestamps and two transcoders over the same track agree on which
+ * frames they keep.
+ */
+final class FrameDecimator {
+
+    /**
+     * Timestamps rounded to whole microseconds may fall just short of a slot
+     * boundary.
+     */
+    private static final long TOLERANCE_US = 1000;
+
+    private final long slotUs;
+    private long lastSlot = Long.MIN_VALUE;
+
+    FrameDecimator(int frameRate) {
+        slotUs = 1000000L / frameRate;
+    }
+
+    /**
+     * Returns true if the frame at presentationTimeUs is encoded.
+     */
+    boolean accept(long presentationTimeUs) {
+        long slot = slotOf(presentationTimeUs);
+        if (slot <= lastSlot) {
+            return false;
+        }
+        lastSlot = slot;
+        return true;
+    }
+
+    /**
+     * Continues after a frame that was kept earlier, as when a job resumes.
+     */
+    void setLastAccepted(long presentationTimeUs) {
+        lastSlot = slotOf(presentationTimeUs);
+    }
+
+    private long slotOf(long presentationTimeUs) {
+        return (presentationTimeUs + TOLERANCE_US) / slotUs;
+    }
+}
@@ -0,0 +1,90 @@
+package com.hello1987.videoconverter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transcodes the segments of a video track concurrently and stitches the
+ * results in order. Each segment is handled by a {@link SegmentTranscoder}
+ * running on its own thread with its own codec pair; stitching segment i
+ * overlaps with encoding the segments after it.
+ */
+public class ParallelVideoTranscoder {
+
+    private final int parallelism;
+
+    public ParallelVideoTranscoder(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Returns the presentation time of the first stitched frame, or -1 if
+     * no frame was produced.
+     */
+    public long transcode(List<SegmentPlanner.Segment> segments,
+                          final SegmentTranscoder transcoder, SegmentStitcher stitcher)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                parallelism, segments.size()));
+        List<Future<EncodedSegment>> futures = new ArrayList<Future<EncodedSegment>>();
+        int stitched = 0;
+        try {
+            for (final SegmentPlanner.Segment segment : segments) {
+                futures.add(executor.submit(new Callable<EncodedSegment>() {
+                    @Override
+                    public EncodedSegment call() throws Exception {
+                        return transcoder.transcode(segment);
+                    }
+                }));
+            }
+            for (Future<EncodedSegment> future : futures) {
+                EncodedSegment encoded;
+                try {
+                    encoded = future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw e;
+                }
+                stitched++;
+                try {
+                    stitcher.append(encoded);
+                } finally {
+                    encoded.delete();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (stitched < futures.size()) {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+                for (int i = stitched; i < futures.size(); i++) {
+                    Future<EncodedSegment> future = futures.get(i);
+                    if (future.isDone() && !future.isCancelled()) {
+                        try {
+                            future.get().delete();
+                        } catch (ExecutionException e) {
+                            // the transcoder cleans up after its own failure
+                        }
+                    }
+                }
+            }
+        }
+        return stitcher.getFirstTimeUs();
+    }
+
+    public interface SegmentTranscoder {
+        /**
+         * Encodes the frames of one segment. Implementations delete their
+         * scratch file if they fail.
+         */
+        EncodedSegment transcode(SegmentPlanner.Segment segment) throws Exception;
+    }
+}
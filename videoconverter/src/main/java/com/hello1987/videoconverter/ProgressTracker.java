@@ -0,0 +1,164 @@
+package com.hello1987.videoconverter;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Turns written samples into percentage progress events. Updates are
+ * coalesced so that at most one event is in flight and consecutive events
+ * are at least the configured interval apart; the same {@link ProgressEvent}
+ * instance is reused for every delivery. {@link #finish} reports the final
+ * state regardless of the interval.
+ */
+public class ProgressTracker {
+
+    private final Executor executor;
+    private final VideoObject videoObject;
+    private final OnVideoProgressListener listener;
+    private final long intervalNs;
+    private final long startUs;
+    private final long durationUs;
+
+    private final ProgressEvent event = new ProgressEvent();
+    private final Runnable deliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    private float phaseFrom = 0;
+    private float phaseTo = 100;
+    private float percent = 0;
+    private long presentationTimeUs = 0;
+    private long bytesWritten = 0;
+    private int frames = 0;
+    private float fps = 0;
+    private long lastFpsTimeNs;
+    private int lastFpsFrames = 0;
+    private long lastPostTimeNs;
+    private boolean posted = false;
+
+    /**
+     * @param startUs    start of the converted range
+     * @param endUs      end of the converted range
+     * @param intervalMs minimum time between two events
+     */
+    public ProgressTracker(Executor executor, VideoObject videoObject,
+                           OnVideoProgressListener listener, long startUs, long endUs,
+                           long intervalMs) {
+        this.executor = executor;
+        this.videoObject = videoObject;
+        this.listener = listener;
+        this.intervalNs = intervalMs * 1000000L;
+        this.startUs = Math.max(0, startUs);
+        this.durationUs = endUs - this.startUs;
+        lastFpsTimeNs = System.nanoTime();
+        lastPostTimeNs = lastFpsTimeNs - intervalNs;
+    }
+
+    /**
+     * Maps the following samples onto [from, to] percent. The converter
+     * writes the video track first and the audio track after it, each
+     * pass covering the whole range again.
+     */
+    public synchronized void startPhase(float from, float to) {
+        phaseFrom = from;
+        phaseTo = to;
+    }
+
+    public void onSampleWritten(long presentationTimeUs, int size,
+                                boolean isAudio) {
+        synchronized (this) {
+            bytesWritten += size;
+            if (!isAudio) {
+                frames++;
+            }
+            this.presentationTimeUs = presentationTimeUs;
+            if (durationUs > 0) {
+                float fraction = (float) (presentationTimeUs - startUs) / durationUs;
+                fraction = Math.max(0, Math.min(1, fraction));
+                percent = Math.max(percent, phaseFrom + (phaseTo - phaseFrom)
+                        * fraction);
+            }
+            long now = System.nanoTime();
+            if (posted || now - lastPostTimeNs < intervalNs) {
+                return;
+            }
+            markPosted(now);
+        }
+        executor.execute(deliverRunnable);
+    }
+
+    /**
+     * Completes the last phase and reports the latest state, however soon
+     * after the previous event. Updates coalesced before are otherwise
+     * never delivered.
+     */
+    public void finish() {
+        synchronized (this) {
+            percent = Math.max(percent, phaseTo);
+            if (posted) {
+                // the event in flight picks up the final state
+                return;
+            }
+            markPosted(System.nanoTime());
+        }
+        executor.execute(deliverRunnable);
+    }
+
+    private void markPosted(long now) {
+        if (now > lastFpsTimeNs) {
+            fps = (frames - lastFpsFrames) * 1000000000f
+                    / (now - lastFpsTimeNs);
+        }
+        lastFpsTimeNs = now;
+        lastFpsFrames = frames;
+        lastPostTimeNs = now;
+        posted = true;
+    }
+
+    private void deliver() {
+        synchronized (this) {
+            event.percent = percent;
+            event.presentationTimeUs = presentationTimeUs;
+            event.bytesWritten = bytesWritten;
+            event.fps = fps;
+            posted = false;
+        }
+        listener.onVideoConvertProgress(videoObject, event);
+    }
+
+    /**
+     * Progress snapshot. The instance is reused and only valid during the
+     * callback it was passed to.
+     */
+    public static class ProgressEvent {
+        private float percent;
+        private long presentationTimeUs;
+        private long bytesWritten;
+        private float fps;
+
+        public float getPercent() {
+            return percent;
+        }
+
+        public long getPresentationTimeUs() {
+            return presentationTimeUs;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * Video frames written per second since the previous event.
+         */
+        public float getFps() {
+            return fps;
+        }
+    }
+
+    public interface OnVideoProgressListener {
+        void onVideoConvertProgress(VideoObject videoObject, ProgressEvent event);
+    }
+}
@@ -0,0 +1,74 @@
+package com.hello1987.videoconverter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a time range of a video track into contiguous segments that start
+ * on sync samples, so every segment can be decoded on its own.
+ */
+public class SegmentPlanner {
+
+    /**
+     * Returns the segments for [startUs, endUs). The range is cut into count
+     * parts of equal duration and every cut is moved back to the sync sample
+     * at or before it; cuts that collapse onto each other are merged, so
+     * fewer segments than requested may come back.
+     *
+     * @param endTime the end passed on to the last segment, -1 for the end
+     *                of the track
+     */
+    public static List<Segment> plan(SyncLocator locator, long startUs,
+                                     long endUs, long endTime, int count) throws Exception {
+        if (startUs < 0) {
+            startUs = 0;
+        }
+        List<Segment> segments = new ArrayList<Segment>();
+        long segmentStart = startUs;
+        for (int i = 1; i < count && endUs > startUs; i++) {
+            long cut = startUs + (endUs - startUs) * i / count;
+            long syncTime = locator.findSyncSampleTime(cut);
+            if (syncTime > segmentStart && syncTime < endUs) {
+                segments.add(new Segment(segments.size(), segmentStart, syncTime));
+                segmentStart = syncTime;
+            }
+        }
+        segments.add(new Segment(segments.size(), segmentStart, endTime));
+        return segments;
+    }
+
+    public interface SyncLocator {
+        /**
+         * Returns the presentation time of the last sync sample at or before
+         * timeUs.
+         */
+        long findSyncSampleTime(long timeUs) throws Exception;
+    }
+
+    public static class Segment {
+        private final int index;
+        private final long startUs;
+        private final long endUs;
+
+        public Segment(int index, long startUs, long endUs) {
+            this.index = index;
+            this.startUs = startUs;
+            this.endUs = endUs;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getStartUs() {
+            return startUs;
+        }
+
+        /**
+         * Exclusive end of the segment, -1 for the end of the track.
+         */
+        public long getEndUs() {
+            return endUs;
+        }
+    }
+}
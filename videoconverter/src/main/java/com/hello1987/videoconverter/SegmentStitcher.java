@@ -0,0 +1,107 @@
+package com.hello1987.videoconverter;
+
+import com.hello1987.videoconverter.mp4.MP4Builder;
+import com.hello1987.videoconverter.pipeline.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Appends encoded segments, in order, to a single video track of an
+ * {@link MP4Builder}. The track is created from the first segment's SPS/PPS;
+ * later segments must have been encoded with identical parameter sets since
+ * the movie only carries one avcC.
+ */
+public class SegmentStitcher {
+
+    private final MP4Builder muxer;
+    private Listener listener;
+    private int trackIndex = -5;
+    private byte[] sps;
+    private byte[] pps;
+    private long firstTimeUs = -1;
+    private long lastTimeUs = -1;
+    private ByteBuffer buffer;
+
+    public SegmentStitcher(MP4Builder muxer) {
+        this.muxer = muxer;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void append(EncodedSegment segment) throws Exception {
+        if (segment.getSampleCount() == 0) {
+            return;
+        }
+        if (trackIndex == -5) {
+            sps = segment.getSequenceParameterSet();
+            pps = segment.getPictureParameterSet();
+            trackIndex = muxer.addVideoTrack(segment.getMime(),
+                    segment.getWidth(), segment.getHeight(), sps, pps);
+        } else if (!Arrays.equals(sps, segment.getSequenceParameterSet())
+                || !Arrays.equals(pps, segment.getPictureParameterSet())) {
+            throw new IllegalStateException(
+                    "segments were encoded with different parameter sets");
+        }
+
+        // frames of the earlier segments; within a segment reordered frames
+        // go back in time
+        long previousEndUs = lastTimeUs;
+        for (int i = 0; i < segment.getSampleCount(); i++) {
+            int size = segment.getSampleSize(i);
+            long presentationTimeUs = segment.getPresentationTimeUs(i);
+            if (buffer == null || buffer.capacity() < size) {
+                if (buffer != null) {
+                    BufferPool.getDefault().release(buffer);
+                }
+                buffer = BufferPool.getDefault().acquire(Math.max(size,
+                        64 * 1024));
+            }
+            segment.readNextSample(i, buffer);
+            if (presentationTimeUs <= previousEndUs) {
+                continue;
+            }
+            if (firstTimeUs == -1) {
+                firstTimeUs = presentationTimeUs;
+            }
+            lastTimeUs = Math.max(lastTimeUs, presentationTimeUs);
+            boolean flushed = muxer.writeSampleData(trackIndex, buffer, 0,
+                    size, presentationTimeUs, segment.getSampleFlags(i), false);
+            if (listener != null) {
+                listener.onSampleWritten(presentationTimeUs, size);
+                if (flushed) {
+                    listener.onChunkWritten();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the copy buffer to the pool after the last segment.
+     */
+    public void release() {
+        if (buffer != null) {
+            BufferPool.getDefault().release(buffer);
+            buffer = null;
+        }
+    }
+
+    public int getTrackIndex() {
+        return trackIndex;
+    }
+
+    /**
+     * Presentation time of the first stitched frame, or -1 if there is none.
+     */
+    public long getFirstTimeUs() {
+        return firstTimeUs;
+    }
+
+    public interface Listener {
+        void onSampleWritten(long presentationTimeUs, int size);
+
+        void onChunkWritten();
+    }
+}
@@ -0,0 +1,300 @@
+package com.hello1987.videoconverter;
+
+import com.hello1987.videoconverter.codec.Codec;
+import com.hello1987.videoconverter.codec.CodecFactory;
+import com.hello1987.videoconverter.codec.DecoderSurface;
+import com.hello1987.videoconverter.codec.ImageEncoder;
+import com.hello1987.videoconverter.codec.MediaSource;
+import com.hello1987.videoconverter.codec.MediaSourceFactory;
+import com.hello1987.videoconverter.codec.SampleInfo;
+import com.hello1987.videoconverter.codec.TrackFormat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Makes poster frames and preview strips of a video without decoding the
+ * whole track. For every requested time the source seeks to the sync sample
+ * before it, and only that sample is decoded: it is queued together with end
+ * of stream and the decoder is flushed afterwards. Frames are scaled while
+ * they are drawn into an off-screen surface, copied into pooled direct
+ * buffers and compressed on a background thread while the next key frame
+ * decodes.
+ * <p>
+ * Calls block and must not run on the main thread. An instance handles one
+ * call at a time.
+ */
+public class ThumbnailExtractor {
+
+    private static final String TAG = "ThumbnailExtractor";
+
+    private static final int TIMEOUT_USEC = 2500;
+    private static final long DECODE_TIMEOUT_US = 2000000;
+    private static final int POOL_SIZE = 2;
+
+    private final MediaSourceFactory sourceFactory;
+    private final CodecFactory codecFactory;
+    private final ImageEncoder imageEncoder;
+    private final ArrayBlockingQueue<ByteBuffer> framePool =
+            new ArrayBlockingQueue<ByteBuffer>(POOL_SIZE);
+    private int pooledFrames;
+    private int format = ImageEncoder.FORMAT_JPEG;
+    private int quality = 80;
+    private int rotateRender;
+    private int decodedFrames;
+
+    public ThumbnailExtractor(MediaSourceFactory sourceFactory,
+                              CodecFactory codecFactory, ImageEncoder imageEncoder) {
+        this.sourceFactory = sourceFactory;
+        this.codecFactory = codecFactory;
+        this.imageEncoder = imageEncoder;
+    }
+
+    /**
+     * {@link ImageEncoder#FORMAT_JPEG}, the default, or
+     * {@link ImageEncoder#FORMAT_WEBP}.
+     */
+    public void setFormat(int format, int quality) {
+        this.format = format;
+        this.quality = quality;
+    }
+
+    /**
+     * Rotates the frames while they are drawn, e.g. by the rotation of the
+     * source.
+     */
+    public void setRotateRender(int rotateRender) {
+        this.rotateRender = rotateRender;
+    }
+
+    /**
+     * Returns the key frame at or before timeUs as a width x height image.
+     */
+    public Thumbnail extractPoster(File input, long timeUs, int width,
+                                   int height) throws Exception {
+        List<Thumbnail> thumbnails = extract(input, new long[]{timeUs}, width,
+                height);
+        if (thumbnails.isEmpty()) {
+            throw new RuntimeException("no frame at " + timeUs);
+        }
+        return thumbnails.get(0);
+    }
+
+    /**
+     * Returns up to count images spread evenly over the track, one per key
+     * frame: times that fall back to the same key frame yield one image.
+     */
+    public List<Thumbnail> extractPreviews(File input, int count, int width,
+                                           int height) throws Exception {
+        MediaSource source = sourceFactory.open(input);
+        long durationUs;
+        try {
+            int trackIndex = ConversionTask.selectTrack(source, false);
+            if (trackIndex < 0) {
+                throw new RuntimeException("no video track in " + input);
+            }
+            durationUs = source.getTrackFormat(trackIndex)
+                    .getLong(TrackFormat.KEY_DURATION);
+        } finally {
+            source.release();
+        }
+        long[] times = new long[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = durationUs * (2 * i + 1) / (2 * count);
+        }
+        return extract(input, times, width, height);
+    }
+
+    /**
+     * Number of frames decoded by the last call.
+     */
+    int getDecodedFrames() {
+        return decodedFrames;
+    }
+
+    private List<Thumbnail> extract(File input, long[] times, int width,
+                                    int height) throws Exception {
+        decodedFrames = 0;
+        List<Future<Thumbnail>> results = new ArrayList<Future<Thumbnail>>();
+        ExecutorService encodeExecutor = Executors.newSingleThreadExecutor();
+        MediaSource source = null;
+        Codec decoder = null;
+        DecoderSurface surface = null;
+        try {
+            source = sourceFactory.open(input);
+            int trackIndex = ConversionTask.selectTrack(source, false);
+            if (trackIndex < 0) {
+                throw new RuntimeException("no video track in " + input);
+            }
+            TrackFormat inputFormat = source.getTrackFormat(trackIndex);
+            decoder = codecFactory.createDecoder(
+                    inputFormat.getString(TrackFormat.KEY_MIME));
+            surface = codecFactory.createDecoderSurface(width, height,
+                    rotateRender);
+            decoder.configure(inputFormat, surface);
+            decoder.start();
+            source.selectTrack(trackIndex);
+
+            SampleInfo info = new SampleInfo();
+            long lastKeyFrameUs = -1;
+            for (long timeUs : times) {
+                source.seekTo(timeUs, MediaSource.SEEK_TO_PREVIOUS_SYNC);
+                final long keyFrameUs = source.getSampleTime();
+                if (source.getSampleTrackIndex() != trackIndex
+                        || keyFrameUs == lastKeyFrameUs) {
+                    continue;
+                }
+                lastKeyFrameUs = keyFrameUs;
+                final ByteBuffer frame = acquireFrame(width * height * 4);
+                decodeKeyFrame(source, decoder, surface, info, frame);
+                final int frameWidth = width;
+                final int frameHeight = height;
+                results.add(encodeExecutor.submit(new Callable<Thumbnail>() {
+                    @Override
+                    public Thumbnail call() throws Exception {
+                        try {
+                            return new Thumbnail(keyFrameUs, imageEncoder.encode(
+                                    frame, frameWidth, frameHeight, format,
+                                    quality));
+                        } finally {
+                            framePool.offer(frame);
+                        }
+                    }
+                }));
+            }
+            List<Thumbnail> thumbnails = new ArrayList<Thumbnail>(results.size());
+            for (Future<Thumbnail> result : results) {
+                thumbnails.add(result.get());
+            }
+            return thumbnails;
+        } finally {
+            encodeExecutor.shutdownNow();
+            // frames of encodes that were dropped after a failure are not
+            // coming back
+            pooledFrames = framePool.size();
+            if (surface != null) {
+                surface.release();
+            }
+            if (decoder != null) {
+                decoder.stop();
+                decoder.release();
+            }
+            if (source != null) {
+                source.release();
+            }
+        }
+    }
+
+    /**
+     * Decodes the sample the source is at, which must be a sync sample, and
+     * reads the frame back into frame.
+     */
+    private void decodeKeyFrame(MediaSource source, Codec decoder,
+                                DecoderSurface surface, SampleInfo info,
+                                ByteBuffer frame) throws Exception {
+        long deadline = System.nanoTime() + DECODE_TIMEOUT_US * 1000;
+        int index = dequeueInput(decoder, deadline);
+        int size = source.readSampleData(decoder.getInputBuffer(index), 0);
+        decoder.queueInputBuffer(index, 0, size, source.getSampleTime(), 0);
+        index = dequeueInput(decoder, deadline);
+        decoder.queueInputBuffer(index, 0, 0, 0,
+                Codec.BUFFER_FLAG_END_OF_STREAM);
+
+        boolean rendered = false;
+        while (true) {
+            int status = decoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+            if (status >= 0) {
+                boolean render = !rendered && info.size != 0;
+                decoder.releaseOutputBuffer(status, render);
+                if (render) {
+                    surface.awaitNewImage();
+                    // read back top row first
+                    surface.drawImage(true);
+                    ByteBuffer pixels = surface.getFrame();
+                    frame.clear();
+                    pixels.rewind();
+                    frame.put(pixels);
+                    frame.flip();
+                    rendered = true;
+                    decodedFrames++;
+                }
+                if ((info.flags & Codec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            } else if (status == Codec.INFO_TRY_AGAIN_LATER
+                    && System.nanoTime() > deadline) {
+                throw new RuntimeException("decoder timed out at "
+                        + info.presentationTimeUs);
+            }
+        }
+        decoder.flush();
+        if (!rendered) {
+            throw new RuntimeException("key frame did not decode");
+        }
+    }
+
+    private static int dequeueInput(Codec decoder, long deadline) {
+        while (true) {
+            int index = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index >= 0) {
+                return index;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new RuntimeException("no decoder input buffer");
+            }
+        }
+    }
+
+    /**
+     * Takes a frame buffer from the pool, waiting for the encode thread to
+     * hand one back once all of them are in use.
+     */
+    private ByteBuffer acquireFrame(int capacity) throws InterruptedException {
+        ByteBuffer frame = framePool.poll();
+        if (frame == null && pooledFrames < POOL_SIZE) {
+            pooledFrames++;
+            return allocateFrame(capacity);
+        }
+        if (frame == null) {
+            frame = framePool.take();
+        }
+        if (frame.capacity() < capacity) {
+            VideoLog.i(TAG, "growing thumbnail buffer to " + capacity);
+            frame = allocateFrame(capacity);
+        }
+        return frame;
+    }
+
+    private static ByteBuffer allocateFrame(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static class Thumbnail {
+        private final long presentationTimeUs;
+        private final byte[] data;
+
+        Thumbnail(long presentationTimeUs, byte[] data) {
+            this.presentationTimeUs = presentationTimeUs;
+            this.data = data;
+        }
+
+        /**
+         * Time of the key frame the image shows.
+         */
+        public long getPresentationTimeUs() {
+            return presentationTimeUs;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.hello1987.videoconverter;
+
+import android.util.Log;
+
+/**
+ * Logs through {@link Log} on a device and to stderr when the conversion
+ * code runs on a plain JVM, where android.util.Log is not available.
+ */
+public class VideoLog {
+
+    private static final boolean ANDROID = "Dalvik".equals(System
+            .getProperty("java.vm.name"));
+
+    public static void e(String tag, String msg) {
+        if (ANDROID) {
+            Log.e(tag, String.valueOf(msg));
+        } else {
+            System.err.println(tag + ": " + msg);
+        }
+    }
+
+    public static void i(String tag, String msg) {
+        if (ANDROID) {
+            Log.i(tag, String.valueOf(msg));
+        }
+    }
+}
@@ -1,18 +1,19 @@
 package com.hello1987.videoconverter;
 
-import android.util.Log;
-
 import com.coremedia.iso.IsoFile;
 import com.coremedia.iso.boxes.Box;
 import com.coremedia.iso.boxes.MediaBox;
 import com.coremedia.iso.boxes.MediaHeaderBox;
 import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
 import com.coremedia.iso.boxes.TrackBox;
 import com.coremedia.iso.boxes.TrackHeaderBox;
 import com.googlecode.mp4parser.util.Matrix;
 import com.googlecode.mp4parser.util.Path;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 public class VideoObject {
@@ -34,6 +35,14 @@ public class VideoObject {
     private long videoFramesSize;
     private long audioFramesSize;
     private long originalSize;
+    private int segmentCount = 1;
+    private int priority = 0;
+    private int targetFrameRate = -1;
+    private int encoderProfile = 0;
+    private ConversionProfile profile = ConversionProfile.getDefault();
+    private long targetSize = 0;
+    private final List<Rendition> renditions = new ArrayList<Rendition>();
+    private boolean conversionStarted;
 
     private String extra;
 
@@ -42,11 +51,34 @@ public class VideoObject {
     }
 
     public void setVideoPath(String videoPath) {
+        setVideoPath(videoPath, ConversionProfile.getDefault());
+    }
+
+    /**
+     * Like {@link #setVideoPath(String)}, with the output size and bitrate
+     * picked from the given rule table.
+     */
+    public void setVideoPath(String videoPath, EncodingRules rules) {
+        setVideoPath(videoPath, new ConversionProfile.Builder(
+                ConversionProfile.DEFAULT, ConversionProfile.getDefault())
+                .setEncodingRules(rules).build());
+    }
+
+    /**
+     * Like {@link #setVideoPath(String)}, converting with the settings of
+     * profile instead of the default ones.
+     */
+    public void setVideoPath(String videoPath, ConversionProfile profile) {
         this.videoPath = videoPath;
-        processVideo();
+        this.profile = profile;
+        processVideo(profile.getEncodingRules());
+    }
+
+    public ConversionProfile getProfile() {
+        return profile;
     }
 
-    private void processVideo() {
+    private void processVideo(EncodingRules rules) {
         try {
             File file = new File(videoPath);
             originalSize = file.length();
@@ -54,6 +86,8 @@ public class VideoObject {
             IsoFile isoFile = new IsoFile(videoPath);
             List<Box> boxes = Path.getPaths(isoFile, "/moov/trak/");
             TrackHeaderBox trackHeaderBox = null;
+            ComplexityAnalyzer complexity = null;
+            int videoBitrate = 0;
             boolean isAvc = true;
             boolean isMp4A = true;
 
@@ -77,28 +111,38 @@ public class VideoObject {
                 TrackBox trackBox = (TrackBox) box;
                 long sampleSizes = 0;
                 long trackBitrate = 0;
+                long[] sizes = null;
+                long[] syncSamples = null;
                 try {
                     MediaBox mediaBox = trackBox.getMediaBox();
                     MediaHeaderBox mediaHeaderBox = mediaBox
                             .getMediaHeaderBox();
-                    SampleSizeBox sampleSizeBox = mediaBox
-                            .getMediaInformationBox().getSampleTableBox()
+                    SampleTableBox sampleTableBox = mediaBox
+                            .getMediaInformationBox().getSampleTableBox();
+                    SampleSizeBox sampleSizeBox = sampleTableBox
                             .getSampleSizeBox();
-                    for (long size : sampleSizeBox.getSampleSizes()) {
+                    SyncSampleBox syncSampleBox = sampleTableBox
+                            .getSyncSampleBox();
+                    if (syncSampleBox != null) {
+                        syncSamples = syncSampleBox.getSampleNumber();
+                    }
+                    sizes = sampleSizeBox.getSampleSizes();
+                    for (long size : sizes) {
                         sampleSizes += size;
                     }
                     videoDuration = (float) mediaHeaderBox.getDuration()
                             / (float) mediaHeaderBox.getTimescale();
                     trackBitrate = (int) (sampleSizes * 8 / videoDuration);
                 } catch (Exception e) {
-                    Log.e(TAG, e.getMessage());
+                    VideoLog.e(TAG, e.getMessage());
                 }
                 TrackHeaderBox headerBox = trackBox.getTrackHeaderBox();
                 if (headerBox.getWidth() != 0 && headerBox.getHeight() != 0) {
                     trackHeaderBox = headerBox;
-                    bitrate = (int) (trackBitrate / 100000 * 100000);
-                    if (bitrate > 900000) {
-                        bitrate = 900000;
+                    videoBitrate = (int) trackBitrate;
+                    if (sizes != null) {
+                        complexity = new ComplexityAnalyzer(sizes, syncSamples,
+                                videoDuration);
                     }
                     videoFramesSize += sampleSizes;
                 } else {
@@ -122,14 +166,27 @@ public class VideoObject {
             resultWidth = originalWidth = (int) trackHeaderBox.getWidth();
             resultHeight = originalHeight = (int) trackHeaderBox.getHeight();
 
-            if (resultWidth > 640 || resultHeight > 640) {
-                float scale = resultWidth > resultHeight ? 640.0f / resultWidth
-                        : 640.0f / resultHeight;
-                resultWidth *= scale;
-                resultHeight *= scale;
-                if (bitrate != 0) {
-                    bitrate *= Math.max(0.5f, scale);
-                    videoFramesSize = (long) (bitrate / 8 * videoDuration);
+            EncodingRules.Selection selection = complexity != null
+                    && rules != null ? rules.select(complexity, resultWidth,
+                    resultHeight, videoBitrate) : null;
+            if (selection != null) {
+                resultWidth = selection.getWidth();
+                resultHeight = selection.getHeight();
+                bitrate = selection.getBitrate();
+                videoFramesSize = (long) (bitrate / 8 * videoDuration);
+            } else {
+                int maxSide = profile.getMaxSide();
+                bitrate = Math.min(profile.getMaxBitrate(),
+                        videoBitrate / 100000 * 100000);
+                if (resultWidth > maxSide || resultHeight > maxSide) {
+                    float scale = (float) maxSide
+                            / Math.max(resultWidth, resultHeight);
+                    resultWidth *= scale;
+                    resultHeight *= scale;
+                    if (bitrate != 0) {
+                        bitrate *= Math.max(0.5f, scale);
+                        videoFramesSize = (long) (bitrate / 8 * videoDuration);
+                    }
                 }
             }
 
@@ -138,7 +195,7 @@ public class VideoObject {
                 return;
             }
         } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
+            VideoLog.e(TAG, e.getMessage());
             return;
         }
 
@@ -213,6 +270,96 @@ public class VideoObject {
         return originalSize;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Jobs with a higher priority run first. Scheduling a job with a higher
+     * priority than the running one suspends the running job at its next
+     * sync frame; it resumes once the higher priority jobs are done.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Number of segments the video track is split into and transcoded
+     * concurrently, each with its own codec pair. 1, the default, transcodes
+     * the track serially. A suspended job keeps the segments stitched
+     * before it yielded and transcodes the rest serially.
+     */
+    public void setSegmentCount(int segmentCount) {
+        this.segmentCount = segmentCount;
+    }
+
+    public int getTargetFrameRate() {
+        return targetFrameRate >= 0 ? targetFrameRate
+                : profile.getMaxFrameRate();
+    }
+
+    /**
+     * Highest frame rate of the output. Decoded frames above it are dropped
+     * before they are rendered and encoded. 0 keeps the frame rate of the
+     * source; by default the profile decides.
+     */
+    public void setTargetFrameRate(int targetFrameRate) {
+        this.targetFrameRate = targetFrameRate;
+    }
+
+    public int getEncoderProfile() {
+        return encoderProfile != 0 ? encoderProfile
+                : profile.getEncoderProfile();
+    }
+
+    /**
+     * H.264 profile of the output, one of the VideoTrackTranscoder.PROFILE_
+     * constants. Main and High allow B-frames, which give smaller files at
+     * the same quality; Baseline plays on every device. By default the
+     * profile decides.
+     */
+    public void setEncoderProfile(int encoderProfile) {
+        this.encoderProfile = encoderProfile;
+    }
+
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Size in bytes the output should come out at, e.g. an attachment
+     * limit. The encoder bitrate is then adjusted while the video is
+     * encoded instead of taken from {@link #getBitrate()}, and the video is
+     * cut short rather than exceed the size. 0, the default, keeps the
+     * estimated bitrate. Jobs with a target size are not split into
+     * segments, are not suspended for jobs of higher priority and start
+     * over instead of resuming.
+     */
+    public void setTargetSize(long targetSize) {
+        this.targetSize = targetSize;
+    }
+
+    public List<Rendition> getRenditions() {
+        return renditions;
+    }
+
+    /**
+     * Writes a further output of the same source at another size and
+     * bitrate. All outputs are encoded from a single decode of the video
+     * track and share one pass over the audio track. Jobs with renditions
+     * are neither split into segments nor suspended for higher priority
+     * jobs.
+     */
+    public void addRendition(String outPath, int resultWidth,
+                             int resultHeight, int bitrate) {
+        renditions.add(new Rendition(outPath, resultWidth, resultHeight,
+                bitrate));
+    }
+
     public String getExtra() {
         return extra;
     }
@@ -221,4 +368,47 @@ public class VideoObject {
         this.extra = extra;
     }
 
+    /**
+     * Whether the job has written output and reported it started; kept
+     * while the job is suspended.
+     */
+    boolean isConversionStarted() {
+        return conversionStarted;
+    }
+
+    void setConversionStarted(boolean conversionStarted) {
+        this.conversionStarted = conversionStarted;
+    }
+
+    public static class Rendition {
+        private final String outPath;
+        private final int resultWidth;
+        private final int resultHeight;
+        private final int bitrate;
+
+        public Rendition(String outPath, int resultWidth, int resultHeight,
+                         int bitrate) {
+            this.outPath = outPath;
+            this.resultWidth = resultWidth;
+            this.resultHeight = resultHeight;
+            this.bitrate = bitrate;
+        }
+
+        public String getOutPath() {
+            return outPath;
+        }
+
+        public int getResultWidth() {
+            return resultWidth;
+        }
+
+        public int getResultHeight() {
+            return resultHeight;
+        }
+
+        public int getBitrate() {
+            return bitrate;
+        }
+    }
+
 }
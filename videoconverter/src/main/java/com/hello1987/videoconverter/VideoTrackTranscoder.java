@@ -0,0 +1,810 @@
+package com.hello1987.videoconverter;
+
+import com.hello1987.videoconverter.codec.BufferInputLayout;
+import com.hello1987.videoconverter.codec.Codec;
+import com.hello1987.videoconverter.codec.CodecFactory;
+import com.hello1987.videoconverter.codec.DecoderSurface;
+import com.hello1987.videoconverter.codec.EncoderSurface;
+import com.hello1987.videoconverter.codec.MediaSource;
+import com.hello1987.videoconverter.codec.SampleInfo;
+import com.hello1987.videoconverter.codec.TrackFormat;
+import com.hello1987.videoconverter.codec.YuvConverter;
+import com.hello1987.videoconverter.metrics.ConversionMetrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes one video track of a {@link MediaSource}, renders every frame
+ * through a {@link DecoderSurface}/{@link EncoderSurface} pair and
+ * re-encodes it to H.264. Encoded samples are handed to a {@link Callback};
+ * the transcoder owns its codecs, so several instances can run side by
+ * side. Extra renditions added with {@link #addRendition} are drawn from the
+ * same decoded frame into encoders of their own, so the track is decoded
+ * once however many outputs it has.
+ * <p>
+ * When the codecs support callbacks the calling thread only wakes up for
+ * buffers that are ready (see {@link CodecEventQueue}); otherwise both codecs
+ * are polled.
+ */
+public class VideoTrackTranscoder {
+
+    private static final String TAG = "VideoTrackTranscoder";
+
+    private final static String MIME_TYPE = "video/avc";
+    private final static int COLOR_FORMAT_SURFACE = 0x7f000789;
+    /**
+     * H.264 profiles, as in MediaCodecInfo.CodecProfileLevel. Main and High
+     * let the encoder use B-frames.
+     */
+    public final static int PROFILE_BASELINE = 1;
+    public final static int PROFILE_MAIN = 2;
+    public final static int PROFILE_HIGH = 8;
+    private final static int LEVEL_3 = 0x100;
+    private final static int LEVEL_13 = 0x20;
+    private final static int LEVEL_4 = 0x800;
+    private final static int MAX_B_FRAMES = 2;
+    private final static int TIMEOUT_USEC = 2500;
+    private final static long EVENT_WAIT_MS = 100;
+    private final static int MAX_CONVERT_THREADS = 4;
+
+    private final MediaSource extractor;
+    private final int trackIndex;
+    private final CodecFactory codecFactory;
+    private final int resultWidth;
+    private final int resultHeight;
+    private final int rotateRender;
+    private final int bitrate;
+    private long startTime = -1;
+    private long endTime = -1;
+    private long resumeAfterUs = -1;
+    private long firstFrameTimeUs = -1;
+    private boolean outputFormatKnown = false;
+    private int frameRate;
+    private int profile = PROFILE_BASELINE;
+    private int defaultBitrate = 921600;
+    private int encoderFrameRate = 25;
+    private int iFrameInterval = 10;
+    private int level = 0;
+    private FrameDecimator decimator;
+    private BitrateController bitrateController;
+    private CodecPool<Codec> codecPool;
+    private ConversionMetrics metrics;
+
+    private final List<Rendition> extraRenditions = new ArrayList<Rendition>();
+
+    private Callback callback;
+    private BufferInputLayout bufferLayout;
+    private YuvConverter yuvConverter;
+    private Codec decoder;
+    private DecoderSurface outputSurface;
+    private Rendition[] renditions;
+    private long videoTime;
+    private boolean inputDone;
+    private boolean decoderDone;
+    private int pendingOutputs;
+
+    public VideoTrackTranscoder(MediaSource extractor, int trackIndex,
+                                CodecFactory codecFactory, int resultWidth, int resultHeight,
+                                int rotateRender, int bitrate) {
+        this.extractor = extractor;
+        this.trackIndex = trackIndex;
+        this.codecFactory = codecFactory;
+        this.resultWidth = resultWidth;
+        this.resultHeight = resultHeight;
+        this.rotateRender = rotateRender;
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * Limits the transcoded frames to [startTime, endTime); -1 means no
+     * limit.
+     */
+    public void setRange(long startTime, long endTime) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    /**
+     * Continues an interrupted job: frames up to and including
+     * resumeAfterUs are decoded but not encoded again, and the output format
+     * is not reported a second time. The journaled output must hold every
+     * frame up to resumeAfterUs, which MP4Builder ensures by checkpointing
+     * video only before sync samples.
+     */
+    public void setResumePoint(long resumeAfterUs, long firstFrameTimeUs) {
+        this.resumeAfterUs = resumeAfterUs;
+        this.firstFrameTimeUs = firstFrameTimeUs;
+        outputFormatKnown = true;
+    }
+
+    /**
+     * Encodes at most frameRate frames per second, dropping decoded frames
+     * before they are rendered. 0 keeps every frame.
+     */
+    public void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * H.264 profile of the encoders, {@link #PROFILE_BASELINE} by default.
+     * With the others the samples come in decode order and the muxer works
+     * out their decode times.
+     */
+    public void setProfile(int profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Takes the encoder settings of conversionProfile: bitrate of outputs
+     * without one, frame rate, key frame interval, H.264 profile and level.
+     */
+    public void setConversionProfile(ConversionProfile conversionProfile) {
+        defaultBitrate = conversionProfile.getDefaultBitrate();
+        encoderFrameRate = conversionProfile.getFrameRate();
+        iFrameInterval = conversionProfile.getIFrameInterval();
+        profile = conversionProfile.getEncoderProfile();
+        level = conversionProfile.getLevel();
+    }
+
+    /**
+     * Lets controller adjust the bitrate of the main output while it is
+     * encoded, and end it early once its size budget is used up.
+     */
+    void setBitrateController(BitrateController controller) {
+        bitrateController = controller;
+    }
+
+    /**
+     * Encodes every kept frame once more at width x height and bitrate and
+     * hands the samples to callback. Needs encoders with input surfaces, and
+     * is not combined with a resume point.
+     */
+    public void addRendition(int width, int height, int bitrate,
+                             Callback callback) {
+        extraRenditions.add(new Rendition(width, height, bitrate, callback));
+    }
+
+    /**
+     * Takes the codecs from pool and returns them to it after a successful
+     * run instead of releasing them.
+     */
+    public void setCodecPool(CodecPool<Codec> pool) {
+        codecPool = pool;
+    }
+
+    /**
+     * Records codec waits, render times and frame counts into metrics.
+     */
+    public void setMetrics(ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private Codec createCodec(CodecPool.Key key) throws Exception {
+        if (codecPool != null) {
+            return codecPool.acquire(key);
+        }
+        if (key.isEncoder()) {
+            return codecFactory.createEncoder(key.getMime());
+        }
+        return codecFactory.createDecoder(key.getMime());
+    }
+
+    private void releaseCodec(CodecPool.Key key, Codec codec, boolean reusable) {
+        if (codecPool == null) {
+            codec.stop();
+            codec.release();
+        } else if (reusable) {
+            codecPool.recycle(key, codec);
+        } else {
+            codecPool.discard(codec);
+        }
+    }
+
+    /**
+     * Runs the track to its end (or endTime) and returns the presentation
+     * time of the first frame that was kept, or -1 if none was.
+     */
+    public long transcode(Callback callback) throws Exception {
+        this.callback = callback;
+        videoTime = firstFrameTimeUs;
+        inputDone = false;
+        decoderDone = false;
+        decimator = null;
+        if (frameRate > 0) {
+            decimator = new FrameDecimator(frameRate);
+            if (resumeAfterUs >= 0) {
+                decimator.setLastAccepted(resumeAfterUs);
+            }
+        }
+        Rendition primary = new Rendition(resultWidth, resultHeight, bitrate,
+                callback);
+        primary.formatKnown = outputFormatKnown;
+        renditions = new Rendition[1 + extraRenditions.size()];
+        renditions[0] = primary;
+        for (int i = 0; i < extraRenditions.size(); i++) {
+            renditions[i + 1] = extraRenditions.get(i);
+            renditions[i + 1].formatKnown = false;
+            renditions[i + 1].done = false;
+        }
+        pendingOutputs = renditions.length;
+        CodecPool.Key decoderKey = null;
+        boolean completed = false;
+
+        try {
+            bufferLayout = null;
+            int colorFormat = COLOR_FORMAT_SURFACE;
+            if (!codecFactory.isSurfaceInputSupported()) {
+                if (renditions.length > 1) {
+                    throw new RuntimeException(
+                            "renditions need encoders with input surfaces");
+                }
+                bufferLayout = codecFactory.getBufferInputLayout(MIME_TYPE,
+                        resultWidth, resultHeight);
+                colorFormat = bufferLayout.getColorFormat();
+                yuvConverter = new YuvConverter(resultWidth, resultHeight,
+                        bufferLayout, Math.min(MAX_CONVERT_THREADS,
+                        Runtime.getRuntime().availableProcessors()));
+            }
+            VideoLog.e(TAG, "colorFormat = " + colorFormat);
+
+            extractor.selectTrack(trackIndex);
+            if (resumeAfterUs >= 0) {
+                extractor.seekTo(resumeAfterUs, MediaSource.SEEK_TO_PREVIOUS_SYNC);
+            } else if (startTime > 0) {
+                extractor.seekTo(startTime, MediaSource.SEEK_TO_PREVIOUS_SYNC);
+            } else {
+                extractor.seekTo(0, MediaSource.SEEK_TO_PREVIOUS_SYNC);
+            }
+            TrackFormat inputFormat = extractor.getTrackFormat(trackIndex);
+            inputFormat.setInteger(TrackFormat.KEY_PROFILE, PROFILE_BASELINE);
+            inputFormat.setInteger(TrackFormat.KEY_LEVEL, LEVEL_3);
+
+            // Callbacks need an encoder fed through its surface; the buffer
+            // input path keeps polling.
+            CodecEventQueue events = bufferLayout == null ? new CodecEventQueue()
+                    : null;
+
+            for (int i = 0; i < renditions.length; i++) {
+                Rendition rendition = renditions[i];
+                TrackFormat outputFormat = TrackFormat.createVideoFormat(
+                        MIME_TYPE, rendition.width, rendition.height);
+                outputFormat.setInteger(TrackFormat.KEY_COLOR_FORMAT, colorFormat);
+                outputFormat.setInteger(TrackFormat.KEY_BIT_RATE,
+                        rendition.bitrate != 0 ? rendition.bitrate
+                                : defaultBitrate);
+                outputFormat.setInteger(TrackFormat.KEY_FRAME_RATE,
+                        frameRate > 0 ? frameRate : encoderFrameRate);
+                outputFormat.setInteger(TrackFormat.KEY_I_FRAME_INTERVAL,
+                        iFrameInterval);
+                outputFormat.setInteger(TrackFormat.KEY_PROFILE, profile);
+                if (profile == PROFILE_BASELINE) {
+                    outputFormat.setInteger(TrackFormat.KEY_LEVEL,
+                            level != 0 ? level : LEVEL_13);
+                } else {
+                    outputFormat.setInteger(TrackFormat.KEY_LEVEL,
+                            level != 0 ? level : LEVEL_4);
+                    outputFormat.setInteger(TrackFormat.KEY_MAX_B_FRAMES,
+                            MAX_B_FRAMES);
+                }
+                if (bufferLayout != null) {
+                    outputFormat.setInteger(TrackFormat.KEY_STRIDE,
+                            bufferLayout.getStride());
+                    outputFormat.setInteger(TrackFormat.KEY_SLICE_HEIGHT,
+                            rendition.height);
+                }
+
+                rendition.key = new CodecPool.Key(true, MIME_TYPE,
+                        rendition.width, rendition.height);
+                rendition.encoder = createCodec(rendition.key);
+                if (events != null && !rendition.encoder.setCallback(events)) {
+                    if (i > 0) {
+                        throw new RuntimeException("encoder "
+                                + rendition.encoder.getName()
+                                + " does not support callbacks");
+                    }
+                    events = null;
+                }
+                rendition.encoder.configure(outputFormat, null);
+                if (bufferLayout == null) {
+                    // later surfaces share the GL context of the first, which
+                    // owns the texture the decoder renders into
+                    rendition.surface = i == 0
+                            ? codecFactory.createEncoderSurface(rendition.encoder)
+                            : codecFactory.createEncoderSurface(rendition.encoder,
+                            renditions[0].surface);
+                }
+                rendition.encoder.start();
+            }
+            if (bufferLayout == null) {
+                primary.surface.makeCurrent();
+            }
+
+            decoderKey = new CodecPool.Key(false,
+                    inputFormat.getString(TrackFormat.KEY_MIME),
+                    inputFormat.getInteger(TrackFormat.KEY_WIDTH),
+                    inputFormat.getInteger(TrackFormat.KEY_HEIGHT));
+            decoder = createCodec(decoderKey);
+            if (events != null && !decoder.setCallback(events)) {
+                throw new RuntimeException("decoder " + decoder.getName()
+                        + " does not support callbacks");
+            }
+            if (bufferLayout == null) {
+                outputSurface = codecFactory.createDecoderSurface();
+            } else {
+                outputSurface = codecFactory.createDecoderSurface(resultWidth,
+                        resultHeight, rotateRender);
+            }
+            decoder.configure(inputFormat, outputSurface);
+            decoder.start();
+            if (metrics != null) {
+                metrics.setTag(ConversionMetrics.TAG_ENCODER,
+                        primary.encoder.getName());
+                metrics.setTag(ConversionMetrics.TAG_DECODER, decoder.getName());
+                metrics.setTag(ConversionMetrics.TAG_MODE, events != null
+                        ? "callback" : "polling");
+            }
+
+            callback.checkCanceled();
+
+            if (events != null) {
+                dispatchEvents(events);
+            } else {
+                pollCodecs();
+            }
+            completed = true;
+        } finally {
+            extractor.unselectTrack(trackIndex);
+
+            if (yuvConverter != null) {
+                yuvConverter.release();
+                yuvConverter = null;
+            }
+            if (outputSurface != null) {
+                outputSurface.release();
+                outputSurface = null;
+            }
+            for (Rendition rendition : renditions) {
+                if (rendition.surface != null) {
+                    rendition.surface.release();
+                    rendition.surface = null;
+                }
+            }
+            if (decoder != null) {
+                releaseCodec(decoderKey, decoder, completed);
+                decoder = null;
+            }
+            for (Rendition rendition : renditions) {
+                if (rendition.encoder != null) {
+                    releaseCodec(rendition.key, rendition.encoder, completed);
+                    rendition.encoder = null;
+                }
+            }
+        }
+        return videoTime;
+    }
+
+    /**
+     * Handles codec callbacks on the calling thread until every encoder has
+     * delivered its last buffer. The thread sleeps while no buffer is
+     * ready instead of polling the codecs.
+     */
+    private void dispatchEvents(CodecEventQueue events) throws Exception {
+        while (pendingOutputs > 0) {
+            callback.checkCanceled();
+            long waitStart = System.nanoTime();
+            CodecEventQueue.Event event = events.poll(EVENT_WAIT_MS);
+            if (metrics != null) {
+                metrics.recordSince(ConversionMetrics.TIMER_EVENT_WAIT, waitStart);
+            }
+            if (event == null) {
+                continue;
+            }
+            Rendition rendition = findRendition(event.codec);
+            switch (event.type) {
+                case CodecEventQueue.INPUT_AVAILABLE:
+                    if (rendition == null && !inputDone) {
+                        queueDecoderInput(event.index);
+                    }
+                    break;
+                case CodecEventQueue.OUTPUT_AVAILABLE:
+                    if (rendition != null) {
+                        onEncoderOutput(rendition, event.index, event.info);
+                    } else if (decoderDone) {
+                        decoder.releaseOutputBuffer(event.index, false);
+                    } else {
+                        onDecoderOutput(event.index, event.info);
+                    }
+                    break;
+                case CodecEventQueue.FORMAT_CHANGED:
+                    if (rendition != null) {
+                        onEncoderFormatChanged(rendition, event.format);
+                    } else {
+                        VideoLog.e(TAG, "newFormat = " + event.format);
+                    }
+                    break;
+                case CodecEventQueue.ERROR:
+                    throw event.error;
+            }
+            events.recycle(event);
+        }
+    }
+
+    /**
+     * Drives both codecs by polling, for codecs without callback support
+     * and encoders fed through input buffers.
+     */
+    private void pollCodecs() throws Exception {
+        SampleInfo info = new SampleInfo();
+        while (pendingOutputs > 0) {
+            callback.checkCanceled();
+            if (!inputDone) {
+                long dequeueStart = System.nanoTime();
+                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (metrics != null) {
+                    metrics.recordSince(ConversionMetrics.TIMER_DEQUEUE_INPUT,
+                            dequeueStart);
+                }
+                if (inputBufIndex >= 0) {
+                    queueDecoderInput(inputBufIndex);
+                }
+            }
+
+            boolean decoderOutputAvailable = !decoderDone;
+            boolean encoderOutputAvailable = true;
+            while (decoderOutputAvailable || encoderOutputAvailable) {
+                callback.checkCanceled();
+                encoderOutputAvailable = false;
+                for (Rendition rendition : renditions) {
+                    if (!rendition.done && pollEncoder(rendition, info)) {
+                        encoderOutputAvailable = true;
+                    }
+                }
+                if (encoderOutputAvailable) {
+                    continue;
+                }
+
+                if (!decoderDone) {
+                    long dequeueStart = System.nanoTime();
+                    int decoderStatus = decoder.dequeueOutputBuffer(info,
+                            TIMEOUT_USEC);
+                    if (metrics != null) {
+                        metrics.recordSince(
+                                ConversionMetrics.TIMER_DEQUEUE_DECODER_OUTPUT,
+                                dequeueStart);
+                    }
+                    if (decoderStatus == Codec.INFO_TRY_AGAIN_LATER) {
+                        decoderOutputAvailable = false;
+                    } else if (decoderStatus == Codec.INFO_OUTPUT_BUFFERS_CHANGED) {
+
+                    } else if (decoderStatus == Codec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        TrackFormat newFormat = decoder.getOutputFormat();
+                        VideoLog.e(TAG, "newFormat = " + newFormat);
+                    } else if (decoderStatus < 0) {
+                        throw new RuntimeException(
+                                "unexpected result from decoder.dequeueOutputBuffer: "
+                                        + decoderStatus);
+                    } else {
+                        onDecoderOutput(decoderStatus, info);
+                        if (decoderDone) {
+                            decoderOutputAvailable = false;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes one output buffer or format change of the rendition's encoder;
+     * returns false if it had none ready.
+     */
+    private boolean pollEncoder(Rendition rendition, SampleInfo info)
+            throws Exception {
+        long dequeueStart = System.nanoTime();
+        int encoderStatus = rendition.encoder.dequeueOutputBuffer(info,
+                TIMEOUT_USEC);
+        if (metrics != null) {
+            metrics.recordSince(ConversionMetrics.TIMER_DEQUEUE_ENCODER_OUTPUT,
+                    dequeueStart);
+        }
+        if (encoderStatus == Codec.INFO_TRY_AGAIN_LATER) {
+            return false;
+        } else if (encoderStatus == Codec.INFO_OUTPUT_BUFFERS_CHANGED) {
+
+        } else if (encoderStatus == Codec.INFO_OUTPUT_FORMAT_CHANGED) {
+            onEncoderFormatChanged(rendition,
+                    rendition.encoder.getOutputFormat());
+        } else if (encoderStatus < 0) {
+            throw new RuntimeException(
+                    "unexpected result from encoder.dequeueOutputBuffer: "
+                            + encoderStatus);
+        } else {
+            onEncoderOutput(rendition, encoderStatus, info);
+        }
+        return true;
+    }
+
+    private Rendition findRendition(Codec codec) {
+        for (Rendition rendition : renditions) {
+            if (rendition.encoder == codec) {
+                return rendition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fills a decoder input buffer with the next sample of the track, or
+     * queues end of stream once the track is exhausted.
+     */
+    private void queueDecoderInput(int inputBufIndex) {
+        int index = extractor.getSampleTrackIndex();
+        while (index != trackIndex && index != -1) {
+            extractor.advance();
+            index = extractor.getSampleTrackIndex();
+        }
+        int chunkSize = -1;
+        if (index == trackIndex) {
+            ByteBuffer inputBuf = decoder.getInputBuffer(inputBufIndex);
+            chunkSize = extractor.readSampleData(inputBuf, 0);
+        }
+        if (chunkSize < 0) {
+            decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                    Codec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+        } else {
+            decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                    extractor.getSampleTime(), 0);
+            extractor.advance();
+        }
+    }
+
+    private void onEncoderFormatChanged(Rendition rendition,
+                                        TrackFormat newFormat) throws Exception {
+        if (!rendition.formatKnown) {
+            rendition.formatKnown = true;
+            rendition.callback.onOutputFormatAvailable(newFormat);
+        }
+    }
+
+    private void onEncoderOutput(Rendition rendition, int index,
+                                 SampleInfo info) throws Exception {
+        ByteBuffer encodedData = rendition.encoder.getOutputBuffer(index);
+        if (encodedData == null) {
+            throw new RuntimeException("encoderOutputBuffer " + index
+                    + " was null");
+        }
+        if (info.size > 1) {
+            if ((info.flags & Codec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                if (metrics != null) {
+                    metrics.increment(ConversionMetrics.COUNTER_FRAMES_ENCODED);
+                }
+                rendition.callback.onSampleEncoded(encodedData, info);
+                if (bitrateController != null && rendition == renditions[0]) {
+                    int bitrate = bitrateController.onSampleWritten(
+                            info.presentationTimeUs, info.size);
+                    if (bitrate > 0) {
+                        rendition.encoder.setVideoBitrate(bitrate);
+                    }
+                }
+            } else if (!rendition.formatKnown) {
+                rendition.formatKnown = true;
+                rendition.callback.onOutputFormatAvailable(
+                        createFormatFromCodecConfig(rendition, encodedData, info));
+            }
+        }
+        if ((info.flags & Codec.BUFFER_FLAG_END_OF_STREAM) != 0
+                && !rendition.done) {
+            rendition.done = true;
+            pendingOutputs--;
+        }
+        rendition.encoder.releaseOutputBuffer(index, false);
+    }
+
+    /**
+     * Renders a decoded frame into every encoder, dropping frames outside
+     * the range, before the resume point or above the frame rate, and ends
+     * the encoder input after the last one.
+     */
+    private void onDecoderOutput(int index, SampleInfo info) throws Exception {
+        boolean doRender;
+        if (bufferLayout == null) {
+            doRender = info.size != 0;
+        } else {
+            doRender = info.size != 0 || info.presentationTimeUs != 0;
+        }
+        if ((endTime > 0 && info.presentationTimeUs >= endTime)
+                || (bitrateController != null
+                && bitrateController.isBudgetExhausted())) {
+            inputDone = true;
+            decoderDone = true;
+            doRender = false;
+            info.flags |= Codec.BUFFER_FLAG_END_OF_STREAM;
+        }
+        if (startTime > 0 && videoTime == -1) {
+            if (info.presentationTimeUs < startTime) {
+                doRender = false;
+                VideoLog.e(TAG, "drop frame startTime = " + startTime
+                        + " present time = " + info.presentationTimeUs);
+            } else {
+                videoTime = info.presentationTimeUs;
+            }
+        }
+        if (resumeAfterUs >= 0 && info.presentationTimeUs <= resumeAfterUs) {
+            doRender = false;
+        }
+        boolean decimated = false;
+        if (doRender && decimator != null
+                && !decimator.accept(info.presentationTimeUs)) {
+            doRender = false;
+            decimated = true;
+        }
+        if (metrics != null && info.size != 0) {
+            metrics.increment(ConversionMetrics.COUNTER_FRAMES_DECODED);
+            if (decimated) {
+                metrics.increment(ConversionMetrics.COUNTER_FRAMES_DECIMATED);
+            } else if (!doRender) {
+                metrics.increment(ConversionMetrics.COUNTER_FRAMES_SKIPPED);
+            }
+        }
+        decoder.releaseOutputBuffer(index, doRender);
+        if (doRender) {
+            boolean errorWait = false;
+            if (renditions.length > 1) {
+                // the decoder's texture belongs to the first surface's context
+                renditions[0].surface.makeCurrent();
+            }
+            long start = System.nanoTime();
+            try {
+                outputSurface.awaitNewImage();
+            } catch (Exception e) {
+                errorWait = true;
+                VideoLog.e(TAG, e.getMessage());
+            }
+            if (metrics != null) {
+                metrics.recordSince(ConversionMetrics.TIMER_AWAIT_IMAGE, start);
+                if (errorWait) {
+                    metrics.increment(ConversionMetrics.COUNTER_FRAMES_DROPPED);
+                }
+            }
+            if (!errorWait) {
+                if (bufferLayout == null) {
+                    for (Rendition rendition : renditions) {
+                        drawFrame(rendition, info.presentationTimeUs);
+                    }
+                } else {
+                    queueFrameBuffer(info.presentationTimeUs);
+                }
+            }
+        }
+        if ((info.flags & Codec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            decoderDone = true;
+            VideoLog.e(TAG, "decoder stream end");
+            if (bufferLayout == null) {
+                for (Rendition rendition : renditions) {
+                    rendition.encoder.signalEndOfInputStream();
+                }
+            } else {
+                Codec encoder = renditions[0].encoder;
+                int inputBufIndex = encoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inputBufIndex >= 0) {
+                    encoder.queueInputBuffer(inputBufIndex, 0, 1,
+                            info.presentationTimeUs,
+                            Codec.BUFFER_FLAG_END_OF_STREAM);
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffer input path: reads the frame back, converts it into the
+     * encoder's YUV layout and queues it.
+     */
+    private void queueFrameBuffer(long presentationTimeUs) {
+        Codec encoder = renditions[0].encoder;
+        int index = encoder.dequeueInputBuffer(TIMEOUT_USEC);
+        if (index < 0) {
+            VideoLog.e(TAG, "input buffer not available");
+            if (metrics != null) {
+                metrics.increment(ConversionMetrics.COUNTER_FRAMES_DROPPED);
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        // read back top row first
+        outputSurface.drawImage(true);
+        yuvConverter.convert(outputSurface.getFrame(),
+                encoder.getInputBuffer(index));
+        if (metrics != null) {
+            metrics.recordSince(ConversionMetrics.TIMER_CONVERT_YUV, start);
+        }
+        encoder.queueInputBuffer(index, 0, yuvConverter.getFrameSize(),
+                presentationTimeUs, 0);
+    }
+
+    private void drawFrame(Rendition rendition, long presentationTimeUs) {
+        if (renditions.length > 1) {
+            rendition.surface.makeCurrent();
+        }
+        long start = System.nanoTime();
+        outputSurface.drawImage(false);
+        if (metrics != null) {
+            metrics.recordSince(ConversionMetrics.TIMER_DRAW, start);
+        }
+        rendition.surface.setPresentationTime(presentationTimeUs * 1000);
+        start = System.nanoTime();
+        rendition.surface.swapBuffers();
+        if (metrics != null) {
+            metrics.recordSince(ConversionMetrics.TIMER_SWAP, start);
+        }
+    }
+
+    /**
+     * Some encoders only emit SPS and PPS in a single codec config buffer;
+     * split it into csd-0/csd-1 the way the muxer expects.
+     */
+    private TrackFormat createFormatFromCodecConfig(Rendition rendition,
+                                                    ByteBuffer encodedData,
+                                                    SampleInfo info) {
+        byte[] csd = new byte[info.size];
+        encodedData.limit(info.offset + info.size);
+        encodedData.position(info.offset);
+        encodedData.get(csd);
+        ByteBuffer sps = null;
+        ByteBuffer pps = null;
+        for (int a = info.size - 1; a >= 0; a--) {
+            if (a > 3) {
+                if (csd[a] == 1 && csd[a - 1] == 0 && csd[a - 2] == 0
+                        && csd[a - 3] == 0) {
+                    sps = ByteBuffer.wrap(csd, 0, a - 3).slice();
+                    pps = ByteBuffer.wrap(csd, a - 3, info.size - (a - 3))
+                            .slice();
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+
+        TrackFormat newFormat = TrackFormat.createVideoFormat(MIME_TYPE,
+                rendition.width, rendition.height);
+        if (sps != null && pps != null) {
+            newFormat.setByteBuffer(TrackFormat.KEY_CSD_0, sps);
+            newFormat.setByteBuffer(TrackFormat.KEY_CSD_1, pps);
+        }
+        return newFormat;
+    }
+
+    /**
+     * One output of the track: its encoder, input surface and callback.
+     */
+    private static final class Rendition {
+        final int width;
+        final int height;
+        final int bitrate;
+        final Callback callback;
+        CodecPool.Key key;
+        Codec encoder;
+        EncoderSurface surface;
+        boolean formatKnown;
+        boolean done;
+
+        Rendition(int width, int height, int bitrate, Callback callback) {
+            this.width = width;
+            this.height = height;
+            this.bitrate = bitrate;
+            this.callback = callback;
+        }
+    }
+
+    public interface Callback {
+        void checkCanceled() throws Exception;
+
+        void onOutputFormatAvailable(TrackFormat format) throws Exception;
+
+        void onSampleEncoded(ByteBuffer encodedData, SampleInfo info)
+                throws Exception;
+    }
+}
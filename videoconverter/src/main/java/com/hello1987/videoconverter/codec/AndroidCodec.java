@@ -0,0 +1,207 @@
+package com.hello1987.videoconverter.codec;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Codec} backed by a {@link MediaCodec}. Below API 21 buffers are
+ * looked up in the arrays returned by getInputBuffers/getOutputBuffers.
+ * Asynchronous mode is offered from API 23 on, where the callbacks of all
+ * codecs are delivered on one shared background thread; before that they
+ * would arrive on the main looper, so older codecs are polled.
+ */
+@TargetApi(16)
+public class AndroidCodec implements Codec {
+
+    private final MediaCodec codec;
+    private final boolean encoder;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    // callbacks of a codec arrive one at a time on the callback thread
+    private final SampleInfo callbackInfo = new SampleInfo();
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+
+    private static Handler callbackHandler;
+
+    public AndroidCodec(MediaCodec codec, boolean encoder) {
+        this.codec = codec;
+        this.encoder = encoder;
+    }
+
+    public MediaCodec getMediaCodec() {
+        return codec;
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public String getName() {
+        return Build.VERSION.SDK_INT >= 18 ? codec.getName() : "";
+    }
+
+    @Override
+    public boolean isEncoder() {
+        return encoder;
+    }
+
+    private static synchronized Handler getCallbackHandler() {
+        if (callbackHandler == null) {
+            HandlerThread thread = new HandlerThread("CodecCallbacks");
+            thread.start();
+            callbackHandler = new Handler(thread.getLooper());
+        }
+        return callbackHandler;
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public boolean setCallback(final Callback callback) {
+        if (Build.VERSION.SDK_INT < 23) {
+            return false;
+        }
+        if (callback == null) {
+            codec.setCallback(null);
+            return true;
+        }
+        MediaCodec.Callback mediaCodecCallback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(AndroidCodec.this, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                                MediaCodec.BufferInfo info) {
+                callbackInfo.set(info.offset, info.size,
+                        info.presentationTimeUs, info.flags);
+                callback.onOutputBufferAvailable(AndroidCodec.this, index,
+                        callbackInfo);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(AndroidCodec.this, e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec,
+                                              MediaFormat format) {
+                callback.onOutputFormatChanged(AndroidCodec.this,
+                        AndroidFormats.fromMediaFormat(format));
+            }
+        };
+        codec.setCallback(mediaCodecCallback, getCallbackHandler());
+        return true;
+    }
+
+    @Override
+    public void configure(TrackFormat format, DecoderSurface surface) {
+        codec.configure(AndroidFormats.toMediaFormat(format),
+                surface != null ? ((AndroidDecoderSurface) surface)
+                        .getOutputSurface().getSurface() : null, null,
+                encoder ? MediaCodec.CONFIGURE_FLAG_ENCODE : 0);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void start() {
+        codec.start();
+        if (Build.VERSION.SDK_INT < 21) {
+            inputBuffers = codec.getInputBuffers();
+            outputBuffers = codec.getOutputBuffers();
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return codec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return inputBuffers[index];
+        }
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size,
+                                 long presentationTimeUs, int flags) {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        int status = codec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+        if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED
+                && Build.VERSION.SDK_INT < 21) {
+            outputBuffers = codec.getOutputBuffers();
+        }
+        info.set(bufferInfo.offset, bufferInfo.size,
+                bufferInfo.presentationTimeUs, bufferInfo.flags);
+        return status;
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return outputBuffers[index];
+        }
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return AndroidFormats.fromMediaFormat(codec.getOutputFormat());
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        codec.releaseOutputBuffer(index, render);
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public void signalEndOfInputStream() {
+        codec.signalEndOfInputStream();
+    }
+
+    @Override
+    public boolean setVideoBitrate(int bitrate) {
+        if (Build.VERSION.SDK_INT < 19) {
+            return false;
+        }
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        codec.setParameters(parameters);
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        codec.flush();
+    }
+
+    @Override
+    public void stop() {
+        codec.stop();
+        inputBuffers = null;
+        outputBuffers = null;
+    }
+
+    @Override
+    public void release() {
+        codec.release();
+    }
+}
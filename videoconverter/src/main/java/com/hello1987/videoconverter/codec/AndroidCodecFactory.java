@@ -0,0 +1,180 @@
+package com.hello1987.videoconverter.codec;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import com.hello1987.videoconverter.mp4.InputSurface;
+import com.hello1987.videoconverter.mp4.OutputSurface;
+
+/**
+ * Creates {@link MediaCodec} based codecs and EGL surfaces.
+ */
+@TargetApi(16)
+public class AndroidCodecFactory implements CodecFactory {
+
+    private static final String TAG = "AndroidCodecFactory";
+
+    // the codec list API added in 21 is not available on older devices
+    @SuppressWarnings("deprecation")
+    public static MediaCodecInfo selectCodec(String mimeType) {
+        int numCodecs = MediaCodecList.getCodecCount();
+        MediaCodecInfo lastCodecInfo = null;
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            String[] types = codecInfo.getSupportedTypes();
+            for (String type : types) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    lastCodecInfo = codecInfo;
+                    if (!lastCodecInfo.getName().equals("OMX.SEC.avc.enc")) {
+                        return lastCodecInfo;
+                    } else if (lastCodecInfo.getName().equals(
+                            "OMX.SEC.AVC.Encoder")) {
+                        return lastCodecInfo;
+                    }
+                }
+            }
+        }
+        return lastCodecInfo;
+    }
+
+    private static int selectColorFormat(MediaCodecInfo codecInfo,
+                                         String mimeType) {
+        MediaCodecInfo.CodecCapabilities capabilities = codecInfo
+                .getCapabilitiesForType(mimeType);
+        int lastColorFormat = 0;
+        for (int i = 0; i < capabilities.colorFormats.length; i++) {
+            int colorFormat = capabilities.colorFormats[i];
+            if (isRecognizedFormat(colorFormat)) {
+                lastColorFormat = colorFormat;
+                if (!(codecInfo.getName().equals("OMX.SEC.AVC.Encoder") && colorFormat == 19)) {
+                    return colorFormat;
+                }
+            }
+        }
+        return lastColorFormat;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean isRecognizedFormat(int colorFormat) {
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public Codec createEncoder(String mime) throws Exception {
+        return new AndroidCodec(MediaCodec.createEncoderByType(mime), true);
+    }
+
+    @Override
+    public Codec createDecoder(String mime) throws Exception {
+        return new AndroidCodec(MediaCodec.createDecoderByType(mime), false);
+    }
+
+    @Override
+    public boolean isSurfaceInputSupported() {
+        return Build.VERSION.SDK_INT >= 18;
+    }
+
+    @Override
+    public BufferInputLayout getBufferInputLayout(String mime, int width,
+                                                  int height) {
+        int swapUV = 0;
+        int processorType = BufferInputLayout.PROCESSOR_TYPE_OTHER;
+        String manufacturer = Build.MANUFACTURER.toLowerCase();
+        MediaCodecInfo codecInfo = selectCodec(mime);
+        int colorFormat = selectColorFormat(codecInfo, mime);
+        if (colorFormat == 0) {
+            throw new RuntimeException("no supported color format");
+        }
+        String codecName = codecInfo.getName();
+        if (codecName.contains("OMX.qcom.")) {
+            processorType = BufferInputLayout.PROCESSOR_TYPE_QCOM;
+            if (Build.VERSION.SDK_INT == 16) {
+                if (manufacturer.equals("lge")
+                        || manufacturer.equals("nokia")) {
+                    swapUV = 1;
+                }
+            }
+        } else if (codecName.contains("OMX.Intel.")) {
+            processorType = BufferInputLayout.PROCESSOR_TYPE_INTEL;
+        } else if (codecName.equals("OMX.MTK.VIDEO.ENCODER.AVC")) {
+            processorType = BufferInputLayout.PROCESSOR_TYPE_MTK;
+        } else if (codecName.equals("OMX.SEC.AVC.Encoder")) {
+            processorType = BufferInputLayout.PROCESSOR_TYPE_SEC;
+            swapUV = 1;
+        } else if (codecName.equals("OMX.TI.DUCATI1.VIDEO.H264E")) {
+            processorType = BufferInputLayout.PROCESSOR_TYPE_TI;
+        }
+        Log.e(TAG, "codec = " + codecInfo.getName() + " manufacturer = "
+                + manufacturer + "device = " + Build.MODEL);
+
+        int heightAligned = height;
+        int padding = 0;
+        int bufferSize = width * height * 3 / 2;
+        if (processorType == BufferInputLayout.PROCESSOR_TYPE_OTHER) {
+            if (height % 16 != 0) {
+                heightAligned += (16 - (height % 16));
+                padding = width * (heightAligned - height);
+                bufferSize += padding * 5 / 4;
+            }
+        } else if (processorType == BufferInputLayout.PROCESSOR_TYPE_QCOM) {
+            if (!manufacturer.toLowerCase().equals("lge")) {
+                int uvoffset = (width * height + 2047) & ~2047;
+                padding = uvoffset - (width * height);
+                bufferSize += padding;
+            }
+        } else if (processorType == BufferInputLayout.PROCESSOR_TYPE_MTK) {
+            if (manufacturer.equals("baidu")) {
+                heightAligned += (16 - (height % 16));
+                padding = width * (heightAligned - height);
+                bufferSize += padding * 5 / 4;
+            }
+        }
+        return new BufferInputLayout(colorFormat, processorType, swapUV,
+                width, heightAligned, padding, bufferSize);
+    }
+
+    @Override
+    public DecoderSurface createDecoderSurface() {
+        return new AndroidDecoderSurface(new OutputSurface());
+    }
+
+    @Override
+    public DecoderSurface createDecoderSurface(int width, int height,
+                                               int rotateRender) {
+        return new AndroidDecoderSurface(new OutputSurface(width, height,
+                rotateRender));
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public EncoderSurface createEncoderSurface(Codec encoder) {
+        return new AndroidEncoderSurface(new InputSurface(((AndroidCodec) encoder)
+                .getMediaCodec().createInputSurface()));
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public EncoderSurface createEncoderSurface(Codec encoder,
+                                               EncoderSurface shared) {
+        return new AndroidEncoderSurface(new InputSurface(((AndroidCodec) encoder)
+                .getMediaCodec().createInputSurface(),
+                ((AndroidEncoderSurface) shared).getInputSurface()));
+    }
+}
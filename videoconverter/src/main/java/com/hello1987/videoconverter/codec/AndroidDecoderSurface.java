@@ -0,0 +1,41 @@
+package com.hello1987.videoconverter.codec;
+
+import com.hello1987.videoconverter.mp4.OutputSurface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DecoderSurface} backed by an {@link OutputSurface}.
+ */
+public class AndroidDecoderSurface implements DecoderSurface {
+
+    private final OutputSurface outputSurface;
+
+    public AndroidDecoderSurface(OutputSurface outputSurface) {
+        this.outputSurface = outputSurface;
+    }
+
+    public OutputSurface getOutputSurface() {
+        return outputSurface;
+    }
+
+    @Override
+    public void awaitNewImage() throws Exception {
+        outputSurface.awaitNewImage();
+    }
+
+    @Override
+    public void drawImage(boolean invert) {
+        outputSurface.drawImage(invert);
+    }
+
+    @Override
+    public ByteBuffer getFrame() {
+        return outputSurface.getFrame();
+    }
+
+    @Override
+    public void release() {
+        outputSurface.release();
+    }
+}
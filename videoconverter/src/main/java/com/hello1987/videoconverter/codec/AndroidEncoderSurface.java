@@ -0,0 +1,39 @@
+package com.hello1987.videoconverter.codec;
+
+import com.hello1987.videoconverter.mp4.InputSurface;
+
+/**
+ * {@link EncoderSurface} backed by an {@link InputSurface}.
+ */
+public class AndroidEncoderSurface implements EncoderSurface {
+
+    private final InputSurface inputSurface;
+
+    public AndroidEncoderSurface(InputSurface inputSurface) {
+        this.inputSurface = inputSurface;
+    }
+
+    public InputSurface getInputSurface() {
+        return inputSurface;
+    }
+
+    @Override
+    public void makeCurrent() {
+        inputSurface.makeCurrent();
+    }
+
+    @Override
+    public void setPresentationTime(long nsecs) {
+        inputSurface.setPresentationTime(nsecs);
+    }
+
+    @Override
+    public boolean swapBuffers() {
+        return inputSurface.swapBuffers();
+    }
+
+    @Override
+    public void release() {
+        inputSurface.release();
+    }
+}
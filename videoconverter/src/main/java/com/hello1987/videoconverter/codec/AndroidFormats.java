@@ -0,0 +1,71 @@
+package com.hello1987.videoconverter.codec;
+
+import android.annotation.TargetApi;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies formats between {@link TrackFormat} and {@link MediaFormat}.
+ * MediaFormat cannot list its keys before API 29, so only the keys the
+ * converter uses are read back.
+ */
+@TargetApi(16)
+public class AndroidFormats {
+
+    private static final String[] STRING_KEYS = {TrackFormat.KEY_MIME};
+    private static final String[] INTEGER_KEYS = {TrackFormat.KEY_WIDTH,
+            TrackFormat.KEY_HEIGHT, TrackFormat.KEY_SAMPLE_RATE,
+            TrackFormat.KEY_CHANNEL_COUNT, TrackFormat.KEY_MAX_INPUT_SIZE,
+            TrackFormat.KEY_BIT_RATE, TrackFormat.KEY_FRAME_RATE,
+            TrackFormat.KEY_COLOR_FORMAT, "rotation-degrees"};
+    private static final String[] LONG_KEYS = {TrackFormat.KEY_DURATION};
+    private static final String[] BUFFER_KEYS = {TrackFormat.KEY_CSD_0,
+            TrackFormat.KEY_CSD_1};
+
+    public static MediaFormat toMediaFormat(TrackFormat trackFormat) {
+        MediaFormat format = new MediaFormat();
+        for (String key : trackFormat.getKeys()) {
+            Object value = trackFormat.getValue(key);
+            if (value instanceof String) {
+                format.setString(key, (String) value);
+            } else if (value instanceof Integer) {
+                format.setInteger(key, (Integer) value);
+            } else if (value instanceof Long) {
+                format.setLong(key, (Long) value);
+            } else if (value instanceof ByteBuffer) {
+                format.setByteBuffer(key, (ByteBuffer) value);
+            }
+        }
+        return format;
+    }
+
+    public static TrackFormat fromMediaFormat(MediaFormat format) {
+        TrackFormat trackFormat = new TrackFormat();
+        for (String key : STRING_KEYS) {
+            if (format.containsKey(key)) {
+                trackFormat.setString(key, format.getString(key));
+            }
+        }
+        for (String key : INTEGER_KEYS) {
+            if (format.containsKey(key)) {
+                try {
+                    trackFormat.setInteger(key, format.getInteger(key));
+                } catch (ClassCastException e) {
+                    // some extractors store frame-rate as a float
+                }
+            }
+        }
+        for (String key : LONG_KEYS) {
+            if (format.containsKey(key)) {
+                trackFormat.setLong(key, format.getLong(key));
+            }
+        }
+        for (String key : BUFFER_KEYS) {
+            if (format.containsKey(key)) {
+                trackFormat.setByteBuffer(key, format.getByteBuffer(key));
+            }
+        }
+        return trackFormat;
+    }
+}
@@ -0,0 +1,33 @@
+package com.hello1987.videoconverter.codec;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ImageEncoder} on top of {@link Bitmap#compress}. The bitmap is
+ * reused while the frame size stays the same.
+ */
+public class AndroidImageEncoder implements ImageEncoder {
+
+    private Bitmap bitmap;
+
+    @Override
+    public synchronized byte[] encode(ByteBuffer rgba, int width, int height,
+                                      int format, int quality) {
+        if (bitmap == null || bitmap.getWidth() != width
+                || bitmap.getHeight() != height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        rgba.rewind();
+        bitmap.copyPixelsFromBuffer(rgba);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(format == FORMAT_WEBP ? Bitmap.CompressFormat.WEBP
+                : Bitmap.CompressFormat.JPEG, quality, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+package com.hello1987.videoconverter.codec;
+
+import android.annotation.TargetApi;
+import android.media.MediaExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MediaSource} backed by a {@link MediaExtractor}.
+ */
+@TargetApi(16)
+public class AndroidMediaSource implements MediaSource {
+
+    private final MediaExtractor extractor;
+
+    public AndroidMediaSource(MediaExtractor extractor) {
+        this.extractor = extractor;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return extractor.getTrackCount();
+    }
+
+    @Override
+    public TrackFormat getTrackFormat(int index) {
+        return AndroidFormats.fromMediaFormat(extractor.getTrackFormat(index));
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        extractor.selectTrack(index);
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        extractor.unselectTrack(index);
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        extractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return extractor.getSampleTrackIndex();
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return extractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public long getSampleTime() {
+        return extractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return extractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return extractor.advance();
+    }
+
+    @Override
+    public void release() {
+        extractor.release();
+    }
+
+    public static class Factory implements MediaSourceFactory {
+        @Override
+        public MediaSource open(File file) throws IOException {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(file.toString());
+            } catch (IOException e) {
+                extractor.release();
+                throw e;
+            }
+            return new AndroidMediaSource(extractor);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.hello1987.videoconverter.codec;
+
+/**
+ * Memory layout of the YUV frames an encoder without surface input expects
+ * in its input buffers.
+ */
+public class BufferInputLayout {
+
+    public static final int PROCESSOR_TYPE_OTHER = 0;
+    public static final int PROCESSOR_TYPE_QCOM = 1;
+    public static final int PROCESSOR_TYPE_INTEL = 2;
+    public static final int PROCESSOR_TYPE_MTK = 3;
+    public static final int PROCESSOR_TYPE_SEC = 4;
+    public static final int PROCESSOR_TYPE_TI = 5;
+
+    private final int colorFormat;
+    private final int processorType;
+    private final int swapUV;
+    private final int stride;
+    private final int alignedHeight;
+    private final int padding;
+    private final int bufferSize;
+
+    public BufferInputLayout(int colorFormat, int processorType, int swapUV,
+                             int stride, int alignedHeight, int padding,
+                             int bufferSize) {
+        this.colorFormat = colorFormat;
+        this.processorType = processorType;
+        this.swapUV = swapUV;
+        this.stride = stride;
+        this.alignedHeight = alignedHeight;
+        this.padding = padding;
+        this.bufferSize = bufferSize;
+    }
+
+    public int getColorFormat() {
+        return colorFormat;
+    }
+
+    public int getProcessorType() {
+        return processorType;
+    }
+
+    /**
+     * 1 if the encoder expects V before U.
+     */
+    public int getSwapUV() {
+        return swapUV;
+    }
+
+    /**
+     * Bytes per luma row; chroma rows of planar layouts take half of it.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    public int getAlignedHeight() {
+        return alignedHeight;
+    }
+
+    /**
+     * Bytes between the end of the luma plane and the start of the chroma
+     * data.
+     */
+    public int getPadding() {
+        return padding;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,95 @@
+package com.hello1987.videoconverter.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec interface modelled on {@code android.media.MediaCodec}. Status and
+ * flag values are the ones MediaCodec uses.
+ */
+public interface Codec {
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    int BUFFER_FLAG_SYNC_FRAME = 1;
+    int BUFFER_FLAG_CODEC_CONFIG = 2;
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    String getName();
+
+    boolean isEncoder();
+
+    /**
+     * Switches the codec to asynchronous mode: buffers are announced to
+     * callback instead of being dequeued. null switches it back to
+     * synchronous mode; stop leaves the mode as it is. Must be called before
+     * configure; callbacks may arrive on any thread. Returns false if the
+     * codec can only be polled.
+     */
+    boolean setCallback(Callback callback);
+
+    /**
+     * Configures a decoder rendering to surface, or an encoder if surface is
+     * null and this codec was created as one.
+     */
+    void configure(TrackFormat format, DecoderSurface surface);
+
+    void start();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size,
+                          long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    TrackFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Ends the input of an encoder that is fed through an
+     * {@link EncoderSurface}.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * Changes the bitrate of a running video encoder. Returns false if the
+     * codec cannot change it on the fly.
+     */
+    boolean setVideoBitrate(int bitrate);
+
+    /**
+     * Drops all queued input and pending output. A codec in synchronous mode
+     * takes input again right away, also after end of stream.
+     */
+    void flush();
+
+    /**
+     * Returns the codec to the unconfigured state.
+     */
+    void stop();
+
+    void release();
+
+    /**
+     * Asynchronous buffer notifications, modelled on
+     * {@code MediaCodec.Callback}.
+     */
+    interface Callback {
+        void onInputBufferAvailable(Codec codec, int index);
+
+        /**
+         * info is reused by the codec once the call returns.
+         */
+        void onOutputBufferAvailable(Codec codec, int index, SampleInfo info);
+
+        void onOutputFormatChanged(Codec codec, TrackFormat format);
+
+        void onError(Codec codec, Exception e);
+    }
+}
@@ -0,0 +1,44 @@
+package com.hello1987.videoconverter.codec;
+
+/**
+ * Creates the codecs and surfaces of a video pass.
+ */
+public interface CodecFactory {
+    Codec createEncoder(String mime) throws Exception;
+
+    Codec createDecoder(String mime) throws Exception;
+
+    /**
+     * Whether encoders take their input from an {@link EncoderSurface};
+     * otherwise frames are read back from the decoder surface and written
+     * into input buffers laid out as {@link #getBufferInputLayout} says.
+     */
+    boolean isSurfaceInputSupported();
+
+    BufferInputLayout getBufferInputLayout(String mime, int width, int height);
+
+    /**
+     * Surface for a decoder whose frames go straight to an encoder surface.
+     */
+    DecoderSurface createDecoderSurface() throws Exception;
+
+    /**
+     * Off-screen surface that renders frames at the given size and rotation
+     * so they can be read back.
+     */
+    DecoderSurface createDecoderSurface(int width, int height, int rotateRender)
+            throws Exception;
+
+    /**
+     * Creates the input surface of a configured, not yet started encoder.
+     */
+    EncoderSurface createEncoderSurface(Codec encoder) throws Exception;
+
+    /**
+     * Creates the input surface of another encoder whose GL context shares
+     * textures with the one of shared, so a decoded frame can be drawn into
+     * both.
+     */
+    EncoderSurface createEncoderSurface(Codec encoder, EncoderSurface shared)
+            throws Exception;
+}
@@ -0,0 +1,44 @@
+package com.hello1987.videoconverter.codec;
+
+import com.hello1987.videoconverter.CodecPool;
+import com.hello1987.videoconverter.VideoLog;
+
+/**
+ * Pools the codecs of a {@link CodecFactory}. A returned codec is stopped,
+ * which leaves it unconfigured but keeps the underlying component
+ * allocated, and switched back to synchronous mode, since the next job may
+ * poll it.
+ */
+public class CodecPoolAdapter implements CodecPool.Adapter<Codec> {
+
+    private static final String TAG = "CodecPoolAdapter";
+
+    private final CodecFactory factory;
+
+    public CodecPoolAdapter(CodecFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Codec create(CodecPool.Key key) throws Exception {
+        if (key.isEncoder()) {
+            return factory.createEncoder(key.getMime());
+        }
+        return factory.createDecoder(key.getMime());
+    }
+
+    @Override
+    public void reset(Codec codec) throws Exception {
+        codec.stop();
+        codec.setCallback(null);
+    }
+
+    @Override
+    public void release(Codec codec) {
+        try {
+            codec.release();
+        } catch (Exception e) {
+            VideoLog.e(TAG, e.getMessage());
+        }
+    }
+}
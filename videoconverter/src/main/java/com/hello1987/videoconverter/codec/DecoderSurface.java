@@ -0,0 +1,24 @@
+package com.hello1987.videoconverter.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Surface a decoder renders into, modelled on
+ * {@link com.hello1987.videoconverter.mp4.OutputSurface}.
+ */
+public interface DecoderSurface {
+    /**
+     * Waits until the frame released with render=true is available.
+     */
+    void awaitNewImage() throws Exception;
+
+    void drawImage(boolean invert);
+
+    /**
+     * Reads back the last drawn frame as RGBA, for encoders fed through
+     * input buffers.
+     */
+    ByteBuffer getFrame();
+
+    void release();
+}
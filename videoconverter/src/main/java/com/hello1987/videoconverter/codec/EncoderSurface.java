@@ -0,0 +1,16 @@
+package com.hello1987.videoconverter.codec;
+
+/**
+ * Input surface of an encoder, modelled on
+ * {@link com.hello1987.videoconverter.mp4.InputSurface}. Frames drawn after
+ * {@link #makeCurrent()} are submitted with {@link #swapBuffers()}.
+ */
+public interface EncoderSurface {
+    void makeCurrent();
+
+    void setPresentationTime(long nsecs);
+
+    boolean swapBuffers();
+
+    void release();
+}
@@ -0,0 +1,19 @@
+package com.hello1987.videoconverter.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses frames read back from a {@link DecoderSurface} into still
+ * images.
+ */
+public interface ImageEncoder {
+    int FORMAT_JPEG = 0;
+    int FORMAT_WEBP = 1;
+
+    /**
+     * Compresses width x height RGBA pixels, top row first, and returns the
+     * encoded image. rgba is only read during the call.
+     */
+    byte[] encode(ByteBuffer rgba, int width, int height, int format,
+                  int quality) throws Exception;
+}
@@ -0,0 +1,41 @@
+package com.hello1987.videoconverter.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Demuxer interface modelled on {@code android.media.MediaExtractor}.
+ */
+public interface MediaSource {
+    int SEEK_TO_PREVIOUS_SYNC = 0;
+
+    int SAMPLE_FLAG_SYNC = 1;
+
+    int getTrackCount();
+
+    TrackFormat getTrackFormat(int index);
+
+    void selectTrack(int index);
+
+    void unselectTrack(int index);
+
+    void seekTo(long timeUs, int mode);
+
+    /**
+     * Index of the track the current sample belongs to, -1 at the end.
+     */
+    int getSampleTrackIndex();
+
+    /**
+     * Reads the current sample into buffer at offset and returns its size,
+     * or -1 at the end.
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    boolean advance();
+
+    void release();
+}
@@ -0,0 +1,12 @@
+package com.hello1987.videoconverter.codec;
+
+import java.io.File;
+import java.io.IOException;
+
+public interface MediaSourceFactory {
+    /**
+     * Opens a new, independent source for file. Every call returns a
+     * separate instance, so sources can be used from different threads.
+     */
+    MediaSource open(File file) throws IOException;
+}
@@ -0,0 +1,18 @@
+package com.hello1987.videoconverter.codec;
+
+/**
+ * Platform independent counterpart of {@code MediaCodec.BufferInfo}.
+ */
+public class SampleInfo {
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(int offset, int size, long presentationTimeUs, int flags) {
+        this.offset = offset;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+}
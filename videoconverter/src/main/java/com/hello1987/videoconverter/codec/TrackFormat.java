@@ -0,0 +1,136 @@
+package com.hello1987.videoconverter.codec;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Platform independent counterpart of {@code android.media.MediaFormat}.
+ * Keys have the same names, so formats can be copied in both directions.
+ */
+public class TrackFormat {
+
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+    public static final String KEY_DURATION = "durationUs";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+    public static final String KEY_COLOR_FORMAT = "color-format";
+    public static final String KEY_PROFILE = "profile";
+    public static final String KEY_LEVEL = "level";
+    public static final String KEY_MAX_B_FRAMES = "max-bframes";
+    public static final String KEY_STRIDE = "stride";
+    public static final String KEY_SLICE_HEIGHT = "slice-height";
+    public static final String KEY_CSD_0 = "csd-0";
+    public static final String KEY_CSD_1 = "csd-1";
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    public static TrackFormat createVideoFormat(String mime, int width,
+                                                int height) {
+        TrackFormat format = new TrackFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public static TrackFormat createAudioFormat(String mime, int sampleRate,
+                                                int channelCount) {
+        TrackFormat format = new TrackFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public boolean containsKey(String key) {
+        return values.containsKey(key);
+    }
+
+    public Set<String> getKeys() {
+        return values.keySet();
+    }
+
+    public Object getValue(String key) {
+        return values.get(key);
+    }
+
+    public String getString(String key) {
+        return (String) values.get(key);
+    }
+
+    /**
+     * Throws like MediaFormat does if the key is missing.
+     */
+    public int getInteger(String key) {
+        Object value = values.get(key);
+        if (value == null) {
+            throw new NullPointerException("no value for " + key);
+        }
+        return (Integer) value;
+    }
+
+    public int getInteger(String key, int defaultValue) {
+        Object value = values.get(key);
+        return value != null ? (Integer) value : defaultValue;
+    }
+
+    public long getLong(String key) {
+        Object value = values.get(key);
+        if (value == null) {
+            throw new NullPointerException("no value for " + key);
+        }
+        return (Long) value;
+    }
+
+    /**
+     * Returns a duplicate, so callers may move its position freely.
+     */
+    public ByteBuffer getByteBuffer(String key) {
+        ByteBuffer buffer = (ByteBuffer) values.get(key);
+        return buffer != null ? buffer.duplicate() : null;
+    }
+
+    /**
+     * Returns the NAL unit stored under key without its 4 byte start code,
+     * or null if there is none.
+     */
+    public byte[] getParameterSet(String key) {
+        ByteBuffer buffer = getByteBuffer(key);
+        if (buffer == null) {
+            return null;
+        }
+        buffer.position(buffer.position() + 4);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public void setString(String key, String value) {
+        values.put(key, value);
+    }
+
+    public void setInteger(String key, int value) {
+        values.put(key, value);
+    }
+
+    public void setLong(String key, long value) {
+        values.put(key, value);
+    }
+
+    public void setByteBuffer(String key, ByteBuffer value) {
+        values.put(key, value);
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
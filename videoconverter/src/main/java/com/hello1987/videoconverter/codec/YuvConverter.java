@@ -0,0 +1,289 @@
+package com.hello1987.videoconverter.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts the RGBA frames read back from a {@link DecoderSurface} into the
+ * YUV 4:2:0 layout of a {@link BufferInputLayout}, for encoders without
+ * surface input. Uses the BT.601 limited range coefficients in integer
+ * arithmetic; chroma is the average of each 2x2 block.
+ * <p>
+ * The frame is cut into bands of row pairs that worker threads convert in
+ * parallel with the calling thread. Converting allocates nothing. One frame
+ * is converted at a time.
+ */
+public class YuvConverter {
+
+    public static final int COLOR_FORMAT_YUV420_PLANAR = 19;
+    public static final int COLOR_FORMAT_YUV420_PACKED_PLANAR = 20;
+    public static final int COLOR_FORMAT_YUV420_SEMI_PLANAR = 21;
+    public static final int COLOR_FORMAT_YUV420_PACKED_SEMI_PLANAR = 39;
+    public static final int COLOR_FORMAT_TI_YUV420_PACKED_SEMI_PLANAR = 0x7f000100;
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final boolean planar;
+    private final int uOffset;
+    private final int vOffset;
+    private final int chromaStride;
+    private final int frameSize;
+
+    private final Worker[] workers;
+    private final Object lock = new Object();
+    private int generation;
+    private int pendingBands;
+    private boolean released;
+    private RuntimeException failure;
+
+    private ByteBuffer src;
+    private ByteBuffer dst;
+    private int rShift;
+    private int gShift;
+    private int bShift;
+
+    /**
+     * @param threads number of threads a frame is spread over, the calling
+     *                thread included
+     */
+    public YuvConverter(int width, int height, BufferInputLayout layout,
+                        int threads) {
+        if (width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("odd frame size " + width + "x"
+                    + height);
+        }
+        this.width = width;
+        this.height = height;
+        stride = layout.getStride();
+        planar = isPlanar(layout.getColorFormat());
+        int chromaStart = stride * height + layout.getPadding();
+        if (planar) {
+            chromaStride = stride / 2;
+            // like the luma plane the first chroma plane spans the aligned
+            // height; nothing follows the second
+            int otherPlane = chromaStart
+                    + chromaStride * (layout.getAlignedHeight() / 2);
+            uOffset = layout.getSwapUV() != 0 ? otherPlane : chromaStart;
+            vOffset = layout.getSwapUV() != 0 ? chromaStart : otherPlane;
+            frameSize = otherPlane + chromaStride * (height / 2);
+        } else {
+            chromaStride = stride;
+            uOffset = chromaStart + (layout.getSwapUV() != 0 ? 1 : 0);
+            vOffset = chromaStart + (layout.getSwapUV() != 0 ? 0 : 1);
+            frameSize = chromaStart + chromaStride * (height / 2);
+        }
+
+        int bands = Math.max(1, Math.min(threads, height / 2));
+        workers = new Worker[bands - 1];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i + 1, bands);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Whether colorFormat keeps U and V in separate planes rather than
+     * interleaved.
+     */
+    public static boolean isPlanar(int colorFormat) {
+        switch (colorFormat) {
+            case COLOR_FORMAT_YUV420_PLANAR:
+            case COLOR_FORMAT_YUV420_PACKED_PLANAR:
+                return true;
+            case COLOR_FORMAT_YUV420_SEMI_PLANAR:
+            case COLOR_FORMAT_YUV420_PACKED_SEMI_PLANAR:
+            case COLOR_FORMAT_TI_YUV420_PACKED_SEMI_PLANAR:
+                return false;
+            default:
+                throw new IllegalArgumentException("unsupported color format "
+                        + colorFormat);
+        }
+    }
+
+    /**
+     * Bytes of yuv a converted frame spans, padding included.
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Converts the width x height RGBA frame in rgba, top row first, into
+     * yuv from index 0 on. Positions and limits of both buffers are left
+     * alone.
+     */
+    public void convert(ByteBuffer rgba, ByteBuffer yuv) {
+        if (rgba.capacity() < width * height * 4) {
+            throw new IllegalArgumentException("frame of " + rgba.capacity()
+                    + " bytes is smaller than " + width + "x" + height);
+        }
+        if (yuv.capacity() < frameSize) {
+            throw new IllegalArgumentException("input buffer of "
+                    + yuv.capacity() + " bytes, " + frameSize + " needed");
+        }
+        src = rgba;
+        dst = yuv;
+        if (rgba.order() == ByteOrder.LITTLE_ENDIAN) {
+            rShift = 0;
+            gShift = 8;
+            bShift = 16;
+        } else {
+            rShift = 24;
+            gShift = 16;
+            bShift = 8;
+        }
+        if (workers.length == 0) {
+            convertBand(0, 1);
+        } else {
+            synchronized (lock) {
+                if (released) {
+                    throw new IllegalStateException("converter released");
+                }
+                failure = null;
+                pendingBands = workers.length;
+                generation++;
+                lock.notifyAll();
+            }
+            RuntimeException error = null;
+            try {
+                convertBand(0, workers.length + 1);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            synchronized (lock) {
+                while (pendingBands > 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                }
+                if (error == null) {
+                    error = failure;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+        src = null;
+        dst = null;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void release() {
+        synchronized (lock) {
+            released = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void convertBand(int band, int bands) {
+        int pairs = height / 2;
+        int firstPair = (int) ((long) pairs * band / bands);
+        int endPair = (int) ((long) pairs * (band + 1) / bands);
+        ByteBuffer src = this.src;
+        ByteBuffer dst = this.dst;
+        int rShift = this.rShift;
+        int gShift = this.gShift;
+        int bShift = this.bShift;
+        int rowBytes = width * 4;
+        int chromaStep = planar ? 1 : 2;
+        for (int pair = firstPair; pair < endPair; pair++) {
+            int in0 = pair * 2 * rowBytes;
+            int in1 = in0 + rowBytes;
+            int y0 = pair * 2 * stride;
+            int y1 = y0 + stride;
+            int u = uOffset + pair * chromaStride;
+            int v = vOffset + pair * chromaStride;
+            for (int x = 0; x < width; x += 2) {
+                int p00 = src.getInt(in0);
+                int p01 = src.getInt(in0 + 4);
+                int p10 = src.getInt(in1);
+                int p11 = src.getInt(in1 + 4);
+                in0 += 8;
+                in1 += 8;
+
+                int r00 = (p00 >>> rShift) & 0xff;
+                int g00 = (p00 >>> gShift) & 0xff;
+                int b00 = (p00 >>> bShift) & 0xff;
+                int r01 = (p01 >>> rShift) & 0xff;
+                int g01 = (p01 >>> gShift) & 0xff;
+                int b01 = (p01 >>> bShift) & 0xff;
+                int r10 = (p10 >>> rShift) & 0xff;
+                int g10 = (p10 >>> gShift) & 0xff;
+                int b10 = (p10 >>> bShift) & 0xff;
+                int r11 = (p11 >>> rShift) & 0xff;
+                int g11 = (p11 >>> gShift) & 0xff;
+                int b11 = (p11 >>> bShift) & 0xff;
+
+                dst.put(y0 + x, luma(r00, g00, b00));
+                dst.put(y0 + x + 1, luma(r01, g01, b01));
+                dst.put(y1 + x, luma(r10, g10, b10));
+                dst.put(y1 + x + 1, luma(r11, g11, b11));
+
+                int r = (r00 + r01 + r10 + r11 + 2) >> 2;
+                int g = (g00 + g01 + g10 + g11 + 2) >> 2;
+                int b = (b00 + b01 + b10 + b11 + 2) >> 2;
+                dst.put(u, (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128));
+                dst.put(v, (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128));
+                u += chromaStep;
+                v += chromaStep;
+            }
+        }
+    }
+
+    private static byte luma(int r, int g, int b) {
+        return (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+    }
+
+    private final class Worker extends Thread {
+        private final int band;
+        private final int bands;
+
+        Worker(int band, int bands) {
+            super("YuvConverter-" + band);
+            this.band = band;
+            this.bands = bands;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int seen = 0;
+            while (true) {
+                synchronized (lock) {
+                    while (!released && generation == seen) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (released) {
+                        return;
+                    }
+                    seen = generation;
+                }
+                RuntimeException error = null;
+                try {
+                    convertBand(band, bands);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+                synchronized (lock) {
+                    if (error != null && failure == null) {
+                        failure = error;
+                    }
+                    if (--pendingBands == 0) {
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package com.hello1987.videoconverter.codec.fake;
+
+import com.hello1987.videoconverter.codec.Codec;
+import com.hello1987.videoconverter.codec.DecoderSurface;
+import com.hello1987.videoconverter.codec.SampleInfo;
+import com.hello1987.videoconverter.codec.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process codec that follows the MediaCodec buffer protocol. A decoder
+ * turns every queued sample into a raw frame and, when the frame is released
+ * with render=true, hands it to its {@link FakeDecoderSurface}. An encoder
+ * takes frames from its input buffers or {@link FakeEncoderSurface}, reports
+ * its output format and codec config first and then emits one H.264-like
+ * NAL unit per frame, with a sync frame every i-frame-interval.
+ * <p>
+ * Frames become available {@link FakeCodecFactory#setFrameLatencyNanos}
+ * after they were queued, and a codec holds back up to
+ * {@link FakeCodecFactory#setPipelineDepth} frames until end of stream, like
+ * a hardware codec with look-ahead.
+ * <p>
+ * With a {@link Callback} set, buffers are announced from a per-codec
+ * callback thread as soon as they are ready, like MediaCodec in
+ * asynchronous mode. As with MediaCodec the callback stays set when the
+ * codec is stopped.
+ */
+public class FakeCodec implements Codec {
+
+    private static final int BUFFER_COUNT = 4;
+
+    private final FakeCodecFactory factory;
+    private final String name;
+    private final boolean encoder;
+
+    private boolean configured;
+    private boolean started;
+    private boolean released;
+    private int width;
+    private int height;
+    private int frameRate;
+    private int bitrate;
+    private int gopFrames;
+    private int inputBufferSize;
+    private FakeDecoderSurface surface;
+
+    private ByteBuffer[] inputBuffers;
+    private boolean[] inputQueued;
+    private ByteBuffer[] outputBuffers;
+    private long[] outputTimes;
+    private boolean[] outputDequeued;
+    private final ArrayDeque<Frame> pending = new ArrayDeque<Frame>();
+    private boolean endOfStreamQueued;
+    private boolean formatReported;
+    private boolean configSent;
+    private int frameIndex;
+    private boolean surfaceInput;
+
+    private Callback callback;
+    private ScheduledExecutorService callbackExecutor;
+    private final SampleInfo callbackInfo = new SampleInfo();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    FakeCodec(FakeCodecFactory factory, String name, boolean encoder) {
+        this.factory = factory;
+        this.name = name;
+        this.encoder = encoder;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isEncoder() {
+        return encoder;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public synchronized boolean setCallback(Callback callback) {
+        if (!factory.isCallbackSupported()) {
+            return false;
+        }
+        if (started) {
+            throw new IllegalStateException("setCallback after start");
+        }
+        this.callback = callback;
+        return true;
+    }
+
+    @Override
+    public synchronized void configure(TrackFormat format, DecoderSurface surface) {
+        if (released || started) {
+            throw new IllegalStateException("configure in wrong state");
+        }
+        width = format.getInteger(TrackFormat.KEY_WIDTH);
+        height = format.getInteger(TrackFormat.KEY_HEIGHT);
+        frameRate = format.getInteger(TrackFormat.KEY_FRAME_RATE, 25);
+        bitrate = format.getInteger(TrackFormat.KEY_BIT_RATE, 1000000);
+        gopFrames = Math.max(1, frameRate
+                * format.getInteger(TrackFormat.KEY_I_FRAME_INTERVAL, 1));
+        inputBufferSize = format.getInteger(TrackFormat.KEY_MAX_INPUT_SIZE,
+                width * height * 3 / 2);
+        this.surface = (FakeDecoderSurface) surface;
+        configured = true;
+    }
+
+    synchronized void setSurfaceInput() {
+        surfaceInput = true;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!configured) {
+            throw new IllegalStateException("start before configure");
+        }
+        inputBuffers = new ByteBuffer[BUFFER_COUNT];
+        inputQueued = new boolean[BUFFER_COUNT];
+        outputBuffers = new ByteBuffer[BUFFER_COUNT];
+        outputTimes = new long[BUFFER_COUNT];
+        outputDequeued = new boolean[BUFFER_COUNT];
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            inputBuffers[i] = ByteBuffer.allocateDirect(inputBufferSize);
+            outputBuffers[i] = ByteBuffer.allocateDirect(encoder ? maxFrameSize()
+                    : 16);
+        }
+        started = true;
+        if (callback != null) {
+            callbackExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, name + ".callbacks");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            if (!surfaceInput) {
+                for (int i = 0; i < BUFFER_COUNT; i++) {
+                    announceInputBuffer(i);
+                }
+            }
+            callbackExecutor.execute(drainTask);
+        }
+    }
+
+    private void announceInputBuffer(final int index) {
+        inputQueued[index] = true;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Callback callback = FakeCodec.this.callback;
+                if (callback != null) {
+                    callback.onInputBufferAvailable(FakeCodec.this, index);
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        checkSynchronous();
+        if (endOfStreamQueued) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            if (!inputQueued[i]) {
+                inputQueued[i] = true;
+                inputBuffers[i].clear();
+                return i;
+            }
+        }
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        return inputBuffers[index];
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size,
+                                              long presentationTimeUs, int flags) {
+        checkStarted();
+        inputQueued[index] = false;
+        if ((flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+            queueEndOfStream();
+        } else {
+            queueFrame(presentationTimeUs);
+            if (callbackExecutor != null) {
+                announceInputBuffer(index);
+            }
+        }
+    }
+
+    synchronized void queueFrame(long presentationTimeUs) {
+        pending.add(new Frame(presentationTimeUs, System.nanoTime()
+                + factory.getFrameLatencyNanos(), false));
+        scheduleDrain();
+    }
+
+    private void queueEndOfStream() {
+        endOfStreamQueued = true;
+        pending.add(new Frame(0, System.nanoTime(), true));
+        scheduleDrain();
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        checkSynchronous();
+        if (!formatReported) {
+            formatReported = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        int index = freeOutputBuffer();
+        if (index < 0 || !hasOutput()) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+        long waitNanos = outputReadyAtNanos() - System.nanoTime();
+        if (waitNanos > 0) {
+            if (waitNanos > timeoutUs * 1000) {
+                LockSupport.parkNanos(timeoutUs * 1000);
+                return INFO_TRY_AGAIN_LATER;
+            }
+            LockSupport.parkNanos(waitNanos);
+        }
+        fillOutputBuffer(index, info);
+        return index;
+    }
+
+    private void scheduleDrain() {
+        if (callbackExecutor != null) {
+            callbackExecutor.execute(drainTask);
+        }
+    }
+
+    /**
+     * Announces every output that is ready and has a free buffer, and
+     * schedules itself again for the next one that is not ready yet.
+     */
+    private synchronized void drain() {
+        if (!started || callback == null) {
+            return;
+        }
+        if (!formatReported) {
+            formatReported = true;
+            callback.onOutputFormatChanged(this, getOutputFormat());
+        }
+        while (hasOutput()) {
+            int index = freeOutputBuffer();
+            if (index < 0) {
+                return;
+            }
+            long waitNanos = outputReadyAtNanos() - System.nanoTime();
+            if (waitNanos > 0) {
+                callbackExecutor.schedule(drainTask, waitNanos,
+                        TimeUnit.NANOSECONDS);
+                return;
+            }
+            fillOutputBuffer(index, callbackInfo);
+            callback.onOutputBufferAvailable(this, index, callbackInfo);
+        }
+    }
+
+    private boolean hasOutput() {
+        if (encoder && !configSent) {
+            return true;
+        }
+        return !pending.isEmpty() && (endOfStreamQueued
+                || pending.size() > factory.getPipelineDepth());
+    }
+
+    private long outputReadyAtNanos() {
+        return encoder && !configSent ? 0 : pending.peek().readyAtNanos;
+    }
+
+    private void fillOutputBuffer(int index, SampleInfo info) {
+        outputDequeued[index] = true;
+        if (encoder && !configSent) {
+            configSent = true;
+            ByteBuffer buffer = outputBuffers[index];
+            buffer.clear();
+            buffer.put(FakeMediaSource.withStartCode(FakeMediaSource.SPS));
+            buffer.put(FakeMediaSource.withStartCode(FakeMediaSource.PPS));
+            buffer.flip();
+            info.set(0, buffer.limit(), 0, BUFFER_FLAG_CODEC_CONFIG);
+            return;
+        }
+        Frame frame = pending.poll();
+        outputTimes[index] = frame.presentationTimeUs;
+        ByteBuffer buffer = outputBuffers[index];
+        buffer.clear();
+        if (frame.endOfStream) {
+            buffer.limit(0);
+            info.set(0, 0, frame.presentationTimeUs, BUFFER_FLAG_END_OF_STREAM);
+        } else if (encoder) {
+            boolean sync = frameIndex % gopFrames == 0;
+            // the buffers were sized for the bitrate the codec started with
+            int size = Math.min(frameSize(sync), buffer.capacity());
+            buffer.putInt(1);
+            buffer.put((byte) (sync ? 0x65 : 0x41));
+            FakeMediaSource.fill(buffer, size - 5, frameIndex);
+            buffer.flip();
+            info.set(0, size, frame.presentationTimeUs,
+                    sync ? BUFFER_FLAG_SYNC_FRAME : 0);
+            frameIndex++;
+        } else {
+            buffer.limit(0);
+            info.set(0, width * height * 3 / 2, frame.presentationTimeUs, 0);
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        return outputBuffers[index];
+    }
+
+    @Override
+    public synchronized TrackFormat getOutputFormat() {
+        TrackFormat format = TrackFormat.createVideoFormat(
+                FakeMediaSource.VIDEO_MIME, width, height);
+        if (encoder) {
+            format.setByteBuffer(TrackFormat.KEY_CSD_0,
+                    FakeMediaSource.withStartCode(FakeMediaSource.SPS));
+            format.setByteBuffer(TrackFormat.KEY_CSD_1,
+                    FakeMediaSource.withStartCode(FakeMediaSource.PPS));
+        }
+        return format;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        checkStarted();
+        if (!outputDequeued[index]) {
+            throw new IllegalStateException("buffer " + index + " not dequeued");
+        }
+        outputDequeued[index] = false;
+        if (render && surface != null) {
+            surface.onFrameRendered(outputTimes[index]);
+        }
+        scheduleDrain();
+    }
+
+    @Override
+    public synchronized void signalEndOfInputStream() {
+        checkStarted();
+        queueEndOfStream();
+    }
+
+    @Override
+    public synchronized boolean setVideoBitrate(int bitrate) {
+        checkStarted();
+        this.bitrate = bitrate;
+        return encoder;
+    }
+
+    @Override
+    public synchronized void flush() {
+        checkSynchronous();
+        pending.clear();
+        endOfStreamQueued = false;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            inputQueued[i] = false;
+            outputDequeued[i] = false;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (released) {
+            throw new IllegalStateException("codec released");
+        }
+        shutDownCallbackThread();
+        started = false;
+        configured = false;
+        pending.clear();
+        endOfStreamQueued = false;
+        formatReported = false;
+        configSent = false;
+        frameIndex = 0;
+        surface = null;
+        surfaceInput = false;
+    }
+
+    @Override
+    public synchronized void release() {
+        shutDownCallbackThread();
+        callback = null;
+        started = false;
+        configured = false;
+        released = true;
+        pending.clear();
+    }
+
+    private void shutDownCallbackThread() {
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdownNow();
+            callbackExecutor = null;
+        }
+    }
+
+    private void checkStarted() {
+        if (!started) {
+            throw new IllegalStateException("codec not started");
+        }
+    }
+
+    private void checkSynchronous() {
+        checkStarted();
+        if (callback != null) {
+            throw new IllegalStateException("codec is in asynchronous mode");
+        }
+    }
+
+    private int freeOutputBuffer() {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            if (!outputDequeued[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int frameSize(boolean sync) {
+        int average = Math.max(16, bitrate / 8 / frameRate);
+        return sync ? average * 3 : average * 3 / 4
+                + (int) (FakeMediaSource.mix(frameIndex) % (average / 2 + 1));
+    }
+
+    private int maxFrameSize() {
+        return Math.max(64, bitrate / 8 / frameRate * 3 + 16);
+    }
+
+    private static class Frame {
+        private final long presentationTimeUs;
+        private final long readyAtNanos;
+        private final boolean endOfStream;
+
+        private Frame(long presentationTimeUs, long readyAtNanos,
+                      boolean endOfStream) {
+            this.presentationTimeUs = presentationTimeUs;
+            this.readyAtNanos = readyAtNanos;
+            this.endOfStream = endOfStream;
+        }
+    }
+}
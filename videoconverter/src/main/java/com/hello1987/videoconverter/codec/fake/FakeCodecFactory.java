@@ -0,0 +1,121 @@
+package com.hello1987.videoconverter.codec.fake;
+
+import com.hello1987.videoconverter.codec.BufferInputLayout;
+import com.hello1987.videoconverter.codec.Codec;
+import com.hello1987.videoconverter.codec.CodecFactory;
+import com.hello1987.videoconverter.codec.DecoderSurface;
+import com.hello1987.videoconverter.codec.EncoderSurface;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates {@link FakeCodec}s so the conversion pipeline can run on a plain
+ * JVM.
+ */
+public class FakeCodecFactory implements CodecFactory {
+
+    /**
+     * COLOR_FormatYUV420SemiPlanar
+     */
+    private static final int COLOR_FORMAT_NV12 = 21;
+
+    private volatile long frameLatencyNanos = 0;
+    private volatile int pipelineDepth = 0;
+    private volatile boolean surfaceInput = true;
+    private volatile boolean callbackSupported = true;
+    private final AtomicInteger createdCodecs = new AtomicInteger();
+
+    /**
+     * Time between queueing a frame and it becoming available at the output.
+     */
+    public FakeCodecFactory setFrameLatencyNanos(long frameLatencyNanos) {
+        this.frameLatencyNanos = frameLatencyNanos;
+        return this;
+    }
+
+    public long getFrameLatencyNanos() {
+        return frameLatencyNanos;
+    }
+
+    /**
+     * Number of frames a codec holds back before producing output.
+     */
+    public FakeCodecFactory setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public FakeCodecFactory setSurfaceInputSupported(boolean surfaceInput) {
+        this.surfaceInput = surfaceInput;
+        return this;
+    }
+
+    /**
+     * Whether codecs accept a {@link Codec.Callback}, like
+     * {@link com.hello1987.videoconverter.codec.AndroidCodec} from API 23
+     * on.
+     */
+    public FakeCodecFactory setCallbackSupported(boolean callbackSupported) {
+        this.callbackSupported = callbackSupported;
+        return this;
+    }
+
+    public boolean isCallbackSupported() {
+        return callbackSupported;
+    }
+
+    public int getCreatedCodecCount() {
+        return createdCodecs.get();
+    }
+
+    @Override
+    public Codec createEncoder(String mime) {
+        createdCodecs.incrementAndGet();
+        return new FakeCodec(this, "fake.encoder." + mime, true);
+    }
+
+    @Override
+    public Codec createDecoder(String mime) {
+        createdCodecs.incrementAndGet();
+        return new FakeCodec(this, "fake.decoder." + mime, false);
+    }
+
+    @Override
+    public boolean isSurfaceInputSupported() {
+        return surfaceInput;
+    }
+
+    @Override
+    public BufferInputLayout getBufferInputLayout(String mime, int width,
+                                                  int height) {
+        return new BufferInputLayout(COLOR_FORMAT_NV12,
+                BufferInputLayout.PROCESSOR_TYPE_OTHER, 0, width, height, 0,
+                width * height * 3 / 2);
+    }
+
+    @Override
+    public DecoderSurface createDecoderSurface() {
+        return new FakeDecoderSurface(0, 0);
+    }
+
+    @Override
+    public DecoderSurface createDecoderSurface(int width, int height,
+                                               int rotateRender) {
+        return new FakeDecoderSurface(width, height);
+    }
+
+    @Override
+    public EncoderSurface createEncoderSurface(Codec encoder) {
+        return new FakeEncoderSurface((FakeCodec) encoder);
+    }
+
+    @Override
+    public EncoderSurface createEncoderSurface(Codec encoder,
+                                               EncoderSurface shared) {
+        return new FakeEncoderSurface((FakeCodec) encoder);
+    }
+}
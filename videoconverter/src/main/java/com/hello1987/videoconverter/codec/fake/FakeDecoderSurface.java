@@ -0,0 +1,68 @@
+package com.hello1987.videoconverter.codec.fake;
+
+import com.hello1987.videoconverter.codec.DecoderSurface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the frames a {@link FakeCodec} decoder renders. Read back frames
+ * are filled with a pattern derived from the frame's presentation time.
+ */
+public class FakeDecoderSurface implements DecoderSurface {
+
+    private final int width;
+    private final int height;
+    private boolean frameAvailable;
+    private long presentationTimeUs;
+    private int drawnFrames;
+    private ByteBuffer frame;
+
+    FakeDecoderSurface(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    void onFrameRendered(long presentationTimeUs) {
+        if (frameAvailable) {
+            throw new RuntimeException("mFrameAvailable already set, frame could be dropped");
+        }
+        frameAvailable = true;
+        this.presentationTimeUs = presentationTimeUs;
+    }
+
+    @Override
+    public void awaitNewImage() throws Exception {
+        if (!frameAvailable) {
+            throw new RuntimeException("Surface frame wait timed out");
+        }
+        frameAvailable = false;
+    }
+
+    @Override
+    public void drawImage(boolean invert) {
+        drawnFrames++;
+    }
+
+    public int getDrawnFrames() {
+        return drawnFrames;
+    }
+
+    @Override
+    public ByteBuffer getFrame() {
+        if (width == 0 || height == 0) {
+            throw new IllegalStateException("surface has no read back buffer");
+        }
+        if (frame == null) {
+            frame = ByteBuffer.allocateDirect(width * height * 4);
+        }
+        frame.clear();
+        FakeMediaSource.fill(frame, frame.capacity(), presentationTimeUs);
+        frame.flip();
+        return frame;
+    }
+
+    @Override
+    public void release() {
+        frame = null;
+    }
+}
@@ -0,0 +1,37 @@
+package com.hello1987.videoconverter.codec.fake;
+
+import com.hello1987.videoconverter.codec.EncoderSurface;
+
+/**
+ * Input surface of a {@link FakeCodec} encoder; every swap submits one
+ * frame.
+ */
+public class FakeEncoderSurface implements EncoderSurface {
+
+    private final FakeCodec encoder;
+    private long presentationTimeNs;
+
+    FakeEncoderSurface(FakeCodec encoder) {
+        this.encoder = encoder;
+        encoder.setSurfaceInput();
+    }
+
+    @Override
+    public void makeCurrent() {
+    }
+
+    @Override
+    public void setPresentationTime(long nsecs) {
+        presentationTimeNs = nsecs;
+    }
+
+    @Override
+    public boolean swapBuffers() {
+        encoder.queueFrame(presentationTimeNs / 1000);
+        return true;
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,272 @@
+package com.hello1987.videoconverter.codec.fake;
+
+import com.hello1987.videoconverter.codec.MediaSource;
+import com.hello1987.videoconverter.codec.MediaSourceFactory;
+import com.hello1987.videoconverter.codec.TrackFormat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Deterministic in-memory source with an H.264-like video track and an
+ * optional AAC-like audio track. Video samples are Annex B NAL units (start
+ * code, IDR or non-IDR slice header, pseudo random payload) like
+ * MediaExtractor returns them; every track and sample index always yields
+ * the same bytes.
+ */
+public class FakeMediaSource implements MediaSource {
+
+    public static final String VIDEO_MIME = "video/avc";
+    public static final String AUDIO_MIME = "audio/mp4a-latm";
+
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda,
+            0x02, (byte) 0x80, (byte) 0xbf, (byte) 0xe5};
+    static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final int AUDIO_FRAME_SAMPLES = 1024;
+
+    private final Factory spec;
+    private final int trackCount;
+    private final int[] sampleCounts = new int[2];
+    private final int[] cursors = new int[2];
+    private final boolean[] selected = new boolean[2];
+
+    public FakeMediaSource(Factory spec) {
+        this.spec = spec;
+        trackCount = spec.sampleRate > 0 ? 2 : 1;
+        sampleCounts[VIDEO] = (int) (spec.durationUs * spec.frameRate / 1000000);
+        if (trackCount == 2) {
+            sampleCounts[AUDIO] = (int) (spec.durationUs * spec.sampleRate
+                    / 1000000 / AUDIO_FRAME_SAMPLES);
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    @Override
+    public TrackFormat getTrackFormat(int index) {
+        TrackFormat format;
+        if (index == VIDEO) {
+            format = TrackFormat.createVideoFormat(VIDEO_MIME, spec.width,
+                    spec.height);
+            format.setInteger(TrackFormat.KEY_FRAME_RATE, spec.frameRate);
+            format.setByteBuffer(TrackFormat.KEY_CSD_0, withStartCode(SPS));
+            format.setByteBuffer(TrackFormat.KEY_CSD_1, withStartCode(PPS));
+        } else {
+            format = TrackFormat.createAudioFormat(AUDIO_MIME, spec.sampleRate,
+                    spec.channelCount);
+            format.setByteBuffer(TrackFormat.KEY_CSD_0,
+                    ByteBuffer.wrap(new byte[]{0x12, 0x10}));
+        }
+        format.setLong(TrackFormat.KEY_DURATION, spec.durationUs);
+        format.setInteger(TrackFormat.KEY_MAX_INPUT_SIZE, maxSampleSize(index));
+        return format;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        selected[index] = true;
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        selected[index] = false;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        timeUs = Math.max(0, timeUs);
+        int frame = (int) Math.min(timeUs * spec.frameRate / 1000000,
+                sampleCounts[VIDEO] - 1);
+        cursors[VIDEO] = Math.max(0, frame / spec.gopFrames * spec.gopFrames);
+        if (trackCount == 2) {
+            cursors[AUDIO] = (int) Math.min(timeUs * spec.sampleRate / 1000000
+                    / AUDIO_FRAME_SAMPLES, sampleCounts[AUDIO]);
+        }
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        int track = -1;
+        long time = Long.MAX_VALUE;
+        for (int i = 0; i < trackCount; i++) {
+            if (selected[i] && cursors[i] < sampleCounts[i]
+                    && sampleTime(i, cursors[i]) < time) {
+                track = i;
+                time = sampleTime(i, cursors[i]);
+            }
+        }
+        return track;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        int track = getSampleTrackIndex();
+        if (track == -1) {
+            return -1;
+        }
+        int index = cursors[track];
+        int size = sampleSize(track, index);
+        buffer.clear();
+        buffer.position(offset);
+        if (track == VIDEO) {
+            buffer.putInt(1);
+            buffer.put((byte) (isSync(index) ? 0x65 : 0x41));
+            fill(buffer, size - 5, index);
+        } else {
+            fill(buffer, size, index + 0x10000);
+        }
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        int track = getSampleTrackIndex();
+        return track == -1 ? -1 : sampleTime(track, cursors[track]);
+    }
+
+    @Override
+    public int getSampleFlags() {
+        int track = getSampleTrackIndex();
+        if (track == -1) {
+            return 0;
+        }
+        return track == AUDIO || isSync(cursors[track]) ? SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        int track = getSampleTrackIndex();
+        if (track == -1) {
+            return false;
+        }
+        cursors[track]++;
+        return getSampleTrackIndex() != -1;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    private boolean isSync(int index) {
+        return index % spec.gopFrames == 0;
+    }
+
+    private long sampleTime(int track, int index) {
+        if (track == VIDEO) {
+            return index * 1000000L / spec.frameRate;
+        }
+        return (long) index * AUDIO_FRAME_SAMPLES * 1000000L / spec.sampleRate;
+    }
+
+    private int sampleSize(int track, int index) {
+        if (track == VIDEO) {
+            int average = spec.videoBitrate / 8 / spec.frameRate;
+            int size = isSync(index) ? average * 4 : average * 3 / 4
+                    + (int) (mix(index) % (average / 2 + 1));
+            return Math.max(16, size);
+        }
+        int average = (int) ((long) spec.audioBitrate / 8 * AUDIO_FRAME_SAMPLES
+                / spec.sampleRate);
+        return Math.max(8, average - 8 + (int) (mix(index) % 16));
+    }
+
+    private int maxSampleSize(int track) {
+        if (track == VIDEO) {
+            return Math.max(16, spec.videoBitrate / 8 / spec.frameRate * 4);
+        }
+        return (int) ((long) spec.audioBitrate / 8 * AUDIO_FRAME_SAMPLES
+                / spec.sampleRate) + 16;
+    }
+
+    static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(nal.length + 4);
+        buffer.putInt(1);
+        buffer.put(nal);
+        buffer.flip();
+        return buffer;
+    }
+
+    static long mix(long seed) {
+        seed = (seed ^ (seed >>> 33)) * 0xff51afd7ed558ccdL;
+        seed = (seed ^ (seed >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (seed ^ (seed >>> 33)) & Long.MAX_VALUE;
+    }
+
+    static void fill(ByteBuffer buffer, int count, long seed) {
+        long value = mix(seed);
+        for (int i = 0; i < count; i++) {
+            if ((i & 7) == 0) {
+                value = mix(value + i);
+            }
+            byte b = (byte) (value >>> ((i & 7) * 8));
+            // never emit an emulated start code inside the payload
+            buffer.put(b == 0 ? 1 : b);
+        }
+    }
+
+    /**
+     * Describes the synthetic content and opens sources for it, regardless
+     * of the file passed in.
+     */
+    public static class Factory implements MediaSourceFactory {
+        private int width = 640;
+        private int height = 360;
+        private int frameRate = 25;
+        private int gopFrames = 25;
+        private long durationUs = 10000000;
+        private int videoBitrate = 1000000;
+        private int sampleRate = 44100;
+        private int channelCount = 2;
+        private int audioBitrate = 128000;
+
+        public Factory setVideo(int width, int height, int frameRate,
+                                int gopFrames, int bitrate) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.gopFrames = gopFrames;
+            this.videoBitrate = bitrate;
+            return this;
+        }
+
+        /**
+         * sampleRate 0 leaves out the audio track.
+         */
+        public Factory setAudio(int sampleRate, int channelCount, int bitrate) {
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.audioBitrate = bitrate;
+            return this;
+        }
+
+        public Factory setDurationUs(long durationUs) {
+            this.durationUs = durationUs;
+            return this;
+        }
+
+        public long getDurationUs() {
+            return durationUs;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public MediaSource open(File file) {
+            return new FakeMediaSource(this);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.hello1987.videoconverter.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hot path timers and counters of one conversion. Timers and counters are
+ * addressed by the int constants below and recorded without allocation or
+ * locking, so instrumented code only pays for System.nanoTime().
+ */
+public class ConversionMetrics {
+
+    /**
+     * Polling mode: decoder dequeueInputBuffer.
+     */
+    public static final int TIMER_DEQUEUE_INPUT = 0;
+    /**
+     * Polling mode: decoder dequeueOutputBuffer.
+     */
+    public static final int TIMER_DEQUEUE_DECODER_OUTPUT = 1;
+    /**
+     * Polling mode: encoder dequeueOutputBuffer.
+     */
+    public static final int TIMER_DEQUEUE_ENCODER_OUTPUT = 2;
+    /**
+     * Callback mode: waiting for the next codec event.
+     */
+    public static final int TIMER_EVENT_WAIT = 3;
+    public static final int TIMER_AWAIT_IMAGE = 4;
+    public static final int TIMER_DRAW = 5;
+    public static final int TIMER_SWAP = 6;
+    public static final int TIMER_WRITE_SAMPLE = 7;
+    public static final int TIMER_FLUSH_MDAT = 8;
+    public static final int TIMER_CONVERSION = 9;
+    /**
+     * Buffer input path: reading a frame back and converting it to YUV.
+     */
+    public static final int TIMER_CONVERT_YUV = 10;
+    private static final String[] TIMER_NAMES = {"dequeue_input",
+            "dequeue_decoder_output", "dequeue_encoder_output", "event_wait",
+            "await_image", "draw", "swap", "write_sample", "flush_mdat",
+            "conversion", "convert_yuv"};
+
+    public static final int COUNTER_BYTES_WRITTEN = 0;
+    public static final int COUNTER_FRAMES_DECODED = 1;
+    public static final int COUNTER_FRAMES_ENCODED = 2;
+    /**
+     * Decoded frames lost because rendering them failed.
+     */
+    public static final int COUNTER_FRAMES_DROPPED = 3;
+    /**
+     * Decoded frames outside the requested range or before a resume point.
+     */
+    public static final int COUNTER_FRAMES_SKIPPED = 4;
+    /**
+     * Decoded frames left out to reach the target frame rate.
+     */
+    public static final int COUNTER_FRAMES_DECIMATED = 5;
+    private static final String[] COUNTER_NAMES = {"bytes_written",
+            "frames_decoded", "frames_encoded", "frames_dropped",
+            "frames_skipped", "frames_decimated"};
+
+    public static final String TAG_DEVICE = "device";
+    public static final String TAG_ENCODER = "encoder";
+    public static final String TAG_DECODER = "decoder";
+    public static final String TAG_MODE = "mode";
+
+    private final LatencyHistogram[] timers = new LatencyHistogram[TIMER_NAMES.length];
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+    private final Map<String, String> tags = new LinkedHashMap<String, String>();
+
+    public ConversionMetrics() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new LatencyHistogram(TIMER_NAMES[i]);
+        }
+    }
+
+    public void record(int timer, long nanos) {
+        timers[timer].record(nanos);
+    }
+
+    /**
+     * Records the time since startNanos, a value of System.nanoTime().
+     */
+    public void recordSince(int timer, long startNanos) {
+        timers[timer].record(System.nanoTime() - startNanos);
+    }
+
+    public void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    public void setTag(String key, String value) {
+        synchronized (tags) {
+            tags.put(key, value);
+        }
+    }
+
+    public MetricsSnapshot snapshot() {
+        List<MetricsSnapshot.Timer> timerSnapshots = new ArrayList<MetricsSnapshot.Timer>(
+                timers.length);
+        for (LatencyHistogram timer : timers) {
+            timerSnapshots.add(timer.snapshot());
+        }
+        Map<String, Long> counterValues = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            counterValues.put(COUNTER_NAMES[i], counters.get(i));
+        }
+        Map<String, String> tagCopy;
+        synchronized (tags) {
+            tagCopy = new LinkedHashMap<String, String>(tags);
+        }
+        return new MetricsSnapshot(tagCopy, timerSnapshots, counterValues);
+    }
+}
@@ -0,0 +1,16 @@
+package com.hello1987.videoconverter.metrics;
+
+import com.hello1987.videoconverter.VideoLog;
+
+/**
+ * Writes every snapshot to the log.
+ */
+public class LogMetricsReporter implements MetricsReporter {
+
+    private static final String TAG = "ConversionMetrics";
+
+    @Override
+    public void report(String videoPath, MetricsSnapshot snapshot) {
+        VideoLog.i(TAG, videoPath + " " + snapshot);
+    }
+}
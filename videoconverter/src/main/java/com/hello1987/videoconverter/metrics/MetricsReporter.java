@@ -0,0 +1,9 @@
+package com.hello1987.videoconverter.metrics;
+
+/**
+ * Receives the metrics of every finished conversion, e.g. to upload them.
+ * Called on the conversion thread.
+ */
+public interface MetricsReporter {
+    void report(String videoPath, MetricsSnapshot snapshot);
+}
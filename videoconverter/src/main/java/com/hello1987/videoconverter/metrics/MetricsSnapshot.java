@@ -0,0 +1,147 @@
+package com.hello1987.videoconverter.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Point in time copy of a {@link ConversionMetrics}.
+ */
+public class MetricsSnapshot {
+
+    private final Map<String, String> tags;
+    private final List<Timer> timers;
+    private final Map<String, Long> counters;
+
+    MetricsSnapshot(Map<String, String> tags, List<Timer> timers,
+                    Map<String, Long> counters) {
+        this.tags = Collections.unmodifiableMap(tags);
+        this.timers = Collections.unmodifiableList(timers);
+        this.counters = Collections.unmodifiableMap(counters);
+    }
+
+    /**
+     * Context of the measurement, such as device and codec names.
+     */
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    public List<Timer> getTimers() {
+        return timers;
+    }
+
+    public Timer getTimer(String name) {
+        for (Timer timer : timers) {
+            if (timer.getName().equals(name)) {
+                return timer;
+            }
+        }
+        return null;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public long getCounter(String name) {
+        Long value = counters.get(name);
+        return value != null ? value : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(tags);
+        for (Timer timer : timers) {
+            if (timer.getCount() > 0) {
+                builder.append(' ').append(timer);
+            }
+        }
+        builder.append(' ').append(counters);
+        return builder.toString();
+    }
+
+    public static class Timer {
+        private final String name;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] buckets;
+
+        Timer(String name, long count, long totalNanos, long maxNanos,
+              long[] buckets) {
+            this.name = name;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile (0-100),
+         * capped at the maximum.
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    long upper = i + 1 < LatencyHistogram.BUCKET_COUNT
+                            ? LatencyHistogram.bucketLowerBound(i + 1) - 1
+                            : Long.MAX_VALUE;
+                    return Math.min(upper, maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        /**
+         * Number of recorded values per bucket; see
+         * {@link #getBucketLowerBoundNanos}.
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        public static long getBucketLowerBoundNanos(int bucket) {
+            return LatencyHistogram.bucketLowerBound(bucket);
+        }
+
+        @Override
+        public String toString() {
+            return name + "{n=" + count + ", meanUs=" + getMeanNanos() / 1000
+                    + ", p50Us=" + getPercentileNanos(50) / 1000
+                    + ", p99Us=" + getPercentileNanos(99) / 1000
+                    + ", maxUs=" + maxNanos / 1000 + "}";
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.hello1987.videoconverter.mp4;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * {@link Preallocator} on top of posix_fallocate, available from API 21.
+ * File systems without fallocate support, and a full disk, are reported as
+ * unsupported: the output is then written without a reservation.
+ */
+@TargetApi(21)
+public class AndroidPreallocator implements Preallocator {
+
+    @Override
+    public boolean reserve(RandomAccessFile file, long length)
+            throws IOException {
+        if (Build.VERSION.SDK_INT < 21) {
+            return false;
+        }
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package com.hello1987.videoconverter.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of a running conversion. Every time {@link MP4Builder}
+ * closes an mdat chunk it appends a checkpoint with the samples written since
+ * the previous one, so after a process death the output can be truncated to
+ * the last complete chunk and the job resumed from there, or the output made
+ * playable as it is with {@link MP4Builder#recoverMovie}. Samples are delta
+ * coded, a few bytes each. Video checkpoints end before a sync sample, so
+ * the restored frames are complete up to the latest of them even if the
+ * encoder reorders frames.
+ * <p>
+ * Records are CRC protected; a torn record at the tail is ignored on load.
+ * Records are handed to the OS but not fsync'ed, which covers the process
+ * being killed, not power loss.
+ */
+public class ConversionJournal {
+
+    public static final int MAX_RESUME_ATTEMPTS = 3;
+
+    private static final int MAGIC = 0x56434a4e;
+    private static final int VERSION = 2;
+    private static final int ATTEMPTS_POSITION = 8;
+
+    private static final byte RECORD_TRACK = 1;
+    private static final byte RECORD_CHECKPOINT = 2;
+    private static final byte RECORD_VIDEO_DONE = 3;
+    private static final byte RECORD_MOVIE = 4;
+
+    /**
+     * Most bytes one sample takes in a checkpoint.
+     */
+    private static final int MAX_SAMPLE_RECORD_SIZE = 1 + 4 * Varints.MAX_SIZE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private ByteBuffer record = ByteBuffer.allocate(4096);
+    private final CRC32 crc = new CRC32();
+    private int attempts;
+
+    private int pendingCount;
+    private int[] pendingTracks = new int[256];
+    private long[] pendingOffsets = new long[256];
+    private int[] pendingSizes = new int[256];
+    private long[] pendingTimes = new long[256];
+    private int[] pendingFlags = new int[256];
+
+    // samples are delta coded against the previous one across checkpoints
+    private long lastSampleEnd;
+    private long lastSampleTimeUs;
+
+    private ArrayList<TrackInfo> tracks = new ArrayList<TrackInfo>();
+    private boolean hasMovie;
+    private int movieRotation;
+    private int movieWidth;
+    private int movieHeight;
+    private boolean hasCheckpoint;
+    private long dataOffset;
+    private long writedSinceLastMdat;
+    private boolean videoComplete;
+    private long videoStartTimeUs = -1;
+
+    private ConversionJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the journal of the job identified by jobKey. A journal left
+     * behind by an interrupted run of the same job is loaded and its attempt
+     * counter incremented; callers should give up once it exceeds
+     * {@link #MAX_RESUME_ATTEMPTS}. Anything else at that location is
+     * discarded and a fresh journal is started.
+     */
+    public static ConversionJournal open(File file, String jobKey)
+            throws IOException {
+        ConversionJournal journal = new ConversionJournal(file);
+        journal.raf = new RandomAccessFile(file, "rw");
+        journal.channel = journal.raf.getChannel();
+        if (journal.load(jobKey)) {
+            journal.attempts++;
+            ByteBuffer attemptsBuffer = ByteBuffer.allocate(4);
+            attemptsBuffer.putInt(journal.attempts).flip();
+            journal.channel.write(attemptsBuffer, ATTEMPTS_POSITION);
+        } else {
+            journal.attempts = 0;
+            journal.channel.truncate(0);
+            journal.writeHeader(jobKey);
+        }
+        return journal;
+    }
+
+    /**
+     * Opens the journal at file whatever job wrote it, for
+     * {@link MP4Builder#recoverMovie}. Returns null if there is none.
+     */
+    public static ConversionJournal openForRecovery(File file)
+            throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        ConversionJournal journal = new ConversionJournal(file);
+        journal.raf = new RandomAccessFile(file, "rw");
+        journal.channel = journal.raf.getChannel();
+        if (!journal.load(null)) {
+            journal.close();
+            return null;
+        }
+        return journal;
+    }
+
+    /**
+     * Whether the interrupted run got as far as a complete checkpoint, so its
+     * output can be picked up with {@link MP4Builder#resumeMovie}.
+     */
+    public boolean canResume() {
+        return hasCheckpoint;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public boolean isVideoComplete() {
+        return videoComplete;
+    }
+
+    public long getVideoStartTimeUs() {
+        return videoStartTimeUs;
+    }
+
+    /**
+     * Index of the first restored track of the given kind, or -5 if the
+     * interrupted run had not added one yet.
+     */
+    public int getTrackIndex(boolean isAudio) {
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i).isAudio == isAudio) {
+                return i;
+            }
+        }
+        return -5;
+    }
+
+    /**
+     * Latest presentation time of the samples of the track that made it
+     * into a checkpoint, or -1 if there is none.
+     */
+    public long getLastPresentationTimeUs(int trackIndex) {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return -1;
+        }
+        return tracks.get(trackIndex).lastTimeUs;
+    }
+
+    public long getFirstPresentationTimeUs(int trackIndex) {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return -1;
+        }
+        return tracks.get(trackIndex).firstTimeUs;
+    }
+
+    public void markVideoComplete(long videoStartTimeUs) throws IOException {
+        beginRecord(RECORD_VIDEO_DONE, 8);
+        record.putLong(videoStartTimeUs);
+        endRecord();
+    }
+
+    /**
+     * Records that the job was suspended on purpose, so the next
+     * {@link #open} does not count it as a crashed attempt.
+     */
+    public void markSuspended() throws IOException {
+        ByteBuffer attemptsBuffer = ByteBuffer.allocate(4);
+        attemptsBuffer.putInt(attempts - 1).flip();
+        channel.write(attemptsBuffer, ATTEMPTS_POSITION);
+    }
+
+    public void close() {
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        raf = null;
+        channel = null;
+    }
+
+    public void delete() {
+        close();
+        file.delete();
+    }
+
+    long getDataOffset() {
+        return dataOffset;
+    }
+
+    long getWritedSinceLastMdat() {
+        return writedSinceLastMdat;
+    }
+
+    void replay(Mp4Movie movie) throws IOException {
+        if (hasMovie) {
+            movie.setRotation(movieRotation);
+            movie.setSize(movieWidth, movieHeight);
+        }
+        // load() parks the restored samples in the pending arrays
+        for (TrackInfo info : tracks) {
+            if (info.isAudio) {
+                movie.addAudioTrack(info.sampleRate, info.channelCount);
+            } else {
+                movie.addVideoTrack(info.mime, info.width, info.height,
+                        info.sps, info.pps);
+            }
+        }
+        for (int i = 0; i < pendingCount; i++) {
+            movie.addSample(pendingTracks[i], pendingOffsets[i],
+                    pendingSizes[i], pendingTimes[i], pendingFlags[i]);
+        }
+        pendingCount = 0;
+    }
+
+    void onMovieCreated(Mp4Movie movie) throws IOException {
+        beginRecord(RECORD_MOVIE, 12);
+        record.putInt(movie.getRotation());
+        record.putInt(movie.getWidth());
+        record.putInt(movie.getHeight());
+        endRecord();
+    }
+
+    void onTrackAdded(Track track) throws IOException {
+        byte[] mime = track.getMime() != null ? track.getMime().getBytes(
+                UTF_8) : new byte[0];
+        byte[] sps = track.getSequenceParameterSet();
+        byte[] pps = track.getPictureParameterSet();
+        int length = 4 + 1 + 4 + mime.length + 4 * 4
+                + (sps != null ? sps.length : 0)
+                + (pps != null ? pps.length : 0);
+        beginRecord(RECORD_TRACK, length);
+        record.putInt((int) track.getTrackId());
+        record.put((byte) (track.isAudio() ? 1 : 0));
+        record.putInt(mime.length);
+        record.put(mime);
+        if (track.isAudio()) {
+            record.putInt(track.getTimeScale());
+            record.putInt(track.getChannelCount());
+        } else {
+            record.putInt(track.getWidth());
+            record.putInt(track.getHeight());
+        }
+        putBytes(sps);
+        putBytes(pps);
+        endRecord();
+    }
+
+    void onSampleWritten(int trackIndex, long offset, int size,
+                         long presentationTimeUs, int flags) {
+        if (pendingCount == pendingTracks.length) {
+            int capacity = pendingCount * 2;
+            pendingTracks = copyOf(pendingTracks, capacity);
+            pendingOffsets = copyOf(pendingOffsets, capacity);
+            pendingSizes = copyOf(pendingSizes, capacity);
+            pendingTimes = copyOf(pendingTimes, capacity);
+            pendingFlags = copyOf(pendingFlags, capacity);
+        }
+        pendingTracks[pendingCount] = trackIndex;
+        pendingOffsets[pendingCount] = offset;
+        pendingSizes[pendingCount] = size;
+        pendingTimes[pendingCount] = presentationTimeUs;
+        pendingFlags[pendingCount] = flags;
+        pendingCount++;
+    }
+
+    void onCheckpoint(long dataOffset, long writedSinceLastMdat)
+            throws IOException {
+        beginRecord(RECORD_CHECKPOINT, 8 + 8 + 4
+                + pendingCount * MAX_SAMPLE_RECORD_SIZE);
+        record.putLong(dataOffset);
+        record.putLong(writedSinceLastMdat);
+        record.putInt(pendingCount);
+        for (int i = 0; i < pendingCount; i++) {
+            // samples mostly follow each other in the file and in time, so
+            // the deltas take a byte or three each
+            record.put((byte) pendingTracks[i]);
+            Varints.put(record, Varints.zigzag(pendingOffsets[i] - lastSampleEnd));
+            Varints.put(record, pendingSizes[i]);
+            Varints.put(record, Varints.zigzag(pendingTimes[i]
+                    - lastSampleTimeUs));
+            Varints.put(record, pendingFlags[i] & 0xffffffffL);
+            lastSampleEnd = pendingOffsets[i] + pendingSizes[i];
+            lastSampleTimeUs = pendingTimes[i];
+        }
+        record.putInt(1, record.position() - 5);
+        endRecord();
+        pendingCount = 0;
+    }
+
+    private void writeHeader(String jobKey) throws IOException {
+        byte[] key = jobKey.getBytes(UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(16 + key.length);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(0);
+        header.putInt(key.length);
+        header.put(key);
+        header.flip();
+        channel.write(header, 0);
+        channel.position(header.capacity());
+    }
+
+    /**
+     * Reads the records of a journal with a matching header. Returns false if
+     * the header does not match jobKey; a null jobKey matches any job.
+     * Without a complete checkpoint the records are dropped, keeping only
+     * the header and its attempt counter.
+     */
+    private boolean load(String jobKey) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        if (fileSize < 16 || channel.read(header, 0) != 16) {
+            return false;
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            return false;
+        }
+        attempts = header.getInt();
+        int keyLength = header.getInt();
+        if (keyLength < 0 || 16 + keyLength > fileSize) {
+            return false;
+        }
+        if (jobKey != null) {
+            byte[] expected = jobKey.getBytes(UTF_8);
+            if (keyLength != expected.length) {
+                return false;
+            }
+            ByteBuffer key = ByteBuffer.allocate(keyLength);
+            channel.read(key, 16);
+            key.flip();
+            if (!ByteBuffer.wrap(expected).equals(key)) {
+                return false;
+            }
+        }
+
+        long headerEnd = 16 + keyLength;
+        long position = headerEnd;
+        ByteBuffer recordHeader = ByteBuffer.allocate(5);
+        ByteBuffer checksum = ByteBuffer.allocate(4);
+        while (position + 9 <= fileSize) {
+            recordHeader.clear();
+            channel.read(recordHeader, position);
+            recordHeader.flip();
+            byte type = recordHeader.get();
+            int length = recordHeader.getInt();
+            if (length < 0 || position + 9 + length > fileSize) {
+                break;
+            }
+            ensureCapacity(5 + length);
+            record.clear();
+            record.limit(5 + length);
+            channel.read(record, position);
+            checksum.clear();
+            channel.read(checksum, position + 5 + length);
+            crc.reset();
+            crc.update(record.array(), 0, 5 + length);
+            if ((int) crc.getValue() != checksum.getInt(0)) {
+                break;
+            }
+            record.position(5);
+            if (type == RECORD_TRACK) {
+                readTrack();
+            } else if (type == RECORD_CHECKPOINT) {
+                readCheckpoint();
+            } else if (type == RECORD_VIDEO_DONE) {
+                videoComplete = true;
+                videoStartTimeUs = record.getLong();
+            } else if (type == RECORD_MOVIE) {
+                hasMovie = true;
+                movieRotation = record.getInt();
+                movieWidth = record.getInt();
+                movieHeight = record.getInt();
+            }
+            position += 9 + length;
+        }
+        if (!hasCheckpoint) {
+            tracks.clear();
+            pendingCount = 0;
+            videoComplete = false;
+            hasMovie = false;
+            position = headerEnd;
+        }
+        channel.truncate(position);
+        channel.position(position);
+        return true;
+    }
+
+    private void readTrack() {
+        TrackInfo info = new TrackInfo();
+        record.getInt();
+        info.isAudio = record.get() != 0;
+        byte[] mime = new byte[record.getInt()];
+        record.get(mime);
+        info.mime = new String(mime, UTF_8);
+        if (info.isAudio) {
+            info.sampleRate = record.getInt();
+            info.channelCount = record.getInt();
+        } else {
+            info.width = record.getInt();
+            info.height = record.getInt();
+        }
+        info.sps = getBytes();
+        info.pps = getBytes();
+        tracks.add(info);
+    }
+
+    private void readCheckpoint() {
+        dataOffset = record.getLong();
+        writedSinceLastMdat = record.getLong();
+        int count = record.getInt();
+        for (int i = 0; i < count; i++) {
+            int trackIndex = record.get();
+            long offset = lastSampleEnd + Varints.unzigzag(Varints.get(record));
+            int size = (int) Varints.get(record);
+            long time = lastSampleTimeUs + Varints.unzigzag(Varints.get(record));
+            int flags = (int) Varints.get(record);
+            lastSampleEnd = offset + size;
+            lastSampleTimeUs = time;
+            onSampleWritten(trackIndex, offset, size, time, flags);
+            if (trackIndex >= 0 && trackIndex < tracks.size()) {
+                TrackInfo info = tracks.get(trackIndex);
+                if (info.firstTimeUs == -1) {
+                    info.firstTimeUs = time;
+                }
+                // the latest frame, which is not the last one written
+                // once frames are reordered
+                info.lastTimeUs = Math.max(info.lastTimeUs, time);
+            }
+        }
+        hasCheckpoint = true;
+    }
+
+    private void beginRecord(byte type, int length) {
+        ensureCapacity(9 + length);
+        record.clear();
+        record.put(type);
+        record.putInt(length);
+    }
+
+    private void endRecord() throws IOException {
+        crc.reset();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (record.capacity() < capacity) {
+            record = ByteBuffer.allocate(Math.max(capacity,
+                    record.capacity() * 2));
+        }
+    }
+
+    private void putBytes(byte[] bytes) {
+        if (bytes == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(bytes.length);
+            record.put(bytes);
+        }
+    }
+
+    private byte[] getBytes() {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return bytes;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static class TrackInfo {
+        boolean isAudio;
+        String mime;
+        int width;
+        int height;
+        int sampleRate;
+        int channelCount;
+        byte[] sps;
+        byte[] pps;
+        long firstTimeUs = -1;
+        long lastTimeUs = -1;
+    }
+}
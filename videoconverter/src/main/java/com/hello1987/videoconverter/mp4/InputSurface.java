@@ -19,14 +19,22 @@ public class InputSurface {
     private Surface mSurface;
 
     public InputSurface(Surface surface) {
+        this(surface, null);
+    }
+
+    /**
+     * Creates a surface whose context shares textures and programs with the
+     * context of shared, if not null.
+     */
+    public InputSurface(Surface surface, InputSurface shared) {
         if (surface == null) {
             throw new NullPointerException();
         }
         mSurface = surface;
-        eglSetup();
+        eglSetup(shared != null ? shared.mEGLContext : EGL14.EGL_NO_CONTEXT);
     }
 
-    private void eglSetup() {
+    private void eglSetup(EGLContext sharedContext) {
         mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
         if (mEGLDisplay == EGL14.EGL_NO_DISPLAY) {
             throw new RuntimeException("unable to get EGL14 display");
@@ -52,7 +60,7 @@ public class InputSurface {
                 EGL14.EGL_NONE};
 
         mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0],
-                EGL14.EGL_NO_CONTEXT, attrib_list, 0);
+                sharedContext, attrib_list, 0);
         checkEglError("eglCreateContext");
         if (mEGLContext == null) {
             throw new RuntimeException("null context");
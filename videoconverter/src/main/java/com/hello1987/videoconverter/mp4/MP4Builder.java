@@ -12,6 +12,8 @@ import com.coremedia.iso.boxes.Container;
 import com.coremedia.iso.boxes.DataEntryUrlBox;
 import com.coremedia.iso.boxes.DataInformationBox;
 import com.coremedia.iso.boxes.DataReferenceBox;
+import com.coremedia.iso.boxes.EditBox;
+import com.coremedia.iso.boxes.EditListBox;
 import com.coremedia.iso.boxes.FileTypeBox;
 import com.coremedia.iso.boxes.HandlerBox;
 import com.coremedia.iso.boxes.MediaBox;
@@ -19,40 +21,41 @@ import com.coremedia.iso.boxes.MediaHeaderBox;
 import com.coremedia.iso.boxes.MediaInformationBox;
 import com.coremedia.iso.boxes.MovieBox;
 import com.coremedia.iso.boxes.MovieHeaderBox;
-import com.coremedia.iso.boxes.SampleSizeBox;
 import com.coremedia.iso.boxes.SampleTableBox;
-import com.coremedia.iso.boxes.SampleToChunkBox;
-import com.coremedia.iso.boxes.StaticChunkOffsetBox;
-import com.coremedia.iso.boxes.SyncSampleBox;
-import com.coremedia.iso.boxes.TimeToSampleBox;
 import com.coremedia.iso.boxes.TrackBox;
 import com.coremedia.iso.boxes.TrackHeaderBox;
 import com.googlecode.mp4parser.DataSource;
 import com.googlecode.mp4parser.util.Matrix;
+import com.hello1987.videoconverter.metrics.ConversionMetrics;
 
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.List;
 
 @TargetApi(16)
 public class MP4Builder {
 
+    public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+
     private InterleaveChunkMdat mdat = null;
     private Mp4Movie currentMp4Movie = null;
-    private FileOutputStream fos = null;
+    private RandomAccessFile raf = null;
     private FileChannel fc = null;
     private long dataOffset = 0;
     private long writedSinceLastMdat = 0;
     private boolean writeNewMdat = true;
-    private HashMap<Track, long[]> track2SampleSizes = new HashMap<Track, long[]>();
     private ByteBuffer sizeBuffer = null;
+    private ConversionJournal journal = null;
+    private ConversionMetrics metrics = null;
+    private Preallocator preallocator = null;
+    private long expectedSize = 0;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
 
     public static long gcd(long a, long b) {
         if (b == 0) {
@@ -61,11 +64,43 @@ public class MP4Builder {
         return gcd(b, a % b);
     }
 
+    /**
+     * Reserves expectedSize bytes for the output with preallocator when the
+     * movie is created or resumed. The file is cut to its real length when
+     * the movie is finished.
+     */
+    public void setPreallocation(Preallocator preallocator, long expectedSize) {
+        this.preallocator = preallocator;
+        this.expectedSize = expectedSize;
+    }
+
+    /**
+     * Bytes written before the current mdat is flushed and a checkpoint is
+     * journaled. Larger chunks cost fewer flushes, smaller ones lose less
+     * on a crash. Takes effect with the next chunk. With a journal, video
+     * chunks run on to the next sync sample, so they span whole GOPs.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
     public MP4Builder createMovie(Mp4Movie mp4Movie) throws Exception {
+        return createMovie(mp4Movie, null);
+    }
+
+    /**
+     * Starts a new movie. If journal is not null every flushed chunk is
+     * recorded in it so the job can be resumed after a crash.
+     */
+    public MP4Builder createMovie(Mp4Movie mp4Movie, ConversionJournal journal)
+            throws Exception {
         currentMp4Movie = mp4Movie;
+        this.journal = journal;
 
-        fos = new FileOutputStream(mp4Movie.getCacheFile());
-        fc = fos.getChannel();
+        raf = new RandomAccessFile(mp4Movie.getCacheFile(), "rw");
+        raf.setLength(0);
+        reserveSpace();
+        fc = raf.getChannel();
 
         FileTypeBox fileTypeBox = createFileTypeBox();
         fileTypeBox.getBox(fc);
@@ -76,21 +111,150 @@ public class MP4Builder {
 
         sizeBuffer = ByteBuffer.allocateDirect(4);
 
+        if (journal != null) {
+            journal.onMovieCreated(mp4Movie);
+        }
+        return this;
+    }
+
+    /**
+     * Makes the partial output of a job that was killed playable without
+     * encoding anything again: the file is cut back to the last checkpoint
+     * of its journal and a moov box is built from the samples recorded
+     * there. The journal is deleted afterwards, so the job cannot be resumed
+     * any more. Returns false if there was nothing to recover.
+     */
+    public static boolean recoverMovie(File output, File journalFile)
+            throws Exception {
+        ConversionJournal journal = ConversionJournal.openForRecovery(
+                journalFile);
+        if (journal == null) {
+            return false;
+        }
+        if (!journal.canResume() || !output.exists()) {
+            journal.close();
+            return false;
+        }
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(output);
+        try {
+            MP4Builder builder = new MP4Builder().resumeMovie(movie, journal);
+            builder.finishMovie(false);
+        } finally {
+            journal.close();
+        }
+        journal.delete();
+        return true;
+    }
+
+    /**
+     * Reopens the partial output of an interrupted job. The tracks and
+     * samples of the last complete checkpoint are restored into mp4Movie,
+     * everything written after it is cut off and new samples are appended.
+     */
+    public MP4Builder resumeMovie(Mp4Movie mp4Movie, ConversionJournal journal)
+            throws Exception {
+        currentMp4Movie = mp4Movie;
+        this.journal = journal;
+        journal.replay(mp4Movie);
+
+        raf = new RandomAccessFile(mp4Movie.getCacheFile(), "rw");
+        fc = raf.getChannel();
+        dataOffset = journal.getDataOffset();
+        writedSinceLastMdat = journal.getWritedSinceLastMdat();
+        fc.truncate(dataOffset);
+        reserveSpace();
+        fc.position(dataOffset);
+
+        mdat = new InterleaveChunkMdat();
+        mdat.setContentSize(0);
+        writeNewMdat = true;
+
+        sizeBuffer = ByteBuffer.allocateDirect(4);
+
         return this;
     }
 
+    private void reserveSpace() throws IOException {
+        if (preallocator != null && expectedSize > 0) {
+            // without a reservation the file just grows as before
+            preallocator.reserve(raf, expectedSize);
+        }
+    }
+
+    /**
+     * Records write and flush latencies and the bytes written into metrics.
+     */
+    public void setMetrics(ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     private void flushCurrentMdat() throws Exception {
+        long start = System.nanoTime();
         long oldPosition = fc.position();
         fc.position(mdat.getOffset());
         mdat.getBox(fc);
         fc.position(oldPosition);
         mdat.setDataOffset(0);
         mdat.setContentSize(0);
-        fos.flush();
+        if (metrics != null) {
+            metrics.recordSince(ConversionMetrics.TIMER_FLUSH_MDAT, start);
+        }
+    }
+
+    /**
+     * Closes the current chunk so that everything written so far is covered
+     * by a journal checkpoint.
+     */
+    public void checkpoint() throws Exception {
+        if (!writeNewMdat && mdat.getContentSize() != 0) {
+            flushCurrentMdat();
+            writeNewMdat = true;
+            if (journal != null) {
+                journal.onCheckpoint(dataOffset, writedSinceLastMdat);
+            }
+        }
+    }
+
+    /**
+     * Checkpoints and closes the output without writing the moov box. The
+     * job can later be continued with {@link #resumeMovie}.
+     */
+    public void suspend() throws Exception {
+        checkpoint();
+        // the journal restores the sample tables on resume
+        releaseSampleTables();
+        fc.close();
+        raf.close();
     }
 
     public boolean writeSampleData(int trackIndex, ByteBuffer byteBuf,
                                    MediaCodec.BufferInfo bufferInfo, boolean isAudio) throws Exception {
+        return writeSampleData(trackIndex, byteBuf, bufferInfo.offset,
+                bufferInfo.size, bufferInfo.presentationTimeUs,
+                bufferInfo.flags, isAudio);
+    }
+
+    // BUFFER_FLAG_KEY_FRAME, which has the same value, needs API 21
+    @SuppressWarnings("deprecation")
+    public boolean writeSampleData(int trackIndex, ByteBuffer byteBuf,
+                                   int offset, int size, long presentationTimeUs, int flags,
+                                   boolean isAudio) throws Exception {
+        long start = System.nanoTime();
+        // journaled video is checkpointed right before a sync sample. With
+        // reordered frames a checkpoint after any other frame may cover a
+        // frame whose predecessors in presentation order are still to come,
+        // and a resumed job skips everything up to the latest frame it finds
+        boolean alignToSync = journal != null && !isAudio;
+        boolean flush = false;
+        if (alignToSync && !writeNewMdat && writedSinceLastMdat >= chunkSize
+                && (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            flushCurrentMdat();
+            writeNewMdat = true;
+            flush = true;
+            writedSinceLastMdat = 0;
+            journal.onCheckpoint(dataOffset, writedSinceLastMdat);
+        }
         if (writeNewMdat) {
             mdat.setContentSize(0);
             mdat.getBox(fc);
@@ -100,40 +264,72 @@ public class MP4Builder {
             writeNewMdat = false;
         }
 
-        mdat.setContentSize(mdat.getContentSize() + bufferInfo.size);
-        writedSinceLastMdat += bufferInfo.size;
+        mdat.setContentSize(mdat.getContentSize() + size);
+        writedSinceLastMdat += size;
 
-        boolean flush = false;
-        if (writedSinceLastMdat >= 32 * 1024) {
+        boolean flushAfter = false;
+        if (!alignToSync && writedSinceLastMdat >= chunkSize) {
             flushCurrentMdat();
             writeNewMdat = true;
-            flush = true;
-            writedSinceLastMdat -= 32 * 1024;
+            flushAfter = true;
+            writedSinceLastMdat -= chunkSize;
         }
 
-        currentMp4Movie.addSample(trackIndex, dataOffset, bufferInfo);
-        byteBuf.position(bufferInfo.offset + (isAudio ? 0 : 4));
-        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        currentMp4Movie.addSample(trackIndex, dataOffset, size,
+                presentationTimeUs, flags);
+        if (journal != null) {
+            journal.onSampleWritten(trackIndex, dataOffset, size,
+                    presentationTimeUs, flags);
+        }
+        byteBuf.position(offset + (isAudio ? 0 : 4));
+        byteBuf.limit(offset + size);
 
         if (!isAudio) {
             sizeBuffer.position(0);
-            sizeBuffer.putInt(bufferInfo.size - 4);
+            sizeBuffer.putInt(size - 4);
             sizeBuffer.position(0);
             fc.write(sizeBuffer);
         }
 
         fc.write(byteBuf);
-        dataOffset += bufferInfo.size;
+        dataOffset += size;
 
-        if (flush) {
-            fos.flush();
+        if (flushAfter && journal != null) {
+            journal.onCheckpoint(dataOffset, writedSinceLastMdat);
+        }
+        if (metrics != null) {
+            metrics.recordSince(ConversionMetrics.TIMER_WRITE_SAMPLE, start);
+            metrics.add(ConversionMetrics.COUNTER_BYTES_WRITTEN, size);
         }
-        return flush;
+        return flush || flushAfter;
     }
 
     public int addTrack(MediaFormat mediaFormat, boolean isAudio)
             throws Exception {
-        return currentMp4Movie.addTrack(mediaFormat, isAudio);
+        int index = currentMp4Movie.addTrack(mediaFormat, isAudio);
+        onTrackAdded(index);
+        return index;
+    }
+
+    public int addVideoTrack(String mime, int width, int height, byte[] sps,
+                             byte[] pps) throws Exception {
+        int index = currentMp4Movie.addVideoTrack(mime, width, height, sps,
+                pps);
+        onTrackAdded(index);
+        return index;
+    }
+
+    public int addAudioTrack(int sampleRate, int channelCount)
+            throws Exception {
+        int index = currentMp4Movie.addAudioTrack(sampleRate, channelCount);
+        onTrackAdded(index);
+        return index;
+    }
+
+    private void onTrackAdded(int index) throws Exception {
+        if (journal != null) {
+            journal.onTrackAdded(currentMp4Movie.getTracks().get(index));
+        }
     }
 
     public void finishMovie(boolean error) throws Exception {
@@ -141,21 +337,23 @@ public class MP4Builder {
             flushCurrentMdat();
         }
 
-        for (Track track : currentMp4Movie.getTracks()) {
-            List<Sample> samples = track.getSamples();
-            long[] sizes = new long[samples.size()];
-            for (int i = 0; i < sizes.length; i++) {
-                sizes[i] = samples.get(i).getSize();
-            }
-            track2SampleSizes.put(track, sizes);
+        try {
+            Box moov = createMovieBox(currentMp4Movie);
+            moov.getBox(fc);
+        } finally {
+            releaseSampleTables();
         }
-
-        Box moov = createMovieBox(currentMp4Movie);
-        moov.getBox(fc);
-        fos.flush();
+        // drops what is left of the reserved space
+        fc.truncate(fc.position());
 
         fc.close();
-        fos.close();
+        raf.close();
+    }
+
+    private void releaseSampleTables() {
+        for (Track track : currentMp4Movie.getTracks()) {
+            track.getSampleTable().release();
+        }
     }
 
     protected FileTypeBox createFileTypeBox() {
@@ -176,7 +374,10 @@ public class MP4Builder {
         return timescale;
     }
 
-    protected MovieBox createMovieBox(Mp4Movie movie) {
+    protected MovieBox createMovieBox(Mp4Movie movie) throws IOException {
+        for (Track track : movie.getTracks()) {
+            track.finishSamples();
+        }
         MovieBox movieBox = new MovieBox();
         MovieHeaderBox mvhd = new MovieHeaderBox();
 
@@ -205,7 +406,8 @@ public class MP4Builder {
         return movieBox;
     }
 
-    protected TrackBox createTrackBox(Track track, Mp4Movie movie) {
+    protected TrackBox createTrackBox(Track track, Mp4Movie movie)
+            throws IOException {
         TrackBox trackBox = new TrackBox();
         TrackHeaderBox tkhd = new TrackHeaderBox();
 
@@ -229,6 +431,7 @@ public class MP4Builder {
         tkhd.setVolume(track.getVolume());
 
         trackBox.addBox(tkhd);
+        createEdts(track, movie, trackBox);
 
         MediaBox mdia = new MediaBox();
         trackBox.addBox(mdia);
@@ -262,11 +465,12 @@ public class MP4Builder {
         return trackBox;
     }
 
-    protected Box createStbl(Track track) {
+    protected Box createStbl(Track track) throws IOException {
         SampleTableBox stbl = new SampleTableBox();
 
         createStsd(track, stbl);
         createStts(track, stbl);
+        createCtts(track, stbl);
         createStss(track, stbl);
         createStsc(track, stbl);
         createStsz(track, stbl);
@@ -279,107 +483,63 @@ public class MP4Builder {
         stbl.addBox(track.getSampleDescriptionBox());
     }
 
-    protected void createStts(Track track, SampleTableBox stbl) {
-        TimeToSampleBox.Entry lastEntry = null;
-        List<TimeToSampleBox.Entry> entries = new ArrayList<TimeToSampleBox.Entry>();
+    protected void createStts(Track track, SampleTableBox stbl)
+            throws IOException {
+        stbl.addBox(new StreamedTableBox.TimeToSample(track.getSampleTable()));
+    }
 
-        for (long delta : track.getSampleDurations()) {
-            if (lastEntry != null && lastEntry.getDelta() == delta) {
-                lastEntry.setCount(lastEntry.getCount() + 1);
-            } else {
-                lastEntry = new TimeToSampleBox.Entry(1, delta);
-                entries.add(lastEntry);
-            }
+    protected void createCtts(Track track, SampleTableBox stbl)
+            throws IOException {
+        if (track.getSampleTable().hasCompositionOffsets()) {
+            stbl.addBox(new StreamedTableBox.CompositionOffset(
+                    track.getSampleTable()));
         }
-        TimeToSampleBox stts = new TimeToSampleBox();
-        stts.setEntries(entries);
-        stbl.addBox(stts);
     }
 
-    protected void createStss(Track track, SampleTableBox stbl) {
-        long[] syncSamples = track.getSyncSamples();
-        if (syncSamples != null && syncSamples.length > 0) {
-            SyncSampleBox stss = new SyncSampleBox();
-            stss.setSampleNumber(syncSamples);
-            stbl.addBox(stss);
+    /**
+     * ctts offsets are raised so that none is negative, which would show
+     * the first frame that much late; the edit list skips it again.
+     */
+    protected void createEdts(Track track, Mp4Movie movie, TrackBox trackBox) {
+        int mediaTime = -track.getSampleTable().getMinCompositionOffset();
+        if (mediaTime == 0) {
+            return;
         }
+        EditBox edts = new EditBox();
+        EditListBox elst = new EditListBox();
+        elst.setEntries(Collections.singletonList(new EditListBox.Entry(elst,
+                track.getDuration() * getTimescale(movie)
+                        / track.getTimeScale(), mediaTime, 1)));
+        edts.addBox(elst);
+        trackBox.addBox(edts);
     }
 
-    protected void createStsc(Track track, SampleTableBox stbl) {
-        SampleToChunkBox stsc = new SampleToChunkBox();
-        stsc.setEntries(new LinkedList<SampleToChunkBox.Entry>());
-
-        long lastOffset = -1;
-        int lastChunkNumber = 1;
-        int lastSampleCount = 0;
-
-        int previousWritedChunkCount = -1;
-
-        int samplesCount = track.getSamples().size();
-        for (int a = 0; a < samplesCount; a++) {
-            Sample sample = track.getSamples().get(a);
-            long offset = sample.getOffset();
-            long size = sample.getSize();
-
-            lastOffset = offset + size;
-            lastSampleCount++;
-
-            boolean write = false;
-            if (a != samplesCount - 1) {
-                Sample nextSample = track.getSamples().get(a + 1);
-                if (lastOffset != nextSample.getOffset()) {
-                    write = true;
-                }
-            } else {
-                write = true;
-            }
-            if (write) {
-                if (previousWritedChunkCount != lastSampleCount) {
-                    stsc.getEntries().add(
-                            new SampleToChunkBox.Entry(lastChunkNumber,
-                                    lastSampleCount, 1));
-                    previousWritedChunkCount = lastSampleCount;
-                }
-                lastSampleCount = 0;
-                lastChunkNumber++;
-            }
+    protected void createStss(Track track, SampleTableBox stbl) {
+        if (track.getSampleTable().getSyncSampleCount() > 0) {
+            stbl.addBox(new StreamedTableBox.SyncSample(track.getSampleTable()));
         }
-        stbl.addBox(stsc);
+    }
+
+    protected void createStsc(Track track, SampleTableBox stbl)
+            throws IOException {
+        stbl.addBox(new StreamedTableBox.SampleToChunk(track.getSampleTable()));
     }
 
     protected void createStsz(Track track, SampleTableBox stbl) {
-        SampleSizeBox stsz = new SampleSizeBox();
-        stsz.setSampleSizes(track2SampleSizes.get(track));
-        stbl.addBox(stsz);
+        stbl.addBox(new StreamedTableBox.SampleSize(track.getSampleTable()));
     }
 
     protected void createStco(Track track, SampleTableBox stbl) {
-        ArrayList<Long> chunksOffsets = new ArrayList<Long>();
-        long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
-            long offset = sample.getOffset();
-            if (lastOffset != -1 && lastOffset != offset) {
-                lastOffset = -1;
-            }
-            if (lastOffset == -1) {
-                chunksOffsets.add(offset);
-            }
-            lastOffset = offset + sample.getSize();
-        }
-        long[] chunkOffsetsLong = new long[chunksOffsets.size()];
-        for (int a = 0; a < chunksOffsets.size(); a++) {
-            chunkOffsetsLong[a] = chunksOffsets.get(a);
-        }
-
-        StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
-        stco.setChunkOffsets(chunkOffsetsLong);
-        stbl.addBox(stco);
+        stbl.addBox(new StreamedTableBox.ChunkOffset(track.getSampleTable()));
     }
 
     private class InterleaveChunkMdat implements Box {
         private Container parent;
         private long contentSize = 1024 * 1024 * 1024;
         private long dataOffset = 0;
+        // rewritten on every flush
+        private final ByteBuffer header = ByteBuffer.allocate(16);
+        private final byte[] type = IsoFile.fourCCtoBytes("mdat");
 
         public Container getParent() {
             return parent;
@@ -425,16 +585,17 @@ public class MP4Builder {
 
         public void getBox(WritableByteChannel writableByteChannel)
                 throws IOException {
-            ByteBuffer bb = ByteBuffer.allocate(16);
+            ByteBuffer bb = header;
+            bb.clear();
             long size = getSize();
             if (isSmallBox(size)) {
                 IsoTypeWriter.writeUInt32(bb, size);
             } else {
                 IsoTypeWriter.writeUInt32(bb, 1);
             }
-            bb.put(IsoFile.fourCCtoBytes("mdat"));
+            bb.put(type);
             if (isSmallBox(size)) {
-                bb.put(new byte[8]);
+                bb.putLong(0);
             } else {
                 IsoTypeWriter.writeUInt64(bb, size);
             }
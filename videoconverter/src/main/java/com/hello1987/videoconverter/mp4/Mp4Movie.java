@@ -7,15 +7,18 @@ import android.media.MediaFormat;
 import com.googlecode.mp4parser.util.Matrix;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 @TargetApi(16)
 public class Mp4Movie {
     private Matrix matrix = Matrix.ROTATE_0;
+    private int rotation;
     private ArrayList<Track> tracks = new ArrayList<Track>();
     private File cacheFile;
     private int width;
     private int height;
+    private int audioBitrate = Track.DEFAULT_AUDIO_BITRATE;
 
     public Matrix getMatrix() {
         return matrix;
@@ -29,16 +32,33 @@ public class Mp4Movie {
         return height;
     }
 
+    public int getRotation() {
+        return rotation;
+    }
+
     public void setRotation(int angle) {
+        rotation = angle;
+        Matrix rotationMatrix = getRotationMatrix(angle);
+        if (rotationMatrix != null) {
+            matrix = rotationMatrix;
+        }
+    }
+
+    /**
+     * The track matrix for a clockwise rotation by angle degrees, or null
+     * if angle is not a multiple of 90 between 0 and 270.
+     */
+    static Matrix getRotationMatrix(int angle) {
         if (angle == 0) {
-            matrix = Matrix.ROTATE_0;
+            return Matrix.ROTATE_0;
         } else if (angle == 90) {
-            matrix = Matrix.ROTATE_90;
+            return Matrix.ROTATE_90;
         } else if (angle == 180) {
-            matrix = Matrix.ROTATE_180;
+            return Matrix.ROTATE_180;
         } else if (angle == 270) {
-            matrix = Matrix.ROTATE_270;
+            return Matrix.ROTATE_270;
         }
+        return null;
     }
 
     public void setSize(int w, int h) {
@@ -46,6 +66,13 @@ public class Mp4Movie {
         height = h;
     }
 
+    /**
+     * Bitrate audio tracks added from now on declare.
+     */
+    public void setAudioBitrate(int audioBitrate) {
+        this.audioBitrate = audioBitrate;
+    }
+
     public ArrayList<Track> getTracks() {
         return tracks;
     }
@@ -67,9 +94,38 @@ public class Mp4Movie {
         track.addSample(offset, bufferInfo);
     }
 
+    public void addSample(int trackIndex, long offset, int size,
+                          long presentationTimeUs, int flags) throws IOException {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return;
+        }
+        Track track = tracks.get(trackIndex);
+        track.addSample(offset, size, presentationTimeUs, flags);
+    }
+
     public int addTrack(MediaFormat mediaFormat, boolean isAudio)
             throws Exception {
-        tracks.add(new Track(tracks.size(), mediaFormat, isAudio));
+        return addTrack(new Track(tracks.size(), mediaFormat, isAudio));
+    }
+
+    public int addVideoTrack(String mime, int width, int height, byte[] sps,
+                             byte[] pps) {
+        return addTrack(Track.createVideoTrack(tracks.size(), mime, width,
+                height, sps, pps));
+    }
+
+    public int addAudioTrack(int sampleRate, int channelCount) {
+        return addTrack(Track.createAudioTrack(tracks.size(), sampleRate,
+                channelCount, audioBitrate));
+    }
+
+    private int addTrack(Track track) {
+        if (cacheFile != null) {
+            // spilled sample tables stay on the output's file system
+            track.setScratchDirectory(cacheFile.getAbsoluteFile()
+                    .getParentFile());
+        }
+        tracks.add(track);
         return tracks.size() - 1;
     }
 }
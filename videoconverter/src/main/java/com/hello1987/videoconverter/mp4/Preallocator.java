@@ -0,0 +1,19 @@
+package com.hello1987.videoconverter.mp4;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reserves disk space for an output before it is written, so the file
+ * system can hand out one contiguous extent instead of growing the file a
+ * chunk at a time.
+ */
+public interface Preallocator {
+
+    /**
+     * Reserves the first length bytes of file; the file may become that
+     * long. Returns false if the file system does not support it, in which
+     * case the file is left as it was.
+     */
+    boolean reserve(RandomAccessFile file, long length) throws IOException;
+}
@@ -0,0 +1,143 @@
+package com.hello1987.videoconverter.mp4;
+
+import com.coremedia.iso.IsoFile;
+import com.googlecode.mp4parser.util.Matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Changes the rotation of the video tracks of an MP4 file in place. Only box
+ * headers are read on the way to moov/trak/tkhd, mdat is skipped wherever it
+ * is, and the 36 bytes of each matrix are overwritten; the length of the file
+ * does not change and nothing is decoded.
+ */
+public final class RotationEditor {
+
+    private static final int HEADER_SIZE = 8;
+    // from the start of the tkhd content, after version and flags, times,
+    // track id, duration, reserved, layer, alternate group and volume
+    private static final int MATRIX_OFFSET_V0 = 40;
+    private static final int MATRIX_OFFSET_V1 = 52;
+    private static final int MATRIX_SIZE = 36;
+
+    private RotationEditor() {
+    }
+
+    /**
+     * Sets the rotation of every video track of file to angle degrees
+     * clockwise, one of 0, 90, 180 and 270. Returns the number of tracks
+     * changed.
+     */
+    public static int setRotation(File file, int angle) throws IOException {
+        Matrix matrix = Mp4Movie.getRotationMatrix(angle);
+        if (matrix == null) {
+            throw new IllegalArgumentException("unsupported rotation "
+                    + angle);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the matrix is the most that is read or written at once
+            ByteBuffer buffer = ByteBuffer.allocate(MATRIX_SIZE);
+            long[] moov = findBox(channel, 0, channel.size(), "moov", buffer);
+            if (moov == null) {
+                throw new IOException("no moov box in " + file);
+            }
+            int changed = 0;
+            long position = moov[0];
+            long[] trak;
+            while ((trak = findBox(channel, position, moov[1], "trak",
+                    buffer)) != null) {
+                long[] tkhd = findBox(channel, trak[0], trak[1], "tkhd",
+                        buffer);
+                if (tkhd != null && patchMatrix(channel, tkhd, matrix,
+                        buffer)) {
+                    changed++;
+                }
+                position = trak[1];
+            }
+            if (changed > 0) {
+                channel.force(false);
+            }
+            return changed;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Looks for a box of the given type among the boxes between start and
+     * end. Returns the start and end of its content, or null.
+     */
+    private static long[] findBox(FileChannel channel, long start, long end,
+                                  String type, ByteBuffer buffer) throws IOException {
+        long position = start;
+        while (end - position >= HEADER_SIZE) {
+            read(channel, position, HEADER_SIZE, buffer);
+            long size = buffer.getInt() & 0xffffffffL;
+            String boxType = IsoFile.bytesToFourCC(new byte[]{buffer.get(),
+                    buffer.get(), buffer.get(), buffer.get()});
+            int headerSize = HEADER_SIZE;
+            if (size == 1) {
+                read(channel, position + HEADER_SIZE, 8, buffer);
+                size = buffer.getLong();
+                headerSize += 8;
+            } else if (size == 0) {
+                // up to the end of the enclosing box
+                size = end - position;
+            }
+            if (size < headerSize || position + size > end) {
+                throw new IOException("malformed " + boxType + " box at "
+                        + position);
+            }
+            if (boxType.equals(type)) {
+                return new long[]{position + headerSize, position + size};
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    /**
+     * Overwrites the matrix of a tkhd box if the track has a width and
+     * height, i.e. is visual.
+     */
+    private static boolean patchMatrix(FileChannel channel, long[] tkhd,
+                                       Matrix matrix, ByteBuffer buffer) throws IOException {
+        read(channel, tkhd[0], 1, buffer);
+        int matrixOffset = buffer.get() == 1 ? MATRIX_OFFSET_V1
+                : MATRIX_OFFSET_V0;
+        if (tkhd[1] - tkhd[0] < matrixOffset + MATRIX_SIZE + 8) {
+            throw new IOException("truncated tkhd box at " + tkhd[0]);
+        }
+        long matrixPosition = tkhd[0] + matrixOffset;
+        read(channel, matrixPosition + MATRIX_SIZE, 8, buffer);
+        if (buffer.getInt() == 0 || buffer.getInt() == 0) {
+            return false;
+        }
+        buffer.clear();
+        matrix.getContent(buffer);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, matrixPosition + buffer.position());
+        }
+        return true;
+    }
+
+    private static void read(FileChannel channel, long position, int length,
+                             ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file at "
+                        + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+}
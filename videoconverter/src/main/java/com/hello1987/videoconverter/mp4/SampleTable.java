@@ -0,0 +1,334 @@
+package com.hello1987.videoconverter.mp4;
+
+import com.hello1987.videoconverter.pipeline.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Offsets, sizes, durations, composition offsets and sync flags of the
+ * samples of one track, in decode order. The latest samples are kept in
+ * fixed arrays on the heap; once those fill up they are delta encoded into a
+ * scratch file, so the heap a track uses does not grow with the length of the
+ * recording. {@link #cursor()} reads all samples back in order when the moov
+ * box is written.
+ * <p>
+ * The duration of the last sample stays open until the next sample is
+ * added, see {@link #setLastDuration}.
+ */
+public class SampleTable {
+
+    private static final int BLOCK_SAMPLES = 4096;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Worst case encoded size of one sample: four varints.
+     */
+    private static final int MAX_RECORD_SIZE = 4 * Varints.MAX_SIZE;
+
+    private File directory;
+
+    private final long[] offsets = new long[BLOCK_SAMPLES];
+    private final int[] sizes = new int[BLOCK_SAMPLES];
+    private final long[] durations = new long[BLOCK_SAMPLES];
+    private final boolean[] syncs = new boolean[BLOCK_SAMPLES];
+    private final int[] compositionOffsets = new int[BLOCK_SAMPLES];
+    private int tailCount;
+
+    private int sampleCount;
+    private int syncCount;
+    private int chunkCount;
+    private long lastChunkOffset = -1;
+    private long nextOffset = -1;
+    private int minCompositionOffset;
+    private boolean hasCompositionOffsets;
+
+    private File spillFile;
+    private RandomAccessFile spill;
+    private FileChannel spillChannel;
+    private ByteBuffer encodeBuffer;
+    private long spilledBytes;
+    private final DeltaState encodeState = new DeltaState();
+
+    /**
+     * Where the scratch file goes; the default temporary directory if
+     * never set.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Appends a sample lasting duration ticks until {@link #setLastDuration}
+     * says otherwise. compositionOffset is its presentation time minus its
+     * decode time, in ticks.
+     */
+    public void add(long offset, int size, boolean sync, long duration,
+                    int compositionOffset) throws IOException {
+        if (tailCount == BLOCK_SAMPLES) {
+            spillTail();
+        }
+        offsets[tailCount] = offset;
+        sizes[tailCount] = size;
+        durations[tailCount] = duration;
+        syncs[tailCount] = sync;
+        compositionOffsets[tailCount] = compositionOffset;
+        tailCount++;
+        sampleCount++;
+        if (sync) {
+            syncCount++;
+        }
+        if (offset != nextOffset) {
+            chunkCount++;
+            lastChunkOffset = offset;
+        }
+        nextOffset = offset + size;
+        if (compositionOffset != 0) {
+            hasCompositionOffsets = true;
+            minCompositionOffset = Math.min(minCompositionOffset,
+                    compositionOffset);
+        }
+    }
+
+    public void setLastDuration(long duration) {
+        durations[tailCount - 1] = duration;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getSyncSampleCount() {
+        return syncCount;
+    }
+
+    /**
+     * Number of runs of samples that follow each other in the file.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * File offset of the last chunk, -1 without samples.
+     */
+    public long getLastChunkOffset() {
+        return lastChunkOffset;
+    }
+
+    /**
+     * Whether any sample is presented at another time than it is decoded,
+     * i.e. the track needs a ctts box.
+     */
+    public boolean hasCompositionOffsets() {
+        return hasCompositionOffsets;
+    }
+
+    /**
+     * Smallest composition offset, 0 or negative.
+     */
+    public int getMinCompositionOffset() {
+        return minCompositionOffset;
+    }
+
+    /**
+     * Bytes moved to the scratch file so far.
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Returns a cursor before the first sample. Close it when done; adding
+     * samples while it is open is not allowed.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Deletes the scratch file. The table is empty afterwards.
+     */
+    public void release() {
+        if (encodeBuffer != null) {
+            BufferPool.getDefault().release(encodeBuffer);
+            encodeBuffer = null;
+        }
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                // nothing left to read from it
+            }
+            spill = null;
+            spillChannel = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+        tailCount = 0;
+        sampleCount = 0;
+        syncCount = 0;
+        chunkCount = 0;
+        lastChunkOffset = -1;
+        nextOffset = -1;
+        minCompositionOffset = 0;
+        hasCompositionOffsets = false;
+        spilledBytes = 0;
+        encodeState.reset();
+    }
+
+    private void spillTail() throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("samples", ".tmp", directory);
+            spill = new RandomAccessFile(spillFile, "rw");
+            spillChannel = spill.getChannel();
+            encodeBuffer = BufferPool.getDefault().acquire(
+                    BLOCK_SAMPLES * MAX_RECORD_SIZE);
+        }
+        ByteBuffer buffer = encodeBuffer;
+        buffer.clear();
+        for (int i = 0; i < tailCount; i++) {
+            encodeState.encode(buffer, offsets[i], sizes[i], syncs[i],
+                    durations[i], compositionOffsets[i]);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            spilledBytes += spillChannel.write(buffer, spilledBytes);
+        }
+        tailCount = 0;
+    }
+
+    /**
+     * Offsets are stored relative to the end of the previous sample, which
+     * is zero within a chunk, and durations relative to the previous one.
+     * Composition offsets are stored as they are; they are zero without
+     * reordered frames.
+     */
+    private static final class DeltaState {
+        long nextOffset;
+        long duration;
+
+        void reset() {
+            nextOffset = 0;
+            duration = 0;
+        }
+
+        void encode(ByteBuffer buffer, long offset, int size, boolean sync,
+                    long duration, int compositionOffset) {
+            Varints.put(buffer, Varints.zigzag(offset - nextOffset));
+            Varints.put(buffer, ((long) size << 1) | (sync ? 1 : 0));
+            Varints.put(buffer, Varints.zigzag(duration - this.duration));
+            Varints.put(buffer, Varints.zigzag(compositionOffset));
+            nextOffset = offset + size;
+            this.duration = duration;
+        }
+    }
+
+    /**
+     * Walks the samples in order, first the spilled ones, then the tail.
+     */
+    public final class Cursor {
+        private ByteBuffer readBuffer;
+        private long readPosition;
+        private int tailIndex = -1;
+        private long nextOffset;
+        private long offset;
+        private int size;
+        private long duration;
+        private int compositionOffset;
+        private boolean sync;
+
+        Cursor() {
+            if (spilledBytes > 0) {
+                readBuffer = BufferPool.getDefault().acquire(READ_BUFFER_SIZE);
+                readBuffer.limit(0);
+            }
+        }
+
+        /**
+         * Moves to the next sample, returns false after the last one.
+         */
+        public boolean next() throws IOException {
+            if (readBuffer != null) {
+                if (readBuffer.remaining() < MAX_RECORD_SIZE
+                        && readPosition < spilledBytes) {
+                    fill();
+                }
+                if (readBuffer.hasRemaining()) {
+                    offset = nextOffset + Varints.unzigzag(
+                            Varints.get(readBuffer));
+                    long sizeAndSync = Varints.get(readBuffer);
+                    size = (int) (sizeAndSync >>> 1);
+                    sync = (sizeAndSync & 1) != 0;
+                    duration += Varints.unzigzag(Varints.get(readBuffer));
+                    compositionOffset = (int) Varints.unzigzag(
+                            Varints.get(readBuffer));
+                    nextOffset = offset + size;
+                    return true;
+                }
+            }
+            if (tailIndex + 1 >= tailCount) {
+                return false;
+            }
+            tailIndex++;
+            offset = offsets[tailIndex];
+            size = sizes[tailIndex];
+            duration = durations[tailIndex];
+            sync = syncs[tailIndex];
+            compositionOffset = compositionOffsets[tailIndex];
+            return true;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Duration in track time scale units.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public boolean isSync() {
+            return sync;
+        }
+
+        /**
+         * Presentation minus decode time in track time scale units.
+         */
+        public int getCompositionOffset() {
+            return compositionOffset;
+        }
+
+        public void close() {
+            if (readBuffer != null) {
+                BufferPool.getDefault().release(readBuffer);
+                readBuffer = null;
+            }
+        }
+
+        private void fill() throws IOException {
+            readBuffer.compact();
+            int limit = (int) Math.min(readBuffer.capacity(),
+                    readBuffer.position() + spilledBytes - readPosition);
+            readBuffer.limit(limit);
+            while (readBuffer.hasRemaining()) {
+                int read = spillChannel.read(readBuffer, readPosition);
+                if (read < 0) {
+                    throw new IOException("sample table spill file truncated");
+                }
+                readPosition += read;
+            }
+            readBuffer.flip();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.hello1987.videoconverter.mp4;
+
+import com.coremedia.iso.BoxParser;
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.Container;
+import com.googlecode.mp4parser.DataSource;
+import com.hello1987.videoconverter.pipeline.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A sample table box whose entries are written straight from a
+ * {@link SampleTable} while the moov box is written, instead of being
+ * collected into arrays first. Sizes are known up front: entry counts that
+ * the table does not track are counted in one pass when the box is created.
+ */
+abstract class StreamedTableBox implements Box {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    protected final SampleTable table;
+    private final String type;
+    private final long contentSize;
+    private Container parent;
+
+    StreamedTableBox(String type, SampleTable table, long contentSize) {
+        this.type = type;
+        this.table = table;
+        this.contentSize = contentSize;
+    }
+
+    public Container getParent() {
+        return parent;
+    }
+
+    public void setParent(Container parent) {
+        this.parent = parent;
+    }
+
+    public long getOffset() {
+        return 0;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getSize() {
+        // header, version and flags
+        return 12 + contentSize;
+    }
+
+    @Override
+    public void parse(DataSource dataSource, ByteBuffer header,
+                      long contentSize, BoxParser boxParser) throws IOException {
+    }
+
+    public void getBox(WritableByteChannel writableByteChannel)
+            throws IOException {
+        ByteBuffer buffer = BufferPool.getDefault().acquire(WRITE_BUFFER_SIZE);
+        try {
+            buffer.putInt((int) getSize());
+            buffer.put(IsoFile.fourCCtoBytes(type));
+            buffer.putInt(0);
+            SampleTable.Cursor cursor = table.cursor();
+            try {
+                writeEntries(cursor, buffer, writableByteChannel);
+            } finally {
+                cursor.close();
+            }
+            flush(buffer, writableByteChannel);
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
+    protected abstract void writeEntries(SampleTable.Cursor cursor,
+                                         ByteBuffer buffer, WritableByteChannel channel) throws IOException;
+
+    /**
+     * Makes room for one entry of at most 16 bytes.
+     */
+    protected static void reserve(ByteBuffer buffer,
+                                  WritableByteChannel channel) throws IOException {
+        if (buffer.remaining() < 16) {
+            flush(buffer, channel);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, WritableByteChannel channel)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Runs of equal sample durations.
+     */
+    static final class TimeToSample extends StreamedTableBox {
+
+        TimeToSample(SampleTable table) throws IOException {
+            super("stts", table, 4 + 8L * countEntries(table));
+        }
+
+        private static int countEntries(SampleTable table) throws IOException {
+            int entries = 0;
+            long lastDelta = -1;
+            SampleTable.Cursor cursor = table.cursor();
+            try {
+                while (cursor.next()) {
+                    if (entries == 0 || cursor.getDuration() != lastDelta) {
+                        entries++;
+                        lastDelta = cursor.getDuration();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return entries;
+        }
+
+        @Override
+        protected void writeEntries(SampleTable.Cursor cursor,
+                                    ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+            buffer.putInt((int) ((getSize() - 16) / 8));
+            int count = 0;
+            long delta = 0;
+            while (cursor.next()) {
+                if (count > 0 && cursor.getDuration() != delta) {
+                    reserve(buffer, channel);
+                    buffer.putInt(count);
+                    buffer.putInt((int) delta);
+                    count = 0;
+                }
+                delta = cursor.getDuration();
+                count++;
+            }
+            if (count > 0) {
+                reserve(buffer, channel);
+                buffer.putInt(count);
+                buffer.putInt((int) delta);
+            }
+        }
+    }
+
+    /**
+     * Runs of equal composition offsets. Version 0 only has unsigned
+     * offsets, so all of them are raised by the smallest negative one; the
+     * edit list of the track starts presentation that much later again.
+     */
+    static final class CompositionOffset extends StreamedTableBox {
+
+        CompositionOffset(SampleTable table) throws IOException {
+            super("ctts", table, 4 + 8L * countEntries(table));
+        }
+
+        private static int countEntries(SampleTable table) throws IOException {
+            int entries = 0;
+            int lastOffset = 0;
+            SampleTable.Cursor cursor = table.cursor();
+            try {
+                while (cursor.next()) {
+                    if (entries == 0
+                            || cursor.getCompositionOffset() != lastOffset) {
+                        entries++;
+                        lastOffset = cursor.getCompositionOffset();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return entries;
+        }
+
+        @Override
+        protected void writeEntries(SampleTable.Cursor cursor,
+                                    ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+            buffer.putInt((int) ((getSize() - 16) / 8));
+            int shift = -table.getMinCompositionOffset();
+            int count = 0;
+            int offset = 0;
+            while (cursor.next()) {
+                if (count > 0 && cursor.getCompositionOffset() != offset) {
+                    reserve(buffer, channel);
+                    buffer.putInt(count);
+                    buffer.putInt(offset + shift);
+                    count = 0;
+                }
+                offset = cursor.getCompositionOffset();
+                count++;
+            }
+            if (count > 0) {
+                reserve(buffer, channel);
+                buffer.putInt(count);
+                buffer.putInt(offset + shift);
+            }
+        }
+    }
+
+    /**
+     * Numbers of the sync samples, starting at 1.
+     */
+    static final class SyncSample extends StreamedTableBox {
+
+        SyncSample(SampleTable table) {
+            super("stss", table, 4 + 4L * table.getSyncSampleCount());
+        }
+
+        @Override
+        protected void writeEntries(SampleTable.Cursor cursor,
+                                    ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+            buffer.putInt(table.getSyncSampleCount());
+            int number = 0;
+            while (cursor.next()) {
+                number++;
+                if (cursor.isSync()) {
+                    reserve(buffer, channel);
+                    buffer.putInt(number);
+                }
+            }
+        }
+    }
+
+    /**
+     * One entry wherever the number of samples per chunk changes.
+     */
+    static final class SampleToChunk extends StreamedTableBox {
+
+        SampleToChunk(SampleTable table) throws IOException {
+            super("stsc", table, 4 + 12L * write(table, null, null));
+        }
+
+        @Override
+        protected void writeEntries(SampleTable.Cursor cursor,
+                                    ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+            buffer.putInt((int) ((getSize() - 16) / 12));
+            write(table, buffer, channel);
+        }
+
+        /**
+         * Writes the entries to buffer, or only counts them if buffer is
+         * null.
+         */
+        private static int write(SampleTable table, ByteBuffer buffer,
+                                 WritableByteChannel channel) throws IOException {
+            int entries = 0;
+            int chunkNumber = 0;
+            int chunkSamples = 0;
+            int lastWrittenSamples = -1;
+            long nextOffset = -1;
+            SampleTable.Cursor cursor = table.cursor();
+            try {
+                while (true) {
+                    boolean more = cursor.next();
+                    if (chunkSamples > 0
+                            && (!more || cursor.getOffset() != nextOffset)) {
+                        chunkNumber++;
+                        if (chunkSamples != lastWrittenSamples) {
+                            if (buffer != null) {
+                                reserve(buffer, channel);
+                                buffer.putInt(chunkNumber);
+                                buffer.putInt(chunkSamples);
+                                buffer.putInt(1);
+                            }
+                            entries++;
+                            lastWrittenSamples = chunkSamples;
+                        }
+                        chunkSamples = 0;
+                    }
+                    if (!more) {
+                        break;
+                    }
+                    chunkSamples++;
+                    nextOffset = cursor.getOffset() + cursor.getSize();
+                }
+            } finally {
+                cursor.close();
+            }
+            return entries;
+        }
+    }
+
+    static final class SampleSize extends StreamedTableBox {
+
+        SampleSize(SampleTable table) {
+            super("stsz", table, 8 + 4L * table.getSampleCount());
+        }
+
+        @Override
+        protected void writeEntries(SampleTable.Cursor cursor,
+                                    ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+            // no common sample size
+            buffer.putInt(0);
+            buffer.putInt(table.getSampleCount());
+            while (cursor.next()) {
+                reserve(buffer, channel);
+                buffer.putInt(cursor.getSize());
+            }
+        }
+    }
+
+    /**
+     * stco, or co64 once a chunk starts beyond 4 GB.
+     */
+    static final class ChunkOffset extends StreamedTableBox {
+
+        private final boolean large;
+
+        ChunkOffset(SampleTable table) {
+            this(table, table.getLastChunkOffset() > 0xffffffffL);
+        }
+
+        private ChunkOffset(SampleTable table, boolean large) {
+            super(large ? "co64" : "stco", table,
+                    4 + (large ? 8L : 4L) * table.getChunkCount());
+            this.large = large;
+        }
+
+        @Override
+        protected void writeEntries(SampleTable.Cursor cursor,
+                                    ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+            buffer.putInt(table.getChunkCount());
+            long nextOffset = -1;
+            while (cursor.next()) {
+                long offset = cursor.getOffset();
+                if (offset != nextOffset) {
+                    reserve(buffer, channel);
+                    if (large) {
+                        buffer.putLong(offset);
+                    } else {
+                        buffer.putInt((int) offset);
+                    }
+                }
+                nextOffset = offset + cursor.getSize();
+            }
+        }
+    }
+}
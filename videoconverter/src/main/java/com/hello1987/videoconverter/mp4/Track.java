@@ -17,15 +17,28 @@ import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.ESDescriptor;
 import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
 import com.mp4parser.iso14496.part15.AvcConfigurationBox;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 
 @TargetApi(16)
 public class Track {
+    /**
+     * Encoders hand out samples in decode order with presentation times
+     * only. The decode times are the same times in ascending order, which is
+     * known for a sample once every frame it may be reordered with has
+     * arrived, so samples wait in a window of this many before they go into
+     * the sample table.
+     */
+    private static final int REORDER_DEPTH = 16;
+    /**
+     * Bitrate declared for AAC tracks unless another one is given.
+     */
+    public static final int DEFAULT_AUDIO_BITRATE = 96000;
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<Integer, Integer>();
 
     static {
@@ -44,171 +57,333 @@ public class Track {
     }
 
     private long trackId = 0;
-    private ArrayList<Sample> samples = new ArrayList<Sample>();
+    private final SampleTable sampleTable = new SampleTable();
     private long duration = 0;
     private String handler;
     private AbstractMediaHeaderBox headerBox = null;
     private SampleDescriptionBox sampleDescriptionBox = null;
-    private LinkedList<Integer> syncSamples = null;
     private int timeScale;
     private Date creationTime = new Date();
     private int height;
     private int width;
     private float volume = 0;
-    private ArrayList<Long> sampleDurations = new ArrayList<Long>();
+    private long defaultSampleDuration;
+    private long lastSampleDuration;
     private boolean isAudio = false;
+    private long firstPresentationTimeUs = 0;
     private long lastPresentationTimeUs = 0;
     private boolean first = true;
 
+    private final long[] pendingOffsets = new long[REORDER_DEPTH];
+    private final int[] pendingSizes = new int[REORDER_DEPTH];
+    private final boolean[] pendingSyncs = new boolean[REORDER_DEPTH];
+    private final long[] pendingTimes = new long[REORDER_DEPTH];
+    // presentation times of the pending samples, ascending
+    private final long[] sortedTimes = new long[REORDER_DEPTH];
+    private int pendingStart;
+    private int pendingCount;
+    private long firstDecodeTime = -1;
+    private long lastDecodeTime;
+    private String mime;
+    private int channelCount;
+    private byte[] sps;
+    private byte[] pps;
+
     public Track(int id, MediaFormat format, boolean isAudio) throws Exception {
         trackId = id;
         if (!isAudio) {
-            sampleDurations.add((long) 3015);
-            duration = 3015;
-            width = format.getInteger(MediaFormat.KEY_WIDTH);
-            height = format.getInteger(MediaFormat.KEY_HEIGHT);
-            timeScale = 90000;
-            syncSamples = new LinkedList<Integer>();
-            handler = "vide";
-            headerBox = new VideoMediaHeaderBox();
-            sampleDescriptionBox = new SampleDescriptionBox();
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime.equals("video/avc")) {
-                VisualSampleEntry visualSampleEntry = new VisualSampleEntry(
-                        "avc1");
-                visualSampleEntry.setDataReferenceIndex(1);
-                visualSampleEntry.setDepth(24);
-                visualSampleEntry.setFrameCount(1);
-                visualSampleEntry.setHorizresolution(72);
-                visualSampleEntry.setVertresolution(72);
-                visualSampleEntry.setWidth(width);
-                visualSampleEntry.setHeight(height);
-
-                AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
-
-                if (format.getByteBuffer("csd-0") != null) {
-                    ArrayList<byte[]> spsArray = new ArrayList<byte[]>();
-                    ByteBuffer spsBuff = format.getByteBuffer("csd-0");
-                    spsBuff.position(4);
-                    byte[] spsBytes = new byte[spsBuff.remaining()];
-                    spsBuff.get(spsBytes);
-                    spsArray.add(spsBytes);
-
-                    ArrayList<byte[]> ppsArray = new ArrayList<byte[]>();
-                    ByteBuffer ppsBuff = format.getByteBuffer("csd-1");
-                    ppsBuff.position(4);
-                    byte[] ppsBytes = new byte[ppsBuff.remaining()];
-                    ppsBuff.get(ppsBytes);
-                    ppsArray.add(ppsBytes);
-                    avcConfigurationBox.setSequenceParameterSets(spsArray);
-                    avcConfigurationBox.setPictureParameterSets(ppsArray);
-                }
-                // ByteArrayInputStream byteArrayInputStream = new
-                // ByteArrayInputStream(spsBytes);
-                // SeqParameterSet seqParameterSet =
-                // SeqParameterSet.read(byteArrayInputStream);
+            byte[] sps = null;
+            byte[] pps = null;
+            if (format.getByteBuffer("csd-0") != null) {
+                ByteBuffer spsBuff = format.getByteBuffer("csd-0");
+                spsBuff.position(4);
+                sps = new byte[spsBuff.remaining()];
+                spsBuff.get(sps);
+
+                ByteBuffer ppsBuff = format.getByteBuffer("csd-1");
+                ppsBuff.position(4);
+                pps = new byte[ppsBuff.remaining()];
+                ppsBuff.get(pps);
+            }
+            setupVideo(format.getString(MediaFormat.KEY_MIME),
+                    format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps);
+        } else {
+            setupAudio(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    DEFAULT_AUDIO_BITRATE);
+        }
+    }
 
+    private Track(int id) {
+        trackId = id;
+    }
+
+    /**
+     * Creates a video track from raw parameters. sps and pps are the
+     * parameter set NAL units without start code, or null.
+     */
+    public static Track createVideoTrack(int id, String mime, int width,
+                                         int height, byte[] sps, byte[] pps) {
+        Track track = new Track(id);
+        track.setupVideo(mime, width, height, sps, pps);
+        return track;
+    }
+
+    public static Track createAudioTrack(int id, int sampleRate,
+                                         int channelCount) {
+        return createAudioTrack(id, sampleRate, channelCount,
+                DEFAULT_AUDIO_BITRATE);
+    }
+
+    /**
+     * Creates an AAC track that declares the given bitrate in its esds.
+     */
+    public static Track createAudioTrack(int id, int sampleRate,
+                                         int channelCount, int bitrate) {
+        Track track = new Track(id);
+        track.setupAudio(sampleRate, channelCount, bitrate);
+        return track;
+    }
+
+    private void setupVideo(String mime, int width, int height, byte[] sps,
+                            byte[] pps) {
+        // one frame at 30 fps, for a track of a single frame
+        defaultSampleDuration = 3000;
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.sps = sps;
+        this.pps = pps;
+        timeScale = 90000;
+        handler = "vide";
+        headerBox = new VideoMediaHeaderBox();
+        sampleDescriptionBox = new SampleDescriptionBox();
+        if (mime.equals("video/avc")) {
+            VisualSampleEntry visualSampleEntry = new VisualSampleEntry(
+                    "avc1");
+            visualSampleEntry.setDataReferenceIndex(1);
+            visualSampleEntry.setDepth(24);
+            visualSampleEntry.setFrameCount(1);
+            visualSampleEntry.setHorizresolution(72);
+            visualSampleEntry.setVertresolution(72);
+            visualSampleEntry.setWidth(width);
+            visualSampleEntry.setHeight(height);
+
+            AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
+
+            if (sps != null && pps != null) {
+                ArrayList<byte[]> spsArray = new ArrayList<byte[]>();
+                spsArray.add(sps);
+                ArrayList<byte[]> ppsArray = new ArrayList<byte[]>();
+                ppsArray.add(pps);
+                avcConfigurationBox.setSequenceParameterSets(spsArray);
+                avcConfigurationBox.setPictureParameterSets(ppsArray);
+            }
+            // ByteArrayInputStream byteArrayInputStream = new
+            // ByteArrayInputStream(spsBytes);
+            // SeqParameterSet seqParameterSet =
+            // SeqParameterSet.read(byteArrayInputStream);
+
+            if (sps != null && sps.length > 3) {
+                // profile_idc, constraint flags and level_idc follow the
+                // NAL unit header
+                avcConfigurationBox.setAvcProfileIndication(sps[1] & 0xff);
+                avcConfigurationBox.setProfileCompatibility(sps[2] & 0xff);
+                avcConfigurationBox.setAvcLevelIndication(sps[3] & 0xff);
+            } else {
                 avcConfigurationBox.setAvcLevelIndication(13);
                 avcConfigurationBox.setAvcProfileIndication(100);
-                avcConfigurationBox.setBitDepthLumaMinus8(-1);
-                avcConfigurationBox.setBitDepthChromaMinus8(-1);
-                avcConfigurationBox.setChromaFormat(-1);
-                avcConfigurationBox.setConfigurationVersion(1);
-                avcConfigurationBox.setLengthSizeMinusOne(3);
                 avcConfigurationBox.setProfileCompatibility(0);
-
-                visualSampleEntry.addBox(avcConfigurationBox);
-                sampleDescriptionBox.addBox(visualSampleEntry);
-            } else if (mime.equals("video/mp4v")) {
-                VisualSampleEntry visualSampleEntry = new VisualSampleEntry(
-                        "mp4v");
-                visualSampleEntry.setDataReferenceIndex(1);
-                visualSampleEntry.setDepth(24);
-                visualSampleEntry.setFrameCount(1);
-                visualSampleEntry.setHorizresolution(72);
-                visualSampleEntry.setVertresolution(72);
-                visualSampleEntry.setWidth(width);
-                visualSampleEntry.setHeight(height);
-
-                sampleDescriptionBox.addBox(visualSampleEntry);
             }
-        } else {
-            sampleDurations.add((long) 1024);
-            duration = 1024;
-            isAudio = true;
-            volume = 1;
-            timeScale = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-            handler = "soun";
-            headerBox = new SoundMediaHeaderBox();
-            sampleDescriptionBox = new SampleDescriptionBox();
-            AudioSampleEntry audioSampleEntry = new AudioSampleEntry("mp4a");
-            audioSampleEntry.setChannelCount(format
-                    .getInteger(MediaFormat.KEY_CHANNEL_COUNT));
-            audioSampleEntry.setSampleRate(format
-                    .getInteger(MediaFormat.KEY_SAMPLE_RATE));
-            audioSampleEntry.setDataReferenceIndex(1);
-            audioSampleEntry.setSampleSize(16);
-
-            ESDescriptorBox esds = new ESDescriptorBox();
-            ESDescriptor descriptor = new ESDescriptor();
-            descriptor.setEsId(0);
-
-            SLConfigDescriptor slConfigDescriptor = new SLConfigDescriptor();
-            slConfigDescriptor.setPredefined(2);
-            descriptor.setSlConfigDescriptor(slConfigDescriptor);
-
-            DecoderConfigDescriptor decoderConfigDescriptor = new DecoderConfigDescriptor();
-            decoderConfigDescriptor.setObjectTypeIndication(0x40);
-            decoderConfigDescriptor.setStreamType(5);
-            decoderConfigDescriptor.setBufferSizeDB(1536);
-            decoderConfigDescriptor.setMaxBitRate(96000);
-            decoderConfigDescriptor.setAvgBitRate(96000);
-
-            AudioSpecificConfig audioSpecificConfig = new AudioSpecificConfig();
-            audioSpecificConfig.setAudioObjectType(2);
-            audioSpecificConfig
-                    .setSamplingFrequencyIndex(samplingFrequencyIndexMap
-                            .get((int) audioSampleEntry.getSampleRate()));
-            audioSpecificConfig.setChannelConfiguration(audioSampleEntry
-                    .getChannelCount());
-            decoderConfigDescriptor.setAudioSpecificInfo(audioSpecificConfig);
-
-            descriptor.setDecoderConfigDescriptor(decoderConfigDescriptor);
-
-            ByteBuffer data = descriptor.serialize();
-            esds.setEsDescriptor(descriptor);
-            esds.setData(data);
-            audioSampleEntry.addBox(esds);
-            sampleDescriptionBox.addBox(audioSampleEntry);
+            avcConfigurationBox.setBitDepthLumaMinus8(-1);
+            avcConfigurationBox.setBitDepthChromaMinus8(-1);
+            avcConfigurationBox.setChromaFormat(-1);
+            avcConfigurationBox.setConfigurationVersion(1);
+            avcConfigurationBox.setLengthSizeMinusOne(3);
+
+            visualSampleEntry.addBox(avcConfigurationBox);
+            sampleDescriptionBox.addBox(visualSampleEntry);
+        } else if (mime.equals("video/mp4v")) {
+            VisualSampleEntry visualSampleEntry = new VisualSampleEntry(
+                    "mp4v");
+            visualSampleEntry.setDataReferenceIndex(1);
+            visualSampleEntry.setDepth(24);
+            visualSampleEntry.setFrameCount(1);
+            visualSampleEntry.setHorizresolution(72);
+            visualSampleEntry.setVertresolution(72);
+            visualSampleEntry.setWidth(width);
+            visualSampleEntry.setHeight(height);
+
+            sampleDescriptionBox.addBox(visualSampleEntry);
         }
     }
 
+    private void setupAudio(int sampleRate, int channelCount, int bitrate) {
+        // one AAC frame
+        defaultSampleDuration = 1024;
+        isAudio = true;
+        volume = 1;
+        mime = "audio/mp4a-latm";
+        this.channelCount = channelCount;
+        timeScale = sampleRate;
+        handler = "soun";
+        headerBox = new SoundMediaHeaderBox();
+        sampleDescriptionBox = new SampleDescriptionBox();
+        AudioSampleEntry audioSampleEntry = new AudioSampleEntry("mp4a");
+        audioSampleEntry.setChannelCount(channelCount);
+        audioSampleEntry.setSampleRate(sampleRate);
+        audioSampleEntry.setDataReferenceIndex(1);
+        audioSampleEntry.setSampleSize(16);
+
+        ESDescriptorBox esds = new ESDescriptorBox();
+        ESDescriptor descriptor = new ESDescriptor();
+        descriptor.setEsId(0);
+
+        SLConfigDescriptor slConfigDescriptor = new SLConfigDescriptor();
+        slConfigDescriptor.setPredefined(2);
+        descriptor.setSlConfigDescriptor(slConfigDescriptor);
+
+        DecoderConfigDescriptor decoderConfigDescriptor = new DecoderConfigDescriptor();
+        decoderConfigDescriptor.setObjectTypeIndication(0x40);
+        decoderConfigDescriptor.setStreamType(5);
+        decoderConfigDescriptor.setBufferSizeDB(1536);
+        decoderConfigDescriptor.setMaxBitRate(bitrate);
+        decoderConfigDescriptor.setAvgBitRate(bitrate);
+
+        AudioSpecificConfig audioSpecificConfig = new AudioSpecificConfig();
+        audioSpecificConfig.setAudioObjectType(2);
+        audioSpecificConfig
+                .setSamplingFrequencyIndex(samplingFrequencyIndexMap
+                        .get((int) audioSampleEntry.getSampleRate()));
+        audioSpecificConfig.setChannelConfiguration(audioSampleEntry
+                .getChannelCount());
+        decoderConfigDescriptor.setAudioSpecificInfo(audioSpecificConfig);
+
+        descriptor.setDecoderConfigDescriptor(decoderConfigDescriptor);
+
+        ByteBuffer data = descriptor.serialize();
+        esds.setEsDescriptor(descriptor);
+        esds.setData(data);
+        audioSampleEntry.addBox(esds);
+        sampleDescriptionBox.addBox(audioSampleEntry);
+    }
+
     public long getTrackId() {
         return trackId;
     }
 
-    public void addSample(long offset, MediaCodec.BufferInfo bufferInfo) {
-        boolean isSyncFrame = !isAudio
-                && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        samples.add(new Sample(offset, bufferInfo.size));
-        if (syncSamples != null && isSyncFrame) {
-            syncSamples.add(samples.size());
+    public void addSample(long offset, MediaCodec.BufferInfo bufferInfo)
+            throws IOException {
+        addSample(offset, bufferInfo.size, bufferInfo.presentationTimeUs,
+                bufferInfo.flags);
+    }
+
+    /**
+     * Adds a sample in decode order. Its decode time and duration are
+     * worked out once the samples it may be reordered with have arrived, or
+     * by {@link #finishSamples}.
+     */
+    // BUFFER_FLAG_KEY_FRAME, which has the same value, needs API 21
+    @SuppressWarnings("deprecation")
+    public void addSample(long offset, int size, long presentationTimeUs,
+                          int flags) throws IOException {
+        if (first) {
+            firstPresentationTimeUs = presentationTimeUs;
+            first = false;
+        }
+        lastPresentationTimeUs = presentationTimeUs;
+        if (pendingCount == REORDER_DEPTH) {
+            commitOldestSample();
+        }
+        int index = (pendingStart + pendingCount) % REORDER_DEPTH;
+        pendingOffsets[index] = offset;
+        pendingSizes[index] = size;
+        pendingSyncs[index] = !isAudio
+                && (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        // converted from the first time on, not from the previous sample,
+        // so rounding does not add up
+        long time = toTicks(presentationTimeUs - firstPresentationTimeUs);
+        pendingTimes[index] = time;
+        int i = pendingCount;
+        while (i > 0 && sortedTimes[i - 1] > time) {
+            sortedTimes[i] = sortedTimes[i - 1];
+            i--;
+        }
+        sortedTimes[i] = time;
+        pendingCount++;
+    }
+
+    /**
+     * Moves the samples still waiting for their decode times into the
+     * sample table. Called before the moov box is written; no samples may
+     * be added afterwards.
+     */
+    public void finishSamples() throws IOException {
+        while (pendingCount > 0) {
+            commitOldestSample();
         }
+    }
 
-        long delta = bufferInfo.presentationTimeUs - lastPresentationTimeUs;
-        lastPresentationTimeUs = bufferInfo.presentationTimeUs;
-        delta = (delta * timeScale + 500000L) / 1000000L;
-        if (!first) {
-            sampleDurations.add(sampleDurations.size() - 1, delta);
-            duration += delta;
+    private void commitOldestSample() throws IOException {
+        long decodeTime = sortedTimes[0];
+        System.arraycopy(sortedTimes, 1, sortedTimes, 0, pendingCount - 1);
+        if (firstDecodeTime < 0) {
+            firstDecodeTime = decodeTime;
+            lastSampleDuration = defaultSampleDuration;
+        } else {
+            if (decodeTime < lastDecodeTime) {
+                // reordered further than the window reaches
+                decodeTime = lastDecodeTime;
+            }
+            sampleTable.setLastDuration(decodeTime - lastDecodeTime);
+            if (!isAudio) {
+                // the last frame lasts as long as the one before it, which
+                // follows the frame rate the frames were encoded at
+                lastSampleDuration = decodeTime - lastDecodeTime;
+            }
         }
-        first = false;
+        lastDecodeTime = decodeTime;
+        duration = decodeTime - firstDecodeTime + lastSampleDuration;
+
+        int index = pendingStart;
+        sampleTable.add(pendingOffsets[index], pendingSizes[index],
+                pendingSyncs[index], lastSampleDuration,
+                (int) (pendingTimes[index] - decodeTime));
+        pendingStart = (pendingStart + 1) % REORDER_DEPTH;
+        pendingCount--;
+    }
+
+    /**
+     * Rounds a time in microseconds to the nearest tick of the time scale.
+     */
+    private long toTicks(long timeUs) {
+        long scaled = timeUs * timeScale + 500000L;
+        // rounds down for negative times as well
+        return scaled >= 0 ? scaled / 1000000L
+                : (scaled - 999999L) / 1000000L;
     }
 
-    public ArrayList<Sample> getSamples() {
-        return samples;
+    /**
+     * Offsets, sizes, durations, composition offsets and sync flags of the
+     * samples added so far, except those still waiting for their decode
+     * times.
+     */
+    public SampleTable getSampleTable() {
+        return sampleTable;
     }
 
+    /**
+     * Puts the scratch file of the sample table into directory, e.g. next
+     * to the output.
+     */
+    public void setScratchDirectory(File directory) {
+        sampleTable.setDirectory(directory);
+    }
+
+    /**
+     * Duration in time scale units of the samples in the sample table.
+     */
     public long getDuration() {
         return duration;
     }
@@ -225,17 +400,6 @@ public class Track {
         return sampleDescriptionBox;
     }
 
-    public long[] getSyncSamples() {
-        if (syncSamples == null || syncSamples.isEmpty()) {
-            return null;
-        }
-        long[] returns = new long[syncSamples.size()];
-        for (int i = 0; i < syncSamples.size(); i++) {
-            returns[i] = syncSamples.get(i);
-        }
-        return returns;
-    }
-
     public int getTimeScale() {
         return timeScale;
     }
@@ -256,11 +420,27 @@ public class Track {
         return volume;
     }
 
-    public ArrayList<Long> getSampleDurations() {
-        return sampleDurations;
-    }
-
     public boolean isAudio() {
         return isAudio;
     }
+
+    public String getMime() {
+        return mime;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public byte[] getSequenceParameterSet() {
+        return sps;
+    }
+
+    public byte[] getPictureParameterSet() {
+        return pps;
+    }
+
+    public long getLastPresentationTimeUs() {
+        return lastPresentationTimeUs;
+    }
 }
@@ -0,0 +1,47 @@
+package com.hello1987.videoconverter.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base 128 varints, with zigzag encoding for signed deltas, as used by the
+ * compact sample records of {@link SampleTable} and
+ * {@link ConversionJournal}.
+ */
+final class Varints {
+
+    /**
+     * Most bytes a long takes.
+     */
+    static final int MAX_SIZE = 10;
+
+    private Varints() {
+    }
+
+    static void put(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long get(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,219 @@
+package com.hello1987.videoconverter.pipeline;
+
+import com.hello1987.videoconverter.VideoLog;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of direct buffers in power-of-two size classes from 4 KB to 8 MB,
+ * shared by the pipeline stages, the muxer side and the pass-through copy so
+ * that conversions after the first one allocate no native memory. Larger
+ * requests are allocated exactly and not kept. Idle buffers are kept up to
+ * a byte budget; {@link #clear()} drops them.
+ * <p>
+ * With leak detection on, every buffer handed out is watched through a weak
+ * reference, and one that is collected without having been released is
+ * logged with the stack that acquired it.
+ */
+public class BufferPool {
+
+    private static final String TAG = "BufferPool";
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 23;
+    private static final long DEFAULT_MAX_IDLE_BYTES = 32L * 1024 * 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_IDLE_BYTES);
+
+    private final ArrayList<ArrayDeque<ByteBuffer>> idle =
+            new ArrayList<ArrayDeque<ByteBuffer>>();
+    private final long maxIdleBytes;
+    private long idleBytes;
+    private long allocationCount;
+
+    private ReferenceQueue<ByteBuffer> leakQueue;
+    private Map<Integer, List<LeakRef>> outstanding;
+    private int leakCount;
+
+    /**
+     * The pool the library's own stages use.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    public BufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+        for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            idle.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Returns a cleared, big endian direct buffer of at least capacity
+     * bytes. Hand it back with {@link #release} once nothing reads it any
+     * more.
+     */
+    public synchronized ByteBuffer acquire(int capacity) {
+        int shift = shiftFor(capacity);
+        ByteBuffer buffer = null;
+        if (shift <= MAX_SHIFT) {
+            buffer = idle.get(shift - MIN_SHIFT).poll();
+            if (buffer != null) {
+                idleBytes -= buffer.capacity();
+            } else {
+                buffer = ByteBuffer.allocateDirect(1 << shift);
+                allocationCount++;
+            }
+        } else {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocationCount++;
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (outstanding != null) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Takes back a buffer from {@link #acquire}. The caller must not touch
+     * it afterwards.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (outstanding != null) {
+            untrack(buffer);
+        }
+        int capacity = buffer.capacity();
+        int shift = shiftFor(capacity);
+        if (shift > MAX_SHIFT || capacity != 1 << shift
+                || idleBytes + capacity > maxIdleBytes) {
+            return;
+        }
+        idle.get(shift - MIN_SHIFT).push(buffer);
+        idleBytes += capacity;
+    }
+
+    /**
+     * Turns leak detection on or off; it is off until turned on. Buffers
+     * acquired while it was off are not watched.
+     */
+    public synchronized void setLeakDetection(boolean enabled) {
+        if (enabled && outstanding == null) {
+            leakQueue = new ReferenceQueue<ByteBuffer>();
+            outstanding = new HashMap<Integer, List<LeakRef>>();
+        } else if (!enabled) {
+            leakQueue = null;
+            outstanding = null;
+        }
+    }
+
+    /**
+     * Number of buffers that were collected without being released since
+     * leak detection was turned on. Checked on every acquire.
+     */
+    public synchronized int getLeakCount() {
+        if (outstanding != null) {
+            pollLeaks();
+        }
+        return leakCount;
+    }
+
+    /**
+     * Number of direct buffers allocated so far.
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * Drops all idle buffers, e.g. from onTrimMemory.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<ByteBuffer> buffers : idle) {
+            buffers.clear();
+        }
+        idleBytes = 0;
+    }
+
+    private static int shiftFor(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) {
+            return MIN_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private void track(ByteBuffer buffer) {
+        pollLeaks();
+        int key = System.identityHashCode(buffer);
+        List<LeakRef> refs = outstanding.get(key);
+        if (refs == null) {
+            refs = new ArrayList<LeakRef>(1);
+            outstanding.put(key, refs);
+        }
+        refs.add(new LeakRef(buffer, leakQueue, key));
+    }
+
+    private void untrack(ByteBuffer buffer) {
+        int key = System.identityHashCode(buffer);
+        List<LeakRef> refs = outstanding.get(key);
+        if (refs == null) {
+            return;
+        }
+        for (int i = 0; i < refs.size(); i++) {
+            if (refs.get(i).get() == buffer) {
+                // a cleared reference is never enqueued
+                refs.remove(i).clear();
+                break;
+            }
+        }
+        if (refs.isEmpty()) {
+            outstanding.remove(key);
+        }
+    }
+
+    private void pollLeaks() {
+        LeakRef ref;
+        while ((ref = (LeakRef) leakQueue.poll()) != null) {
+            List<LeakRef> refs = outstanding.get(ref.key);
+            if (refs != null) {
+                refs.remove(ref);
+                if (refs.isEmpty()) {
+                    outstanding.remove(ref.key);
+                }
+            }
+            leakCount++;
+            StringWriter trace = new StringWriter();
+            ref.acquiredAt.printStackTrace(new PrintWriter(trace));
+            VideoLog.e(TAG, "direct buffer collected without release, "
+                    + trace);
+        }
+    }
+
+    private static final class LeakRef extends WeakReference<ByteBuffer> {
+        final int key;
+        final Throwable acquiredAt;
+
+        LeakRef(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, int key) {
+            super(buffer, queue);
+            this.key = key;
+            acquiredAt = new Throwable("acquired " + buffer.capacity()
+                    + " bytes");
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.hello1987.videoconverter.pipeline;
+
+import com.hello1987.videoconverter.mp4.MP4Builder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Mux stage: copies samples into a bounded queue and writes them into an
+ * {@link MP4Builder} on its own thread, so disk writes overlap with
+ * encoding. The builder must not be used by anyone else between
+ * {@link #start()} and {@link #finish()} or {@link #abort()}, except for
+ * adding tracks before the first sample of that track is queued.
+ */
+public class MuxerStage {
+
+    private final MP4Builder muxer;
+    private final StageQueue<Packet> free;
+    private final StageQueue<Packet> filled;
+    private final Packet[] packets;
+    private final Listener listener;
+    private PipelineStats stats;
+
+    private Thread thread;
+    private volatile Exception failure;
+
+    public MuxerStage(MP4Builder muxer, int capacity, Listener listener) {
+        this.muxer = muxer;
+        this.listener = listener;
+        free = new StageQueue<Packet>("mux.free", capacity);
+        filled = new StageQueue<Packet>("mux", capacity);
+        packets = new Packet[capacity];
+        try {
+            for (int i = 0; i < capacity; i++) {
+                packets[i] = new Packet();
+                free.put(packets[i]);
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Samples waiting to be written; the put stall of the free queue is the
+     * time the encoder was held back by the disk.
+     */
+    public StageQueue<?> getQueue() {
+        return filled;
+    }
+
+    public StageQueue<?> getFreeQueue() {
+        return free;
+    }
+
+    public void setStats(PipelineStats stats) {
+        this.stats = stats;
+    }
+
+    public void start() {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "VideoMux");
+        thread.start();
+    }
+
+    /**
+     * Queues a copy of the sample; blocks while the queue is full. Throws
+     * the writer's exception if writing failed.
+     */
+    public void write(int trackIndex, ByteBuffer data, int offset, int size,
+                      long presentationTimeUs, int flags, boolean isAudio)
+            throws Exception {
+        Packet packet;
+        try {
+            packet = free.take();
+            ByteBuffer buffer = packet.prepare(size);
+            ByteBuffer source = data.duplicate();
+            source.limit(offset + size).position(offset);
+            buffer.put(source);
+            buffer.flip();
+            packet.trackIndex = trackIndex;
+            packet.size = size;
+            packet.presentationTimeUs = presentationTimeUs;
+            packet.flags = flags;
+            packet.audio = isAudio;
+            filled.put(packet);
+        } catch (CancellationException e) {
+            throw failure != null ? failure : e;
+        }
+    }
+
+    /**
+     * Writes everything queued, stops the thread and rethrows a write
+     * failure.
+     */
+    public void finish() throws Exception {
+        try {
+            Packet packet = free.take();
+            packet.endOfStream = true;
+            filled.put(packet);
+        } catch (CancellationException e) {
+            // the writer failed, reported below
+        }
+        join();
+        recycle();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the thread, dropping queued samples.
+     */
+    public void abort() {
+        free.abort();
+        filled.abort();
+        join();
+        recycle();
+    }
+
+    private void recycle() {
+        for (Packet packet : packets) {
+            packet.recycle();
+        }
+    }
+
+    private void join() {
+        boolean interrupted = false;
+        while (thread != null) {
+            try {
+                thread.join();
+                thread = null;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Packet packet = filled.take();
+                if (packet.endOfStream) {
+                    return;
+                }
+                if (stats != null) {
+                    stats.markOutput();
+                }
+                boolean chunkWritten = muxer.writeSampleData(packet.trackIndex,
+                        packet.buffer, 0, packet.size,
+                        packet.presentationTimeUs, packet.flags, packet.audio);
+                if (listener != null) {
+                    listener.onSampleWritten(packet.presentationTimeUs,
+                            packet.size, chunkWritten);
+                }
+                free.put(packet);
+            }
+        } catch (CancellationException e) {
+            // aborted
+        } catch (Exception e) {
+            failure = e;
+            free.abort();
+            filled.abort();
+        }
+    }
+
+    /**
+     * Called on the mux thread after every sample.
+     */
+    public interface Listener {
+        void onSampleWritten(long presentationTimeUs, int size,
+                             boolean chunkWritten);
+    }
+}
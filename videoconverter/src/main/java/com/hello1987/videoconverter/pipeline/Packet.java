@@ -0,0 +1,44 @@
+package com.hello1987.videoconverter.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One sample travelling between pipeline stages. Packets circulate between
+ * a free and a filled {@link StageQueue}, so their buffers are reused; the
+ * buffers come from the {@link BufferPool} and go back to it with
+ * {@link #recycle()}.
+ */
+class Packet {
+    ByteBuffer buffer;
+    int trackIndex;
+    int size;
+    long presentationTimeUs;
+    int flags;
+    boolean audio;
+    boolean endOfStream;
+
+    /**
+     * Makes sure the buffer holds at least capacity bytes and clears it.
+     */
+    ByteBuffer prepare(int capacity) {
+        if (buffer == null || buffer.capacity() < capacity) {
+            if (buffer != null) {
+                BufferPool.getDefault().release(buffer);
+            }
+            buffer = BufferPool.getDefault().acquire(capacity);
+        }
+        buffer.clear();
+        endOfStream = false;
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool once the packet is no longer used.
+     */
+    void recycle() {
+        if (buffer != null) {
+            BufferPool.getDefault().release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.hello1987.videoconverter.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Observes a running pipeline: the queues between its stages and the fill
+ * time, i.e. how long the first sample took to travel from the source to the
+ * muxer.
+ */
+public class PipelineStats {
+
+    private final List<StageQueue<?>> queues = new ArrayList<StageQueue<?>>();
+    private volatile long startNanos = -1;
+    private volatile long firstOutputNanos = -1;
+
+    public void addQueue(StageQueue<?> queue) {
+        synchronized (queues) {
+            queues.add(queue);
+        }
+    }
+
+    public List<StageQueue<?>> getQueues() {
+        synchronized (queues) {
+            return Collections.unmodifiableList(new ArrayList<StageQueue<?>>(
+                    queues));
+        }
+    }
+
+    public void markStarted() {
+        startNanos = System.nanoTime();
+        firstOutputNanos = -1;
+    }
+
+    void markOutput() {
+        if (firstOutputNanos == -1 && startNanos != -1) {
+            firstOutputNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Nanoseconds from {@link #markStarted()} to the first sample reaching
+     * the end of the pipeline, or -1 if none has yet.
+     */
+    public long getFillTimeNanos() {
+        long first = firstOutputNanos;
+        return first == -1 ? -1 : first - startNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("fillMs=");
+        long fill = getFillTimeNanos();
+        builder.append(fill == -1 ? -1 : fill / 1000000);
+        for (StageQueue<?> queue : getQueues()) {
+            builder.append(' ').append(queue);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,264 @@
+package com.hello1987.videoconverter.pipeline;
+
+import com.hello1987.videoconverter.codec.MediaSource;
+import com.hello1987.videoconverter.codec.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Demux stage: reads samples of the selected tracks ahead on its own thread
+ * into a bounded queue, so disk reads overlap with decoding. Reading
+ * through this source returns the same samples in the same order as the
+ * wrapped one. Selecting a track, seeking or releasing stops the read-ahead
+ * and drops what was prefetched; it restarts on the next read.
+ * <p>
+ * The wrapped source is only used by the demux thread while it runs, and
+ * by the caller otherwise.
+ */
+public class PrefetchingMediaSource implements MediaSource {
+
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 1024 * 1024;
+
+    private final MediaSource source;
+    private final StageQueue<Packet> free;
+    private final StageQueue<Packet> filled;
+    private final Packet[] packets;
+    private final int[] maxSampleSizes;
+
+    private Thread thread;
+    private volatile boolean stopping;
+    private volatile RuntimeException failure;
+    private Packet current;
+
+    public PrefetchingMediaSource(MediaSource source, int capacity) {
+        this.source = source;
+        free = new StageQueue<Packet>("demux.free", capacity);
+        filled = new StageQueue<Packet>("demux", capacity);
+        packets = new Packet[capacity];
+        for (int i = 0; i < capacity; i++) {
+            packets[i] = new Packet();
+        }
+        refill();
+        maxSampleSizes = new int[source.getTrackCount()];
+        for (int i = 0; i < maxSampleSizes.length; i++) {
+            maxSampleSizes[i] = source.getTrackFormat(i).getInteger(
+                    TrackFormat.KEY_MAX_INPUT_SIZE, DEFAULT_MAX_SAMPLE_SIZE);
+        }
+    }
+
+    /**
+     * Samples read ahead; the take stall is the time the consumer waited for
+     * the disk.
+     */
+    public StageQueue<?> getQueue() {
+        return filled;
+    }
+
+    /**
+     * Empty packets; the take stall is the time the reader was held back
+     * because the consumer fell behind.
+     */
+    public StageQueue<?> getFreeQueue() {
+        return free;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return source.getTrackCount();
+    }
+
+    @Override
+    public TrackFormat getTrackFormat(int index) {
+        return source.getTrackFormat(index);
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        stop();
+        source.selectTrack(index);
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        stop();
+        source.unselectTrack(index);
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        stop();
+        source.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        Packet packet = current();
+        return packet.endOfStream ? -1 : packet.trackIndex;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        Packet packet = current();
+        if (packet.endOfStream) {
+            return -1;
+        }
+        ByteBuffer data = packet.buffer.duplicate();
+        data.position(0).limit(packet.size);
+        buffer.clear();
+        buffer.position(offset);
+        buffer.put(data);
+        buffer.limit(offset + packet.size);
+        buffer.position(offset);
+        return packet.size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        Packet packet = current();
+        return packet.endOfStream ? -1 : packet.presentationTimeUs;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        Packet packet = current();
+        return packet.endOfStream ? 0 : packet.flags;
+    }
+
+    @Override
+    public boolean advance() {
+        Packet packet = current();
+        if (packet.endOfStream) {
+            return false;
+        }
+        current = null;
+        recycle(packet);
+        return !current().endOfStream;
+    }
+
+    @Override
+    public void release() {
+        stop();
+        for (Packet packet : packets) {
+            packet.recycle();
+        }
+        source.release();
+    }
+
+    private Packet current() {
+        if (current == null) {
+            if (thread == null) {
+                start();
+            }
+            try {
+                current = filled.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (current.endOfStream && failure != null) {
+            throw failure;
+        }
+        return current;
+    }
+
+    private void recycle(Packet packet) {
+        try {
+            free.put(packet);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void start() {
+        stopping = false;
+        failure = null;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, "VideoDemux");
+        thread.start();
+    }
+
+    private void prefetch() {
+        Packet packet = null;
+        try {
+            while (!stopping) {
+                packet = free.take();
+                int track = source.getSampleTrackIndex();
+                if (track < 0) {
+                    packet.endOfStream = true;
+                    filled.put(packet);
+                    return;
+                }
+                ByteBuffer buffer = packet.prepare(maxSampleSizes[track]);
+                packet.size = source.readSampleData(buffer, 0);
+                if (packet.size < 0) {
+                    packet.endOfStream = true;
+                    filled.put(packet);
+                    return;
+                }
+                packet.trackIndex = track;
+                packet.presentationTimeUs = source.getSampleTime();
+                packet.flags = source.getSampleFlags();
+                source.advance();
+                filled.put(packet);
+                packet = null;
+            }
+        } catch (CancellationException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (RuntimeException e) {
+            failure = e;
+            if (packet != null) {
+                packet.endOfStream = true;
+                try {
+                    filled.put(packet);
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the demux thread and returns every packet to the free queue.
+     */
+    private void stop() {
+        if (thread == null) {
+            return;
+        }
+        stopping = true;
+        free.abort();
+        filled.abort();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        thread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        filled.clear();
+        current = null;
+        refill();
+    }
+
+    private void refill() {
+        free.clear();
+        try {
+            for (Packet packet : packets) {
+                free.put(packet);
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
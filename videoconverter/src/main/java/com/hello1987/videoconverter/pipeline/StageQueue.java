@@ -0,0 +1,219 @@
+package com.hello1987.videoconverter.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue between two pipeline stages. put blocks while the queue is
+ * full, which is what propagates back-pressure to the producing stage, and
+ * take blocks while it is empty. Both record how long they stalled, and the
+ * queue tracks its occupancy, so a slow stage shows up as the queue in front
+ * of it running full.
+ * <p>
+ * {@link #abort()} wakes up all waiters with a {@link CancellationException}
+ * so a failing stage can stop the others without interrupting their
+ * threads.
+ */
+public class StageQueue<T> {
+
+    private final String name;
+    private final Object[] items;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head;
+    private int count;
+    private boolean aborted;
+
+    private long puts;
+    private long occupancySum;
+    private int maxOccupancy;
+    private long putStallNanos;
+    private long takeStallNanos;
+
+    public StageQueue(String name, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        this.name = name;
+        items = new Object[capacity];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return items.length;
+    }
+
+    public void put(T item) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (count == items.length && !aborted) {
+                long start = System.nanoTime();
+                while (count == items.length && !aborted) {
+                    notFull.await();
+                }
+                putStallNanos += System.nanoTime() - start;
+            }
+            checkAborted();
+            items[(head + count) % items.length] = item;
+            count++;
+            puts++;
+            occupancySum += count;
+            if (count > maxOccupancy) {
+                maxOccupancy = count;
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (count == 0 && !aborted) {
+                long start = System.nanoTime();
+                while (count == 0 && !aborted) {
+                    notEmpty.await();
+                }
+                takeStallNanos += System.nanoTime() - start;
+            }
+            checkAborted();
+            T item = (T) items[head];
+            items[head] = null;
+            head = (head + 1) % items.length;
+            count--;
+            notFull.signal();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fails every current and future put and take until {@link #clear()}.
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns all queued items and lifts an abort. Statistics
+     * are kept.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> clear() {
+        lock.lock();
+        try {
+            List<T> removed = new ArrayList<T>(count);
+            while (count > 0) {
+                removed.add((T) items[head]);
+                items[head] = null;
+                head = (head + 1) % items.length;
+                count--;
+            }
+            aborted = false;
+            notFull.signalAll();
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkAborted() {
+        if (aborted) {
+            throw new CancellationException(name + " aborted");
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPutCount() {
+        lock.lock();
+        try {
+            return puts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Average number of queued items right after a put.
+     */
+    public float getAverageOccupancy() {
+        lock.lock();
+        try {
+            return puts == 0 ? 0 : (float) occupancySum / puts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxOccupancy() {
+        lock.lock();
+        try {
+            return maxOccupancy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total time producers waited for room.
+     */
+    public long getPutStallNanos() {
+        lock.lock();
+        try {
+            return putStallNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total time consumers waited for items.
+     */
+    public long getTakeStallNanos() {
+        lock.lock();
+        try {
+            return takeStallNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return name + "{items=" + puts + ", capacity=" + items.length
+                    + ", avg=" + String.format("%.1f", puts == 0 ? 0f
+                    : (float) occupancySum / puts) + ", max=" + maxOccupancy
+                    + ", putStallMs=" + putStallNanos / 1000000
+                    + ", takeStallMs=" + takeStallNanos / 1000000 + "}";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.hello1987.videoconverter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BitrateControllerTest {
+
+    private static final long DURATION_US = 60000000;
+    private static final long BUDGET = 3000000;
+
+    @Test
+    public void landsOnBudgetDespiteEncoderOvershoot() {
+        BitrateController controller = new BitrateController(BUDGET, 0,
+                DURATION_US, 8000000);
+        assertEquals(400000, controller.getBitrate());
+        int bitrate = controller.getBitrate();
+        for (int i = 0; i < 30 * 60; i++) {
+            // a second GOP with a key frame three times the size, 30% more
+            // than asked for overall
+            double average = bitrate / 8.0 / 30 * 1.3;
+            int size = (int) (i % 30 == 0 ? average * 3 : average * 28 / 29);
+            int next = controller.onSampleWritten(i * 1000000L / 30, size);
+            if (next > 0) {
+                bitrate = next;
+            }
+        }
+        assertFalse(controller.isBudgetExhausted());
+        assertEquals(BUDGET, controller.getBytesWritten(), BUDGET * 0.03);
+    }
+
+    @Test
+    public void endsEarlyWhenEncoderIgnoresTheBitrate() {
+        BitrateController controller = new BitrateController(BUDGET, 0,
+                DURATION_US, 8000000);
+        int size = controller.getBitrate() / 8 / 30 * 2;
+        long timeUs = 0;
+        for (int i = 0; !controller.isBudgetExhausted(); i++) {
+            timeUs = i * 1000000L / 30;
+            controller.onSampleWritten(timeUs, size);
+        }
+        assertTrue(timeUs < DURATION_US / 2);
+        assertEquals(timeUs, controller.getLatestTimeUs());
+        // half a second more still fits, less the frame that tipped it
+        assertTrue(controller.getBytesWritten() + 14 * size <= BUDGET);
+    }
+}
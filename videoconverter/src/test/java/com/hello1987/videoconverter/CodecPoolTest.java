@@ -0,0 +1,118 @@
+package com.hello1987.videoconverter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CodecPoolTest {
+
+    private static final CodecPool.Key ENCODER_720P = new CodecPool.Key(true,
+            "video/avc", 1280, 720);
+    private static final CodecPool.Key ENCODER_480P = new CodecPool.Key(true,
+            "video/avc", 854, 480);
+
+    private final FakeAdapter adapter = new FakeAdapter();
+    private long now = 0;
+
+    private final CodecPool<FakeCodec> pool = new CodecPool<FakeCodec>(adapter,
+            2, 1000) {
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void reusesCodecForSameKey() throws Exception {
+        FakeCodec first = pool.acquire(ENCODER_720P);
+        pool.recycle(ENCODER_720P, first);
+
+        assertSame(first, pool.acquire(new CodecPool.Key(true, "video/avc",
+                1280, 720)));
+        assertEquals(1, first.resets);
+        assertEquals(1, adapter.created);
+    }
+
+    @Test
+    public void createsNewCodecForOtherKey() throws Exception {
+        FakeCodec first = pool.acquire(ENCODER_720P);
+        pool.recycle(ENCODER_720P, first);
+
+        FakeCodec other = pool.acquire(ENCODER_480P);
+        assertNotSame(first, other);
+        assertEquals(2, adapter.created);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void releasesCodecsThatFailToReset() throws Exception {
+        FakeCodec codec = pool.acquire(ENCODER_720P);
+        codec.failReset = true;
+        pool.recycle(ENCODER_720P, codec);
+
+        assertTrue(codec.released);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void limitsIdleCodecsPerKey() throws Exception {
+        FakeCodec a = pool.acquire(ENCODER_720P);
+        FakeCodec b = pool.acquire(ENCODER_720P);
+        FakeCodec c = pool.acquire(ENCODER_720P);
+        pool.recycle(ENCODER_720P, a);
+        pool.recycle(ENCODER_720P, b);
+        pool.recycle(ENCODER_720P, c);
+
+        assertTrue(a.released);
+        assertFalse(b.released);
+        assertFalse(c.released);
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void evictsIdleCodecsAfterTimeout() throws Exception {
+        FakeCodec old = pool.acquire(ENCODER_720P);
+        FakeCodec recent = pool.acquire(ENCODER_480P);
+        pool.recycle(ENCODER_720P, old);
+        now = 600;
+        pool.recycle(ENCODER_480P, recent);
+
+        now = 1200;
+        pool.evictIdle();
+        assertTrue(old.released);
+        assertFalse(recent.released);
+
+        pool.clear();
+        assertTrue(recent.released);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    private static class FakeCodec {
+        private int resets;
+        private boolean failReset;
+        private boolean released;
+    }
+
+    private static class FakeAdapter implements CodecPool.Adapter<FakeCodec> {
+        private int created;
+
+        @Override
+        public FakeCodec create(CodecPool.Key key) {
+            created++;
+            return new FakeCodec();
+        }
+
+        @Override
+        public void reset(FakeCodec codec) throws Exception {
+            if (codec.failReset) {
+                throw new IllegalStateException("codec in error state");
+            }
+            codec.resets++;
+        }
+
+        @Override
+        public void release(FakeCodec codec) {
+            codec.released = true;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.hello1987.videoconverter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ComplexityAnalyzerTest {
+
+    /**
+     * 10 s at 30 fps with a key frame every 30 frames.
+     */
+    private static ComplexityAnalyzer analyze(long keySize, long interSize) {
+        long[] sizes = new long[300];
+        long[] sync = new long[10];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = i % 30 == 0 ? keySize : interSize + i % 7;
+        }
+        for (int i = 0; i < sync.length; i++) {
+            sync[i] = i * 30 + 1;
+        }
+        return new ComplexityAnalyzer(sizes, sync, 10);
+    }
+
+    @Test
+    public void derivesGopStatisticsFromSampleTable() {
+        ComplexityAnalyzer complexity = analyze(60000, 3000);
+        assertEquals(300, complexity.getFrameCount());
+        assertEquals(30, complexity.getFrameRate(), 0.01);
+        assertEquals(60000, complexity.getKeyFrameSize(), 0.01);
+        assertEquals(30, complexity.getKeyFrameSpacing(), 0.01);
+        assertEquals(3003, complexity.getInterFrameSize(), 3);
+        assertTrue(complexity.getInterFrameSize90() >= 3005);
+        assertEquals(0.05, complexity.getMotion(), 0.001);
+
+        // no stss: every frame is a key frame
+        ComplexityAnalyzer intra = new ComplexityAnalyzer(
+                new long[]{100, 100, 100}, null, 0.1);
+        assertEquals(1, intra.getMotion(), 0);
+        assertEquals(1, intra.getKeyFrameSpacing(), 0);
+    }
+
+    @Test
+    public void spendsBitsWhereTheMotionIs() {
+        EncodingRules rules = EncodingRules.createDefault();
+        // 1080p phone recording at 17 Mbit/s
+        EncodingRules.Selection screen = rules.select(analyze(200000, 1000),
+                1920, 1080, 17000000);
+        EncodingRules.Selection talk = rules.select(analyze(100000, 8000),
+                1920, 1080, 17000000);
+        EncodingRules.Selection sports = rules.select(analyze(80000, 40000),
+                1920, 1080, 17000000);
+
+        // static content keeps more of its pixels for legible text
+        assertEquals(960, screen.getWidth());
+        assertEquals(540, screen.getHeight());
+        assertEquals(640, talk.getWidth());
+        assertEquals(360, talk.getHeight());
+        assertEquals(640, sports.getWidth());
+        assertTrue(screen.getBitrate() < talk.getBitrate());
+        assertTrue(talk.getBitrate() < sports.getBitrate());
+
+        // never above the source, never scaled up
+        EncodingRules.Selection small = rules.select(analyze(80000, 40000),
+                320, 240, 200000);
+        assertEquals(320, small.getWidth());
+        assertEquals(200000, small.getBitrate());
+    }
+
+    @Test
+    public void usesConfiguredRules() {
+        EncodingRules rules = new EncodingRules()
+                .addRule(1, 1280, 0.1f)
+                .addRule(0.1f, 480, 0.05f);
+        EncodingRules.Selection selection = rules.select(analyze(60000, 3000),
+                1920, 1080, 0);
+        assertEquals(480, selection.getWidth());
+        assertEquals(270 & ~1, selection.getHeight());
+        assertEquals((int) (0.05f * 480 * 270 * 30), selection.getBitrate(),
+                1000);
+        assertNull(new EncodingRules().select(analyze(1, 1), 100, 100, 0));
+    }
+}
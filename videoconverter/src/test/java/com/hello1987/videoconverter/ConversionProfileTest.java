@@ -0,0 +1,67 @@
+package com.hello1987.videoconverter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConversionProfileTest {
+
+    @Test
+    public void presetsAreRegistered() {
+        ConversionProfile defaults = ConversionProfile.getDefault();
+        assertEquals(640, defaults.getMaxSide());
+        assertEquals(900000, defaults.getMaxBitrate());
+        assertEquals(921600, defaults.getDefaultBitrate());
+        assertEquals(25, defaults.getFrameRate());
+        assertEquals(10, defaults.getIFrameInterval());
+        assertEquals(32 * 1024, defaults.getChunkSize());
+
+        ConversionProfile messaging = ConversionProfile.forName(
+                ConversionProfile.MESSAGING);
+        ConversionProfile archival = ConversionProfile.forName(
+                ConversionProfile.ARCHIVAL);
+        ConversionProfile preview = ConversionProfile.forName(
+                ConversionProfile.PREVIEW);
+        assertTrue(messaging.getChunkSize() < defaults.getChunkSize());
+        assertTrue(archival.getChunkSize() > defaults.getChunkSize());
+        assertEquals(VideoTrackTranscoder.PROFILE_HIGH,
+                archival.getEncoderProfile());
+        assertEquals(15, preview.getMaxFrameRate());
+        assertSame(preview, ConversionProfile.forName(ConversionProfile.PREVIEW));
+        assertNull(ConversionProfile.forName("unknown"));
+    }
+
+    @Test
+    public void derivedProfileCanBeRegistered() {
+        ConversionProfile profile = new ConversionProfile.Builder("test",
+                ConversionProfile.forName(ConversionProfile.ARCHIVAL))
+                .setChunkSize(1024 * 1024)
+                .build();
+        assertEquals(1920, profile.getMaxSide());
+        assertEquals(1024 * 1024, profile.getChunkSize());
+        ConversionProfile.register(profile);
+        assertSame(profile, ConversionProfile.forName("test"));
+    }
+
+    @Test
+    public void rejectsInvalidSettings() {
+        try {
+            new ConversionProfile.Builder("odd").setMaxSide(641).build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("max side"));
+        }
+        try {
+            new ConversionProfile.Builder("tiny").setChunkSize(512).build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("chunk size"));
+        }
+        try {
+            new ConversionProfile.Builder("").build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.hello1987.videoconverter;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.util.Path;
+import com.hello1987.videoconverter.codec.Codec;
+import com.hello1987.videoconverter.codec.CodecPoolAdapter;
+import com.hello1987.videoconverter.codec.fake.FakeCodecFactory;
+import com.hello1987.videoconverter.codec.fake.FakeMediaSource;
+import com.hello1987.videoconverter.metrics.ConversionMetrics;
+import com.hello1987.videoconverter.metrics.MetricsSnapshot;
+import com.hello1987.videoconverter.pipeline.BufferPool;
+import com.hello1987.videoconverter.pipeline.StageQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConversionTaskTest {
+
+    private final FakeMediaSource.Factory sourceFactory = new FakeMediaSource.Factory()
+            .setVideo(640, 360, 25, 25, 800000)
+            .setAudio(44100, 2, 128000)
+            .setDurationUs(4000000);
+    private final FakeCodecFactory codecFactory = new FakeCodecFactory()
+            .setPipelineDepth(2);
+
+    private File input;
+    private File output;
+
+    @Before
+    public void setUp() throws Exception {
+        input = File.createTempFile("input", ".mp4");
+        output = File.createTempFile("output", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        input.delete();
+        output.delete();
+        new File(output.getPath() + ".journal").delete();
+    }
+
+    @Test
+    public void convertsVideoAndCopiesAudio() throws Exception {
+        ConversionTask task = createTask();
+        ConversionMetrics metrics = new ConversionMetrics();
+        task.setMetrics(metrics);
+        assertEquals(ConversionTask.RESULT_COMPLETED, task.run());
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(100, snapshot.getCounter("frames_encoded"));
+        assertEquals(0, snapshot.getCounter("frames_dropped"));
+        assertEquals(100 + 172, snapshot.getTimer("write_sample").getCount());
+        assertEquals(1, snapshot.getTimer("conversion").getCount());
+        assertEquals("callback", snapshot.getTags().get(ConversionMetrics.TAG_MODE));
+        StageQueue<?> muxQueue = task.getPipelineStats().getQueues().get(2);
+        assertEquals("mux", muxQueue.getName());
+        // 100 samples and the end of stream marker
+        assertEquals(101, muxQueue.getPutCount());
+        assertTrue(task.getPipelineStats().getFillTimeNanos() > 0);
+
+        IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+        try {
+            List<Box> tracks = Path.getPaths(isoFile, "/moov/trak/");
+            assertEquals(2, tracks.size());
+            TrackBox video = (TrackBox) tracks.get(0);
+            TrackBox audio = (TrackBox) tracks.get(1);
+            assertEquals(100, sampleCount(video));
+            assertEquals(4000000L * 44100 / 1000000 / 1024, sampleCount(audio));
+            SyncSampleBox stss = Path.getPath(video, "mdia/minf/stbl/stss");
+            assertEquals(1, stss.getSampleNumber()[0]);
+            assertEquals(320, video.getTrackHeaderBox().getWidth(), 0);
+        } finally {
+            isoFile.close();
+        }
+        assertFalse(new File(output.getPath() + ".journal").exists());
+    }
+
+    @Test
+    public void repeatedRunsAllocateNoSampleBuffers() throws Exception {
+        assertEquals(ConversionTask.RESULT_COMPLETED, createTask().run());
+        long allocations = BufferPool.getDefault().getAllocationCount();
+        assertEquals(ConversionTask.RESULT_COMPLETED, createTask().run());
+        assertEquals(allocations, BufferPool.getDefault().getAllocationCount());
+    }
+
+    @Test
+    public void writesRenditionsFromOneDecode() throws Exception {
+        File rendition = File.createTempFile("rendition", ".mp4");
+        try {
+            VideoObject videoObject = new VideoObject();
+            videoObject.addRendition(rendition.getAbsolutePath(), 160, 90,
+                    200000);
+            ConversionTask task = createTask(videoObject);
+            ConversionMetrics metrics = new ConversionMetrics();
+            task.setMetrics(metrics);
+            assertEquals(ConversionTask.RESULT_COMPLETED, task.run());
+            MetricsSnapshot snapshot = metrics.snapshot();
+            assertEquals(100, snapshot.getCounter("frames_decoded"));
+            assertEquals(200, snapshot.getCounter("frames_encoded"));
+            // one decoder, two encoders
+            assertEquals(3, codecFactory.getCreatedCodecCount());
+
+            IsoFile isoFile = new IsoFile(rendition.getAbsolutePath());
+            try {
+                List<Box> tracks = Path.getPaths(isoFile, "/moov/trak/");
+                assertEquals(2, tracks.size());
+                TrackBox video = (TrackBox) tracks.get(0);
+                assertEquals(100, sampleCount(video));
+                assertEquals(4000000L * 44100 / 1000000 / 1024,
+                        sampleCount((TrackBox) tracks.get(1)));
+                assertEquals(160, video.getTrackHeaderBox().getWidth(), 0);
+            } finally {
+                isoFile.close();
+            }
+        } finally {
+            rendition.delete();
+        }
+    }
+
+    @Test
+    public void reusesPooledCodecsAcrossJobs() throws Exception {
+        CodecPool<Codec> pool = new CodecPool<Codec>(new CodecPoolAdapter(
+                codecFactory), 2, 60000);
+        for (int i = 0; i < 3; i++) {
+            ConversionTask task = createTask();
+            task.setCodecPool(pool);
+            assertEquals(ConversionTask.RESULT_COMPLETED, task.run());
+        }
+        assertEquals(2, codecFactory.getCreatedCodecCount());
+        assertEquals(2, pool.getIdleCount());
+        pool.clear();
+    }
+
+    @Test
+    public void pollsPooledCodecsAfterACallbackJob() throws Exception {
+        CodecPool<Codec> pool = new CodecPool<Codec>(new CodecPoolAdapter(
+                codecFactory), 2, 60000);
+        ConversionTask task = createTask();
+        task.setCodecPool(pool);
+        assertEquals(ConversionTask.RESULT_COMPLETED, task.run());
+        // without surface input the next job polls the same codecs
+        codecFactory.setSurfaceInputSupported(false);
+        task = createTask();
+        task.setCodecPool(pool);
+        assertEquals(ConversionTask.RESULT_COMPLETED, task.run());
+        assertEquals(2, codecFactory.getCreatedCodecCount());
+        pool.clear();
+    }
+
+    @Test
+    public void resumesASuspendedJobAfterItsLastSyncFrame() throws Exception {
+        VideoObject videoObject = new VideoObject();
+        // a key frame every second; the input cannot be probed
+        videoObject.setVideoPath(input.getAbsolutePath(),
+                new ConversionProfile.Builder("test")
+                        .setIFrameInterval(1).build());
+        final int[] checks = new int[1];
+        ConversionTask task = createTask(videoObject, new Host() {
+            @Override
+            public void checkPreempted() {
+                // yield at the second key frame
+                if (++checks[0] == 2) {
+                    throw new ConversionTask.SuspendedException();
+                }
+            }
+        });
+        assertEquals(ConversionTask.RESULT_SUSPENDED, task.run());
+        assertTrue(new File(output.getPath() + ".journal").exists());
+
+        task = createTask(videoObject);
+        ConversionMetrics metrics = new ConversionMetrics();
+        task.setMetrics(metrics);
+        assertEquals(ConversionTask.RESULT_COMPLETED, task.run());
+        assertEquals(75, metrics.snapshot().getCounter("frames_encoded"));
+        assertSampleCounts();
+        assertFalse(new File(output.getPath() + ".journal").exists());
+    }
+
+    @Test
+    public void startsASuspendedJobOnce() throws Exception {
+        VideoObject videoObject = new VideoObject();
+        videoObject.setVideoPath(input.getAbsolutePath(),
+                new ConversionProfile.Builder("test")
+                        .setIFrameInterval(1).build());
+        final int[] checks = new int[1];
+        final int[] starts = new int[1];
+        ConversionTask task = createTask(videoObject, new Host() {
+            @Override
+            public void checkPreempted() {
+                // by the third key frame a chunk is out
+                if (++checks[0] == 3) {
+                    throw new ConversionTask.SuspendedException();
+                }
+            }
+
+            @Override
+            public void onChunkWritten(boolean first) {
+                if (first) {
+                    starts[0]++;
+                }
+            }
+        });
+        assertEquals(ConversionTask.RESULT_SUSPENDED, task.run());
+        assertEquals(1, starts[0]);
+
+        task = createTask(videoObject, new Host() {
+            @Override
+            public void onChunkWritten(boolean first) {
+                if (first) {
+                    starts[0]++;
+                }
+            }
+        });
+        assertEquals(ConversionTask.RESULT_COMPLETED, task.run());
+        assertEquals(1, starts[0]);
+    }
+
+    @Test
+    public void suspendsSegmentedJobs() throws Exception {
+        VideoObject videoObject = new VideoObject();
+        videoObject.setSegmentCount(2);
+        videoObject.setEndTime(4000000);
+        final int[] chunks = new int[1];
+        ConversionTask task = createTask(videoObject, new Host() {
+            @Override
+            public void checkPreempted() {
+                throw new ConversionTask.SuspendedException();
+            }
+
+            @Override
+            public void onChunkWritten(boolean first) {
+                chunks[0]++;
+            }
+        });
+        assertEquals(ConversionTask.RESULT_SUSPENDED, task.run());
+        // the segments yielded at their first key frame, before the audio
+        assertEquals(0, chunks[0]);
+
+        assertEquals(ConversionTask.RESULT_COMPLETED,
+                createTask(videoObject).run());
+        assertSampleCounts();
+    }
+
+    @Test
+    public void doesNotSuspendJobsWithATargetSize() throws Exception {
+        VideoObject videoObject = new VideoObject();
+        videoObject.setTargetSize(200000);
+        ConversionTask task = createTask(videoObject, new Host() {
+            @Override
+            public void checkPreempted() {
+                throw new ConversionTask.SuspendedException();
+            }
+        });
+        assertEquals(ConversionTask.RESULT_COMPLETED, task.run());
+        assertFalse(new File(output.getPath() + ".journal").exists());
+    }
+
+    private ConversionTask createTask() {
+        return createTask(new VideoObject());
+    }
+
+    private ConversionTask createTask(VideoObject videoObject) {
+        return createTask(videoObject, new Host());
+    }
+
+    private ConversionTask createTask(VideoObject videoObject,
+                                      ConversionTask.Host host) {
+        videoObject.setOutPath(output.getAbsolutePath());
+        ConversionTask task = new ConversionTask(videoObject, input, output,
+                sourceFactory, codecFactory, host);
+        task.setOutputGeometry(320, 180, 0, 0);
+        return task;
+    }
+
+    private void assertSampleCounts() throws Exception {
+        IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+        try {
+            List<Box> tracks = Path.getPaths(isoFile, "/moov/trak/");
+            assertEquals(2, tracks.size());
+            assertEquals(100, sampleCount((TrackBox) tracks.get(0)));
+            assertEquals(4000000L * 44100 / 1000000 / 1024,
+                    sampleCount((TrackBox) tracks.get(1)));
+        } finally {
+            isoFile.close();
+        }
+    }
+
+    private static long sampleCount(TrackBox trackBox) {
+        TimeToSampleBox stts = Path.getPath(trackBox, "mdia/minf/stbl/stts");
+        long count = 0;
+        for (TimeToSampleBox.Entry entry : stts.getEntries()) {
+            count += entry.getCount();
+        }
+        return count;
+    }
+
+    private static class Host implements ConversionTask.Host {
+        @Override
+        public void checkCanceled() {
+        }
+
+        @Override
+        public void checkPreempted() {
+        }
+
+        @Override
+        public void onChunkWritten(boolean first) {
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.hello1987.videoconverter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameDecimatorTest {
+
+    @Test
+    public void keepsSteadyCadenceFromRoundedTimestamps() {
+        FrameDecimator decimator = new FrameDecimator(25);
+        int kept = 0;
+        long last = -1;
+        for (int i = 0; i < 300; i++) {
+            // 30 fps, rounded to microseconds like container timestamps
+            long pts = Math.round(i * 1000000.0 / 30);
+            if (decimator.accept(pts)) {
+                if (last >= 0) {
+                    assertTrue(pts - last >= 1000000 / 30);
+                }
+                last = pts;
+                kept++;
+            }
+        }
+        assertEquals(250, kept);
+    }
+
+    @Test
+    public void resumesAfterLastKeptFrame() {
+        FrameDecimator decimator = new FrameDecimator(10);
+        decimator.setLastAccepted(120000);
+        assertFalse(decimator.accept(160000));
+        assertTrue(decimator.accept(200000));
+    }
+}
@@ -0,0 +1,129 @@
+package com.hello1987.videoconverter;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.util.Path;
+import com.hello1987.videoconverter.mp4.MP4Builder;
+import com.hello1987.videoconverter.mp4.Mp4Movie;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelVideoTranscoderTest {
+
+    private static final long FRAME_US = 40000;
+    private static final long GOP_US = 1000000;
+    private static final long DURATION_US = 10000000;
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    @Test
+    public void planSnapsCutsToSyncSamples() throws Exception {
+        List<SegmentPlanner.Segment> segments = SegmentPlanner.plan(
+                new GopLocator(), 0, DURATION_US, -1, 3);
+
+        assertEquals(3, segments.size());
+        assertEquals(0, segments.get(0).getStartUs());
+        assertEquals(3000000, segments.get(0).getEndUs());
+        assertEquals(3000000, segments.get(1).getStartUs());
+        assertEquals(6000000, segments.get(1).getEndUs());
+        assertEquals(6000000, segments.get(2).getStartUs());
+        assertEquals(-1, segments.get(2).getEndUs());
+    }
+
+    @Test
+    public void planMergesCollapsedCuts() throws Exception {
+        List<SegmentPlanner.Segment> segments = SegmentPlanner.plan(
+                new GopLocator(), 0, 1500000, 1500000, 4);
+
+        assertEquals(2, segments.size());
+        assertEquals(1000000, segments.get(1).getStartUs());
+        assertEquals(1500000, segments.get(1).getEndUs());
+    }
+
+    @Test
+    public void stitchesSegmentsIntoOneTrack() throws Exception {
+        final File dir = createTempDir();
+        File output = new File(dir, "out.mp4");
+        try {
+            Mp4Movie movie = new Mp4Movie();
+            movie.setCacheFile(output);
+            movie.setSize(320, 240);
+            MP4Builder muxer = new MP4Builder().createMovie(movie);
+
+            List<SegmentPlanner.Segment> segments = SegmentPlanner.plan(
+                    new GopLocator(), 0, DURATION_US, -1, 4);
+            long firstTime = new ParallelVideoTranscoder(4).transcode(segments,
+                    new ParallelVideoTranscoder.SegmentTranscoder() {
+                        @Override
+                        public EncodedSegment transcode(SegmentPlanner.Segment segment)
+                                throws Exception {
+                            return encode(segment, dir);
+                        }
+                    }, new SegmentStitcher(muxer));
+            muxer.finishMovie(false);
+
+            assertEquals(0, firstTime);
+            IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+            try {
+                TrackBox trackBox = Path.getPath(isoFile, "moov/trak");
+                SyncSampleBox stss = Path.getPath(trackBox,
+                        "mdia/minf/stbl/stss");
+                TimeToSampleBox stts = Path.getPath(trackBox,
+                        "mdia/minf/stbl/stts");
+                long sampleCount = 0;
+                for (TimeToSampleBox.Entry entry : stts.getEntries()) {
+                    sampleCount += entry.getCount();
+                }
+                assertEquals(DURATION_US / FRAME_US, sampleCount);
+                assertEquals(DURATION_US / GOP_US, stss.getSampleNumber().length);
+                assertEquals(1, stss.getSampleNumber()[0]);
+                assertEquals(DURATION_US / FRAME_US + 1, stss.getSampleNumber()[
+                        stss.getSampleNumber().length - 1] + GOP_US / FRAME_US);
+            } finally {
+                isoFile.close();
+            }
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static EncodedSegment encode(SegmentPlanner.Segment segment,
+                                         File dir) throws Exception {
+        EncodedSegment encoded = new EncodedSegment(File.createTempFile(
+                "segment", ".h264", dir));
+        encoded.setFormat("video/avc", 320, 240, SPS, PPS);
+        long end = segment.getEndUs() == -1 ? DURATION_US : segment.getEndUs();
+        ByteBuffer frame = ByteBuffer.allocate(100);
+        for (long t = segment.getStartUs(); t < end; t += FRAME_US) {
+            frame.clear();
+            frame.putInt(0, 96);
+            encoded.addSample(frame, 0, 100, t, t % GOP_US == 0 ? 1 : 0);
+        }
+        return encoded;
+    }
+
+    private static File createTempDir() throws Exception {
+        File dir = File.createTempFile("segments", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static class GopLocator implements SegmentPlanner.SyncLocator {
+        @Override
+        public long findSyncSampleTime(long timeUs) {
+            return timeUs / GOP_US * GOP_US;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.hello1987.videoconverter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ProgressTrackerTest {
+
+    private final List<Runnable> posted = new ArrayList<Runnable>();
+    private final List<Float> percents = new ArrayList<Float>();
+    private ProgressTracker.ProgressEvent lastEvent;
+
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            posted.add(command);
+        }
+    };
+
+    private final ProgressTracker.OnVideoProgressListener listener =
+            new ProgressTracker.OnVideoProgressListener() {
+                @Override
+                public void onVideoConvertProgress(VideoObject videoObject,
+                                                   ProgressTracker.ProgressEvent event) {
+                    percents.add(event.getPercent());
+                    lastEvent = event;
+                }
+            };
+
+    @Test
+    public void coalescesUpdatesWithinInterval() throws Exception {
+        ProgressTracker tracker = new ProgressTracker(executor, null, listener,
+                0, 10000000, 60000);
+        for (int i = 0; i < 250; i++) {
+            tracker.onSampleWritten(i * 40000L, 1000, false);
+        }
+        assertEquals(1, posted.size());
+
+        posted.get(0).run();
+        for (int i = 0; i < 10; i++) {
+            tracker.onSampleWritten(i * 40000L, 1000, false);
+        }
+        assertEquals(1, posted.size());
+        assertEquals(1, percents.size());
+    }
+
+    @Test
+    public void finishReportsTheFinalState() throws Exception {
+        ProgressTracker tracker = new ProgressTracker(executor, null, listener,
+                0, 4000000, 60000);
+        tracker.startPhase(0, 90);
+        for (int i = 0; i < 100; i++) {
+            tracker.onSampleWritten(i * 40000L, 1000, false);
+        }
+        posted.get(0).run();
+        tracker.startPhase(90, 100);
+        // the last audio sample starts before the end of the range
+        for (int i = 0; i < 172; i++) {
+            tracker.onSampleWritten(i * 23219L, 100, true);
+        }
+        assertEquals(1, posted.size());
+
+        tracker.finish();
+        assertEquals(2, posted.size());
+        posted.get(1).run();
+        assertEquals(100f, lastEvent.getPercent(), 0.01f);
+        assertEquals(117200, lastEvent.getBytesWritten());
+        assertEquals(171 * 23219L, lastEvent.getPresentationTimeUs());
+    }
+
+    @Test
+    public void finishJoinsTheEventInFlight() throws Exception {
+        ProgressTracker tracker = new ProgressTracker(executor, null, listener,
+                0, 4000000, 0);
+        tracker.onSampleWritten(1000000, 1000, false);
+        tracker.finish();
+        assertEquals(1, posted.size());
+        posted.get(0).run();
+        assertEquals(100f, lastEvent.getPercent(), 0.01f);
+        assertEquals(1, percents.size());
+    }
+
+    @Test
+    public void reportsLatestStateWhenDelivered() throws Exception {
+        ProgressTracker tracker = new ProgressTracker(executor, null, listener,
+                2000000, 12000000, 0);
+        tracker.startPhase(0, 90);
+        tracker.onSampleWritten(2000000, 500, false);
+        tracker.onSampleWritten(7000000, 500, false);
+        assertEquals(1, posted.size());
+
+        posted.get(0).run();
+        assertEquals(45f, lastEvent.getPercent(), 0.01f);
+        assertEquals(1000, lastEvent.getBytesWritten());
+        assertEquals(7000000, lastEvent.getPresentationTimeUs());
+
+        ProgressTracker.ProgressEvent first = lastEvent;
+        tracker.startPhase(90, 100);
+        tracker.onSampleWritten(2000000, 100, true);
+        assertEquals(2, posted.size());
+        posted.get(1).run();
+        assertSame(first, lastEvent);
+        assertEquals(90f, lastEvent.getPercent(), 0.01f);
+        assertEquals(1100, lastEvent.getBytesWritten());
+    }
+}
@@ -0,0 +1,69 @@
+package com.hello1987.videoconverter;
+
+import com.hello1987.videoconverter.codec.ImageEncoder;
+import com.hello1987.videoconverter.codec.fake.FakeCodecFactory;
+import com.hello1987.videoconverter.codec.fake.FakeMediaSource;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailExtractorTest {
+
+    private final File input = new File("input.mp4");
+    private final ThumbnailExtractor extractor = new ThumbnailExtractor(
+            new FakeMediaSource.Factory()
+                    .setVideo(640, 360, 25, 25, 800000)
+                    .setAudio(44100, 2, 128000)
+                    .setDurationUs(10000000),
+            new FakeCodecFactory().setPipelineDepth(2),
+            new ImageEncoder() {
+                @Override
+                public byte[] encode(ByteBuffer rgba, int width, int height,
+                                     int format, int quality) {
+                    assertEquals(width * height * 4, rgba.remaining());
+                    return new byte[]{(byte) width, (byte) height,
+                            (byte) format};
+                }
+            });
+
+    @Test
+    public void decodesOnlyTheKeyFramesOfThePreviews() throws Exception {
+        List<ThumbnailExtractor.Thumbnail> previews = extractor.extractPreviews(
+                input, 5, 96, 54);
+
+        assertEquals(5, previews.size());
+        assertEquals(5, extractor.getDecodedFrames());
+        for (int i = 0; i < 5; i++) {
+            // key frames every second, previews at 1, 3, 5, 7 and 9 s
+            assertEquals((2 * i + 1) * 1000000L,
+                    previews.get(i).getPresentationTimeUs());
+            assertArrayEquals(new byte[]{96, 54, ImageEncoder.FORMAT_JPEG},
+                    previews.get(i).getData());
+        }
+    }
+
+    @Test
+    public void previewsSharingAKeyFrameDecodeItOnce() throws Exception {
+        List<ThumbnailExtractor.Thumbnail> previews = extractor.extractPreviews(
+                input, 20, 96, 54);
+
+        assertEquals(10, previews.size());
+        assertEquals(10, extractor.getDecodedFrames());
+    }
+
+    @Test
+    public void posterIsTheKeyFrameBeforeTheTime() throws Exception {
+        extractor.setFormat(ImageEncoder.FORMAT_WEBP, 70);
+        ThumbnailExtractor.Thumbnail poster = extractor.extractPoster(input,
+                2500000, 64, 64);
+
+        assertEquals(2000000, poster.getPresentationTimeUs());
+        assertEquals(ImageEncoder.FORMAT_WEBP, poster.getData()[2]);
+        assertEquals(1, extractor.getDecodedFrames());
+    }
+}
@@ -0,0 +1,41 @@
+package com.hello1987.videoconverter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VideoConverterTest {
+
+    @Test
+    public void queuesJobsByPriority() {
+        VideoObject running = createJob(0);
+        VideoObject low = createJob(0);
+        VideoObject high = createJob(5);
+        VideoObject laterHigh = createJob(5);
+        VideoObject medium = createJob(1);
+        List<VideoObject> queue = new ArrayList<VideoObject>();
+        queue.add(running);
+        // the running job at the head stays where it is
+        for (VideoObject job : Arrays.asList(low, high, laterHigh, medium)) {
+            VideoConverter.enqueueByPriority(queue, job, 1, false);
+        }
+        assertEquals(Arrays.asList(running, high, laterHigh, medium, low),
+                queue);
+
+        // a suspended job goes back ahead of the jobs it was queued with
+        queue.remove(running);
+        VideoConverter.enqueueByPriority(queue, running, 0, true);
+        assertEquals(Arrays.asList(high, laterHigh, medium, running, low),
+                queue);
+    }
+
+    private static VideoObject createJob(int priority) {
+        VideoObject videoObject = new VideoObject();
+        videoObject.setPriority(priority);
+        return videoObject;
+    }
+}
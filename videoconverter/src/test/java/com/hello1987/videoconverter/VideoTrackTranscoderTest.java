@@ -0,0 +1,192 @@
+package com.hello1987.videoconverter;
+
+import com.hello1987.videoconverter.codec.Codec;
+import com.hello1987.videoconverter.codec.SampleInfo;
+import com.hello1987.videoconverter.codec.TrackFormat;
+import com.hello1987.videoconverter.codec.fake.FakeCodecFactory;
+import com.hello1987.videoconverter.codec.fake.FakeMediaSource;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VideoTrackTranscoderTest {
+
+    private final FakeMediaSource.Factory sourceFactory = new FakeMediaSource.Factory()
+            .setVideo(640, 360, 25, 25, 800000)
+            .setAudio(0, 0, 0)
+            .setDurationUs(2000000);
+
+    @Test
+    public void callbackAndPollingModesProduceTheSameSamples() throws Exception {
+        List<long[]> polled = transcode(new FakeCodecFactory()
+                .setCallbackSupported(false)
+                .setFrameLatencyNanos(200000)
+                .setPipelineDepth(2), sourceFactory, -1, -1, 0);
+        List<long[]> dispatched = transcode(new FakeCodecFactory()
+                .setFrameLatencyNanos(200000)
+                .setPipelineDepth(2), sourceFactory, -1, -1, 0);
+
+        assertEquals(50, dispatched.size());
+        assertEquals(polled.size(), dispatched.size());
+        for (int i = 0; i < polled.size(); i++) {
+            assertArrayEquals(polled.get(i), dispatched.get(i));
+        }
+    }
+
+    @Test
+    public void bufferInputPathFeedsTheEncoder() throws Exception {
+        List<long[]> samples = transcode(new FakeCodecFactory()
+                .setSurfaceInputSupported(false)
+                .setPipelineDepth(2), sourceFactory, -1, -1, 0);
+
+        assertEquals(50, samples.size());
+        assertEquals(1960000, samples.get(49)[0]);
+    }
+
+    @Test
+    public void callbackModeStopsAtEndTime() throws Exception {
+        List<long[]> samples = transcode(new FakeCodecFactory()
+                .setPipelineDepth(3), sourceFactory, 400000, 1200000, 0);
+
+        assertEquals(20, samples.size());
+        assertEquals(400000, samples.get(0)[0]);
+        assertEquals(1160000, samples.get(samples.size() - 1)[0]);
+    }
+
+    @Test
+    public void decimatesToTargetFrameRate() throws Exception {
+        FakeMediaSource.Factory source50 = new FakeMediaSource.Factory()
+                .setVideo(640, 360, 50, 50, 800000)
+                .setAudio(0, 0, 0)
+                .setDurationUs(2000000);
+        List<long[]> samples = transcode(new FakeCodecFactory()
+                .setPipelineDepth(2), source50, -1, -1, 25);
+
+        assertEquals(50, samples.size());
+        for (int i = 1; i < samples.size(); i++) {
+            assertEquals(40000, samples.get(i)[0] - samples.get(i - 1)[0]);
+        }
+    }
+
+    @Test
+    public void pollingModeFeedsEveryRendition() throws Exception {
+        final List<Long> renditionSamples = new ArrayList<Long>();
+        VideoTrackTranscoder transcoder = new VideoTrackTranscoder(
+                sourceFactory.open(null), 0, new FakeCodecFactory()
+                .setCallbackSupported(false)
+                .setPipelineDepth(2), 320, 180, 0, 0);
+        transcoder.addRendition(160, 90, 200000, new VideoTrackTranscoder.Callback() {
+            @Override
+            public void checkCanceled() {
+            }
+
+            @Override
+            public void onOutputFormatAvailable(TrackFormat format) {
+                assertEquals(160, format.getInteger(TrackFormat.KEY_WIDTH));
+            }
+
+            @Override
+            public void onSampleEncoded(ByteBuffer encodedData, SampleInfo info) {
+                renditionSamples.add(info.presentationTimeUs);
+            }
+        });
+        final int[] primarySamples = new int[1];
+        transcoder.transcode(new VideoTrackTranscoder.Callback() {
+            @Override
+            public void checkCanceled() {
+            }
+
+            @Override
+            public void onOutputFormatAvailable(TrackFormat format) {
+            }
+
+            @Override
+            public void onSampleEncoded(ByteBuffer encodedData, SampleInfo info) {
+                primarySamples[0]++;
+            }
+        });
+
+        assertEquals(50, primarySamples[0]);
+        assertEquals(50, renditionSamples.size());
+        assertEquals(1960000, (long) renditionSamples.get(49));
+    }
+
+    @Test
+    public void bitrateControllerKeepsTheTrackWithinItsBudget() throws Exception {
+        FakeMediaSource.Factory longSource = new FakeMediaSource.Factory()
+                .setVideo(640, 360, 25, 25, 800000)
+                .setAudio(0, 0, 0)
+                .setDurationUs(20000000);
+        BitrateController controller = new BitrateController(250000, 0,
+                20000000, 8000000);
+        // the encoder starts at twice the bitrate the budget allows; polled
+        // codecs take every bitrate change at the same frame on each run
+        VideoTrackTranscoder transcoder = new VideoTrackTranscoder(
+                longSource.open(null), 0, new FakeCodecFactory()
+                .setPipelineDepth(2).setCallbackSupported(false), 320, 180, 0,
+                200000);
+        transcoder.setBitrateController(controller);
+        final long[] written = new long[2];
+        transcoder.transcode(new VideoTrackTranscoder.Callback() {
+            @Override
+            public void checkCanceled() {
+            }
+
+            @Override
+            public void onOutputFormatAvailable(TrackFormat format) {
+            }
+
+            @Override
+            public void onSampleEncoded(ByteBuffer encodedData, SampleInfo info) {
+                written[0] += info.size;
+                written[1]++;
+            }
+        });
+
+        // the encoder runs a little over the last bitrate it was given, so
+        // the guard ends the track with what it holds, half a second early
+        assertEquals(490, written[1]);
+        assertEquals(written[0], controller.getBytesWritten());
+        assertTrue(written[0] <= 250000);
+        assertEquals(250000, written[0], 250000 * 0.05);
+    }
+
+    /**
+     * Returns presentation time, size and flags of every encoded sample.
+     */
+    private List<long[]> transcode(FakeCodecFactory codecFactory,
+                                   FakeMediaSource.Factory sourceFactory,
+                                   long startTime, long endTime,
+                                   int frameRate) throws Exception {
+        final List<long[]> samples = new ArrayList<long[]>();
+        VideoTrackTranscoder transcoder = new VideoTrackTranscoder(
+                sourceFactory.open(null), 0, codecFactory, 320, 180, 0, 0);
+        transcoder.setRange(startTime, endTime);
+        transcoder.setFrameRate(frameRate);
+        transcoder.transcode(new VideoTrackTranscoder.Callback() {
+            @Override
+            public void checkCanceled() {
+            }
+
+            @Override
+            public void onOutputFormatAvailable(TrackFormat format) {
+                assertNotNull(format.getByteBuffer(TrackFormat.KEY_CSD_0));
+            }
+
+            @Override
+            public void onSampleEncoded(ByteBuffer encodedData, SampleInfo info) {
+                if (samples.isEmpty()) {
+                    assertTrue((info.flags & Codec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                }
+                samples.add(new long[]{info.presentationTimeUs, info.size,
+                        info.flags});
+            }
+        });
+        return samples;
+    }
+}
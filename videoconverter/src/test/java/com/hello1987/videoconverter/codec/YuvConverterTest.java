@@ -0,0 +1,152 @@
+package com.hello1987.videoconverter.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest {
+
+    private static final int[] WHITE = {255, 255, 255};
+    private static final int[] BLACK = {0, 0, 0};
+    private static final int[] RED = {255, 0, 0};
+    private static final int[] GREEN = {0, 255, 0};
+    private static final int[] BLUE = {0, 0, 255};
+
+    @Test
+    public void convertsToSemiPlanar() {
+        BufferInputLayout layout = new BufferInputLayout(
+                YuvConverter.COLOR_FORMAT_YUV420_SEMI_PLANAR,
+                BufferInputLayout.PROCESSOR_TYPE_OTHER, 0, 4, 2, 0, 12);
+        ByteBuffer rgba = frame(4, 2, ByteOrder.LITTLE_ENDIAN, RED, BLUE);
+
+        assertArrayEquals(bytes(82, 82, 41, 41, 82, 82, 41, 41,
+                90, 240, 240, 110), convert(4, 2, layout, rgba, 1));
+    }
+
+    @Test
+    public void convertsToPlanarWithPaddingAndSwappedChroma() {
+        BufferInputLayout layout = alignedLayout(
+                YuvConverter.COLOR_FORMAT_YUV420_PLANAR, 1, 4, 4, 6);
+        ByteBuffer rgba = frame(4, 4, ByteOrder.BIG_ENDIAN, WHITE, BLACK, RED,
+                GREEN);
+
+        assertEquals(34, layout.getBufferSize());
+        assertArrayEquals(bytes(
+                235, 235, 16, 16, 235, 235, 16, 16,
+                82, 82, 144, 144, 82, 82, 144, 144,
+                // padding is not written
+                0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55,
+                // V before U, padded to the aligned height as well
+                128, 128, 240, 34, 0x55, 0x55,
+                128, 128, 90, 54), convert(4, 4, layout, rgba, 1));
+    }
+
+    @Test
+    public void queuesTheWholePaddedFrame() {
+        BufferInputLayout layout = alignedLayout(
+                YuvConverter.COLOR_FORMAT_YUV420_PLANAR, 0, 640, 360, 368);
+        YuvConverter converter = new YuvConverter(640, 360, layout, 1);
+        try {
+            assertEquals(352000, layout.getBufferSize());
+            assertEquals(layout.getBufferSize(), converter.getFrameSize());
+        } finally {
+            converter.release();
+        }
+    }
+
+    @Test
+    public void keepsRowStride() {
+        BufferInputLayout layout = new BufferInputLayout(
+                YuvConverter.COLOR_FORMAT_YUV420_SEMI_PLANAR,
+                BufferInputLayout.PROCESSOR_TYPE_OTHER, 1, 6, 2, 0, 18);
+        ByteBuffer rgba = frame(4, 2, ByteOrder.LITTLE_ENDIAN, BLUE, WHITE);
+
+        assertArrayEquals(bytes(41, 41, 235, 235, 0x55, 0x55,
+                41, 41, 235, 235, 0x55, 0x55,
+                110, 240, 128, 128, 0x55, 0x55), convert(4, 2, layout, rgba, 1));
+    }
+
+    @Test
+    public void threadsProduceTheSameFrame() {
+        BufferInputLayout layout = new BufferInputLayout(
+                YuvConverter.COLOR_FORMAT_YUV420_PLANAR,
+                BufferInputLayout.PROCESSOR_TYPE_QCOM, 0, 1280, 720, 1024,
+                1280 * 720 * 3 / 2 + 1024);
+        ByteBuffer rgba = ByteBuffer.allocateDirect(1280 * 720 * 4);
+        Random random = new Random(7);
+        while (rgba.hasRemaining()) {
+            rgba.put((byte) random.nextInt());
+        }
+
+        byte[] serial = convert(1280, 720, layout, rgba, 1);
+        assertArrayEquals(serial, convert(1280, 720, layout, rgba, 4));
+        assertArrayEquals(serial, convert(1280, 720, layout, rgba, 3));
+    }
+
+    /**
+     * A layout padded to alignedHeight rows, as AndroidCodecFactory lays
+     * out the input of unrecognized and MTK encoders.
+     */
+    private static BufferInputLayout alignedLayout(int colorFormat,
+                                                   int swapUV, int width,
+                                                   int height,
+                                                   int alignedHeight) {
+        int padding = width * (alignedHeight - height);
+        return new BufferInputLayout(colorFormat,
+                BufferInputLayout.PROCESSOR_TYPE_OTHER, swapUV, width,
+                alignedHeight, padding, width * height * 3 / 2 + padding * 5 / 4);
+    }
+
+    /**
+     * A frame of 2x2 blocks in the given colors, row by row.
+     */
+    private static ByteBuffer frame(int width, int height, ByteOrder order,
+                                    int[]... blocks) {
+        ByteBuffer rgba = ByteBuffer.allocateDirect(width * height * 4)
+                .order(order);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int[] color = blocks[y / 2 * (width / 2) + x / 2];
+                rgba.put((byte) color[0]).put((byte) color[1])
+                        .put((byte) color[2]).put((byte) 0xff);
+            }
+        }
+        rgba.flip();
+        return rgba;
+    }
+
+    private static byte[] convert(int width, int height,
+                                  BufferInputLayout layout, ByteBuffer rgba,
+                                  int threads) {
+        YuvConverter converter = new YuvConverter(width, height, layout,
+                threads);
+        try {
+            byte[] filled = new byte[layout.getBufferSize()];
+            Arrays.fill(filled, (byte) 0x55);
+            ByteBuffer yuv = ByteBuffer.allocateDirect(filled.length);
+            yuv.put(filled);
+            yuv.clear();
+            converter.convert(rgba, yuv);
+            // the frame of every call is converted afresh
+            converter.convert(rgba, yuv);
+            byte[] result = new byte[yuv.capacity()];
+            yuv.get(result);
+            return result;
+        } finally {
+            converter.release();
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,63 @@
+package com.hello1987.videoconverter.metrics;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class ConversionMetricsTest {
+
+    @Test
+    public void bucketsCoverValuesWithinAQuarter() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            int bucket = LatencyHistogram.bucketFor(value);
+            long lower = LatencyHistogram.bucketLowerBound(bucket);
+            long upper = LatencyHistogram.bucketLowerBound(bucket + 1);
+            assertTrue(value + " in bucket " + bucket, lower <= value && value < upper);
+            assertTrue(upper - lower <= Math.max(1, lower / 4));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.bucketFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void snapshotReportsPercentiles() {
+        ConversionMetrics metrics = new ConversionMetrics();
+        for (int i = 1; i <= 1000; i++) {
+            metrics.record(ConversionMetrics.TIMER_SWAP, i * 1000L);
+        }
+        metrics.add(ConversionMetrics.COUNTER_BYTES_WRITTEN, 4096);
+        metrics.setTag(ConversionMetrics.TAG_DEVICE, "test");
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        MetricsSnapshot.Timer swap = snapshot.getTimer("swap");
+        assertEquals(1000, swap.getCount());
+        assertEquals(500500L * 1000, swap.getTotalNanos());
+        assertEquals(1000000, swap.getMaxNanos());
+        assertEquals(500000, swap.getPercentileNanos(50), 500000 / 4);
+        assertEquals(990000, swap.getPercentileNanos(99), 990000 / 4);
+        assertEquals(0, snapshot.getTimer("draw").getCount());
+        assertEquals(4096, snapshot.getCounter("bytes_written"));
+        assertEquals("test", snapshot.getTags().get(ConversionMetrics.TAG_DEVICE));
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        ConversionMetrics metrics = new ConversionMetrics();
+        for (int i = 0; i < 100000; i++) {
+            metrics.record(ConversionMetrics.TIMER_DRAW, i);
+            metrics.increment(ConversionMetrics.COUNTER_FRAMES_ENCODED);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            metrics.record(ConversionMetrics.TIMER_DRAW, i);
+            metrics.increment(ConversionMetrics.COUNTER_FRAMES_ENCODED);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+}
@@ -0,0 +1,314 @@
+package com.hello1987.videoconverter.mp4;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.util.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConversionJournalTest {
+
+    private static final long[][] FIRST_SAMPLES = {
+            // track, offset, size, presentation time, flags
+            {0, 48, 3000, 0, 1},
+            {1, 3048, 400, 0, 0},
+            // reordered frames go back in time
+            {0, 3448, 2500, 120000, 0},
+            {0, 5948, 2400, 40000, 0},
+            {1, 8348, 0, 23219, 0},
+    };
+    private static final long[][] SECOND_SAMPLES = {
+            // past 4 GB, then back to an earlier offset
+            {0, 5L << 32, 2000, 80000, 0x80000001},
+            {1, 8348, 410, 46439, 0},
+    };
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("conversion", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void restoresTheSamplesOfCompleteCheckpoints() throws Exception {
+        ConversionJournal journal = createJournal();
+        addSamples(journal, FIRST_SAMPLES);
+        journal.onCheckpoint(8348, 8300);
+        addSamples(journal, SECOND_SAMPLES);
+        journal.onCheckpoint((5L << 32) + 2000, 1234);
+        // killed before the next checkpoint
+        addSamples(journal, new long[][]{{0, (5L << 32) + 2000, 900, 160000, 0}});
+        journal.close();
+
+        journal = ConversionJournal.open(file, "job");
+        try {
+            assertEquals(1, journal.getAttempts());
+            assertTrue(journal.canResume());
+            assertEquals((5L << 32) + 2000, journal.getDataOffset());
+            assertEquals(1234, journal.getWritedSinceLastMdat());
+            assertEquals(0, journal.getTrackIndex(false));
+            assertEquals(1, journal.getTrackIndex(true));
+            assertEquals(0, journal.getFirstPresentationTimeUs(0));
+            assertEquals(120000, journal.getLastPresentationTimeUs(0));
+            assertEquals(46439, journal.getLastPresentationTimeUs(1));
+            assertFalse(journal.isVideoComplete());
+
+            RecordingMovie movie = new RecordingMovie();
+            journal.replay(movie);
+            assertEquals(90, movie.getRotation());
+            assertEquals(320, movie.getWidth());
+            assertEquals(2, movie.getTracks().size());
+            assertTrue(movie.getTracks().get(1).isAudio());
+            List<long[]> expected = new ArrayList<long[]>();
+            for (long[] sample : FIRST_SAMPLES) {
+                expected.add(sample);
+            }
+            expected.add(SECOND_SAMPLES[0]);
+            expected.add(SECOND_SAMPLES[1]);
+            assertSamples(expected, movie.samples);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void dropsATornRecordAtTheTail() throws Exception {
+        long end = writeTwoCheckpoints();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the second checkpoint got no further than its header
+            raf.setLength(end + 7);
+        } finally {
+            raf.close();
+        }
+        assertOnlyFirstCheckpointRestored(end);
+    }
+
+    @Test
+    public void dropsARecordWithABadChecksum() throws Exception {
+        long end = writeTwoCheckpoints();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(end + 12);
+            int value = raf.read();
+            raf.seek(end + 12);
+            raf.write(value ^ 0x10);
+        } finally {
+            raf.close();
+        }
+        assertOnlyFirstCheckpointRestored(end);
+    }
+
+    @Test
+    public void countsAttemptsOfTheSameJob() throws Exception {
+        createJournal().close();
+        for (int i = 1; i <= ConversionJournal.MAX_RESUME_ATTEMPTS + 1; i++) {
+            ConversionJournal journal = ConversionJournal.open(file, "job");
+            assertEquals(i, journal.getAttempts());
+            // the tracks alone are not worth resuming
+            assertFalse(journal.canResume());
+            assertEquals(-5, journal.getTrackIndex(false));
+            journal.close();
+        }
+
+        ConversionJournal journal = ConversionJournal.open(file, "job");
+        int attempts = journal.getAttempts();
+        journal.markSuspended();
+        journal.close();
+        journal = ConversionJournal.open(file, "job");
+        assertEquals(attempts, journal.getAttempts());
+        journal.close();
+
+        // another job's journal is discarded
+        journal = ConversionJournal.open(file, "other job");
+        assertEquals(0, journal.getAttempts());
+        journal.close();
+        journal = ConversionJournal.open(file, "job");
+        assertEquals(0, journal.getAttempts());
+        journal.close();
+    }
+
+    @Test
+    public void startsOverOnAnotherVersion() throws Exception {
+        ConversionJournal journal = createJournal();
+        addSamples(journal, FIRST_SAMPLES);
+        journal.onCheckpoint(8348, 8300);
+        journal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(1);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(ConversionJournal.openForRecovery(file));
+        journal = ConversionJournal.open(file, "job");
+        assertEquals(0, journal.getAttempts());
+        assertFalse(journal.canResume());
+        journal.close();
+    }
+
+    @Test
+    public void resumesTheOutputAtTheLastCheckpoint() throws Exception {
+        File output = File.createTempFile("output", ".mp4");
+        try {
+            Mp4Movie movie = new Mp4Movie();
+            movie.setCacheFile(output);
+            movie.setSize(320, 240);
+            ConversionJournal journal = ConversionJournal.open(file, "job");
+            MP4Builder muxer = new MP4Builder();
+            muxer.setChunkSize(8 * 1024);
+            muxer.createMovie(movie, journal);
+            int track = muxer.addVideoTrack("video/avc", 320, 240,
+                    new byte[]{1}, new byte[]{2});
+            ByteBuffer data = ByteBuffer.allocate(4096);
+            int checkpointed = 0;
+            for (int i = 0; i < 45; i++) {
+                data.clear();
+                if (muxer.writeSampleData(track, data, 0, 1000,
+                        reorderedTimeUs(i), i % 25 == 0 ? 1 : 0, false)) {
+                    // the chunk is closed before the sync sample
+                    checkpointed = i;
+                }
+            }
+            journal.close();
+            // killed after a P frame with the B frames before it unwritten,
+            // checkpointed a whole GOP
+            assertEquals(25, checkpointed);
+
+            journal = ConversionJournal.open(file, "job");
+            assertTrue(journal.canResume());
+            assertEquals(24 * 40000L, journal.getLastPresentationTimeUs(0));
+            movie = new Mp4Movie();
+            movie.setCacheFile(output);
+            muxer = new MP4Builder().resumeMovie(movie, journal);
+            assertEquals(journal.getDataOffset(), output.length());
+            for (int i = checkpointed; i < 45; i++) {
+                data.clear();
+                muxer.writeSampleData(journal.getTrackIndex(false), data, 0,
+                        1000, reorderedTimeUs(i), i % 25 == 0 ? 1 : 0, false);
+            }
+            muxer.finishMovie(false);
+            journal.delete();
+
+            IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+            try {
+                TrackBox trackBox = Path.getPath(isoFile, "moov/trak");
+                SampleSizeBox stsz = Path.getPath(trackBox,
+                        "mdia/minf/stbl/stsz");
+                assertEquals(45, stsz.getSampleCount());
+            } finally {
+                isoFile.close();
+            }
+        } finally {
+            output.delete();
+        }
+    }
+
+    /**
+     * Presentation time of the frame encoded index-th in GOPs of 25 frames,
+     * an I frame followed by P frames each sent ahead of the two B frames
+     * shown before it.
+     */
+    private static long reorderedTimeUs(int index) {
+        int frame = index % 25;
+        if (frame > 0) {
+            int group = (frame - 1) / 3 * 3;
+            frame = (frame - 1) % 3 == 0 ? group + 3 : group + (frame - 1) % 3;
+        }
+        return (index / 25 * 25 + frame) * 40000L;
+    }
+
+    private ConversionJournal createJournal() throws IOException {
+        ConversionJournal journal = ConversionJournal.open(file, "job");
+        Mp4Movie movie = new Mp4Movie();
+        movie.setRotation(90);
+        movie.setSize(320, 240);
+        journal.onMovieCreated(movie);
+        journal.onTrackAdded(Track.createVideoTrack(0, "video/avc", 320, 240,
+                new byte[]{1}, new byte[]{2}));
+        journal.onTrackAdded(Track.createAudioTrack(1, 44100, 2));
+        return journal;
+    }
+
+    /**
+     * Writes a checkpoint of the first samples and one of the second;
+     * returns where the second one starts.
+     */
+    private long writeTwoCheckpoints() throws IOException {
+        ConversionJournal journal = createJournal();
+        addSamples(journal, FIRST_SAMPLES);
+        journal.onCheckpoint(8348, 8300);
+        long end = file.length();
+        addSamples(journal, SECOND_SAMPLES);
+        journal.onCheckpoint((5L << 32) + 2000, 1234);
+        journal.close();
+        return end;
+    }
+
+    private void assertOnlyFirstCheckpointRestored(long end)
+            throws IOException {
+        ConversionJournal journal = ConversionJournal.open(file, "job");
+        try {
+            assertTrue(journal.canResume());
+            assertEquals(8348, journal.getDataOffset());
+            // later records are appended where the good ones end
+            assertEquals(end, file.length());
+            RecordingMovie movie = new RecordingMovie();
+            journal.replay(movie);
+            List<long[]> expected = new ArrayList<long[]>();
+            for (long[] sample : FIRST_SAMPLES) {
+                expected.add(sample);
+            }
+            assertSamples(expected, movie.samples);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static void addSamples(ConversionJournal journal,
+                                   long[][] samples) {
+        for (long[] sample : samples) {
+            journal.onSampleWritten((int) sample[0], sample[1],
+                    (int) sample[2], sample[3], (int) sample[4]);
+        }
+    }
+
+    private static void assertSamples(List<long[]> expected,
+                                      List<long[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static class RecordingMovie extends Mp4Movie {
+        final List<long[]> samples = new ArrayList<long[]>();
+
+        @Override
+        public void addSample(int trackIndex, long offset, int size,
+                              long presentationTimeUs, int flags) {
+            samples.add(new long[]{trackIndex, offset, size,
+                    presentationTimeUs, flags});
+        }
+    }
+}
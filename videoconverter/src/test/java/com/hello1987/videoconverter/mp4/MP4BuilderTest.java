@@ -0,0 +1,189 @@
+package com.hello1987.videoconverter.mp4;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.EditListBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.util.Matrix;
+import com.googlecode.mp4parser.util.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MP4BuilderTest {
+
+    private File output;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        output = File.createTempFile("output", ".mp4");
+        journalFile = new File(output.getPath() + ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        output.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void writesDecodeTimesAndCompositionOffsetsOfReorderedFrames()
+            throws Exception {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(output);
+        movie.setSize(320, 240);
+        MP4Builder muxer = new MP4Builder().createMovie(movie);
+        int track = muxer.addVideoTrack("video/avc", 320, 240, new byte[]{1},
+                new byte[]{2});
+        ByteBuffer data = ByteBuffer.allocate(1024);
+        // I0 P3 B1 B2 P6 B4 B5 ... in decode order, 30000/1001 fps
+        int frames = 301;
+        for (int i = 0; i < frames; i++) {
+            int frame = i == 0 ? 0 : i % 3 == 1 ? i + 2 : i - 1;
+            data.clear();
+            muxer.writeSampleData(track, data, 0, 100,
+                    frame * 1001000000L / 30000, i == 0 ? 1 : 0, false);
+        }
+        muxer.finishMovie(false);
+
+        IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+        try {
+            TrackBox trackBox = Path.getPath(isoFile, "moov/trak");
+            TimeToSampleBox stts = Path.getPath(trackBox,
+                    "mdia/minf/stbl/stts");
+            long ticks = 0;
+            for (TimeToSampleBox.Entry entry : stts.getEntries()) {
+                assertTrue(entry.getDelta() == 3003 || entry.getDelta() == 3002);
+                ticks += entry.getCount() * entry.getDelta();
+            }
+            // no drift: the decode times add up to the last frame's time
+            assertEquals(frames * 3003L, ticks);
+
+            CompositionTimeToSample ctts = Path.getPath(trackBox,
+                    "mdia/minf/stbl/ctts");
+            int[] offsets = CompositionTimeToSample.blowupCompositionTimes(
+                    ctts.getEntries());
+            assertEquals(frames, offsets.length);
+            assertEquals(3003, offsets[0]);
+            assertEquals(3 * 3003, offsets[1], 1);
+            assertEquals(0, offsets[2]);
+            assertEquals(0, offsets[3]);
+            EditListBox elst = Path.getPath(trackBox, "edts/elst");
+            assertEquals(3003, elst.getEntries().get(0).getMediaTime());
+        } finally {
+            isoFile.close();
+        }
+    }
+
+    @Test
+    public void cutsReservedSpaceOnFinish() throws Exception {
+        final long[] reserved = new long[1];
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(output);
+        movie.setSize(320, 240);
+        MP4Builder muxer = new MP4Builder();
+        muxer.setPreallocation(new Preallocator() {
+            @Override
+            public boolean reserve(RandomAccessFile file, long length)
+                    throws IOException {
+                file.setLength(length);
+                reserved[0] = length;
+                return true;
+            }
+        }, 1024 * 1024);
+        muxer.createMovie(movie);
+        assertEquals(1024 * 1024, output.length());
+        int track = muxer.addVideoTrack("video/avc", 320, 240, new byte[]{1},
+                new byte[]{2});
+        ByteBuffer data = ByteBuffer.allocate(1024);
+        for (int i = 0; i < 100; i++) {
+            data.clear();
+            muxer.writeSampleData(track, data, 0, 1000, i * 40000L,
+                    i == 0 ? 1 : 0, false);
+        }
+        muxer.finishMovie(false);
+
+        assertEquals(1024 * 1024, reserved[0]);
+        assertTrue(output.length() < 1024 * 1024);
+        IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+        try {
+            // moov is the last box, nothing follows it
+            List<Box> boxes = isoFile.getBoxes();
+            Box moov = boxes.get(boxes.size() - 1);
+            assertEquals("moov", moov.getType());
+            long size = 0;
+            for (Box box : boxes) {
+                size += box.getSize();
+            }
+            assertEquals(output.length(), size);
+        } finally {
+            isoFile.close();
+        }
+    }
+
+    @Test
+    public void recoversKilledMovieUpToLastCheckpoint() throws Exception {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(output);
+        movie.setRotation(90);
+        movie.setSize(320, 240);
+        ConversionJournal journal = ConversionJournal.open(journalFile, "job");
+        MP4Builder muxer = new MP4Builder().createMovie(movie, journal);
+        int video = muxer.addVideoTrack("video/avc", 320, 240, new byte[]{1},
+                new byte[]{2});
+        int audio = muxer.addAudioTrack(44100, 2);
+
+        ByteBuffer data = ByteBuffer.allocate(4096);
+        int[] checkpointed = new int[2];
+        int[] written = new int[2];
+        boolean flushed = false;
+        // end with samples that are not covered by a checkpoint
+        for (int i = 0; i < 200 || flushed; i++) {
+            boolean isAudio = i % 3 == 2;
+            int track = isAudio ? audio : video;
+            data.clear();
+            flushed = muxer.writeSampleData(track, data, 0,
+                    isAudio ? 400 : 3000, i * 20000L,
+                    !isAudio && i % 30 == 0 ? 1 : 0, isAudio);
+            written[isAudio ? 1 : 0]++;
+            if (flushed) {
+                checkpointed[0] = written[0];
+                checkpointed[1] = written[1];
+            }
+        }
+        // killed: neither finished nor suspended
+        journal.close();
+
+        assertTrue(MP4Builder.recoverMovie(output, journalFile));
+        assertFalse(journalFile.exists());
+
+        IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+        try {
+            List<TrackBox> tracks = Path.getPaths(isoFile, "/moov/trak");
+            assertEquals(2, tracks.size());
+            for (int i = 0; i < 2; i++) {
+                SampleSizeBox stsz = Path.getPath(tracks.get(i),
+                        "mdia/minf/stbl/stsz");
+                assertEquals(checkpointed[i], stsz.getSampleCount());
+            }
+            assertEquals(Matrix.ROTATE_90,
+                    tracks.get(0).getTrackHeaderBox().getMatrix());
+        } finally {
+            isoFile.close();
+        }
+        assertFalse(MP4Builder.recoverMovie(output, journalFile));
+    }
+}
@@ -0,0 +1,70 @@
+package com.hello1987.videoconverter.mp4;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.util.Matrix;
+import com.googlecode.mp4parser.util.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RotationEditorTest {
+
+    private File output;
+
+    @Before
+    public void setUp() throws Exception {
+        output = File.createTempFile("output", ".mp4");
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(output);
+        movie.setSize(320, 240);
+        MP4Builder muxer = new MP4Builder().createMovie(movie);
+        int video = muxer.addVideoTrack("video/avc", 320, 240, new byte[]{1},
+                new byte[]{2});
+        int audio = muxer.addAudioTrack(44100, 2);
+        ByteBuffer data = ByteBuffer.allocate(1024);
+        for (int i = 0; i < 100; i++) {
+            data.clear();
+            boolean isAudio = i % 2 == 1;
+            muxer.writeSampleData(isAudio ? audio : video, data, 0, 1000,
+                    i * 20000L, isAudio ? 0 : 1, isAudio);
+        }
+        muxer.finishMovie(false);
+    }
+
+    @After
+    public void tearDown() {
+        output.delete();
+    }
+
+    @Test
+    public void rewritesVideoMatrixInPlace() throws Exception {
+        long length = output.length();
+        assertEquals(1, RotationEditor.setRotation(output, 270));
+        assertEquals(length, output.length());
+
+        IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+        try {
+            List<TrackBox> tracks = Path.getPaths(isoFile, "/moov/trak");
+            assertEquals(Matrix.ROTATE_270,
+                    tracks.get(0).getTrackHeaderBox().getMatrix());
+            assertEquals(Matrix.ROTATE_0,
+                    tracks.get(1).getTrackHeaderBox().getMatrix());
+            assertEquals(320, tracks.get(0).getTrackHeaderBox().getWidth(), 0);
+        } finally {
+            isoFile.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherAngles() throws Exception {
+        RotationEditor.setRotation(output, 45);
+    }
+}
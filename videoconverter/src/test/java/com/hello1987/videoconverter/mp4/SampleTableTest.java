@@ -0,0 +1,141 @@
+package com.hello1987.videoconverter.mp4;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.ChunkOffsetBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.util.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SampleTableTest {
+
+    private static final int SAMPLES = 10000;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("samples", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void cursorReadsSpilledAndTailSamples() throws Exception {
+        SampleTable table = new SampleTable();
+        table.setDirectory(dir);
+        long offset = 100;
+        for (int i = 0; i < SAMPLES; i++) {
+            if (i % 7 == 0) {
+                // a new chunk
+                offset += 16;
+            }
+            if (i > 0) {
+                table.setLastDuration(durationOf(i - 1));
+            }
+            table.add(offset, sizeOf(i), i % 30 == 0, 3015, i % 3 - 1);
+            offset += sizeOf(i);
+        }
+        assertTrue(table.getSpilledBytes() > 0);
+        assertEquals(1, dir.listFiles().length);
+        assertEquals((SAMPLES + 6) / 7, table.getChunkCount());
+        assertEquals((SAMPLES + 29) / 30, table.getSyncSampleCount());
+        assertEquals(-1, table.getMinCompositionOffset());
+
+        SampleTable.Cursor cursor = table.cursor();
+        offset = 100;
+        for (int i = 0; i < SAMPLES; i++) {
+            if (i % 7 == 0) {
+                offset += 16;
+            }
+            assertTrue(cursor.next());
+            assertEquals(offset, cursor.getOffset());
+            assertEquals(sizeOf(i), cursor.getSize());
+            assertEquals(i == SAMPLES - 1 ? 3015 : durationOf(i),
+                    cursor.getDuration());
+            assertEquals(i % 30 == 0, cursor.isSync());
+            assertEquals(i % 3 - 1, cursor.getCompositionOffset());
+            offset += sizeOf(i);
+        }
+        assertFalse(cursor.next());
+        cursor.close();
+
+        table.release();
+        assertEquals(0, dir.listFiles().length);
+        assertEquals(0, table.getSampleCount());
+    }
+
+    @Test
+    public void writesTablesOfSpilledTrack() throws Exception {
+        File output = new File(dir, "out.mp4");
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(output);
+        movie.setSize(320, 240);
+        MP4Builder muxer = new MP4Builder().createMovie(movie);
+        int track = muxer.addVideoTrack("video/avc", 320, 240, new byte[]{1},
+                new byte[]{2});
+        ByteBuffer frame = ByteBuffer.allocate(4096);
+        for (int i = 0; i < SAMPLES; i++) {
+            frame.clear();
+            frame.limit(sizeOf(i));
+            muxer.writeSampleData(track, frame, 0, sizeOf(i), i * 40000L,
+                    i % 30 == 0 ? 1 : 0, false);
+        }
+        muxer.finishMovie(false);
+        // only the output is left
+        assertEquals(1, dir.listFiles().length);
+
+        IsoFile isoFile = new IsoFile(output.getAbsolutePath());
+        try {
+            TrackBox trackBox = Path.getPath(isoFile, "moov/trak");
+            SampleSizeBox stsz = Path.getPath(trackBox, "mdia/minf/stbl/stsz");
+            assertEquals(SAMPLES, stsz.getSampleCount());
+            assertEquals(sizeOf(1234), stsz.getSampleSizeAtIndex(1234));
+            SyncSampleBox stss = Path.getPath(trackBox, "mdia/minf/stbl/stss");
+            assertEquals((SAMPLES + 29) / 30, stss.getSampleNumber().length);
+            assertEquals(31, stss.getSampleNumber()[1]);
+            TimeToSampleBox stts = Path.getPath(trackBox, "mdia/minf/stbl/stts");
+            assertEquals(1, stts.getEntries().size());
+            assertEquals(SAMPLES, stts.getEntries().get(0).getCount());
+            assertEquals(3600, stts.getEntries().get(0).getDelta());
+
+            ChunkOffsetBox stco = Path.getPath(trackBox, "mdia/minf/stbl/stco");
+            SampleToChunkBox stsc = Path.getPath(trackBox, "mdia/minf/stbl/stsc");
+            long[] chunkSamples = stsc.blowup(stco.getChunkOffsets().length);
+            long total = 0;
+            for (long count : chunkSamples) {
+                total += count;
+            }
+            assertEquals(SAMPLES, total);
+        } finally {
+            isoFile.close();
+        }
+    }
+
+    private static int sizeOf(int sample) {
+        return 8 + sample * 31 % 3000;
+    }
+
+    private static long durationOf(int sample) {
+        return sample % 5 == 0 ? 3003 : 3003 + sample % 3;
+    }
+}
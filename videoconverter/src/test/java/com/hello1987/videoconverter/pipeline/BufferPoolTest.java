@@ -0,0 +1,60 @@
+package com.hello1987.videoconverter.pipeline;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reusesBuffersOfTheSameSizeClass() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer first = pool.acquire(5000);
+        assertTrue(first.isDirect());
+        assertEquals(8192, first.capacity());
+        first.putInt(42);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(8000);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(8192, second.limit());
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(4096, pool.acquire(1).capacity());
+    }
+
+    @Test
+    public void keepsIdleBuffersWithinBudget() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(32 * 1024);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(64 * 1024, pool.getIdleBytes());
+
+        ByteBuffer large = pool.acquire(16 * 1024 * 1024 + 1);
+        assertEquals(16 * 1024 * 1024 + 1, large.capacity());
+        pool.release(large);
+        assertEquals(64 * 1024, pool.getIdleBytes());
+        pool.clear();
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void reportsBuffersCollectedWithoutRelease() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        pool.setLeakDetection(true);
+        pool.release(pool.acquire(4096));
+        pool.acquire(4096);
+        for (int i = 0; i < 50 && pool.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeakCount());
+    }
+}
@@ -0,0 +1,112 @@
+package com.hello1987.videoconverter.pipeline;
+
+import com.hello1987.videoconverter.codec.MediaSource;
+import com.hello1987.videoconverter.codec.fake.FakeMediaSource;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PipelineTest {
+
+    private final FakeMediaSource.Factory sourceFactory = new FakeMediaSource.Factory()
+            .setDurationUs(3000000);
+
+    @Test
+    public void prefetchingSourceReturnsTheSameSamples() throws Exception {
+        MediaSource plain = sourceFactory.open(null);
+        PrefetchingMediaSource prefetching = new PrefetchingMediaSource(
+                sourceFactory.open(null), 4);
+        try {
+            for (MediaSource source : new MediaSource[]{plain, prefetching}) {
+                source.selectTrack(0);
+                source.selectTrack(1);
+            }
+            assertEquals(readAll(plain, 20), readAll(prefetching, 20));
+
+            for (MediaSource source : new MediaSource[]{plain, prefetching}) {
+                source.unselectTrack(1);
+                source.seekTo(1500000, MediaSource.SEEK_TO_PREVIOUS_SYNC);
+            }
+            List<String> samples = readAll(prefetching, -1);
+            assertEquals(readAll(plain, -1), samples);
+            assertEquals(50, samples.size());
+            assertEquals(-1, prefetching.getSampleTrackIndex());
+            assertFalse(prefetching.advance());
+        } finally {
+            prefetching.release();
+        }
+    }
+
+    @Test
+    public void fullQueueHoldsBackTheProducer() throws Exception {
+        final StageQueue<Integer> queue = new StageQueue<Integer>("test", 2);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    for (int i = 0; i < 3; i++) {
+                        queue.take();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < 3; i++) {
+            queue.put(i);
+        }
+        consumer.join();
+
+        assertEquals(3, queue.getPutCount());
+        assertEquals(2, queue.getMaxOccupancy());
+        assertTrue(queue.getPutStallNanos() >= 30000000);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void abortWakesUpBlockedConsumers() throws Exception {
+        final StageQueue<Integer> queue = new StageQueue<Integer>("test", 1);
+        final AtomicReference<Exception> thrown = new AtomicReference<Exception>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.take();
+                } catch (Exception e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(20);
+        queue.abort();
+        consumer.join(1000);
+
+        assertTrue(thrown.get() instanceof CancellationException);
+        queue.clear();
+        queue.put(1);
+        assertEquals(Integer.valueOf(1), queue.take());
+    }
+
+    private static List<String> readAll(MediaSource source, int limit) {
+        List<String> samples = new ArrayList<String>();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        while (source.getSampleTrackIndex() != -1
+                && (limit < 0 || samples.size() < limit)) {
+            int size = source.readSampleData(buffer, 0);
+            samples.add(source.getSampleTrackIndex() + "/"
+                    + source.getSampleTime() + "/" + source.getSampleFlags()
+                    + "/" + size + "/" + buffer.hashCode());
+            source.advance();
+        }
+        return samples;
+    }
+}